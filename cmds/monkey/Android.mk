@@ -3,7 +3,7 @@
 LOCAL_PATH:= $(call my-dir)
 
 include $(CLEAR_VARS)
-LOCAL_SRC_FILES := $(call all-subdir-java-files)
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
 LOCAL_MODULE := monkeylib
 LOCAL_LICENSE_KINDS := SPDX-license-identifier-Apache-2.0
 LOCAL_LICENSE_CONDITIONS := notice
@@ -21,3 +21,52 @@ LOCAL_MODULE_CLASS := EXECUTABLES
 LOCAL_SRC_FILES := monkey
 LOCAL_REQUIRED_MODULES := monkeylib
 include $(BUILD_PREBUILT)
+
+################################################################
+# Host tools: the crash repro minimizer, the event model trainer, the device
+# farm, the network client and the network load test. They only get the
+# classes that don't need the framework.
+include $(CLEAR_VARS)
+LOCAL_SRC_FILES := \
+    src/com/android/commands/monkey/EventSink.java \
+    src/com/android/commands/monkey/MonkeyAdbDevice.java \
+    src/com/android/commands/monkey/MonkeyAdbTarget.java \
+    src/com/android/commands/monkey/MonkeyClock.java \
+    src/com/android/commands/monkey/MonkeyDisplaySize.java \
+    src/com/android/commands/monkey/MonkeyEventGenerator.java \
+    src/com/android/commands/monkey/MonkeyEventLog.java \
+    src/com/android/commands/monkey/MonkeyEventModel.java \
+    src/com/android/commands/monkey/MonkeyFakeDevice.java \
+    src/com/android/commands/monkey/MonkeyFarm.java \
+    src/com/android/commands/monkey/MonkeyFrameStatsParser.java \
+    src/com/android/commands/monkey/MonkeyJson.java \
+    src/com/android/commands/monkey/MonkeyLatencyHistogram.java \
+    src/com/android/commands/monkey/MonkeyLeakDetector.java \
+    src/com/android/commands/monkey/MonkeyModelGenerator.java \
+    src/com/android/commands/monkey/MonkeyModelTrainer.java \
+    src/com/android/commands/monkey/MonkeyNetworkClient.java \
+    src/com/android/commands/monkey/MonkeyNetworkConnection.java \
+    src/com/android/commands/monkey/MonkeyNetworkLoadTest.java \
+    src/com/android/commands/monkey/MonkeyNetworkProtocol.java \
+    src/com/android/commands/monkey/MonkeyReproMinimizer.java \
+    src/com/android/commands/monkey/MonkeySimulatedTarget.java \
+    src/com/android/commands/monkey/MonkeyStateGraph.java \
+    src/com/android/commands/monkey/MonkeyViewTree.java \
+    src/com/android/commands/monkey/RecordingEventSink.java
+LOCAL_MODULE := monkey-host
+LOCAL_LICENSE_KINDS := SPDX-license-identifier-Apache-2.0
+LOCAL_LICENSE_CONDITIONS := notice
+LOCAL_NOTICE_FILE := $(LOCAL_PATH)/NOTICE
+include $(BUILD_HOST_JAVA_LIBRARY)
+
+################################################################
+# Host tests for the classes in monkey-host.
+include $(CLEAR_VARS)
+LOCAL_SRC_FILES := $(call all-java-files-under, tests/src)
+LOCAL_MODULE := monkey-host-tests
+LOCAL_MODULE_TAGS := tests
+LOCAL_JAVA_LIBRARIES := monkey-host junit-host
+LOCAL_LICENSE_KINDS := SPDX-license-identifier-Apache-2.0
+LOCAL_LICENSE_CONDITIONS := notice
+LOCAL_NOTICE_FILE := $(LOCAL_PATH)/NOTICE
+include $(BUILD_HOST_JAVA_LIBRARY)
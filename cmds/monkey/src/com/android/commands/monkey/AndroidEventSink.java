@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.content.ComponentName;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * EventSink that turns generated events into MonkeyEvents on a MonkeyEventQueue,
+ * ready to be injected into the device. Touch, trackball and key events come
+ * from a MonkeyEventPool and go back to it when they are recycled.
+ *
+ * Consecutive touch moves of a gesture can be coalesced into one event that
+ * carries the earlier moves as historical samples, as touch hardware reports
+ * them, so a drag costs one injection instead of one per step. The moves are
+ * taken to be a sample period apart from the down, and the coalesced event
+ * is injected once its last sample is due.
+ */
+public class AndroidEventSink implements EventSink {
+    private final MonkeyEventQueue mQ;
+    private final List<ComponentName> mMainApps;
+    private final MonkeyPermissionUtil mPermissionUtil;
+    private final MonkeyEventPool mPool;
+
+    // Moves waiting to be coalesced, if coalescing, with the time and x and y
+    // of each pointer of each.
+    private long mSampleMillis;
+    private int mPendingMoves;
+    private long mPendingDownTime;
+    private int mPendingPointerCount;
+    private long[] mPendingTimes = new long[16];
+    private float[] mPendingXY = new float[32];
+    private float[] mSample = new float[4];
+    // The gesture the last move belonged to and how many moves it has had.
+    private long mGestureDownTime = -1;
+    private int mGestureMoves;
+
+    /**
+     * @param q the queue to add the events to
+     * @param mainApps the main activities that activity events switch to
+     * @param permissionUtil the source of permission events
+     * @param pool where touch, trackball and key events are taken from
+     */
+    public AndroidEventSink(MonkeyEventQueue q, List<ComponentName> mainApps,
+            MonkeyPermissionUtil permissionUtil, MonkeyEventPool pool) {
+        mQ = q;
+        mMainApps = mainApps;
+        mPermissionUtil = permissionUtil;
+        mPool = pool;
+    }
+
+    /**
+     * Coalesce the consecutive moves of each gesture into one event.
+     *
+     * @param sampleMillis how far apart the moves are taken to be, or 0 to
+     *        send every move as an event of its own
+     */
+    public void setCoalesceMoves(long sampleMillis) {
+        flushMoves();
+        mSampleMillis = sampleMillis;
+    }
+
+    public void touch(int action, long downTime, int pointerCount, float[] xy,
+            boolean intermediateNote) {
+        if (mSampleMillis > 0 && action == MonkeyEventGenerator.ACTION_MOVE) {
+            if (mPendingMoves > 0 && (downTime != mPendingDownTime
+                    || pointerCount != mPendingPointerCount)) {
+                flushMoves();
+            }
+            if (downTime != mGestureDownTime) {
+                mGestureDownTime = downTime;
+                mGestureMoves = 0;
+            }
+            int n = pointerCount * 2;
+            if (mPendingXY.length < (mPendingMoves + 1) * n) {
+                mPendingXY = Arrays.copyOf(mPendingXY, (mPendingMoves + 1) * n * 2);
+            }
+            if (mPendingTimes.length == mPendingMoves) {
+                mPendingTimes = Arrays.copyOf(mPendingTimes, mPendingMoves * 2);
+            }
+            mPendingTimes[mPendingMoves] = downTime + ++mGestureMoves * mSampleMillis;
+            System.arraycopy(xy, 0, mPendingXY, mPendingMoves * n, n);
+            mPendingMoves++;
+            mPendingDownTime = downTime;
+            mPendingPointerCount = pointerCount;
+            return;
+        }
+        flushMoves();
+        MonkeyMotionEvent e = mPool.obtainTouch(action).setDownTime(downTime);
+        for (int i = 0; i < pointerCount; i++) {
+            e.addPointer(i, xy[i * 2], xy[i * 2 + 1]);
+        }
+        mQ.addLast(e.setIntermediateNote(intermediateNote));
+    }
+
+    /**
+     * Queue the pending moves as one event: the last move is the current
+     * sample and the ones before it are historical, each at its own time.
+     */
+    private void flushMoves() {
+        if (mPendingMoves == 0) {
+            return;
+        }
+        int n = mPendingPointerCount * 2;
+        int last = mPendingMoves - 1;
+        MonkeyMotionEvent e = mPool.obtainTouch(MonkeyEventGenerator.ACTION_MOVE)
+                .setDownTime(mPendingDownTime);
+        if (last > 0) {
+            // A lone move goes out right away, like one that isn't coalesced.
+            e.setEventTime(mPendingTimes[last]);
+        }
+        for (int i = 0; i < mPendingPointerCount; i++) {
+            e.addPointer(i, mPendingXY[last * n + i * 2], mPendingXY[last * n + i * 2 + 1]);
+        }
+        if (mSample.length < n) {
+            mSample = new float[n];
+        }
+        for (int h = 0; h < last; h++) {
+            System.arraycopy(mPendingXY, h * n, mSample, 0, n);
+            e.addHistoricalSample(mPendingTimes[h], mSample, mPendingPointerCount);
+        }
+        mPendingMoves = 0;
+        mQ.addLast(e.setIntermediateNote(true));
+    }
+
+    public void trackball(int action, long downTime, float x, float y,
+            boolean intermediateNote) {
+        flushMoves();
+        mQ.addLast(mPool.obtainTrackball(action)
+                .setDownTime(downTime)
+                .addPointer(0, x, y)
+                .setIntermediateNote(intermediateNote));
+    }
+
+    public void key(int action, int keyCode) {
+        flushMoves();
+        mQ.addLast(mPool.obtainKey(action, keyCode));
+    }
+
+    public void rotation(int rotation, boolean persist) {
+        flushMoves();
+        mQ.addLast(new MonkeyRotationEvent(rotation, persist));
+    }
+
+    public void activity(int appIndex) {
+        flushMoves();
+        mQ.addLast(new MonkeyActivityEvent(mMainApps.get(appIndex)));
+    }
+
+    public void flip(boolean keyboardOpen) {
+        flushMoves();
+        mQ.addLast(new MonkeyFlipEvent(keyboardOpen));
+    }
+
+    public void permission(Random random) {
+        flushMoves();
+        // Permission events have never been followed by a throttle
+        mQ.add(mPermissionUtil.generateRandomPermissionEvent(random));
+    }
+}
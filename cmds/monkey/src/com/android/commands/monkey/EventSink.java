@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.util.Random;
+
+/**
+ * Receives the events produced by a MonkeyEventGenerator.
+ *
+ * The generator only deals in plain values, so a sink decides what an event
+ * turns into: AndroidEventSink builds MonkeyEvents for injection, while
+ * RecordingEventSink just keeps them in memory so the generator can be run
+ * off the device.
+ *
+ * Action, key code and rotation values are the ones defined by
+ * android.view.MotionEvent, android.view.KeyEvent and android.view.Surface.
+ */
+public interface EventSink {
+    /**
+     * A touch screen event.
+     *
+     * @param action the motion action, including the pointer index if any
+     * @param downTime the uptime of the initial down
+     * @param pointerCount the number of pointers in xy
+     * @param xy x and y of each pointer, in pointer id order. Only valid for
+     *        the duration of the call.
+     * @param intermediateNote true if this is a step in the middle of a gesture
+     */
+    public void touch(int action, long downTime, int pointerCount, float[] xy,
+            boolean intermediateNote);
+
+    /**
+     * A trackball event with a single pointer.
+     *
+     * @param action the motion action
+     * @param downTime the uptime of the initial down, or -1 for a move
+     * @param x relative x movement
+     * @param y relative y movement
+     * @param intermediateNote true if this is a step in the middle of a gesture
+     */
+    public void trackball(int action, long downTime, float x, float y,
+            boolean intermediateNote);
+
+    /**
+     * A key event.
+     *
+     * @param action the key action
+     * @param keyCode the key code
+     */
+    public void key(int action, int keyCode);
+
+    /**
+     * A screen rotation.
+     *
+     * @param rotation one of the Surface.ROTATION_* values
+     * @param persist whether to keep the rotation locked afterwards
+     */
+    public void rotation(int rotation, boolean persist);
+
+    /**
+     * A switch to one of the main activities.
+     *
+     * @param appIndex index into the list of main activities
+     */
+    public void activity(int appIndex);
+
+    /**
+     * A keyboard flip.
+     *
+     * @param keyboardOpen the keyboard state to flip to
+     */
+    public void flip(boolean keyboardOpen);
+
+    /**
+     * A permission change. Picking the package and permission is left to the
+     * sink since only the device knows them.
+     *
+     * @param random random number source to pick with
+     */
+    public void permission(Random random);
+}
@@ -18,6 +18,8 @@ package com.android.commands.monkey;
 
 import android.util.Log;
 
+import java.io.IOException;
+
 /**
  * 有开关，默认均为true
  * 用于向标准输出流打印文本，同时使用logcat支持的Log.i输出日志
@@ -29,6 +31,10 @@ public abstract class Logger {
 
     public static Logger out = new Logger() { //Logger类持有的Logger对象
         public void println(String s) {
+            MonkeyAsyncLogger async = sAsync;
+            if (async != null && async.offer(MonkeyAsyncLogger.STREAM_OUT, s)) {
+                return; //由后台线程批量输出
+            }
             if (stdout) { // 说明可在控制台调试（标准输出流）
                 System.out.println(s);
             }
@@ -39,6 +45,10 @@ public abstract class Logger {
     };
     public static Logger err = new Logger() {
         public void println(String s) { //Logger类持有的另一个Logger对象
+            MonkeyAsyncLogger async = sAsync;
+            if (async != null && async.offer(MonkeyAsyncLogger.STREAM_ERR, s)) {
+                return;
+            }
             if (stdout) {
                 System.err.println(s);
             }
@@ -51,8 +61,50 @@ public abstract class Logger {
     public static boolean stdout = true;
     public static boolean logcat = true;
 
+    // Set while the lines are written by a background thread.
+    private static volatile MonkeyAsyncLogger sAsync;
+
     public abstract void println(String s);
 
+    /**
+     * Write the lines printed from now on from a background thread, so
+     * println() doesn't block. stopAsync() is also run on shutdown, so the
+     * lines still queued aren't lost on a normal exit.
+     *
+     * @param capacity how many lines may be queued before lines are dropped
+     * @param binaryLogFile where to also write a binary log, or null for none
+     */
+    public static synchronized void startAsync(int capacity, String binaryLogFile)
+            throws IOException {
+        if (sAsync != null) {
+            return;
+        }
+        MonkeyAsyncLogger async = new MonkeyAsyncLogger(capacity, binaryLogFile);
+        async.start();
+        sAsync = async;
+        Runtime.getRuntime().addShutdownHook(new Thread("MonkeyAsyncLogger shutdown") {
+            @Override
+            public void run() {
+                stopAsync();
+            }
+        });
+    }
+
+    /**
+     * Write out the queued lines and go back to printing on the caller's thread.
+     */
+    public static synchronized void stopAsync() {
+        MonkeyAsyncLogger async = sAsync;
+        if (async == null) {
+            return;
+        }
+        sAsync = null;
+        async.stop();
+        if (async.getDropped() > 0) {
+            err.println("// Logger: " + async.getDropped() + " lines dropped in total");
+        }
+    }
+
     /**
      * Log an exception (throwable) at the ERROR level with an accompanying message.
      *
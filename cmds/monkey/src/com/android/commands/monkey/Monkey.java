@@ -40,17 +40,17 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Random;
 import java.util.Set;
 
@@ -171,6 +171,16 @@ public class Monkey {
      */
     private boolean mRequestProcRank = false;
 
+    /**
+     * Set whenever one of the request flags above or mAbort is set, so the
+     * main loop only has to take the lock when there is something to handle.
+     * Writers set it after the request flag it announces; volatile makes
+     * both visible to the main loop without the lock. Only the main loop
+     * clears it, holding the lock and before it reads the request flags, so
+     * a request that comes in after the clear is picked up next time round.
+     */
+    private volatile boolean mRequestPending = false;
+
     /** Kill the process after a timeout or crash. */
     private boolean mKillProcessAfterError; //用于标记AppCrash、ANR错误后，是否需要AMS干掉进程（不然会重启？）
 
@@ -205,7 +215,7 @@ public class Monkey {
     long mSeed = 0; //随机种子值
 
     /** The random number generator **/
-    Random mRandom = null; //持有的Random对象
+    MonkeyRandom mRandom = null; //持有的Random对象，状态可以保存到检查点中
 
     /** Dropped-event statistics **/
     long mDroppedKeyEvents = 0; //用于记录丢失的key事件
@@ -231,6 +241,24 @@ public class Monkey {
     /** Capture bugreprot whenever there is a crash. **/
     private boolean mRequestBugreport = false; //当发生崩溃时，是否需要请求bugreport
 
+    /** How many reports may be captured at once in the background, or 0 to capture them inline. */
+    private int mAsyncReportThreads = 0;
+
+    /** How many more background reports may wait for a thread before new ones are dropped. */
+    private static final int MAX_QUEUED_REPORTS = 8;
+
+    /** How many log lines --binary-log queues if --async-log didn't say. */
+    private static final int DEFAULT_ASYNC_LOG_CAPACITY = 8192;
+
+    /** gzip the saved reports. */
+    private boolean mCompressReports = false;
+
+    /** Stop injecting while background reports are being captured. */
+    private boolean mPauseForReports = false;
+
+    /** Runs bugreport, procrank, dumpsys meminfo and the ANR traces dump. */
+    private MonkeyReportCapture mReportCapture;
+
     /** a filename to the setup script (if any) */
     private String mSetupFileName = null; //用于记录初始化的文件名，作为脚本文件
 
@@ -246,12 +274,145 @@ public class Monkey {
 
     private static int NUM_READ_TOMBSTONE_RETRIES = 5; //表示tombsone文件是否正在写入的重试次数
 
+    /** How long a tombstone must go unwritten before the watcher reports it. */
+    private static final long TOMBSTONE_DEBOUNCE_MS = 1000;
+
+    /** Watches TOMBSTONES_PATH in the background, or null to list it from the main loop. */
+    private MonkeyTombstoneWatcher mTombstoneWatcher;
+
     private HashSet<Long> mTombstones = null; //持有的用于记录native崩溃文件的情况，Long是tonmb文件的修改时间，在内存中持有对象，当然是为了记录了，赞
 
     float[] mFactors = new float[MonkeySourceRandom.FACTORZ_COUNT]; //创建一个float数组对象，存放12个元素，每个元素值表示某个事件的比例，不同的下标代表不同的事件类型
 
     MonkeyEventSource mEventSource; //持有的MonkeyEventSource对象（实际对象为子类对象，即MonkeySourceNetwork、MonkeySourceRandom等等）
 
+    /** How many events a producer thread may generate ahead of injection, or 0 to not pipeline. */
+    private int mPipelineDepth = 0;
+
+    /** The pipeline wrapping mEventSource, if --pipeline was given. */
+    private MonkeyEventPipeline mPipeline;
+
+    /** How many key and motion events may be in flight at once, or 0 to inject synchronously. */
+    private int mAsyncInjectWindow = 0;
+
+    /** Injects key and motion events asynchronously, if --async-inject was given. */
+    private MonkeyAsyncInjector mInjector;
+
+    /** Where to record the injected events, or null to not record them. */
+    private String mRecordFileName;
+
+    /** Records the injected events for MonkeySourceReplay, if --record-events was given. */
+    private MonkeyEventRecorder mRecorder;
+
+    /** An event log to replay instead of generating events. */
+    private String mReplayFileName;
+
+    /** Replays mReplayFileName, if --replay-events was given. */
+    private MonkeySourceReplay mReplaySource;
+
+    /** Set when runMonkeyCycles() stopped because the event source ran out of events. */
+    private boolean mEventSourceEnded;
+
+    /** Replay the event log with its recorded timing rather than as fast as possible. */
+    private boolean mReplayRealTime = false;
+
+    /** Aim events at the actionable views of the active window, set by --view-tree. */
+    private boolean mUseViewTree = false;
+
+    /** Explore with a UI state graph on top of the view tree, set by --explore. */
+    private boolean mExplore = false;
+
+    /** The view tree source, if --view-tree or --explore was given. */
+    private MonkeySourceViewTree mViewTreeSource;
+
+    /** An event model from MonkeyModelTrainer to generate events from, set by --model. */
+    private String mModelFileName;
+
+    /** Where main activities and permissions are kept across runs, set by --app-cache. */
+    private String mAppCacheFileName;
+
+    /** The synced app cache, if --app-cache was given. */
+    private MonkeyAppCache mAppCache;
+
+    /** Send the moves of a gesture as one event with historical samples, set by --coalesce-moves. */
+    private boolean mCoalesceMoves = false;
+
+    /** Make drags flings with a velocity curve, set by --flings. */
+    private boolean mFlings = false;
+
+    /** The events per second to hold with open-loop pacing, set by --rate, or 0 for none. */
+    private double mTargetRate = 0;
+
+    /** How the paced events arrive, one of MonkeyPacer.ARRIVAL_*, set by --arrival. */
+    private int mArrival = MonkeyPacer.ARRIVAL_CONSTANT;
+
+    /** The number of events in a burst for --arrival burst, set by --burst-size. */
+    private int mBurstSize = 10;
+
+    /** Paces the main loop to mTargetRate in place of the throttle, if --rate was given. */
+    private MonkeyPacer mPacer;
+
+    /** How often to sample the frame timings of the foreground package, or 0 for never. */
+    private long mFrameStatsIntervalMs = 0;
+
+    /** The length of the time windows in the frame stats series. */
+    private long mFrameStatsWindowMs = 10000;
+
+    /** Where to write the frame stats, or null to print them. */
+    private String mFrameStatsFileName;
+
+    /** Samples the frame timings, if --frame-stats was given. */
+    private MonkeyJankSampler mJankSampler;
+
+    /** How often to sample the memory use of the target packages, or 0 for never. */
+    private long mMemSampleIntervalMs = 0;
+
+    /** The growth in KB per minute across activity visits that counts as a leak. */
+    private long mLeakThresholdKbPerMin = 50;
+
+    /** Where to write the memory samples, or null to print them. */
+    private String mMemStatsFileName;
+
+    /** Samples the memory use, if --mem-sample was given. */
+    private MonkeyMemorySampler mMemorySampler;
+
+    /** Where to save checkpoints of the run, set by --checkpoint. */
+    private String mCheckpointFileName;
+
+    /** Save a checkpoint every this many events. */
+    private long mCheckpointInterval = 1000;
+
+    /** Carry on from the checkpoint in mCheckpointFileName, set by --resume. */
+    private boolean mResume = false;
+
+    /** The checkpoint the run carries on from, if there was one to resume. */
+    private MonkeyCheckpoint mResumeCheckpoint;
+
+    /** The event source whose position goes into the checkpoints, if it has one. */
+    private MonkeyCheckpoint.Resumable mResumableSource;
+
+    /** The event and cycle counters the run carries on from. */
+    private int mResumeEventCounter = 0;
+    private int mResumeCycleCounter = 0;
+
+    /** How many log lines may be queued for the background writer, or 0 to log synchronously. */
+    private int mAsyncLogCapacity = 0;
+
+    /** Where the background writer also writes a binary log, or null for none. */
+    private String mBinaryLogFileName;
+
+    /** Collect injection latency and throughput, set by --stats or --stats-interval. */
+    private boolean mCollectStats = false;
+
+    /** The injection latency and throughput, if they are being collected. */
+    private MonkeyInjectionStats mStats;
+
+    /** How often to print mStats while running, or 0 to only print them at the end. */
+    private long mStatsIntervalMs = 0;
+
+    /** When to print mStats next, in uptime millis. */
+    private long mNextStatsTime;
+
     private MonkeyNetworkMonitor mNetworkMonitor = new MonkeyNetworkMonitor(); //持有的MonkeyNetworkMonitor对象，用于监控网络
 
     private boolean mPermissionTargetSystem = false;
@@ -384,6 +545,7 @@ public class Monkey {
                             mRequestAppCrashBugreport = true; //binder线程修改此共享变量，它表示需要AppCrashBugreport的标志位，monkey主进程（主线程）会一直在事件循环中读取这个共享变量
                             mReportProcessName = processName; //设置需要上报的进程名字（程序名） 此共享变量需要保护（只保护需要写的共享变量）
                         }
+                        mRequestPending = true; //通知主线程有请求需要处理
                     } //这里，Binder线程池中的工作线程，会释放对象锁，Monkey主进程（主线程）获取到对象锁后才能继续执行（用对象锁做的线程间同步）
                     return !mKillProcessAfterError; //这个返回值，是给AMS用的……默认值一定返回的是true啊，出现Crash，要求系统重启app进程……怪不得设置了忽略App崩溃之后自动重启了呢
                 }
@@ -426,10 +588,12 @@ public class Monkey {
                         mRequestAnrBugreport = true; //修改共享变量，表示需要请求anr的bugreport
                         mReportProcessName = processName; //修改共享变量，保存上报的进程名
                     }
+                    mRequestPending = true;
                 }
                 if (!mIgnoreTimeouts) { //如果没有在命令行中设置忽略超时，出现ANR后，monkey程序即会停止
                     synchronized (Monkey.this) { //与monkey的主线程（主进程）竞争Monkey对象锁，binder线程池中的线程可能会阻塞在这里（那样AMS所在进程SystemServer中的Binder线程池中的一个binder线程也会被阻塞，没错，看来Monkey主线程不能太累，会影响System_Server的执行（见袁辉辉篇)
                         mAbort = true; //Monkey程序是否中断的标志位，修改此共享变量，不过此处重复获取同一个对象锁，有意思
+                        mRequestPending = true;
                     }
                 }
             }
@@ -459,6 +623,7 @@ public class Monkey {
                     }
                 }
                 mWatchdogWaiting = true; //修改共享变量（共享内存），watchDog的标志位为true
+                mRequestPending = true;
             } //释放Monkey对象锁，这里为何要释放对象锁，莫非想要monkey程序继续运行？
             synchronized (Monkey.this) { //再次获取对象锁，如果没有获取到，Binder线程池中的某个工作线程将被阻塞在这里
                 while (mWatchdogWaiting) { //如果需要watchDog等待
@@ -488,6 +653,15 @@ public class Monkey {
      * 生成最近的ANR trace，先等5秒，让异步的anr报告先写入文件（Monkey主线程会等待5秒）
      */
     private void reportAnrTraces() {
+        mReportCapture.submit("anr traces", new Runnable() {
+            @Override
+            public void run() {
+                captureAnrTraces();
+            }
+        });
+    }
+
+    private void captureAnrTraces() {
         try {
             Thread.sleep(5 * 1000); //这是为了等待anr的trace文件生成！Monkey进程（主线程）等待5s
         } catch (InterruptedException e) {
@@ -508,7 +682,7 @@ public class Monkey {
             }
 
             if (mostRecent != null) { //对最后一次修改的文件进行操作（最新修改的文件）
-                commandLineReport("anr traces", "cat " + mostRecent.getAbsolutePath()); //竟然使用的是cat命令（cat程序），读取最后一次修改文件的内容，传入的报告名称是anr trace，但是cat命令不一定会做持久化工作,这里主要是将anr的内容写入到标准输出中
+                mReportCapture.capture("anr traces", "cat " + mostRecent.getAbsolutePath()); //竟然使用的是cat命令（cat程序），读取最后一次修改文件的内容，传入的报告名称是anr trace，但是cat命令不一定会做持久化工作,这里主要是将anr的内容写入到标准输出中
             }
         }
     }
@@ -533,60 +707,31 @@ public class Monkey {
      * TODO: Use ProcessBuilder & redirectErrorStream(true) to capture both
      * streams (might be important for some command lines)
      * 在此方法中会创建一个子进程，且执行的线程（多数是Monkey主线程）会等待子进程完成工作后才会继续执行，这又涉及到进程间同步的知识点
+     * With --async-reports the child is waited for on a MonkeyReportCapture thread instead.
      * @param reportName Simple tag that will print before the report and in
      *            various annotations. 报告名称（持久化文件）
      * @param command Command line to execute. 调用的可执行文件（外部程序）
      */
     private void commandLineReport(String reportName, String command) {
-        Logger.err.println(reportName + ":"); //Monkey主进程（主线程）向标准错误流中输入报告名和一个冒号
-        Runtime rt = Runtime.getRuntime(); //获取运行时对象，但是却没有使用这个对象，不应该啊？大佬也会犯错？
-        Writer logOutput = null; //输出字符流对象（由内存到磁盘时使用）
-
-        try {
-            // Process must be fully qualified here because android.os.Process
-            // is used elsewhere 这段话该怎么翻译？Runtime对象的exec（）方法执行程序后会返回一个Process对象，表示子进程
-            java.lang.Process p = Runtime.getRuntime().exec(command); //替换命令，在新的子进程中执行某个程序，返回一个Process对象表示子进程（exec会执行内核的exec系统调用）
-
-            if (mRequestBugreport) { //检查命令行参数中是否传入了需要使用bugreport
-                logOutput =
-                        new BufferedWriter(new FileWriter(new File(Environment //创建可缓存的输出字符流
-                                .getLegacyExternalStorageDirectory(), reportName), true)); //创建一个通道，从内存中向reportName命名的文件中写入日志，这个文件的路径是Environment的静态方法getLegacyExternalStorageDirectory（）返回的路径
-                                //默认的内存缓冲区是8192个字节
-            }
-            // pipe everything from process stdout -> System.err，管道通常获取到的数据是进程的标准输出、标准错误？（这里使用了管道）Monkey主进程作为获取输入流的进程  即 子进程 | Monkey进程
-            InputStream inStream = p.getInputStream(); //获取子进程的标准输入流对象（将子进程的标准输出信息、标准错误读取到内存中）……，这里可以获取到的是子进程的标准输出与标准错误数据，我猜测Monkey主进程会等待子进程完成工作，为啥InputStream对象可以这样？
-            InputStreamReader inReader = new InputStreamReader(inStream); //将输入字节流，转成输入字符流
-            BufferedReader inBuffer = new BufferedReader(inReader); //在当前进程的内存中创建一个BufferedReader对象作为缓冲区，用于缓存标准输入字符流中的数据（这里的意思是标准输入的数据，是从别的子进程获取到的，相当于中间建立了一个管道）
-            String s; //创建一个String局部变量
-            while ((s = inBuffer.readLine()) != null) { //一行一行的读缓冲区中的数据，保存到局部变量s中，直到没有数据为止（如果管道里真的没有数据呢？）没有数据获取到的字符串为null
-                if (mRequestBugreport) { //如果需要执行Bugreport命令保存到文件中，命令行控制
-                    try {
-                        // When no space left on the device the write will 如果没有磁盘控件，将会报IOException
-                        // occurs an I/O exception, so we needed to catch it
-                        // and continue to read the data of the sync pipe to
-                        // aviod the bugreport hang forever.
-                        logOutput.write(s); //把从子进程中执行的bugreport程序中的获取到的标准输出与标准错误，从内存写入到文件中
-                        logOutput.write("\n"); //每写完一行字符串，再写个换行符
-                    } catch (IOException e) { //发生IO异常，直接捕获（磁盘没有空间时，会这样）
-                        while(inBuffer.readLine() != null) {} //处理也比较粗暴，先不停的一行一行的读取，直到没有内容……没有磁盘空间，也要在内存中把数据处理完
-                        Logger.err.println(e.toString()); //最后的monkey主线程会在标准错误流中打印异常的堆栈信息
-                        break;
-                    }
-                } else {
-                    Logger.err.println(s); //这里不需要将bugreport的内容保存在文件中，只是在monkey的标准错误流中输出，看来bugreport程序也时cli程序，仅向标准输出、标准错误中写入内容
-                }
-            } //读取完子进程的标准输出与标准错误，或者磁盘没有空间，循环结束
-
-            int status = p.waitFor(); //在这里，Monkey主进程（主线程）会做等待（被阻塞），等待子进程执行的命令行程序（可执行文件）结束，当然不仅仅是bugreport（进程间同步），还要获取子进程的退出状态码
-            Logger.err.println("// " + reportName + " status was " + status); //子进程执行完成后，Monkey主进程向标准错误中写入报告日志的文件名，以及打印子进程的退出状态码
+        commandLineReport(reportName, reportName, command);
+    }
 
-            if (logOutput != null) { //如果存在输出字符流对象
-                logOutput.close(); //关闭输出字符串流对象（释放内存）
+    /**
+     * Print report from a single command line, coalescing it with any pending
+     * report that has the same key.
+     *
+     * @param key Reports with the same key are only captured once at a time.
+     * @param reportName Simple tag that will print before the report and in
+     *            various annotations.
+     * @param command Command line to execute.
+     */
+    private void commandLineReport(String key, final String reportName, final String command) {
+        mReportCapture.submit(key, new Runnable() {
+            @Override
+            public void run() {
+                mReportCapture.capture(reportName, command);
             }
-        } catch (Exception e) { //捕获到任何其他的异常
-            Logger.err.println("// Exception from " + reportName + ":");
-            Logger.err.println(e.toString()); //直接将字符串内容输出到标准错误流中
-        }
+        });
     }
 
     // Write the numbe of iteration to the log
@@ -616,9 +761,10 @@ public class Monkey {
      *  执行命令行中的命令，然后生成一份持久化的报告
      */
     private void getBugreport(String reportName) {
+        String prefix = reportName;
         reportName += MonkeyUtils.toCalendarTime(System.currentTimeMillis()); //再将文件名处增加一个生成的时间
         String bugreportName = reportName.replaceAll("[ ,:]", "_"); //把所有的空格字符、逗号、冒号，全部替换成下划线_
-        commandLineReport(bugreportName + ".txt", "bugreport"); //使用shell命令，生成文件（在进程中运行）
+        commandLineReport(prefix, bugreportName + ".txt", "bugreport"); //使用shell命令，生成文件（在进程中运行）
     }
 
     /**
@@ -632,6 +778,7 @@ public class Monkey {
 
         Logger.err.println("args: " + Arrays.toString(args)); //向标准错误流，输出命令行参数信息
         int resultCode = (new Monkey()).run(args); //创建Monkey对象,调用run（）方法，将数组对象（命令行参数）传进去，退出状态码会保存在resultCode中
+        Logger.stopAsync(); //输出还在队列中的日志
         System.exit(resultCode); //退出虚拟机进程，返回退出状态码，进程结束
     }
 
@@ -671,6 +818,15 @@ public class Monkey {
             return -1; //如果命令行参数发生错误，返回退出状态码-1，这个退出状态码，shell可以拿到
         }
 
+        if (mAsyncLogCapacity > 0) {
+            try {
+                Logger.startAsync(mAsyncLogCapacity, mBinaryLogFileName);
+            } catch (IOException e) {
+                Logger.err.println("** Failed to create binary log " + mBinaryLogFileName + ": " + e);
+                return -1;
+            }
+        }
+
         if (!loadPackageLists()) { //检查并处理文件中持久的包名（白名单文件、黑名单文件）看来除了命令行指定包名，还可以指定文件
             return -1;
         }
@@ -681,6 +837,10 @@ public class Monkey {
             mMainCategories.add(Intent.CATEGORY_MONKEY); //说明你可以自己写一个Category为Monkey的Activity供启动？
         }
 
+        if (mResume && !loadCheckpoint()) {
+            return -1;
+        }
+
         if (mSeed == 0) { //随机种子没有设置时，使用时间戳+当前对象的hashCode值相加得到一个新的随机种子值
             mSeed = System.currentTimeMillis() + System.identityHashCode(this);
         }
@@ -704,11 +864,23 @@ public class Monkey {
             return -3; //系统服务出错，会返回-3
         }
 
+        if (mAppCacheFileName != null) {
+            // only packages installed or updated since the last run are resolved
+            mAppCache = new MonkeyAppCache(new File(mAppCacheFileName), mPm,
+                    ActivityManager.getCurrentUser(), mMainCategories);
+            try {
+                mAppCache.sync();
+            } catch (RemoteException e) {
+                Logger.err.println("** Failed talking with package manager!");
+                return -4;
+            }
+        }
+
         if (!getMainApps()) { //查找系统中所有可启动的主Activity（每个App对应一个）
             return -4; //没有找到可用的主Activity，返回-4
         }
 
-        mRandom = new Random(mSeed); //创建Random对象……随机种子传给它,伪随机……
+        mRandom = new MonkeyRandom(mSeed); //创建Random对象……随机种子传给它,伪随机……
 
         //初始化Monkey对象持有的mEventSource，注意优先走单个脚本文件、然后是多个脚本文件，接着是网络、最后才是命令行的方式，同时指定时的优先级就是这样……
 
@@ -732,6 +904,12 @@ public class Monkey {
             }
             mEventSource.setVerbose(mVerbose); //设置事件来源的日志等级（保持与Monkey中一样的等级）
             mCountEvents = false; //无需计算事件数量，指定多个脚本文件时，无需计算事件数量
+        } else if (mReplayFileName != null) {
+            // replay a recorded run, start to end
+            // COUNT caps the events replayed; the log can also end before it
+            mReplaySource = new MonkeySourceReplay(mReplayFileName, mReplayRealTime);
+            mEventSource = mReplaySource;
+            mEventSource.setVerbose(mVerbose);
         } else if (mServerPort != -1) { //TCP……，基于网络，mServerPort指定了一个端口
             try {
                 mEventSource = new MonkeySourceNetwork(mServerPort); //创建MonkeySourceNetwork对象，事件源再次改变
@@ -740,6 +918,21 @@ public class Monkey {
                 return -5; //返回退出状态为-5
             }
             mCount = Integer.MAX_VALUE; //直接将事件数量设置为最大值
+        } else if (mUseViewTree) {
+            // pick targets from the accessibility tree instead of random points
+            mViewTreeSource = new MonkeySourceViewTree(mRandom, mMainApps, mThrottle,
+                    mRandomizeThrottle);
+            mViewTreeSource.setExplore(mExplore);
+            mEventSource = mViewTreeSource;
+            mEventSource.setVerbose(mVerbose);
+        } else if (mModelFileName != null) {
+            // gestures and timing drawn from a model of recorded sessions
+            mEventSource = new MonkeySourceModel(mModelFileName, mRandom, mMainApps);
+            mEventSource.setVerbose(mVerbose);
+            if (mTargetRate > 0) {
+                Logger.err.println("** Warning: --rate paces the events, so the timing of"
+                        + " the model " + mModelFileName + " is ignored");
+            }
         } else { //没有脚本文件、没有基于网络、当基于命令行参数时，走这里，它的优先级最低
             // random source by default
             if (mVerbose >= 2) { // check seeding performance
@@ -748,6 +941,9 @@ public class Monkey {
             mEventSource = new MonkeySourceRandom(mRandom, mMainApps,
                     mThrottle, mRandomizeThrottle, mPermissionTargetSystem); //创建MonkeySourceRandom对象，看见了吗，将获取到的可用的Activity组件对象mMainApps，传了进去
             mEventSource.setVerbose(mVerbose); //将命令行中解析的日志等级同样赋值给MonkeySourceRandom对象
+            ((MonkeySourceRandom) mEventSource).setAppCache(mAppCache);
+            ((MonkeySourceRandom) mEventSource).setCoalesceMoves(mCoalesceMoves);
+            ((MonkeySourceRandom) mEventSource).setFlings(mFlings);
             // set any of the factors that has been set
             // 遍历Monkey对象持有的数组对象mFactors，如果发现元素值是负数，说明是用户设置的，就把该值赋值给MonkeySourceRandom对象持有的数组对象mFactors（同名，尴尬）
             for (int i = 0; i < MonkeySourceRandom.FACTORZ_COUNT; i++) {
@@ -766,6 +962,53 @@ public class Monkey {
             return -5; //事件比例错误，直接返回退出状态码为-5
         }
 
+        if (mAppCache != null) {
+            // permissions, if any, were resolved by validate()
+            if (mVerbose > 0) {
+                Logger.out.println("// App cache: " + mAppCache.getPackageCount() + " packages, "
+                        + mAppCache.getChanged() + " new or updated, " + mAppCache.getRemoved()
+                        + " removed, " + mAppCache.getResolved() + " resolved");
+            }
+            mAppCache.save();
+        }
+
+        if (mEventSource instanceof MonkeyCheckpoint.Resumable) {
+            mResumableSource = (MonkeyCheckpoint.Resumable) mEventSource;
+        }
+        if (mResumeCheckpoint != null) {
+            restoreCheckpoint(); //从检查点继续，随机数状态、计数与脚本位置都恢复
+        }
+
+        // Generate events on a separate thread, ahead of injecting them
+        if (mPipelineDepth > 0) {
+            mPipeline = new MonkeyEventPipeline(mEventSource, mPipelineDepth);
+            mEventSource = mPipeline; //主循环只负责取出事件与注入事件
+        }
+
+        if (mCollectStats) {
+            mStats = new MonkeyInjectionStats(); //从这里开始计时
+        }
+
+        if (mTargetRate > 0) {
+            // A Random of its own, so the same seed still gives the same events.
+            mPacer = new MonkeyPacer(mTargetRate, mArrival, mBurstSize, new Random(mSeed));
+        }
+
+        if (mRecordFileName != null) {
+            try {
+                mRecorder = new MonkeyEventRecorder(mRecordFileName);
+            } catch (IOException e) {
+                Logger.err.println("** Failed to create event log " + mRecordFileName + ": " + e);
+                return -5;
+            }
+        }
+
+        // Keep up to a window of key and motion events in flight at the dispatcher
+        if (mAsyncInjectWindow > 0) {
+            mInjector = new MonkeyAsyncInjector(mWm, mAm, mVerbose, mAsyncInjectWindow);
+            mInjector.setStats(mStats);
+        }
+
         // If we're profiling, do it immediately before/after the main monkey
         // loop
         // 检查是否需要构建堆信息，命令行参数"--hprof"可指定
@@ -774,11 +1017,62 @@ public class Monkey {
             signalPersistentProcesses();
         }
 
+        mReportCapture = new MonkeyReportCapture(Environment.getLegacyExternalStorageDirectory(),
+                mRequestBugreport, mCompressReports);
+        if (mAsyncReportThreads > 0) {
+            mReportCapture.startAsync(mAsyncReportThreads, MAX_QUEUED_REPORTS);
+        }
+
+        if (mMonitorNativeCrashes) {
+            startTombstoneWatcher();
+        }
+
+        if (mFrameStatsIntervalMs > 0) {
+            mJankSampler = new MonkeyJankSampler(mFrameStatsIntervalMs, mFrameStatsWindowMs);
+            mJankSampler.start();
+        }
+
+        if (mMemSampleIntervalMs > 0) {
+            // With -p the allowed packages are sampled, otherwise whichever is in front.
+            Set<String> packages = new HashSet<String>();
+            if (MonkeyUtils.getPackageFilter().hasValidPackages()) {
+                for (ComponentName app : mMainApps) {
+                    packages.add(app.getPackageName());
+                }
+            }
+            mMemorySampler = new MonkeyMemorySampler(mMemSampleIntervalMs, mLeakThresholdKbPerMin,
+                    packages, mReportCapture, mRequestBugreport);
+            mMemorySampler.start();
+        }
+
         mNetworkMonitor.start(); //开始监控网络,其实只是初始化一些时间NetworkMonitor对象持有的时间数据，它是一个Binder对象,其实在getSystemInterfaces（）方法中已经向AMS注册此Binder，AMS通过此Binder与Monkey进程通信网络情况
         int crashedAtCycle = 0; //保存执行Monkey过程中发现的崩溃数量
         try {
             crashedAtCycle = runMonkeyCycles(); //monkey主线程，执行最重要的runMonkeyCycles（）方法，返回值为发现的崩溃数量
         } finally {
+            if (mPipeline != null) {
+                mPipeline.stop(); //停止生成事件的线程
+            }
+            if (mInjector != null) {
+                mInjector.stop(); //等待已提交的事件注入完毕，再停止注入线程
+            }
+            if (mTombstoneWatcher != null) {
+                mTombstoneWatcher.stop();
+            }
+            if (mJankSampler != null) {
+                mJankSampler.stop();
+                reportFrameStats();
+            }
+            if (mMemorySampler != null) {
+                mMemorySampler.stop();
+                reportMemoryStats();
+            }
+            if (mRecorder != null) {
+                closeRecorder();
+            }
+            if (mViewTreeSource != null) {
+                mViewTreeSource.close();
+            }
             // Release the rotation lock if it's still held and restore the
             // original orientation. //执行完Monkey，会走finally
             new MonkeyRotationEvent(Surface.ROTATION_0, false).injectEvent(
@@ -820,6 +1114,13 @@ public class Monkey {
             }
         }
 
+        // Let the background reports finish before the process exits
+        mReportCapture.shutdown();
+        if (mVerbose > 0 && mReportCapture.getCoalesced() > 0) {
+            Logger.out.println("// Coalesced " + mReportCapture.getCoalesced()
+                    + " duplicate report requests");
+        }
+
         //继续收尾工作
         if (mGenerateHprof) {
             signalPersistentProcesses(); //Monkey程序运行结束后，生成一份内存信息位于/data/misc目录下
@@ -851,7 +1152,10 @@ public class Monkey {
         // report network stats
         mNetworkMonitor.dump(); //输出网络情况，到标准输出流中，为啥对网络状态这么敏感……？而且是Monkey程序结束后
 
-        if (crashedAtCycle < mCount - 1) {
+        // A replay that reached the end of its log finished, however short it was.
+        boolean replayFinished = mEventSourceEnded && mReplaySource != null
+                && mReplaySource.isFinished();
+        if (crashedAtCycle < mCount - 1 && !replayFinished) {
             Logger.err.println("** System appears to have crashed at event " + crashedAtCycle
                     + " of " + mCount + " using seed " + mSeed); //当发现的崩溃数量小于执行次数，在标准错误流中输出一段日志
             return crashedAtCycle;  //返回发现的错误数量
@@ -949,6 +1253,28 @@ public class Monkey {
                     mThrottle = nextOptionLong("delay (in milliseconds) to wait between events");
                 } else if (opt.equals("--randomize-throttle")) {
                     mRandomizeThrottle = true;
+                } else if (opt.equals("--rate")) {
+                    String rate = nextOptionData();
+                    try {
+                        mTargetRate = rate != null ? Double.parseDouble(rate) : -1;
+                    } catch (NumberFormatException e) {
+                        mTargetRate = -1;
+                    }
+                    if (!(mTargetRate > 0) || Double.isInfinite(mTargetRate)) {
+                        Logger.err.println("** Error: --rate must be a positive number of events per second");
+                        showUsage();
+                        return false;
+                    }
+                } else if (opt.equals("--arrival")) {
+                    String arrival = nextOptionData();
+                    mArrival = MonkeyPacer.parseArrival(arrival);
+                    if (mArrival < 0) {
+                        Logger.err.println("** Error: Unknown arrival pattern: " + arrival);
+                        showUsage();
+                        return false;
+                    }
+                } else if (opt.equals("--burst-size")) {
+                    mBurstSize = (int) nextOptionLong("Number of events in a burst");
                 } else if (opt.equals("--wait-dbg")) {
                     // do nothing - it's caught at the very start of run()
                 } else if (opt.equals("--dbg-no-events")) {
@@ -976,6 +1302,66 @@ public class Monkey {
                     mBugreportFrequency = nextOptionLong("Number of iterations");
                 } else if (opt.equals("--permission-target-system")){
                     mPermissionTargetSystem = true;
+                } else if (opt.equals("--pipeline")) {
+                    mPipelineDepth = (int) nextOptionLong("Number of events to generate ahead");
+                } else if (opt.equals("--async-reports")) {
+                    mAsyncReportThreads = (int) nextOptionLong("Number of report threads");
+                } else if (opt.equals("--compress-reports")) {
+                    mCompressReports = true;
+                } else if (opt.equals("--pause-for-reports")) {
+                    mPauseForReports = true;
+                } else if (opt.equals("--record-events")) {
+                    mRecordFileName = nextOptionData();
+                } else if (opt.equals("--replay-events")) {
+                    mReplayFileName = nextOptionData();
+                } else if (opt.equals("--replay-realtime")) {
+                    mReplayRealTime = true;
+                } else if (opt.equals("--view-tree")) {
+                    mUseViewTree = true;
+                } else if (opt.equals("--explore")) {
+                    mUseViewTree = true;
+                    mExplore = true;
+                } else if (opt.equals("--model")) {
+                    mModelFileName = nextOptionData();
+                } else if (opt.equals("--app-cache")) {
+                    mAppCacheFileName = nextOptionData();
+                } else if (opt.equals("--coalesce-moves")) {
+                    mCoalesceMoves = true;
+                } else if (opt.equals("--flings")) {
+                    mFlings = true;
+                } else if (opt.equals("--frame-stats")) {
+                    mFrameStatsIntervalMs = nextOptionLong("Frame stats sampling interval"
+                            + " in milliseconds");
+                } else if (opt.equals("--frame-stats-window")) {
+                    mFrameStatsWindowMs = nextOptionLong("Frame stats window in milliseconds");
+                } else if (opt.equals("--frame-stats-file")) {
+                    mFrameStatsFileName = nextOptionData();
+                } else if (opt.equals("--mem-sample")) {
+                    mMemSampleIntervalMs = nextOptionLong("Memory sampling interval in milliseconds");
+                } else if (opt.equals("--leak-threshold")) {
+                    mLeakThresholdKbPerMin = nextOptionLong("Leak threshold in KB per minute");
+                } else if (opt.equals("--mem-stats-file")) {
+                    mMemStatsFileName = nextOptionData();
+                } else if (opt.equals("--checkpoint")) {
+                    mCheckpointFileName = nextOptionData();
+                } else if (opt.equals("--checkpoint-interval")) {
+                    mCheckpointInterval = nextOptionLong("Number of events between checkpoints");
+                } else if (opt.equals("--resume")) {
+                    mResume = true;
+                } else if (opt.equals("--async-log")) {
+                    mAsyncLogCapacity = (int) nextOptionLong("Number of log lines to queue");
+                } else if (opt.equals("--binary-log")) {
+                    mBinaryLogFileName = nextOptionData();
+                    if (mAsyncLogCapacity == 0) {
+                        mAsyncLogCapacity = DEFAULT_ASYNC_LOG_CAPACITY;
+                    }
+                } else if (opt.equals("--stats")) {
+                    mCollectStats = true;
+                } else if (opt.equals("--stats-interval")) {
+                    mCollectStats = true;
+                    mStatsIntervalMs = nextOptionLong("Stats interval in milliseconds");
+                } else if (opt.equals("--async-inject")) {
+                    mAsyncInjectWindow = (int) nextOptionLong("Number of events in flight");
                 } else if (opt.equals("-h")) {
                     showUsage();
                     return false;
@@ -992,6 +1378,22 @@ public class Monkey {
             return false;
         }
 
+        if (mResume && mCheckpointFileName == null) {
+            Logger.err.println("** Error: --resume needs --checkpoint FILE");
+            showUsage();
+            return false;
+        }
+        if (mCheckpointInterval <= 0) {
+            Logger.err.println("** Error: --checkpoint-interval must be positive");
+            showUsage();
+            return false;
+        }
+        if (mCheckpointFileName != null && mPipelineDepth > 0) {
+            // The source runs ahead of the events injected, so its state is too.
+            Logger.err.println("** Warning: with --pipeline a resumed run only approximately"
+                    + " continues the event sequence");
+        }
+
         // If a server port hasn't been specified, we need to specify 没有指定TCP方式，就必须指定数量
         // a count
         if (mServerPort == -1) { //不使用TCP远程命令时，会走这里，强行处理事件数
@@ -1140,10 +1542,22 @@ public class Monkey {
                 if (category.length() > 0) { //如果拿到的Category字符串大于0
                     intent.addCategory(category); //为Intent对象设置Category
                 }
-                List<ResolveInfo> mainApps = mPm.queryIntentActivities(intent, null, 0,
-                        ActivityManager.getCurrentUser()).getList(); //使用PMS系统服务的查询queryIntentActivities（）方法，用于查询所有当前用户可以使用的主Activity，只有App在Manifest文件中注册的，才能被查找到
-                //返回的是一个List对象，元素为ResolveInfo对象
-                if (mainApps == null || mainApps.size() == 0) { //如果没有获取到可以使用的主Activity
+                List<ComponentName> mainApps = new ArrayList<ComponentName>();
+                if (mAppCache != null) {
+                    mainApps = mAppCache.getMainActivities(i); //只有新安装或更新过的包才会重新查询
+                } else {
+                    List<ResolveInfo> infos = mPm.queryIntentActivities(intent, null, 0,
+                            ActivityManager.getCurrentUser()).getList(); //使用PMS系统服务的查询queryIntentActivities（）方法，用于查询所有当前用户可以使用的主Activity，只有App在Manifest文件中注册的，才能被查找到
+                    //返回的是一个List对象，元素为ResolveInfo对象
+                    if (infos != null) {
+                        for (ResolveInfo r : infos) {
+                            mainApps.add(new ComponentName(
+                                    r.activityInfo.applicationInfo.packageName,
+                                    r.activityInfo.name));
+                        }
+                    }
+                }
+                if (mainApps.size() == 0) { //如果没有获取到可以使用的主Activity
                     Logger.err.println("// Warning: no activities found for category " + category); //标准错误流中输出日志
                     continue; //当前循环结束
                 }
@@ -1151,19 +1565,19 @@ public class Monkey {
                     Logger.out.println("// Selecting main activities from category " + category); //详细日志
                 } //这里说明获取到可用的Activity，会输出一个日志
                 final int NA = mainApps.size(); // 读取获取到的主Activity数量
-                for (int a = 0; a < NA; a++) { //遍历所有的ResolveInfo，注意一个主Activity对应一个ResolveInfo
-                    ResolveInfo r = mainApps.get(a); //先去除其中一个ResoloveInfo对象
-                    String packageName = r.activityInfo.applicationInfo.packageName; //使用ActivityInfo对象，然后再获取ApplicationInfo对象，然后再拿到对应Activity的包名
+                for (int a = 0; a < NA; a++) { //遍历所有的主Activity
+                    ComponentName c = mainApps.get(a);
+                    String packageName = c.getPackageName();
                     if (MonkeyUtils.getPackageFilter().checkEnteringPackage(packageName)) { //检查包名是否是可以启动的主activity
                         if (mVerbose >= 2) { // very verbose
-                            Logger.out.println("//   + Using main activity " + r.activityInfo.name
+                            Logger.out.println("//   + Using main activity " + c.getClassName()
                                     + " (from package " + packageName + ")");
                         } //如果日志等级大于等于2，标准输出流中输出日志
-                        mMainApps.add(new ComponentName(packageName, r.activityInfo.name)); //创建一个ComponentName对象，其中记录了包名和Activity名，然后记录到一个List中
+                        mMainApps.add(c); //记录了包名和Activity名的ComponentName对象，记录到一个List中
                     } else { //如果不是可以进入的包名
                         if (mVerbose >= 3) { // very very verbose
                             Logger.out.println("//   - NOT USING main activity "
-                                    + r.activityInfo.name + " (from package " + packageName + ")"); //标记未使用的主Activity信息
+                                    + c.getClassName() + " (from package " + packageName + ")"); //标记未使用的主Activity信息
                         }
                     }
                 }
@@ -1193,13 +1607,18 @@ public class Monkey {
      *
      */
     private int runMonkeyCycles() {
-        int eventCounter = 0; //临时存储事件总数
-        int cycleCounter = 0; //临时存储循环次数
+        int eventCounter = mResumeEventCounter; //临时存储事件总数，从检查点继续时不为0
+        int cycleCounter = mResumeCycleCounter; //临时存储循环次数
 
         boolean shouldReportAnrTraces = false; //记录是否应该报告ANR的标志位
         boolean shouldReportDumpsysMemInfo = false; //记录是否应该报告系统内存信息的标志位
         boolean shouldAbort = false; //记录是否应该中断monkey主线程的标志位（monkey程序是否应该终止的标志位）
         boolean systemCrashed = false; //记录系统是否发生崩溃的标志位，比如AMS服务可能会停止工作，那么Monkey进程也会停止……有道理……
+        long startTime = SystemClock.elapsedRealtime(); //用于计算持续的事件注入速率
+        long t = 0; //统计各部分耗时的起始时间，只在mStats不为null时使用
+        if (mStats != null) {
+            mNextStatsTime = SystemClock.uptimeMillis() + mStatsIntervalMs;
+        }
 
         try {
             // 1、系统本身未崩溃
@@ -1208,56 +1627,67 @@ public class Monkey {
             // 注意：如果没有设置忽略anr、忽略crash、忽略native crash，当出现一次后，monkey程序会结束
             while (!systemCrashed && cycleCounter < mCount) {
                 //每次获取事件前做的事情真多呀
-                synchronized (this) { //Monkey的主线程需要获取Monkey对象锁，可继续运行此代码块（Monkey对象自身的锁)，后面你知道为何使用这个对象锁，主要是为了线程间同步
-                    if (mRequestProcRank) { //monkey主线程执行到这里，检查标志位，是否需要报告进程信息，也是AMS远程调用指定的，发生ANR时，指定
-                        reportProcRank(); //报告进程评分，创建子进程，调用命令行工具
-                        mRequestProcRank = false; //防止下次循环继续上报，因为程序在主线程循环执行中
-                    }
-                    if (mRequestAnrTraces) {//需要上报anr的traces，也是AMS远程调用指定的，发生ANR时指定
-                        mRequestAnrTraces = false; //防止下次循环直接上报ANR的traces
-                        shouldReportAnrTraces = true; //表示本次循环应该上报AnrTraces的标志位
-                    }
-                    if (mRequestAnrBugreport){ //需要上报anr的bugreport，它的值是AMS远程调用指定的，发生ANR时指定
-                        getBugreport("anr_" + mReportProcessName + "_"); //报告的文件名为anr_进程名_
-                        mRequestAnrBugreport = false; //防止下次循环中直接上报
-                    }
-                    if (mRequestWatchdogBugreport) { //需要上报watchdog的bugreport，这个值是当系统挂了的时候，也是由AMS远程调用指定的
-                        Logger.out.println("Print the watchdog report"); //标注输出流输出日志
-                        getBugreport("anr_watchdog_"); //子进程中执行命令行程序，持久化名字为anr_watchdog_
-                        mRequestWatchdogBugreport = false; //这个标志位会由AMS修改，跨进程的告诉Monkey主线程可以干什么
-                    }
-                    if (mRequestAppCrashBugreport){ //需要上报app崩溃的bugreport,这个值也是AMS远程调用赋值，草，Binder进程间通信太重要了
-                        getBugreport("app_crash" + mReportProcessName + "_"); //生成app_crash文件，同样在子进程中进行
-                        mRequestAppCrashBugreport = false; //防止下次循环中执行
-                    }
-                    if (mRequestPeriodicBugreport){ //需要上报什么?这个蒙了，这是没有提取到事件的时候，会赋值为true，阶段性的上报一次bugreport
-                        getBugreport("Bugreport_"); //单纯的调用bugreport，卧槽，闹半天，每份报告都是单纯的bugreport，因为没有拿到事件
-                        mRequestPeriodicBugreport = false; //防止下次循环中执行
-                    }
-                    if (mRequestDumpsysMemInfo) { //是否需要请求系统内存信息，这个值也是AMS发现出现ANR后，远程调用方法，并修改的此值
-                        mRequestDumpsysMemInfo = false; //防止下次循环中直接执行（或者说，只能由AMS来赋值）
-                        shouldReportDumpsysMemInfo = true; //标记应该上报内存信息
-                    }
-                    if (mMonitorNativeCrashes) { //如果需要监控native的崩溃信息，由命令行参数--monitor-native-crashes决定，每次执行完一个事件，即会
-                        // first time through, when eventCounter == 0, just set up
-                        // the watcher (ignore the error)
-                        if (checkNativeCrashes() && (eventCounter > 0)) { //发现本地崩溃，且事件数量大于0（这里没有系统服务的回调，而是一直目录中的文件数量）
-                            Logger.out.println("** New native crash detected."); //在标准输出流，打印natvie崩溃找到的消息
-                            if (mRequestBugreport) { //同样调用bugreport命令
-                                getBugreport("native_crash_"); //只不过文件名是这个……，这里子进程中进行
+                if (mStats != null) {
+                    t = System.nanoTime();
+                }
+                // Only take the lock when a callback has asked for something, or
+                // when we have to look for native crashes anyway.
+                if (mRequestPending || (mMonitorNativeCrashes && (mTombstoneWatcher == null
+                        || mTombstoneWatcher.hasNewTombstones()))) { //通过volatile变量判断是否有请求，不必每次循环都获取Monkey对象锁
+                    synchronized (this) { //Monkey的主线程需要获取Monkey对象锁，可继续运行此代码块（Monkey对象自身的锁)，后面你知道为何使用这个对象锁，主要是为了线程间同步
+                        mRequestPending = false; //持有锁时清除，之后设置的请求会在下次循环处理
+                        if (mRequestProcRank) { //monkey主线程执行到这里，检查标志位，是否需要报告进程信息，也是AMS远程调用指定的，发生ANR时，指定
+                            reportProcRank(); //报告进程评分，创建子进程，调用命令行工具
+                            mRequestProcRank = false; //防止下次循环继续上报，因为程序在主线程循环执行中
+                        }
+                        if (mRequestAnrTraces) {//需要上报anr的traces，也是AMS远程调用指定的，发生ANR时指定
+                            mRequestAnrTraces = false; //防止下次循环直接上报ANR的traces
+                            shouldReportAnrTraces = true; //表示本次循环应该上报AnrTraces的标志位
+                        }
+                        if (mRequestAnrBugreport){ //需要上报anr的bugreport，它的值是AMS远程调用指定的，发生ANR时指定
+                            getBugreport("anr_" + mReportProcessName + "_"); //报告的文件名为anr_进程名_
+                            mRequestAnrBugreport = false; //防止下次循环中直接上报
+                        }
+                        if (mRequestWatchdogBugreport) { //需要上报watchdog的bugreport，这个值是当系统挂了的时候，也是由AMS远程调用指定的
+                            Logger.out.println("Print the watchdog report"); //标注输出流输出日志
+                            getBugreport("anr_watchdog_"); //子进程中执行命令行程序，持久化名字为anr_watchdog_
+                            mRequestWatchdogBugreport = false; //这个标志位会由AMS修改，跨进程的告诉Monkey主线程可以干什么
+                        }
+                        if (mRequestAppCrashBugreport){ //需要上报app崩溃的bugreport,这个值也是AMS远程调用赋值，草，Binder进程间通信太重要了
+                            getBugreport("app_crash" + mReportProcessName + "_"); //生成app_crash文件，同样在子进程中进行
+                            mRequestAppCrashBugreport = false; //防止下次循环中执行
+                        }
+                        if (mRequestPeriodicBugreport){ //需要上报什么?这个蒙了，这是没有提取到事件的时候，会赋值为true，阶段性的上报一次bugreport
+                            getBugreport("Bugreport_"); //单纯的调用bugreport，卧槽，闹半天，每份报告都是单纯的bugreport，因为没有拿到事件
+                            mRequestPeriodicBugreport = false; //防止下次循环中执行
+                        }
+                        if (mRequestDumpsysMemInfo) { //是否需要请求系统内存信息，这个值也是AMS发现出现ANR后，远程调用方法，并修改的此值
+                            mRequestDumpsysMemInfo = false; //防止下次循环中直接执行（或者说，只能由AMS来赋值）
+                            shouldReportDumpsysMemInfo = true; //标记应该上报内存信息
+                        }
+                        if (mMonitorNativeCrashes) { //如果需要监控native的崩溃信息，由命令行参数--monitor-native-crashes决定，每次执行完一个事件，即会
+                            // first time through, when eventCounter == 0, just set up
+                            // the watcher (ignore the error)
+                            if (mTombstoneWatcher != null
+                                    ? mTombstoneWatcher.takeNewTombstones() > 0
+                                    : checkNativeCrashes() && (eventCounter > 0)) { //发现本地崩溃，且事件数量大于0（这里没有系统服务的回调，而是一直目录中的文件数量）
+                                Logger.out.println("** New native crash detected."); //在标准输出流，打印natvie崩溃找到的消息
+                                if (mRequestBugreport) { //同样调用bugreport命令
+                                    getBugreport("native_crash_"); //只不过文件名是这个……，这里子进程中进行
+                                }
+                                mAbort = mAbort || !mIgnoreNativeCrashes || mKillProcessAfterError; //检查是否需要中断monkey进程，有一个值为true，即会赋值给mAbort，说明Monkey程序即将要结束了
+                                                  //mAbort、mIgnoreNativeCrashes、mKillProcessAfterError
                             }
-                            mAbort = mAbort || !mIgnoreNativeCrashes || mKillProcessAfterError; //检查是否需要中断monkey进程，有一个值为true，即会赋值给mAbort，说明Monkey程序即将要结束了
-                                              //mAbort、mIgnoreNativeCrashes、mKillProcessAfterError
                         }
-                    }
-                    if (mAbort) { //如果Monkey程序需要中断
-                        shouldAbort = true; //局部变量赋值应该中断
-                    }
-                    if (mWatchdogWaiting) { //如果已经通知watchdog等待
-                        mWatchdogWaiting = false;
-                        notifyAll();  //通知所有停留在Monkey对象上的线程，继续运行（不过其他线程如果阻塞在这里，还得获取到Monkey对象锁，才能继续运行，尴尬）
-                    }
-                } //monkey执行到这里，会释放Monkey对象锁，其他线程开始有机会获取Monkey对象锁
+                        if (mAbort) { //如果Monkey程序需要中断
+                            shouldAbort = true; //局部变量赋值应该中断
+                        }
+                        if (mWatchdogWaiting) { //如果已经通知watchdog等待
+                            mWatchdogWaiting = false;
+                            notifyAll();  //通知所有停留在Monkey对象上的线程，继续运行（不过其他线程如果阻塞在这里，还得获取到Monkey对象锁，才能继续运行，尴尬）
+                        }
+                    } //monkey执行到这里，会释放Monkey对象锁，其他线程开始有机会获取Monkey对象锁
+                }
 
                 // Report ANR, dumpsys after releasing lock on this.
                 // This ensures the availability of the lock to Activity controller's appNotResponding
@@ -1271,10 +1701,24 @@ public class Monkey {
                     reportDumpsysMemInfo(); //报告内存信息，使用的命令是：dumpsys meminfo
                 }
 
+                if (mPauseForReports && mReportCapture.getPending() > 0) {
+                    mReportCapture.awaitIdle(); //不持有Monkey对象锁时等待，ANR回调仍可获取锁
+                }
+
+                if (mStats != null) {
+                    mStats.addTime(MonkeyInjectionStats.TIME_REPORT, System.nanoTime() - t);
+                    if (mStatsIntervalMs > 0 && SystemClock.uptimeMillis() >= mNextStatsTime) {
+                        mNextStatsTime += mStatsIntervalMs;
+                        Logger.out.println(":Stats: " + mStats.toJson());
+                    }
+                    t = System.nanoTime();
+                }
+
                 if (shouldAbort) { //应该中断monkey进程的处理
                     shouldAbort = false; //防止下次循环……好像没有什么必要了……作者多写了……
                     Logger.out.println("** Monkey aborted due to error."); //标准错误流输出Monkey中断的错误
                     Logger.out.println("Events injected: " + eventCounter); //输出事件数量
+                    reportEventRate(eventCounter, startTime);
                     return eventCounter; //返回事件数量，循环结束……
                 }
 
@@ -1297,8 +1741,65 @@ public class Monkey {
 
                 MonkeyEvent ev = mEventSource.getNextEvent(); //从EventSource对象中提取事件，如果从命令行执行，实际是从MonkeySourceRandom的getNextEvent（）方法中提取事件的，每次循环都从MonkeySourceEvent中提取事件，假设有两个点事件在队列中
                 //我将创建一种新的MonkeySource，解析View树，生成MonkeyEvent
+                if (mStats != null) {
+                    mStats.addTime(MonkeyInjectionStats.TIME_FETCH, System.nanoTime() - t);
+                }
                if (ev != null) {  //如果成功提取到事件……
-                    int injectCode = ev.injectEvent(mWm, mAm, mVerbose); //回调每个MonkeyEvent的injectEvent（）方法，并且把自己持有的WMS、AMS、还有日志等级都传了进去，具体的操作，由具体的事件对象自己执行，注入码表示成功或者失败
+                    // The event queues attach the throttle to the event instead
+                    // of following it with a MonkeyThrottleEvent.
+                    long throttle = ev.getThrottle(); //注入或提交前先取出间隔时间
+                    boolean isThrottle = ev instanceof MonkeyThrottleEvent;
+                    if (mPacer != null) {
+                        if (isThrottle) {
+                            // The pacer keeps the time, so the source's pauses are left out.
+                            ev.recycle();
+                            continue;
+                        }
+                        throttle = 0;
+                        if (mStats != null) {
+                            t = System.nanoTime();
+                            mPacer.awaitNext();
+                            mStats.addTime(MonkeyInjectionStats.TIME_THROTTLE, System.nanoTime() - t);
+                        } else {
+                            mPacer.awaitNext();
+                        }
+                    }
+                    int injectCode;
+                    if (mRecorder != null) {
+                        recordEvent(ev); //注入或提交前记录，提交后事件可能已被注入线程回收
+                    }
+                    if (mInjector != null && MonkeyAsyncInjector.canSubmit(ev)) {
+                        // The injector recycles the event and reports drops and
+                        // errors later, so fold in whatever has completed so far.
+                        if (mStats != null) {
+                            t = System.nanoTime();
+                            mInjector.submit(ev);
+                            mStats.addTime(MonkeyInjectionStats.TIME_INJECT, System.nanoTime() - t);
+                        } else {
+                            mInjector.submit(ev);
+                        }
+                        injectCode = collectAsyncResults();
+                    } else {
+                        if (mInjector != null) {
+                            // Don't let this event overtake the key and motion
+                            // events still in flight.
+                            if (mStats != null) {
+                                t = System.nanoTime();
+                                mInjector.drain();
+                                mStats.addTime(MonkeyInjectionStats.TIME_INJECT, System.nanoTime() - t);
+                            } else {
+                                mInjector.drain();
+                            }
+                            injectCode = injectEvent(ev);
+                            if (injectCode == MonkeyEvent.INJECT_SUCCESS) {
+                                // Otherwise an error from the injector waits for the next round.
+                                injectCode = collectAsyncResults();
+                            }
+                        } else {
+                            injectCode = injectEvent(ev); //回调每个MonkeyEvent的injectEvent（）方法，并且把自己持有的WMS、AMS、还有日志等级都传了进去，具体的操作，由具体的事件对象自己执行，注入码表示成功或者失败
+                        }
+                        ev.recycle(); //事件已经注入完毕，来自对象池的事件会被放回对象池中复用
+                    }
                     if (injectCode == MonkeyEvent.INJECT_FAIL) { //处理失败的情况，卧槽还要+1
                         Logger.out.println("    // Injection Failed"); //向标准输出流打印日志
                         if (ev instanceof MonkeyKeyEvent) { //若事件为MonkeyKeyEvent对象
@@ -1321,11 +1822,24 @@ public class Monkey {
                     }
 
                     // Don't count throttling as an event. 作者说了，间隔事件不算
-                    if (!(ev instanceof MonkeyThrottleEvent)) { //只要不是MonkeyThrottleEvent事件对象，才算作事件次数，完美的将间隔事件忽略掉
+                    if (!isThrottle) { //只要不是MonkeyThrottleEvent事件对象，才算作事件次数，完美的将间隔事件忽略掉
                         eventCounter++; //事件总数增加1
                         if (mCountEvents) { //是否需要计算循环的次数
                             cycleCounter++;  //循环次数加1
                         }
+                        if (mCheckpointFileName != null && eventCounter % mCheckpointInterval == 0) {
+                            saveCheckpoint(eventCounter, cycleCounter);
+                        }
+                    }
+
+                    if (throttle > 0) {
+                        if (mStats != null) {
+                            t = System.nanoTime();
+                            MonkeyThrottleEvent.sleep(throttle, mVerbose); //停留间隔时间
+                            mStats.addTime(MonkeyInjectionStats.TIME_THROTTLE, System.nanoTime() - t);
+                        } else {
+                            MonkeyThrottleEvent.sleep(throttle, mVerbose); //停留间隔时间
+                        }
                     }
                 } else { //从双向链表中，没有提取到事件对象时会执行到这里，这里平时是不会走到的……牛逼，这个调试方法好
                     if (!mCountEvents) { //如果不需要统计循环的执行次数，当使用单个脚本文件、多个脚本文件时，此时不需要统计事件的循环次数
@@ -1334,11 +1848,15 @@ public class Monkey {
                         //Capture the bugreport after n iteration
                         if (mGetPeriodicBugreport) { //这是处理啥呢？
                             if ((cycleCounter % mBugreportFrequency) == 0) {
-                                mRequestPeriodicBugreport = true;
+                                synchronized (this) {
+                                    mRequestPeriodicBugreport = true;
+                                    mRequestPending = true;
+                                }
                             }
                         }
                     } else { //需要计算的时候，啥也不干……，中断循环完事
                         // Event Source has signaled that we have no more events to process
+                        mEventSourceEnded = true;
                         break;
                     }
                 }
@@ -1347,10 +1865,225 @@ public class Monkey {
         } catch (RuntimeException e) { //所有运行时异常手工捕获，并向标准错误中写入信息，同时程序并不结束……
             Logger.error("** Error: A RuntimeException occurred:", e); //捕获到运行时异常，标准错误流输出结果，以及在标准错误流中打印异常对象的调用堆栈信息
         }
+        if (mCheckpointFileName != null) {
+            saveCheckpoint(eventCounter, cycleCounter); //系统崩溃时也会走到这里，可以用--resume继续
+        }
         Logger.out.println("Events injected: " + eventCounter); //当系统出现错误，或者事件数量到了，在标准输出流中输出事件数
+        reportEventRate(eventCounter, startTime);
         return eventCounter; //返回注入的事件数
     }
 
+    /**
+     * Read the checkpoint for --resume. If there is none yet the run starts
+     * from the beginning, so the same command line can be used to start a run
+     * and to resume it.
+     *
+     * @return false if the checkpoint exists but can't be used
+     */
+    private boolean loadCheckpoint() {
+        File file = new File(mCheckpointFileName);
+        try {
+            mResumeCheckpoint = MonkeyCheckpoint.load(file);
+        } catch (IOException e) {
+            Logger.err.println("** Failed to read checkpoint " + mCheckpointFileName + ": " + e);
+            return false;
+        }
+        if (mResumeCheckpoint == null) {
+            Logger.out.println("// No checkpoint in " + mCheckpointFileName + ", starting from the beginning");
+            return true;
+        }
+        long seed = mResumeCheckpoint.getLong(MonkeyCheckpoint.KEY_SEED, 0);
+        if (mSeed != 0 && mSeed != seed) {
+            Logger.err.println("** Warning: -s " + mSeed + " ignored, resuming with seed " + seed);
+        }
+        mSeed = seed;
+        return true;
+    }
+
+    /**
+     * Carry on from the checkpoint: the random number generator, the counters
+     * and the position of the event source.
+     */
+    private void restoreCheckpoint() {
+        MonkeyCheckpoint cp = mResumeCheckpoint;
+        mRandom.setState(cp.getLong(MonkeyCheckpoint.KEY_RANDOM, mRandom.getState()));
+        mResumeEventCounter = (int) cp.getLong(MonkeyCheckpoint.KEY_EVENTS, 0);
+        mResumeCycleCounter = (int) cp.getLong(MonkeyCheckpoint.KEY_CYCLES, 0);
+        mDroppedKeyEvents = cp.getLong(MonkeyCheckpoint.KEY_DROPPED_KEYS, 0);
+        mDroppedPointerEvents = cp.getLong(MonkeyCheckpoint.KEY_DROPPED_POINTERS, 0);
+        mDroppedTrackballEvents = cp.getLong(MonkeyCheckpoint.KEY_DROPPED_TRACKBALLS, 0);
+        mDroppedFlipEvents = cp.getLong(MonkeyCheckpoint.KEY_DROPPED_FLIPS, 0);
+        mDroppedRotationEvents = cp.getLong(MonkeyCheckpoint.KEY_DROPPED_ROTATIONS, 0);
+        if (mResumableSource != null) {
+            mResumableSource.restoreState(cp, "source.");
+        }
+        mTombstones = new HashSet<Long>(cp.getTombstones().values());
+        Logger.out.println("// Resuming from checkpoint " + mCheckpointFileName + " at event "
+                + mResumeEventCounter + ", cycle " + mResumeCycleCounter);
+    }
+
+    /**
+     * Save a checkpoint. A failure is reported and the run carries on, with
+     * the previous checkpoint left in place.
+     */
+    private void saveCheckpoint(int eventCounter, int cycleCounter) {
+        MonkeyCheckpoint cp = new MonkeyCheckpoint();
+        cp.putLong(MonkeyCheckpoint.KEY_SEED, mSeed);
+        cp.putLong(MonkeyCheckpoint.KEY_RANDOM, mRandom.getState());
+        cp.putLong(MonkeyCheckpoint.KEY_EVENTS, eventCounter);
+        cp.putLong(MonkeyCheckpoint.KEY_CYCLES, cycleCounter);
+        cp.putLong(MonkeyCheckpoint.KEY_DROPPED_KEYS, mDroppedKeyEvents);
+        cp.putLong(MonkeyCheckpoint.KEY_DROPPED_POINTERS, mDroppedPointerEvents);
+        cp.putLong(MonkeyCheckpoint.KEY_DROPPED_TRACKBALLS, mDroppedTrackballEvents);
+        cp.putLong(MonkeyCheckpoint.KEY_DROPPED_FLIPS, mDroppedFlipEvents);
+        cp.putLong(MonkeyCheckpoint.KEY_DROPPED_ROTATIONS, mDroppedRotationEvents);
+        if (mResumableSource != null) {
+            mResumableSource.saveState(cp, "source.");
+        }
+        if (mTombstoneWatcher != null) {
+            cp.setTombstones(mTombstoneWatcher.getKnown());
+        } else if (mTombstones != null) {
+            // The polling fallback only keeps the modification times.
+            HashMap<String, Long> known = new HashMap<String, Long>();
+            String[] names = TOMBSTONES_PATH.list();
+            if (names != null) {
+                for (String name : names) {
+                    long modified = new File(TOMBSTONES_PATH, name).lastModified();
+                    if (name.startsWith(TOMBSTONE_PREFIX) && mTombstones.contains(modified)) {
+                        known.put(name, modified);
+                    }
+                }
+            }
+            cp.setTombstones(known);
+        }
+        try {
+            cp.save(new File(mCheckpointFileName));
+        } catch (IOException e) {
+            Logger.err.println("** Failed to save checkpoint " + mCheckpointFileName + ": " + e);
+        }
+    }
+
+    /**
+     * Add an event to the event log. If the log can't be written any more,
+     * recording stops and the run carries on.
+     */
+    private void recordEvent(MonkeyEvent ev) {
+        try {
+            mRecorder.record(ev, SystemClock.uptimeMillis());
+        } catch (IOException e) {
+            Logger.err.println("** Failed to write event log, recording stopped: " + e);
+            closeRecorder();
+        }
+    }
+
+    private void closeRecorder() {
+        MonkeyEventRecorder recorder = mRecorder;
+        mRecorder = null;
+        try {
+            recorder.close();
+        } catch (IOException e) {
+            Logger.err.println("** Failed to write event log: " + e);
+        }
+        Logger.out.println("// Recorded " + recorder.getRecorded() + " events to " + mRecordFileName
+                + " (" + recorder.getSkipped() + " not replayable)");
+    }
+
+    /**
+     * Inject an event on the main loop, timing it if --stats was given.
+     */
+    private int injectEvent(MonkeyEvent ev) {
+        if (mStats == null) {
+            return ev.injectEvent(mWm, mAm, mVerbose);
+        }
+        long start = System.nanoTime();
+        int injectCode = ev.injectEvent(mWm, mAm, mVerbose);
+        long nanos = System.nanoTime() - start;
+        if (ev.getEventType() == MonkeyEvent.EVENT_TYPE_THROTTLE) {
+            mStats.addTime(MonkeyInjectionStats.TIME_THROTTLE, nanos);
+        } else {
+            mStats.recordLatency(ev.getEventType(), nanos);
+            mStats.addTime(MonkeyInjectionStats.TIME_INJECT, nanos);
+        }
+        return injectCode;
+    }
+
+    /**
+     * Fold the drops reported by the async injector into the dropped counters.
+     *
+     * @return the first remote or security exception code the injector saw since
+     *         the last call, or INJECT_SUCCESS
+     */
+    private int collectAsyncResults() {
+        mDroppedKeyEvents += mInjector.takeDroppedKeyEvents();
+        mDroppedPointerEvents += mInjector.takeDroppedPointerEvents();
+        return mInjector.pollError();
+    }
+
+    /**
+     * Print the sustained rate of the events injected by runMonkeyCycles(),
+     * waiting for any events still in flight so they count towards the time.
+     */
+    private void reportEventRate(int eventCounter, long startTime) {
+        if (mInjector != null) {
+            mInjector.drain();
+            collectAsyncResults();
+        }
+        long elapsed = Math.max(SystemClock.elapsedRealtime() - startTime, 1);
+        Logger.out.println(String.format(Locale.US, "// Events/sec: %.1f (%d events in %d ms)",
+                eventCounter * 1000.0 / elapsed, eventCounter, elapsed));
+        if (mInjector != null) {
+            Logger.out.println("// Async injection: window=" + mAsyncInjectWindow
+                    + " max in flight=" + mInjector.getMaxInFlight());
+        }
+        if (mStats != null) {
+            Logger.out.println(":Stats: " + mStats.toJson());
+        }
+        if (mPacer != null) {
+            Logger.out.println(":Pacing: " + mPacer.toJson());
+            if (!mPacer.metTarget()) {
+                Logger.out.println(String.format(Locale.US,
+                        "// Pacing: target rate of %.1f/s not met, %d of %d events started late",
+                        mTargetRate, mPacer.getLate(), mPacer.getMeasured()));
+            }
+        }
+    }
+
+    /**
+     * Print the frame stats summary, and write the series to the frame stats
+     * file or print them if there is none.
+     */
+    private void reportFrameStats() {
+        mJankSampler.printSummary();
+        if (mFrameStatsFileName == null) {
+            Logger.out.println(":FrameStats: " + mJankSampler.toJson());
+            return;
+        }
+        try {
+            mJankSampler.writeJson(new File(mFrameStatsFileName));
+            Logger.out.println("// Frame stats written to " + mFrameStatsFileName);
+        } catch (IOException e) {
+            Logger.err.println("** Failed to write frame stats to " + mFrameStatsFileName + ": " + e);
+        }
+    }
+
+    /**
+     * Print the memory summary, and write the samples to the memory stats file
+     * or print them if there is none.
+     */
+    private void reportMemoryStats() {
+        mMemorySampler.printSummary();
+        if (mMemStatsFileName == null) {
+            Logger.out.println(":Memory: " + mMemorySampler.toJson());
+            return;
+        }
+        try {
+            mMemorySampler.writeJson(new File(mMemStatsFileName));
+            Logger.out.println("// Memory samples written to " + mMemStatsFileName);
+        } catch (IOException e) {
+            Logger.err.println("** Failed to write memory samples to " + mMemStatsFileName + ": " + e);
+        }
+    }
+
     /**
      * Send SIGNAL_USR1 to all processes. This will generate large (5mb)
      * profiling reports in data/misc, so use with care.
@@ -1372,6 +2105,25 @@ public class Monkey {
         }
     }
 
+    /**
+     * Start watching for new tombstones in the background. If the directory
+     * can't be watched, the main loop falls back to checkNativeCrashes().
+     */
+    private void startTombstoneWatcher() {
+        MonkeyTombstoneWatcher watcher = new MonkeyTombstoneWatcher(TOMBSTONES_PATH,
+                TOMBSTONE_PREFIX, TOMBSTONE_DEBOUNCE_MS);
+        if (mResumeCheckpoint != null) {
+            watcher.setKnown(mResumeCheckpoint.getTombstones());
+        }
+        try {
+            watcher.start();
+            mTombstoneWatcher = watcher;
+        } catch (IOException e) {
+            Logger.err.println("** Failed to watch " + TOMBSTONES_PATH + ", polling instead: "
+                    + e.toString());
+        }
+    }
+
     /**
      * Watch for appearance of new tombstone files, which indicate native
      * crashes.
@@ -1569,6 +2321,25 @@ public class Monkey {
         usage.append("              [--bugreport]\n");
         usage.append("              [--periodic-bugreport]\n");
         usage.append("              [--permission-target-system]\n");
+        usage.append("              [--pipeline DEPTH]\n");
+        usage.append("              [--async-inject WINDOW]\n");
+        usage.append("              [--async-reports THREADS] [--compress-reports]\n");
+        usage.append("              [--pause-for-reports]\n");
+        usage.append("              [--stats] [--stats-interval MILLISEC]\n");
+        usage.append("              [--frame-stats MILLISEC [--frame-stats-window MILLISEC]\n");
+        usage.append("               [--frame-stats-file FILE]]\n");
+        usage.append("              [--async-log LINES] [--binary-log FILE]\n");
+        usage.append("              [--checkpoint FILE [--checkpoint-interval EVENTS] [--resume]]\n");
+        usage.append("              [--mem-sample MILLISEC [--leak-threshold KB_PER_MIN]\n");
+        usage.append("               [--mem-stats-file FILE]]\n");
+        usage.append("              [--record-events FILE]\n");
+        usage.append("              [--replay-events FILE [--replay-realtime]]\n");
+        usage.append("              [--view-tree] [--explore]\n");
+        usage.append("              [--model FILE]\n");
+        usage.append("              [--app-cache FILE]\n");
+        usage.append("              [--coalesce-moves] [--flings]\n");
+        usage.append("              [--rate EVENTS_PER_SEC [--arrival constant|poisson|burst]\n");
+        usage.append("               [--burst-size N]]\n");
         usage.append("              COUNT\n");
         Logger.err.println(usage.toString()); //向标准错误流中写入文本，默认打印在屏幕上
     }
@@ -56,6 +56,10 @@ public class MonkeyActivityEvent extends MonkeyEvent {
         mAlarmTime = arg;
     }
 
+    ComponentName getComponent() {
+        return mApp;
+    }
+
     /**
      * @return Intent for the new activity
      *  创建Intent对象，用于启动Activity
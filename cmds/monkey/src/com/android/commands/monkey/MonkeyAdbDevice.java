@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A MonkeyFarm.Device reached over adb.
+ *
+ * The device is checked with "adb get-state" before and after each session;
+ * if it isn't there, or adb says it went away in the middle, the session
+ * fails with an IOException so the farm moves its work elsewhere. A session
+ * that runs past the timeout is killed, on the device as well as the local
+ * adb, and ends with status -1, which doesn't count against the device.
+ */
+public class MonkeyAdbDevice implements MonkeyFarm.Device {
+    public static final long DEFAULT_TIMEOUT_MS = 60 * 60 * 1000;
+
+    // How long the short commands may take.
+    private static final long COMMAND_TIMEOUT_MS = 60000;
+
+    private final String mSerial;
+    private final long mTimeoutMs;
+
+    /**
+     * @param serial the device, or null if adb should pick the only one
+     * @param timeoutMs how long a session may run
+     */
+    public MonkeyAdbDevice(String serial, long timeoutMs) {
+        mSerial = serial;
+        mTimeoutMs = timeoutMs;
+    }
+
+    @Override
+    public String getName() {
+        return mSerial != null ? mSerial.replaceAll("[^A-Za-z0-9._-]", "_") : "device";
+    }
+
+    @Override
+    public int runMonkey(List<String> args, MonkeyFarm.OutputListener listener)
+            throws IOException, InterruptedException {
+        checkOnline();
+        List<String> command = new ArrayList<String>();
+        command.add("shell");
+        command.add("monkey");
+        command.addAll(args);
+        int status = run(command, mTimeoutMs, listener);
+        checkOnline();
+        if (status == -1) {
+            // Killing adb leaves the monkey running on the device, where it
+            // would go on injecting into the next session.
+            command.clear();
+            command.add("shell");
+            command.add("pkill");
+            command.add("-f");
+            command.add("com.android.commands.monkey");
+            run(command, COMMAND_TIMEOUT_MS, null);
+        }
+        return status;
+    }
+
+    @Override
+    public boolean pull(String devicePath, File local) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>();
+        command.add("pull");
+        command.add(devicePath);
+        command.add(local.getPath());
+        if (run(command, COMMAND_TIMEOUT_MS, null) == 0) {
+            return true;
+        }
+        checkOnline();
+        return false;
+    }
+
+    /**
+     * @throws IOException if adb doesn't see the device as online
+     */
+    private void checkOnline() throws IOException, InterruptedException {
+        final StringBuilder state = new StringBuilder();
+        List<String> command = new ArrayList<String>();
+        command.add("get-state");
+        run(command, COMMAND_TIMEOUT_MS, new MonkeyFarm.OutputListener() {
+            @Override
+            public void onLine(String line) {
+                state.append(line.trim());
+            }
+        });
+        if (!state.toString().equals("device")) {
+            throw new IOException(getName() + " is not online: " + state);
+        }
+    }
+
+    /**
+     * Run an adb command, killing it if it runs past the timeout.
+     *
+     * @param listener gets each line of output, or null to drop it
+     * @return the exit status, or -1 if it timed out
+     * @throws IOException if adb can't be run or reports the device gone
+     */
+    private int run(List<String> args, final long timeoutMs, MonkeyFarm.OutputListener listener)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>();
+        command.add("adb");
+        if (mSerial != null) {
+            command.add("-s");
+            command.add(mSerial);
+        }
+        command.addAll(args);
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.redirectErrorStream(true);
+        final Process p = pb.start();
+
+        // The output is read on this thread, so the timeout kills from another.
+        final boolean[] timedOut = { false };
+        Thread watchdog = new Thread("MonkeyAdbDevice watchdog") {
+            @Override
+            public void run() {
+                try {
+                    if (!p.waitFor(timeoutMs, TimeUnit.MILLISECONDS)) {
+                        synchronized (timedOut) {
+                            timedOut[0] = true;
+                        }
+                        p.destroy();
+                    }
+                } catch (InterruptedException e) {
+                    p.destroy();
+                }
+            }
+        };
+        watchdog.setDaemon(true);
+        watchdog.start();
+
+        boolean lost = false;
+        int status;
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("error: device") || line.startsWith("error: closed")
+                            || line.startsWith("error: no devices")) {
+                        lost = true;
+                    }
+                    if (listener != null) {
+                        listener.onLine(line);
+                    }
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            status = p.waitFor();
+        } finally {
+            watchdog.interrupt();
+            p.destroy();
+        }
+        if (lost) {
+            throw new IOException(getName() + " went away during adb " + args.get(0));
+        }
+        synchronized (timedOut) {
+            return timedOut[0] ? -1 : status;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * A MonkeyReproMinimizer.TargetRunner that replays the events on a device
+ * over adb, with "monkey --replay-events".
+ *
+ * Before each trial the package under test is force-stopped and the log
+ * buffers cleared, so trials don't see each other's state or crashes. The
+ * failure is found in the monkey's own output ("// CRASH:" and
+ * "// NOT RESPONDING:"), or, given a signature, in any monkey output or
+ * logcat line that matches it. A trial that takes longer than the timeout is
+ * killed, on the device as well as the local adb, and counted as not failing.
+ */
+public class MonkeyAdbTarget implements MonkeyReproMinimizer.TargetRunner {
+    public static final long DEFAULT_TIMEOUT_MS = 120000;
+
+    private static final String DEVICE_DIR = "/data/local/tmp/";
+
+    private final String mSerial;
+    private final String mPackage;
+    private final Pattern mSignature;
+    private final long mTimeoutMs;
+    private final String mDeviceLog;
+
+    // Set by the watchdog when it kills a command that ran past the timeout.
+    private volatile boolean mTimedOut;
+
+    /**
+     * @param serial the device, or null if adb should pick the only one
+     * @param pkg the package under test, or null to not force-stop or filter
+     * @param signature what the failure looks like, or null for any crash or ANR
+     * @param timeoutMs how long a trial may run
+     */
+    public MonkeyAdbTarget(String serial, String pkg, Pattern signature, long timeoutMs) {
+        mSerial = serial;
+        mPackage = pkg;
+        mSignature = signature;
+        mTimeoutMs = timeoutMs;
+        mDeviceLog = DEVICE_DIR + "repro_" + (serial != null
+                ? serial.replaceAll("[^A-Za-z0-9._-]", "_") : "default") + ".mkev";
+    }
+
+    @Override
+    public String getName() {
+        return mSerial != null ? mSerial : "device";
+    }
+
+    @Override
+    public boolean reproduces(List<byte[]> records) throws IOException, InterruptedException {
+        File local = File.createTempFile("repro_", ".mkev");
+        try {
+            MonkeyEventLog.writeRecords(local, records);
+            run(false, "push", local.getPath(), mDeviceLog);
+        } finally {
+            local.delete();
+        }
+        if (mPackage != null) {
+            run(false, "shell", "am", "force-stop", mPackage);
+        }
+        run(false, "logcat", "-c");
+
+        List<String> monkey = new ArrayList<String>();
+        monkey.add("shell");
+        monkey.add("monkey");
+        if (mPackage != null) {
+            monkey.add("-p");
+            monkey.add(mPackage);
+        }
+        monkey.add("--replay-events");
+        monkey.add(mDeviceLog);
+        monkey.add("-v");
+        // Replay ignores the count, but the monkey wants one.
+        monkey.add("1");
+        boolean failed = run(true, monkey.toArray(new String[monkey.size()]));
+        if (mTimedOut) {
+            // Killing adb leaves the monkey running on the device, where it
+            // would go on injecting into the next trial.
+            run(false, "shell", "pkill", "-f", "com.android.commands.monkey");
+        }
+        if (failed) {
+            return true;
+        }
+        return mSignature != null && run(true, "logcat", "-d", "-b", "main,system,crash");
+    }
+
+    /**
+     * Run an adb command, killing it if it runs past the timeout. mTimedOut
+     * says afterwards whether it did.
+     *
+     * @param match true to look for the failure in its output
+     * @return true if match was set and the failure was found
+     */
+    private boolean run(boolean match, String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>();
+        command.add("adb");
+        if (mSerial != null) {
+            command.add("-s");
+            command.add(mSerial);
+        }
+        for (String arg : args) {
+            command.add(arg);
+        }
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.redirectErrorStream(true);
+        final Process p = pb.start();
+        mTimedOut = false;
+
+        // The output is read on this thread, so the timeout kills from another.
+        Thread watchdog = new Thread("MonkeyAdbTarget watchdog") {
+            @Override
+            public void run() {
+                try {
+                    if (!p.waitFor(mTimeoutMs, TimeUnit.MILLISECONDS)) {
+                        mTimedOut = true;
+                        p.destroy();
+                    }
+                } catch (InterruptedException e) {
+                    p.destroy();
+                }
+            }
+        };
+        watchdog.setDaemon(true);
+        watchdog.start();
+
+        boolean found = false;
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (match && !found && matches(line)) {
+                        found = true;
+                    }
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            p.waitFor();
+        } finally {
+            watchdog.interrupt();
+            p.destroy();
+        }
+        return found;
+    }
+
+    private boolean matches(String line) {
+        if (mSignature != null) {
+            return mSignature.matcher(line).find();
+        }
+        return line.startsWith("// CRASH:") || line.startsWith("// NOT RESPONDING:");
+    }
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.IPackageManager;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PermissionInfo;
+import android.content.pm.ResolveInfo;
+import android.os.Build;
+import android.os.RemoteException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps the main activities and the targetable runtime permissions of every
+ * installed package in a file, so a monkey started again on an unchanged
+ * device doesn't have to ask the package manager for all of them.
+ *
+ * The cache is keyed by the state of the package manager: each package is
+ * stored with its version code and last update time, and the whole file with
+ * the build fingerprint, the user and the main categories. On start the list
+ * of installed packages, without activities or permissions, is compared with
+ * the file. Packages that were added or updated are the only ones resolved
+ * again, one query each, unless there are so many that a query for all of
+ * them is cheaper; removed packages are dropped. The activities and
+ * permissions of a package are resolved only when first asked for, so a run
+ * without permission events never pays for them.
+ *
+ * Everything is cached for every package, before the package filter, so runs
+ * with different -p options share one file. Main activities are returned in
+ * package name order, so the same set of packages gives the same activity
+ * indices, and the same events for a seed, whatever was cached before.
+ *
+ * Permission flags that change without an update of the package, such as a
+ * new device policy fixing a permission, aren't noticed; delete the file to
+ * start over.
+ */
+public class MonkeyAppCache {
+    private static final int MAGIC = 0x4d4b4143; // "MKAC"
+    private static final int VERSION = 1;
+
+    /** With more packages to resolve than this, one query for all of them is cheaper. */
+    private static final int MAX_INCREMENTAL = 32;
+
+    /**
+     * Picks the permissions of a package that permission events may change.
+     */
+    public interface PermissionResolver {
+        /**
+         * @param info the package, with its requested permissions
+         * @return the permissions to target, empty if none
+         */
+        List<PermissionInfo> resolve(PackageInfo info) throws RemoteException;
+    }
+
+    private static class Entry {
+        long versionCode;
+        long lastUpdateTime;
+        boolean system;
+        // Activity names for each main category, or null until resolved.
+        String[][] activities;
+        // Targeted permission names and their groups, or null until resolved.
+        String[] permissions;
+        String[] groups;
+    }
+
+    private final File mFile;
+    private final IPackageManager mPm;
+    private final int mUserId;
+    private final List<String> mCategories;
+
+    private TreeMap<String, Entry> mEntries = new TreeMap<String, Entry>();
+    private boolean mDirty;
+    private int mChanged;
+    private int mRemoved;
+    private int mResolved;
+
+    /**
+     * @param file where the cache is kept
+     * @param pm the package manager
+     * @param userId the user whose packages are listed
+     * @param categories the main categories activities are looked up in
+     */
+    public MonkeyAppCache(File file, IPackageManager pm, int userId, List<String> categories) {
+        mFile = file;
+        mPm = pm;
+        mUserId = userId;
+        mCategories = new ArrayList<String>(categories);
+    }
+
+    /**
+     * Read the file and bring it up to date with the installed packages.
+     */
+    public void sync() throws RemoteException {
+        boolean sameCategories = load();
+
+        List<?> installed = mPm.getInstalledPackages(0, mUserId).getList();
+        TreeMap<String, Entry> current = new TreeMap<String, Entry>();
+        for (Object o : installed) {
+            PackageInfo info = (PackageInfo) o;
+            Entry entry = mEntries.remove(info.packageName);
+            if (entry == null || entry.versionCode != info.getLongVersionCode()
+                    || entry.lastUpdateTime != info.lastUpdateTime) {
+                entry = new Entry();
+                entry.versionCode = info.getLongVersionCode();
+                entry.lastUpdateTime = info.lastUpdateTime;
+                entry.system = info.applicationInfo != null
+                        && (info.applicationInfo.flags
+                                & android.content.pm.ApplicationInfo.FLAG_SYSTEM) != 0;
+                mChanged++;
+                mDirty = true;
+            } else if (!sameCategories) {
+                entry.activities = null;
+                mDirty = true;
+            }
+            current.put(info.packageName, entry);
+        }
+        // Whatever wasn't matched has been uninstalled.
+        mRemoved = mEntries.size();
+        if (mRemoved > 0) {
+            mDirty = true;
+        }
+        mEntries = current;
+    }
+
+    /**
+     * @return how many packages were added or updated since the file was written
+     */
+    public int getChanged() {
+        return mChanged;
+    }
+
+    /**
+     * @return how many packages were removed since the file was written
+     */
+    public int getRemoved() {
+        return mRemoved;
+    }
+
+    /**
+     * @return how many packages had their activities or permissions resolved
+     *         in this run
+     */
+    public int getResolved() {
+        return mResolved;
+    }
+
+    public int getPackageCount() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return whether a package is a system app, as permission events need
+     *         to know, or false if it isn't installed
+     */
+    public boolean isSystemPackage(String pkg) {
+        Entry entry = mEntries.get(pkg);
+        return entry != null && entry.system;
+    }
+
+    /**
+     * @return the main activities of every package in a category, by package
+     *         name, before the package filter
+     */
+    public List<ComponentName> getMainActivities(int categoryIndex) throws RemoteException {
+        resolveActivities();
+        List<ComponentName> activities = new ArrayList<ComponentName>();
+        for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+            for (String activity : e.getValue().activities[categoryIndex]) {
+                activities.add(new ComponentName(e.getKey(), activity));
+            }
+        }
+        return activities;
+    }
+
+    private void resolveActivities() throws RemoteException {
+        List<String> pending = new ArrayList<String>();
+        for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+            if (e.getValue().activities == null) {
+                pending.add(e.getKey());
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        mDirty = true;
+        mResolved += pending.size();
+
+        if (pending.size() > MAX_INCREMENTAL) {
+            HashMap<String, List<List<String>>> found = new HashMap<String, List<List<String>>>();
+            for (int c = 0; c < mCategories.size(); c++) {
+                for (ResolveInfo r : queryMainActivities(c, null)) {
+                    String pkg = r.activityInfo.applicationInfo.packageName;
+                    List<List<String>> lists = found.get(pkg);
+                    if (lists == null) {
+                        lists = new ArrayList<List<String>>();
+                        for (int i = 0; i < mCategories.size(); i++) {
+                            lists.add(new ArrayList<String>());
+                        }
+                        found.put(pkg, lists);
+                    }
+                    lists.get(c).add(r.activityInfo.name);
+                }
+            }
+            for (String pkg : pending) {
+                Entry entry = mEntries.get(pkg);
+                List<List<String>> lists = found.get(pkg);
+                entry.activities = new String[mCategories.size()][];
+                for (int c = 0; c < mCategories.size(); c++) {
+                    entry.activities[c] = lists != null
+                            ? lists.get(c).toArray(new String[lists.get(c).size()])
+                            : new String[0];
+                }
+            }
+            return;
+        }
+
+        for (String pkg : pending) {
+            Entry entry = mEntries.get(pkg);
+            entry.activities = new String[mCategories.size()][];
+            for (int c = 0; c < mCategories.size(); c++) {
+                List<ResolveInfo> infos = queryMainActivities(c, pkg);
+                entry.activities[c] = new String[infos.size()];
+                for (int i = 0; i < infos.size(); i++) {
+                    entry.activities[c][i] = infos.get(i).activityInfo.name;
+                }
+            }
+        }
+    }
+
+    /**
+     * The query Monkey.getMainApps() makes, optionally for one package.
+     */
+    private List<ResolveInfo> queryMainActivities(int categoryIndex, String pkg)
+            throws RemoteException {
+        Intent intent = new Intent(Intent.ACTION_MAIN);
+        String category = mCategories.get(categoryIndex);
+        if (category.length() > 0) {
+            intent.addCategory(category);
+        }
+        if (pkg != null) {
+            intent.setPackage(pkg);
+        }
+        List<ResolveInfo> infos = mPm.queryIntentActivities(intent, null, 0, mUserId).getList();
+        return infos != null ? infos : new ArrayList<ResolveInfo>();
+    }
+
+    /**
+     * @return the targeted permissions of every package that has any, before
+     *         the package filter
+     */
+    public Map<String, List<PermissionInfo>> getPermissions(PermissionResolver resolver)
+            throws RemoteException {
+        List<String> pending = new ArrayList<String>();
+        for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+            if (e.getValue().permissions == null) {
+                pending.add(e.getKey());
+            }
+        }
+        if (!pending.isEmpty()) {
+            mDirty = true;
+            mResolved += pending.size();
+            if (pending.size() > MAX_INCREMENTAL) {
+                List<?> infos = mPm.getInstalledPackages(PackageManager.GET_PERMISSIONS,
+                        mUserId).getList();
+                for (Object o : infos) {
+                    PackageInfo info = (PackageInfo) o;
+                    Entry entry = mEntries.get(info.packageName);
+                    if (entry != null && entry.permissions == null) {
+                        setPermissions(entry, resolver.resolve(info));
+                    }
+                }
+            } else {
+                for (String pkg : pending) {
+                    PackageInfo info = mPm.getPackageInfo(pkg, PackageManager.GET_PERMISSIONS,
+                            mUserId);
+                    if (info != null) {
+                        setPermissions(mEntries.get(pkg), resolver.resolve(info));
+                    }
+                }
+            }
+            // Gone between the listing and now.
+            for (String pkg : pending) {
+                Entry entry = mEntries.get(pkg);
+                if (entry.permissions == null) {
+                    setPermissions(entry, new ArrayList<PermissionInfo>());
+                }
+            }
+        }
+
+        Map<String, List<PermissionInfo>> map = new TreeMap<String, List<PermissionInfo>>();
+        for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.permissions.length == 0) {
+                continue;
+            }
+            List<PermissionInfo> permissions = new ArrayList<PermissionInfo>();
+            for (int i = 0; i < entry.permissions.length; i++) {
+                PermissionInfo pi = new PermissionInfo();
+                pi.name = entry.permissions[i];
+                pi.group = entry.groups[i];
+                pi.protectionLevel = PermissionInfo.PROTECTION_DANGEROUS;
+                permissions.add(pi);
+            }
+            map.put(e.getKey(), permissions);
+        }
+        return map;
+    }
+
+    private static void setPermissions(Entry entry, List<PermissionInfo> permissions) {
+        entry.permissions = new String[permissions.size()];
+        entry.groups = new String[permissions.size()];
+        for (int i = 0; i < permissions.size(); i++) {
+            entry.permissions[i] = permissions.get(i).name;
+            entry.groups[i] = permissions.get(i).group;
+        }
+    }
+
+    /**
+     * Read the file, if it is there and was written on this build for this user.
+     *
+     * @return false if the file was for other main categories, so the
+     *         activities it has don't count
+     */
+    private boolean load() {
+        if (!mFile.exists()) {
+            return true;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mFile)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION
+                        || !in.readUTF().equals(Build.FINGERPRINT)
+                        || in.readInt() != mUserId) {
+                    return true;
+                }
+                int categoryCount = in.readInt();
+                boolean sameCategories = categoryCount == mCategories.size();
+                for (int i = 0; i < categoryCount; i++) {
+                    String category = in.readUTF();
+                    sameCategories = sameCategories && category.equals(mCategories.get(i));
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String pkg = in.readUTF();
+                    Entry entry = new Entry();
+                    entry.versionCode = in.readLong();
+                    entry.lastUpdateTime = in.readLong();
+                    entry.system = in.readBoolean();
+                    if (in.readBoolean()) {
+                        entry.activities = new String[categoryCount][];
+                        for (int c = 0; c < categoryCount; c++) {
+                            entry.activities[c] = readStrings(in);
+                        }
+                    }
+                    if (in.readBoolean()) {
+                        entry.permissions = readStrings(in);
+                        entry.groups = readStrings(in);
+                    }
+                    mEntries.put(pkg, entry);
+                }
+                return sameCategories;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Logger.err.println("// Ignoring app cache " + mFile + ": " + e);
+            mEntries.clear();
+            return true;
+        }
+    }
+
+    /**
+     * Write the file if anything changed, replacing it atomically.
+     */
+    public void save() {
+        if (!mDirty) {
+            return;
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            FileOutputStream file = new FileOutputStream(tmp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(Build.FINGERPRINT);
+                out.writeInt(mUserId);
+                out.writeInt(mCategories.size());
+                for (String category : mCategories) {
+                    out.writeUTF(category);
+                }
+                out.writeInt(mEntries.size());
+                for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+                    Entry entry = e.getValue();
+                    out.writeUTF(e.getKey());
+                    out.writeLong(entry.versionCode);
+                    out.writeLong(entry.lastUpdateTime);
+                    out.writeBoolean(entry.system);
+                    out.writeBoolean(entry.activities != null);
+                    if (entry.activities != null) {
+                        for (String[] activities : entry.activities) {
+                            writeStrings(out, activities);
+                        }
+                    }
+                    out.writeBoolean(entry.permissions != null);
+                    if (entry.permissions != null) {
+                        writeStrings(out, entry.permissions);
+                        writeStrings(out, entry.groups);
+                    }
+                }
+                out.flush();
+                file.getFD().sync();
+            } finally {
+                file.close();
+            }
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("can't rename " + tmp + " to " + mFile);
+            }
+            mDirty = false;
+        } catch (IOException e) {
+            tmp.delete();
+            Logger.err.println("** Failed to save app cache " + mFile + ": " + e);
+        }
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("bad count " + count);
+        }
+        String[] strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            // Permission groups may be null.
+            strings[i] = in.readBoolean() ? in.readUTF() : null;
+        }
+        return strings;
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+        out.writeInt(strings.length);
+        for (String s : strings) {
+            out.writeBoolean(s != null);
+            if (s != null) {
+                out.writeUTF(s);
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.app.IActivityManager;
+import android.hardware.input.InputManager;
+import android.view.IWindowManager;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Injects key and motion events with InputManager's asynchronous mode, keeping
+ * up to {@code window} of them in flight at the input dispatcher, so the
+ * monkey isn't held to one dispatcher round trip per event.
+ *
+ * Events are handed over with submit() and injected on a dedicated thread in
+ * the order they were submitted. The dispatcher handles injected events in the
+ * order they arrive, so the DOWN, MOVEs and UP of a gesture still reach it in
+ * order. Anything other than key and motion events must not overtake them, so
+ * the caller drains the window before injecting those itself.
+ *
+ * INJECT_INPUT_EVENT_MODE_ASYNC returns once the event is queued and never
+ * says how dispatch went. Completion is tracked with a sequence check instead:
+ * whenever the injector catches up with the submitted events, it injects the
+ * last one with INJECT_INPUT_EVENT_MODE_WAIT_FOR_RESULT. When that returns,
+ * every event injected before it has been dispatched too, and their slots in
+ * the window are given back. A full window stops submit() until that happens,
+ * and the injector always catches up once submit() stops.
+ *
+ * The results come back through counters: drops are accumulated per kind and
+ * the first remote or security exception is held until the main loop polls it.
+ * An asynchronous event counts as dropped if it is rejected before it is
+ * queued; one the dispatcher drops later goes unnoticed, as it would for a
+ * real input device. Only the events injected with WAIT_FOR_RESULT can fail
+ * at dispatch, such as when no window takes them.
+ */
+public class MonkeyAsyncInjector {
+    private final IWindowManager mWm;
+    private final IActivityManager mAm;
+    private final int mVerbose;
+    private final int mWindow;
+
+    private final ArrayBlockingQueue<MonkeyEvent> mQueue;
+    private final Semaphore mSlots;
+
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mDroppedKeyEvents = new AtomicLong();
+    private final AtomicLong mDroppedPointerEvents = new AtomicLong();
+    private final AtomicInteger mError = new AtomicInteger(MonkeyEvent.INJECT_SUCCESS);
+
+    private long mSubmitted;
+    private int mMaxInFlight;
+    // Injected asynchronously since the last sequence check. Injector thread only.
+    private int mUnconfirmed;
+    private Thread mThread;
+    private volatile boolean mStopped;
+    private MonkeyInjectionStats mStats;
+
+    /**
+     * @param window how many events may be submitted but not yet known to have
+     *        been dispatched
+     */
+    public MonkeyAsyncInjector(IWindowManager wm, IActivityManager am, int verbose, int window) {
+        mWm = wm;
+        mAm = am;
+        mVerbose = verbose;
+        mWindow = Math.max(window, 1);
+        mQueue = new ArrayBlockingQueue<MonkeyEvent>(mWindow);
+        mSlots = new Semaphore(mWindow);
+    }
+
+    /**
+     * Record the latency of every injection. Must be called before the first submit().
+     */
+    public void setStats(MonkeyInjectionStats stats) {
+        mStats = stats;
+    }
+
+    /**
+     * @return true if the event can be handed to submit(), false if it has to
+     *         be injected on the calling thread after drain()
+     */
+    public static boolean canSubmit(MonkeyEvent ev) {
+        return ev instanceof MonkeyKeyEvent || ev instanceof MonkeyMotionEvent;
+    }
+
+    /**
+     * Queue an event for injection, blocking while the window is full. The
+     * injector recycles the event once it has been injected, so the caller must
+     * not touch it after this returns.
+     */
+    public void submit(MonkeyEvent ev) {
+        if (mThread == null) {
+            start();
+        }
+        mSlots.acquireUninterruptibly();
+        mSubmitted++;
+        int inFlight = (int) (mSubmitted - mCompleted.get());
+        if (inFlight > mMaxInFlight) {
+            mMaxInFlight = inFlight;
+        }
+        // Can't block: a slot was free, so there is room in the queue.
+        mQueue.offer(ev);
+    }
+
+    /**
+     * Wait until every submitted event has been dispatched.
+     */
+    public void drain() {
+        if (mThread == null) {
+            return;
+        }
+        mSlots.acquireUninterruptibly(mWindow);
+        mSlots.release(mWindow);
+    }
+
+    /**
+     * @return the first remote or security exception code reported since the
+     *         last call, or INJECT_SUCCESS if there was none
+     */
+    public int pollError() {
+        return mError.getAndSet(MonkeyEvent.INJECT_SUCCESS);
+    }
+
+    /**
+     * @return the key events that failed to inject since the last call
+     */
+    public long takeDroppedKeyEvents() {
+        return mDroppedKeyEvents.getAndSet(0);
+    }
+
+    /**
+     * @return the motion and trackball events that failed to inject since the last call
+     */
+    public long takeDroppedPointerEvents() {
+        return mDroppedPointerEvents.getAndSet(0);
+    }
+
+    /**
+     * @return how many events are known to have been dispatched or dropped
+     */
+    public long getCompleted() {
+        return mCompleted.get();
+    }
+
+    /**
+     * @return the most events that were in flight at once
+     */
+    public int getMaxInFlight() {
+        return mMaxInFlight;
+    }
+
+    /**
+     * Wait for the submitted events and then end the injector thread.
+     */
+    public void stop() {
+        drain();
+        mStopped = true;
+        Thread thread = mThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void start() {
+        mThread = new Thread("MonkeyInjector") {
+            @Override
+            public void run() {
+                while (!mStopped) {
+                    MonkeyEvent ev;
+                    try {
+                        ev = mQueue.take();
+                    } catch (InterruptedException e) {
+                        continue;
+                    }
+                    // Caught up: check the sequence, so whatever is waiting on
+                    // a full window or a drain gets its slots back.
+                    boolean check = mQueue.isEmpty();
+                    int injectCode = inject(ev, check);
+                    int done;
+                    if (check) {
+                        done = mUnconfirmed + 1;
+                        mUnconfirmed = 0;
+                    } else if (injectCode == MonkeyEvent.INJECT_FAIL) {
+                        done = 1;
+                    } else {
+                        mUnconfirmed++;
+                        continue;
+                    }
+                    mCompleted.addAndGet(done);
+                    mSlots.release(done);
+                }
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * @param wait true to wait for the event to be dispatched, false to only
+     *        queue it
+     */
+    private int inject(MonkeyEvent ev, boolean wait) {
+        int mode = wait ? InputManager.INJECT_INPUT_EVENT_MODE_WAIT_FOR_RESULT
+                : InputManager.INJECT_INPUT_EVENT_MODE_ASYNC;
+        int injectCode;
+        long start = mStats != null ? System.nanoTime() : 0;
+        try {
+            if (ev instanceof MonkeyKeyEvent) {
+                injectCode = ((MonkeyKeyEvent) ev).injectEvent(mWm, mAm, mVerbose, mode);
+            } else {
+                injectCode = ((MonkeyMotionEvent) ev).injectEvent(mWm, mAm, mVerbose, mode);
+            }
+        } catch (RuntimeException e) {
+            Logger.error("** Error: A RuntimeException occurred while injecting:", e);
+            injectCode = MonkeyEvent.INJECT_FAIL;
+        }
+        // Only a waited injection is a round trip; an asynchronous one returns
+        // as soon as the event is queued.
+        if (mStats != null && wait) {
+            mStats.recordLatency(ev.getEventType(), System.nanoTime() - start);
+        }
+        if (injectCode == MonkeyEvent.INJECT_FAIL) {
+            Logger.out.println("    // Injection Failed");
+            if (ev instanceof MonkeyKeyEvent) {
+                mDroppedKeyEvents.incrementAndGet();
+            } else {
+                mDroppedPointerEvents.incrementAndGet();
+            }
+        } else if (injectCode != MonkeyEvent.INJECT_SUCCESS) {
+            mError.compareAndSet(MonkeyEvent.INJECT_SUCCESS, injectCode);
+        }
+        ev.recycle();
+        return injectCode;
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.util.Log;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Takes the lines printed through Logger off the calling thread, so logging
+ * at high verbosity doesn't slow down injection or change its timing.
+ *
+ * Lines go into a preallocated ring of records. Any thread can add one
+ * without taking a lock: it claims the next sequence number with a
+ * compare-and-set on the tail, fills in the slot and then publishes it by
+ * storing the sequence number in the slot. If the ring is full the line is
+ * dropped and counted instead of waiting for room. A single background
+ * thread takes the published records in order and writes them out in
+ * batches: consecutive lines for the same stream are joined into one write,
+ * and each line is also sent to logcat.
+ *
+ * Optionally every record is also written to a binary log, which starts with
+ * MAGIC and a varint VERSION, followed by records of
+ * <pre>
+ *   stream      1 byte, STREAM_OUT, STREAM_ERR or STREAM_DROPPED
+ *   delta       varint, microseconds since the previous record was logged
+ *   payload     the line as a varint length and UTF-8 bytes, or for
+ *               STREAM_DROPPED a varint count of the lines dropped
+ * </pre>
+ */
+public class MonkeyAsyncLogger {
+    static final int MAGIC = 0x4d4b4c47; // "MKLG"
+    static final int VERSION = 1;
+
+    static final byte STREAM_OUT = 0;
+    static final byte STREAM_ERR = 1;
+    static final byte STREAM_DROPPED = 2;
+
+    private static final String TAG = "Monkey";
+
+    // How long the writer sleeps when there is nothing to write.
+    private static final long IDLE_PARK_NANOS = 2000000;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int mMask;
+    private final String[] mLines;
+    private final long[] mTimes;
+    private final byte[] mStreams;
+    // Sequence number + 1 of the record in each slot, once it is complete.
+    private final AtomicLongArray mPublished;
+
+    private final AtomicLong mTail = new AtomicLong();
+    private volatile long mHead;
+    private final AtomicLong mDropped = new AtomicLong();
+    private long mDroppedReported;
+
+    private final StringBuilder mBatch = new StringBuilder(BUFFER_SIZE);
+
+    private FileOutputStream mBinaryOut;
+    private FileChannel mBinaryChannel;
+    private byte[] mBuffer;
+    private int mPos;
+    private long mLastTime;
+
+    private volatile boolean mStopped;
+    private Thread mThread;
+
+    /**
+     * @param capacity the number of records in the ring, rounded up to a power of two
+     * @param binaryLogFile where to write the binary log, or null for none
+     */
+    public MonkeyAsyncLogger(int capacity, String binaryLogFile) throws IOException {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mMask = size - 1;
+        mLines = new String[size];
+        mTimes = new long[size];
+        mStreams = new byte[size];
+        mPublished = new AtomicLongArray(size);
+        if (binaryLogFile != null) {
+            mBinaryOut = new FileOutputStream(binaryLogFile);
+            mBinaryChannel = mBinaryOut.getChannel();
+            mBuffer = new byte[BUFFER_SIZE];
+            writeFixed32(MAGIC);
+            writeVarint(VERSION);
+        }
+    }
+
+    /**
+     * Start the writer thread.
+     */
+    public void start() {
+        mLastTime = System.nanoTime();
+        mThread = new Thread("MonkeyAsyncLogger") {
+            @Override
+            public void run() {
+                while (!mStopped) {
+                    if (!drain()) {
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    }
+                }
+                drain();
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Write out everything logged so far and stop the writer thread. Lines
+     * logged afterwards are refused by offer().
+     */
+    public void stop() {
+        if (mStopped) {
+            return;
+        }
+        mStopped = true;
+        LockSupport.unpark(mThread);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mBinaryOut != null) {
+            try {
+                flushBinary();
+                mBinaryOut.close();
+            } catch (IOException e) {
+                System.err.println("** Failed to write binary log: " + e);
+            }
+        }
+    }
+
+    /**
+     * Add a line without blocking.
+     *
+     * @param stream STREAM_OUT or STREAM_ERR
+     * @return false if the logger has been stopped and the caller has to write
+     *         the line itself; a line dropped because the ring is full counts
+     *         as taken
+     */
+    public boolean offer(byte stream, String line) {
+        if (mStopped) {
+            return false;
+        }
+        long seq;
+        do {
+            seq = mTail.get();
+            if (seq - mHead > mMask) {
+                mDropped.incrementAndGet();
+                return true;
+            }
+        } while (!mTail.compareAndSet(seq, seq + 1));
+        int i = (int) (seq & mMask);
+        mLines[i] = line != null ? line : "null";
+        mTimes[i] = System.nanoTime();
+        mStreams[i] = stream;
+        mPublished.lazySet(i, seq + 1);
+        if (seq - mHead == (mMask + 1) / 2) {
+            // Half full: don't wait for the writer to wake up on its own.
+            LockSupport.unpark(mThread);
+        }
+        return true;
+    }
+
+    /**
+     * @return how many lines were dropped because the ring was full
+     */
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    /**
+     * Write out the records published so far.
+     *
+     * @return true if there were any
+     */
+    private boolean drain() {
+        long head = mHead;
+        byte batchStream = -1;
+        boolean any = false;
+        while (true) {
+            int i = (int) (head & mMask);
+            if (mPublished.get(i) != head + 1) {
+                break;
+            }
+            String line = mLines[i];
+            byte stream = mStreams[i];
+            long time = mTimes[i];
+            mLines[i] = null;
+            head++;
+            // Free the slot before writing, so loggers can reuse it sooner.
+            mHead = head;
+            any = true;
+
+            if (stream != batchStream) {
+                writeBatch(batchStream);
+                batchStream = stream;
+            }
+            mBatch.append(line).append('\n');
+            if (Logger.logcat) {
+                if (stream == STREAM_OUT) {
+                    Log.i(TAG, line);
+                } else {
+                    Log.w(TAG, line);
+                }
+            }
+            if (mBinaryOut != null) {
+                writeRecord(stream, time, line, 0);
+            }
+            if (mBatch.length() >= BUFFER_SIZE) {
+                writeBatch(batchStream);
+            }
+        }
+        writeBatch(batchStream);
+        reportDropped();
+        if (any && mBinaryOut != null) {
+            try {
+                flushBinary();
+            } catch (IOException e) {
+                System.err.println("** Failed to write binary log, stopped: " + e);
+                closeBinary();
+            }
+        }
+        return any;
+    }
+
+    private void writeBatch(byte stream) {
+        if (mBatch.length() == 0) {
+            return;
+        }
+        if (Logger.stdout) {
+            if (stream == STREAM_OUT) {
+                System.out.print(mBatch);
+                System.out.flush();
+            } else {
+                System.err.print(mBatch);
+                System.err.flush();
+            }
+        }
+        mBatch.setLength(0);
+    }
+
+    /**
+     * Note any lines dropped since the last note, where they were dropped.
+     */
+    private void reportDropped() {
+        long dropped = mDropped.get();
+        if (dropped == mDroppedReported) {
+            return;
+        }
+        long count = dropped - mDroppedReported;
+        mDroppedReported = dropped;
+        String line = "// Logger: dropped " + count + " lines, " + dropped + " in total";
+        if (Logger.stdout) {
+            System.err.println(line);
+        }
+        if (Logger.logcat) {
+            Log.w(TAG, line);
+        }
+        if (mBinaryOut != null) {
+            writeRecord(STREAM_DROPPED, System.nanoTime(), null, count);
+        }
+    }
+
+    private void writeRecord(byte stream, long time, String line, long count) {
+        byte[] bytes = line != null ? line.getBytes(StandardCharsets.UTF_8) : null;
+        int needed = 1 + 10 + 10 + (bytes != null ? bytes.length : 0);
+        if (mPos + needed > mBuffer.length) {
+            try {
+                flushBinary();
+            } catch (IOException e) {
+                System.err.println("** Failed to write binary log, stopped: " + e);
+                closeBinary();
+                return;
+            }
+            if (needed > mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, needed);
+            }
+        }
+        mBuffer[mPos++] = stream;
+        writeVarint(Math.max(time - mLastTime, 0) / 1000);
+        mLastTime = Math.max(time, mLastTime);
+        if (bytes != null) {
+            writeVarint(bytes.length);
+            System.arraycopy(bytes, 0, mBuffer, mPos, bytes.length);
+            mPos += bytes.length;
+        } else {
+            writeVarint(count);
+        }
+    }
+
+    private void closeBinary() {
+        try {
+            mBinaryOut.close();
+        } catch (IOException e) {
+        }
+        mBinaryOut = null;
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            mBuffer[mPos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        mBuffer[mPos++] = (byte) value;
+    }
+
+    private void writeFixed32(int value) {
+        mBuffer[mPos++] = (byte) value;
+        mBuffer[mPos++] = (byte) (value >> 8);
+        mBuffer[mPos++] = (byte) (value >> 16);
+        mBuffer[mPos++] = (byte) (value >> 24);
+    }
+
+    private void flushBinary() throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(mBuffer, 0, mPos);
+        while (bb.hasRemaining()) {
+            mBinaryChannel.write(bb);
+        }
+        mPos = 0;
+        if (mBuffer.length > BUFFER_SIZE) {
+            mBuffer = new byte[BUFFER_SIZE];
+        }
+    }
+}
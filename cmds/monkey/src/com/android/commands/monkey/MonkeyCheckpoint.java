@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The state of a run that --resume needs to carry on from where it was
+ * checkpointed: the seed and random number generator, the event and cycle
+ * counters, the dropped event counters, the position in the scripts and the
+ * tombstones that were already seen.
+ *
+ * It is kept as a properties file, so it can be read and edited by hand. The
+ * file is replaced atomically: the new contents are written and synced to a
+ * temporary file, which is then renamed over the old one, so a reboot in the
+ * middle of a save leaves the previous checkpoint intact.
+ */
+public class MonkeyCheckpoint {
+    static final int VERSION = 1;
+
+    static final String KEY_VERSION = "version";
+    static final String KEY_SEED = "seed";
+    static final String KEY_RANDOM = "random";
+    static final String KEY_EVENTS = "events";
+    static final String KEY_CYCLES = "cycles";
+    static final String KEY_DROPPED_KEYS = "dropped.keys";
+    static final String KEY_DROPPED_POINTERS = "dropped.pointers";
+    static final String KEY_DROPPED_TRACKBALLS = "dropped.trackballs";
+    static final String KEY_DROPPED_FLIPS = "dropped.flips";
+    static final String KEY_DROPPED_ROTATIONS = "dropped.rotations";
+    static final String KEY_TIME = "time";
+    private static final String TOMBSTONE_PREFIX = "tombstone.";
+
+    private final Properties mProperties = new Properties();
+
+    /**
+     * An event source that can save its position in a checkpoint and carry on
+     * from it.
+     */
+    public interface Resumable {
+        /**
+         * Save the position, with keys that start with prefix.
+         */
+        void saveState(MonkeyCheckpoint checkpoint, String prefix);
+
+        /**
+         * Carry on from a position saved by saveState(). Called after
+         * validate() and before the first event is taken.
+         */
+        void restoreState(MonkeyCheckpoint checkpoint, String prefix);
+    }
+
+    /**
+     * Read a checkpoint.
+     *
+     * @return the checkpoint, or null if the file doesn't exist
+     * @throws IOException if it can't be read or isn't a checkpoint
+     */
+    public static MonkeyCheckpoint load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        MonkeyCheckpoint checkpoint = new MonkeyCheckpoint();
+        InputStream in = new FileInputStream(file);
+        try {
+            checkpoint.mProperties.load(in);
+        } finally {
+            in.close();
+        }
+        if (checkpoint.getLong(KEY_VERSION, -1) != VERSION) {
+            throw new IOException("not a version " + VERSION + " checkpoint");
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Write the checkpoint, replacing the file atomically.
+     */
+    public void save(File file) throws IOException {
+        putLong(KEY_VERSION, VERSION);
+        putLong(KEY_TIME, System.currentTimeMillis());
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            mProperties.store(out, "monkey checkpoint");
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("can't rename " + tmp + " to " + file);
+        }
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = mProperties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public void putLong(String key, long value) {
+        mProperties.setProperty(key, Long.toString(value));
+    }
+
+    /**
+     * @return the tombstones seen so far, by name, with their modification times
+     */
+    public Map<String, Long> getTombstones() {
+        HashMap<String, Long> tombstones = new HashMap<String, Long>();
+        for (String key : mProperties.stringPropertyNames()) {
+            if (key.startsWith(TOMBSTONE_PREFIX)) {
+                tombstones.put(key.substring(TOMBSTONE_PREFIX.length()), getLong(key, 0));
+            }
+        }
+        return tombstones;
+    }
+
+    /**
+     * Replace the tombstones seen so far.
+     */
+    public void setTombstones(Map<String, Long> tombstones) {
+        for (String key : mProperties.stringPropertyNames()) {
+            if (key.startsWith(TOMBSTONE_PREFIX)) {
+                mProperties.remove(key);
+            }
+        }
+        for (Map.Entry<String, Long> entry : tombstones.entrySet()) {
+            putLong(TOMBSTONE_PREFIX + entry.getKey(), entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,1093 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.content.ComponentName;
+import android.os.SystemClock;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+import android.view.Surface;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+
+/**
+ * A monkey script that has been parsed once into an immutable array of event
+ * templates, one entry per script line that produces events.
+ *
+ * <p>The header and every line are checked when the script is compiled, and
+ * problems are reported as {@code file:line:column}.  Playing a line only
+ * creates fresh events from its templates, so a script that is looped many
+ * times by {@link MonkeySourceRandomScript} is only ever parsed once.
+ *
+ * @see MonkeySourceScript
+ */
+public class MonkeyCompiledScript {
+    private static final String HEADER_COUNT = "count=";
+
+    private static final String HEADER_SPEED = "speed=";
+
+    // if this header is present, scripts are read and processed in line-by-line mode
+    private static final String HEADER_LINE_BY_LINE = "linebyline";
+
+    // a line at the end of the header
+    private static final String STARTING_DATA_LINE = "start data >>";
+
+    // event key word in the capture log
+    private static final String EVENT_KEYWORD_POINTER = "DispatchPointer";
+
+    private static final String EVENT_KEYWORD_TRACKBALL = "DispatchTrackball";
+
+    private static final String EVENT_KEYWORD_ROTATION = "RotateScreen";
+
+    private static final String EVENT_KEYWORD_KEY = "DispatchKey";
+
+    private static final String EVENT_KEYWORD_FLIP = "DispatchFlip";
+
+    private static final String EVENT_KEYWORD_KEYPRESS = "DispatchPress";
+
+    private static final String EVENT_KEYWORD_ACTIVITY = "LaunchActivity";
+
+    private static final String EVENT_KEYWORD_INSTRUMENTATION = "LaunchInstrumentation";
+
+    private static final String EVENT_KEYWORD_WAIT = "UserWait";
+
+    private static final String EVENT_KEYWORD_LONGPRESS = "LongPress";
+
+    private static final String EVENT_KEYWORD_POWERLOG = "PowerLog";
+
+    private static final String EVENT_KEYWORD_WRITEPOWERLOG = "WriteLog";
+
+    private static final String EVENT_KEYWORD_RUNCMD = "RunCmd";
+
+    private static final String EVENT_KEYWORD_TAP = "Tap";
+
+    private static final String EVENT_KEYWORD_PROFILE_WAIT = "ProfileWait";
+
+    private static final String EVENT_KEYWORD_DEVICE_WAKEUP = "DeviceWakeUp";
+
+    private static final String EVENT_KEYWORD_INPUT_STRING = "DispatchString";
+
+    private static final String EVENT_KEYWORD_PRESSANDHOLD = "PressAndHold";
+
+    private static final String EVENT_KEYWORD_DRAG = "Drag";
+
+    private static final String EVENT_KEYWORD_PINCH_ZOOM = "PinchZoom";
+
+    private static final String EVENT_KEYWORD_START_FRAMERATE_CAPTURE = "StartCaptureFramerate";
+
+    private static final String EVENT_KEYWORD_END_FRAMERATE_CAPTURE = "EndCaptureFramerate";
+
+    private static final String EVENT_KEYWORD_START_APP_FRAMERATE_CAPTURE =
+            "StartCaptureAppFramerate";
+
+    private static final String EVENT_KEYWORD_END_APP_FRAMERATE_CAPTURE = "EndCaptureAppFramerate";
+
+    // Checked in the same order as the line parser did, so a line that happens to
+    // contain more than one keyword still produces the same events.
+    private static final String[] ALL_KEYWORDS = {
+        EVENT_KEYWORD_KEY, EVENT_KEYWORD_POINTER, EVENT_KEYWORD_TRACKBALL,
+        EVENT_KEYWORD_ROTATION, EVENT_KEYWORD_TAP, EVENT_KEYWORD_PRESSANDHOLD,
+        EVENT_KEYWORD_DRAG, EVENT_KEYWORD_PINCH_ZOOM, EVENT_KEYWORD_FLIP,
+        EVENT_KEYWORD_ACTIVITY, EVENT_KEYWORD_DEVICE_WAKEUP, EVENT_KEYWORD_INSTRUMENTATION,
+        EVENT_KEYWORD_WAIT, EVENT_KEYWORD_PROFILE_WAIT, EVENT_KEYWORD_KEYPRESS,
+        EVENT_KEYWORD_LONGPRESS, EVENT_KEYWORD_POWERLOG, EVENT_KEYWORD_WRITEPOWERLOG,
+        EVENT_KEYWORD_RUNCMD, EVENT_KEYWORD_INPUT_STRING,
+        EVENT_KEYWORD_START_FRAMERATE_CAPTURE, EVENT_KEYWORD_END_FRAMERATE_CAPTURE,
+        EVENT_KEYWORD_START_APP_FRAMERATE_CAPTURE, EVENT_KEYWORD_END_APP_FRAMERATE_CAPTURE,
+    };
+
+    private static final int LONGPRESS_WAIT_TIME = 2000; // wait time for the long
+
+    private static final Template[] NO_TEMPLATES = new Template[0];
+
+    private final int mEventCount;
+
+    private final double mSpeed;
+
+    private final boolean mLineByLine;
+
+    // The templates of each script line that produces events, in script order.
+    private final Template[][] mLines;
+
+    private MonkeyCompiledScript(int eventCount, double speed, boolean lineByLine,
+            Template[][] lines) {
+        mEventCount = eventCount;
+        mSpeed = speed;
+        mLineByLine = lineByLine;
+        mLines = lines;
+    }
+
+    /**
+     * @return the number of events given by the {@code count=} header.
+     */
+    public int getEventCount() {
+        return mEventCount;
+    }
+
+    /**
+     * @return the playback speed given by the {@code speed=} header.
+     */
+    public double getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * @return true if the script has the {@code linebyline} header.
+     */
+    public boolean isLineByLine() {
+        return mLineByLine;
+    }
+
+    /**
+     * @return the number of script lines that produce events.
+     */
+    public int getLineCount() {
+        return mLines.length;
+    }
+
+    /**
+     * Queues fresh events for one script line.
+     *
+     * @param index which line, from 0 to {@link #getLineCount()} - 1.
+     * @param playback where the events go, and the state carried between lines.
+     */
+    public void emitLine(int index, Playback playback) {
+        for (Template t : mLines[index]) {
+            t.emit(playback);
+        }
+    }
+
+    /**
+     * The state a script carries from one line to the next while it is played.
+     */
+    public static class Playback {
+        final MonkeyEventQueue mQ;
+
+        final MonkeyEventPool mPool;
+
+        // X and Y coordincates of last touch event. Array Index is the pointerId
+        final float[] mLastX = new float[2];
+
+        final float[] mLastY = new float[2];
+
+        long mScriptStartTime = -1;
+
+        long mMonkeyStartTime = -1;
+
+        public Playback(MonkeyEventQueue q, MonkeyEventPool pool) {
+            mQ = q;
+            mPool = pool;
+        }
+    }
+
+    /**
+     * Parses and checks a script.  Every problem found is printed to the error log.
+     *
+     * @param fileName the script file on the device.
+     * @param profileWaitTime the wait used for {@code ProfileWait()}.
+     * @param deviceSleepTime the sleep used for {@code DeviceWakeUp()}.
+     * @return the compiled script, or null if the file could not be read or has errors.
+     */
+    public static MonkeyCompiledScript compile(String fileName, long profileWaitTime,
+            long deviceSleepTime) {
+        ArrayList<String> lines = new ArrayList<String>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(fileName)));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } catch (IOException e) {
+            Logger.err.println("** " + fileName + ": " + e);
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        Compiler c = new Compiler(fileName, profileWaitTime, deviceSleepTime);
+        c.compile(lines);
+        if (c.mErrors > 0) {
+            Logger.err.println("** " + fileName + ": " + c.mErrors + " error(s)");
+            return null;
+        }
+        return new MonkeyCompiledScript(c.mEventCount, c.mSpeed, c.mLineByLine,
+                c.mLines.toArray(new Template[c.mLines.size()][]));
+    }
+
+    /**
+     * Thrown for a bad argument, with the column it starts at.
+     */
+    private static class ScriptException extends Exception {
+        final int mColumn;
+
+        ScriptException(int column, String message) {
+            super(message);
+            mColumn = column;
+        }
+    }
+
+    /**
+     * The parsing state for one script file.
+     */
+    private static class Compiler {
+        final String mFileName;
+        final long mProfileWaitTime;
+        final long mDeviceSleepTime;
+
+        int mEventCount = 0;
+        double mSpeed = 1.0;
+        boolean mLineByLine = false;
+        int mErrors = 0;
+        final ArrayList<Template[]> mLines = new ArrayList<Template[]>();
+
+        // The line being compiled
+        final ArrayList<Template> mTemplates = new ArrayList<Template>();
+        String[] mArgs;
+        int[] mColumns;
+        int mLineNumber;
+
+        Compiler(String fileName, long profileWaitTime, long deviceSleepTime) {
+            mFileName = fileName;
+            mProfileWaitTime = profileWaitTime;
+            mDeviceSleepTime = deviceSleepTime;
+        }
+
+        void error(int line, int column, String message) {
+            mErrors++;
+            Logger.err.println("** " + mFileName + ":" + line + ":" + column + ": " + message);
+        }
+
+        void compile(ArrayList<String> lines) {
+            int i = 0;
+            boolean foundData = false;
+            while (i < lines.size() && !foundData) {
+                String line = lines.get(i++);
+                int index;
+                if ((index = line.indexOf(HEADER_COUNT)) >= 0) {
+                    int start = index + HEADER_COUNT.length();
+                    String value = line.substring(start).trim();
+                    try {
+                        mEventCount = Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        error(i, start + 1, "bad count '" + value + "'");
+                    }
+                } else if ((index = line.indexOf(HEADER_SPEED)) >= 0) {
+                    int start = index + HEADER_SPEED.length();
+                    String value = line.substring(start).trim();
+                    try {
+                        mSpeed = Double.parseDouble(value);
+                    } catch (NumberFormatException e) {
+                        error(i, start + 1, "bad speed '" + value + "'");
+                    }
+                } else if (line.indexOf(HEADER_LINE_BY_LINE) >= 0) {
+                    mLineByLine = true;
+                } else if (line.indexOf(STARTING_DATA_LINE) >= 0) {
+                    foundData = true;
+                }
+            }
+            if (!foundData) {
+                error(i, 1, "missing '" + STARTING_DATA_LINE + "' line");
+                return;
+            }
+
+            while (i < lines.size()) {
+                String line = lines.get(i++);
+                int index1 = line.indexOf('(');
+                int index2 = line.indexOf(')');
+                if (index1 < 0 || index2 < 0) {
+                    continue;
+                }
+                if (index2 < index1) {
+                    error(i, index2 + 1, "')' before '('");
+                    continue;
+                }
+                mLineNumber = i;
+                splitArgs(line, index1 + 1, index2);
+                mTemplates.clear();
+                try {
+                    compileLine(line);
+                } catch (ScriptException e) {
+                    error(i, e.mColumn, e.getMessage());
+                    continue;
+                }
+                if (mTemplates.isEmpty()) {
+                    String keyword = findKeyword(line);
+                    if (keyword == null) {
+                        error(i, 1, "unknown event '" + line.substring(0, index1).trim() + "'");
+                    } else {
+                        error(i, index1 + 1, keyword + " does not take " + mArgs.length
+                                + " argument(s)");
+                    }
+                    continue;
+                }
+                mLines.add(mTemplates.toArray(NO_TEMPLATES));
+            }
+        }
+
+        /**
+         * Splits the text between the parentheses on commas and trims each argument.
+         * Like {@link String#split}, trailing empty arguments are dropped.
+         */
+        void splitArgs(String line, int start, int end) {
+            ArrayList<String> args = new ArrayList<String>();
+            ArrayList<Integer> columns = new ArrayList<Integer>();
+            int pos = start;
+            while (true) {
+                int comma = line.indexOf(',', pos);
+                int stop = (comma < 0 || comma > end) ? end : comma;
+                String raw = line.substring(pos, stop);
+                int lead = 0;
+                while (lead < raw.length() && raw.charAt(lead) <= ' ') {
+                    lead++;
+                }
+                args.add(raw);
+                columns.add(pos + lead + 1);
+                if (stop == end) {
+                    break;
+                }
+                pos = stop + 1;
+            }
+            int n = args.size();
+            if (n > 1) {
+                while (n > 0 && args.get(n - 1).length() == 0) {
+                    n--;
+                }
+            }
+            mArgs = new String[n];
+            mColumns = new int[n];
+            for (int k = 0; k < n; k++) {
+                mArgs[k] = args.get(k).trim();
+                mColumns[k] = columns.get(k);
+            }
+        }
+
+        static String findKeyword(String line) {
+            for (String keyword : ALL_KEYWORDS) {
+                if (line.indexOf(keyword) >= 0) {
+                    return keyword;
+                }
+            }
+            return null;
+        }
+
+        long parseLong(int i) throws ScriptException {
+            try {
+                return Long.parseLong(mArgs[i]);
+            } catch (NumberFormatException e) {
+                throw new ScriptException(mColumns[i], "expected an integer, got '" + mArgs[i] + "'");
+            }
+        }
+
+        int parseInt(int i) throws ScriptException {
+            try {
+                return Integer.parseInt(mArgs[i]);
+            } catch (NumberFormatException e) {
+                throw new ScriptException(mColumns[i], "expected an integer, got '" + mArgs[i] + "'");
+            }
+        }
+
+        float parseFloat(int i) throws ScriptException {
+            try {
+                return Float.parseFloat(mArgs[i]);
+            } catch (NumberFormatException e) {
+                throw new ScriptException(mColumns[i], "expected a number, got '" + mArgs[i] + "'");
+            }
+        }
+
+        int parseStepCount(int i) throws ScriptException {
+            int stepCount = parseInt(i);
+            if (stepCount <= 0) {
+                throw new ScriptException(mColumns[i], "step count must be positive");
+            }
+            return stepCount;
+        }
+
+        /**
+         * Turns one script line into templates.  The checks are made in the same
+         * order, and fall through in the same places, as the old line parser.
+         */
+        void compileLine(String s) throws ScriptException {
+            String[] args = mArgs;
+
+            // Handle key event
+            if (s.indexOf(EVENT_KEYWORD_KEY) >= 0 && args.length == 8) {
+                mTemplates.add(new KeyTemplate(parseLong(0), parseLong(1), parseInt(2),
+                        parseInt(3), parseInt(4), parseInt(5), parseInt(6), parseInt(7)));
+                return;
+            }
+
+            // Handle trackball or pointer events
+            if ((s.indexOf(EVENT_KEYWORD_POINTER) >= 0 || s.indexOf(EVENT_KEYWORD_TRACKBALL) >= 0)
+                    && (args.length == 12 || args.length == 13)) {
+                MotionTemplate t = new MotionTemplate(s.indexOf("Pointer") > 0, mLineByLine);
+                t.mDownTime = parseLong(0);
+                t.mEventTime = parseLong(1);
+                t.mAction = parseInt(2);
+                t.mX = parseFloat(3);
+                t.mY = parseFloat(4);
+                t.mPressure = parseFloat(5);
+                t.mSize = parseFloat(6);
+                t.mMetaState = parseInt(7);
+                t.mXPrecision = parseFloat(8);
+                t.mYPrecision = parseFloat(9);
+                t.mDevice = parseInt(10);
+                t.mEdgeFlags = parseInt(11);
+                // the pointer ID is the 13th parameter for multi-touch
+                t.mPointerId = args.length == 13 ? parseInt(12) : -1;
+                mTemplates.add(t);
+                return;
+            }
+
+            // Handle screen rotation events
+            if ((s.indexOf(EVENT_KEYWORD_ROTATION) >= 0) && args.length == 2) {
+                int rotationDegree = parseInt(0);
+                int persist = parseInt(1);
+                if ((rotationDegree != Surface.ROTATION_0) &&
+                        (rotationDegree != Surface.ROTATION_90) &&
+                        (rotationDegree != Surface.ROTATION_180) &&
+                        (rotationDegree != Surface.ROTATION_270)) {
+                    throw new ScriptException(mColumns[0], "bad rotation " + rotationDegree);
+                }
+                mTemplates.add(new RotationTemplate(rotationDegree, persist != 0));
+                return;
+            }
+
+            // Handle tap event
+            if ((s.indexOf(EVENT_KEYWORD_TAP) >= 0) && args.length >= 2) {
+                mTemplates.add(new TapTemplate(parseFloat(0), parseFloat(1),
+                        args.length == 3 ? parseLong(2) : 0));
+                return;
+            }
+
+            //Handle the press and hold
+            if ((s.indexOf(EVENT_KEYWORD_PRESSANDHOLD) >= 0) && args.length == 3) {
+                mTemplates.add(new PressAndHoldTemplate(parseFloat(0), parseFloat(1),
+                        parseLong(2)));
+                return;
+            }
+
+            // Handle drag event
+            if ((s.indexOf(EVENT_KEYWORD_DRAG) >= 0) && args.length == 5) {
+                mTemplates.add(new DragTemplate(parseFloat(0), parseFloat(1), parseFloat(2),
+                        parseFloat(3), parseStepCount(4)));
+            }
+
+            // Handle pinch or zoom action
+            if ((s.indexOf(EVENT_KEYWORD_PINCH_ZOOM) >= 0) && args.length == 9) {
+                mTemplates.add(new PinchZoomTemplate(parseFloat(0), parseFloat(1), parseFloat(2),
+                        parseFloat(3), parseFloat(4), parseFloat(5), parseFloat(6),
+                        parseFloat(7), parseStepCount(8)));
+            }
+
+            // Handle flip events
+            if (s.indexOf(EVENT_KEYWORD_FLIP) >= 0 && args.length == 1) {
+                mTemplates.add(new FlipTemplate(Boolean.parseBoolean(args[0])));
+            }
+
+            // Handle launch events
+            if (s.indexOf(EVENT_KEYWORD_ACTIVITY) >= 0 && args.length >= 2) {
+                ComponentName app = new ComponentName(args[0], args[1]);
+                mTemplates.add(new ActivityTemplate(app, args.length > 2 ? parseLong(2) : -1));
+                return;
+            }
+
+            //Handle the device wake up event
+            if (s.indexOf(EVENT_KEYWORD_DEVICE_WAKEUP) >= 0) {
+                mTemplates.add(new DeviceWakeUpTemplate(mDeviceSleepTime));
+                return;
+            }
+
+            // Handle launch instrumentation events
+            if (s.indexOf(EVENT_KEYWORD_INSTRUMENTATION) >= 0 && args.length == 2) {
+                mTemplates.add(new InstrumentationTemplate(args[0], args[1]));
+                return;
+            }
+
+            // Handle wait events
+            if (s.indexOf(EVENT_KEYWORD_WAIT) >= 0 && args.length == 1) {
+                mTemplates.add(new WaitTemplate(parseInt(0)));
+                return;
+            }
+
+            // Handle the profile wait time
+            if (s.indexOf(EVENT_KEYWORD_PROFILE_WAIT) >= 0) {
+                mTemplates.add(new WaitTemplate(mProfileWaitTime));
+                return;
+            }
+
+            // Handle keypress events
+            if (s.indexOf(EVENT_KEYWORD_KEYPRESS) >= 0 && args.length == 1) {
+                int keyCode = MonkeySourceRandom.getKeyCode(args[0]);
+                if (keyCode == KeyEvent.KEYCODE_UNKNOWN) {
+                    throw new ScriptException(mColumns[0], "unknown key '" + args[0] + "'");
+                }
+                mTemplates.add(new KeyPressTemplate(keyCode));
+                return;
+            }
+
+            // Handle longpress events
+            if (s.indexOf(EVENT_KEYWORD_LONGPRESS) >= 0) {
+                mTemplates.add(new LongPressTemplate());
+            }
+
+            //The power log event is mainly for the automated power framework
+            if (s.indexOf(EVENT_KEYWORD_POWERLOG) >= 0 && args.length > 0) {
+                if (args.length == 1) {
+                    mTemplates.add(new PowerTemplate(args[0], null));
+                } else if (args.length == 2) {
+                    mTemplates.add(new PowerTemplate(args[0], args[1]));
+                }
+            }
+
+            //Write power log to sdcard
+            if (s.indexOf(EVENT_KEYWORD_WRITEPOWERLOG) >= 0) {
+                mTemplates.add(new PowerTemplate(null, null));
+            }
+
+            //Run the shell command
+            if (s.indexOf(EVENT_KEYWORD_RUNCMD) >= 0 && args.length == 1) {
+                mTemplates.add(new CommandTemplate(args[0]));
+            }
+
+            //Input the string through the shell command
+            if (s.indexOf(EVENT_KEYWORD_INPUT_STRING) >= 0 && args.length == 1) {
+                mTemplates.add(new CommandTemplate("input text " + args[0]));
+                return;
+            }
+
+            if (s.indexOf(EVENT_KEYWORD_START_FRAMERATE_CAPTURE) >= 0) {
+                mTemplates.add(new FrameRateTemplate(null, null, null));
+                return;
+            }
+
+            if (s.indexOf(EVENT_KEYWORD_END_FRAMERATE_CAPTURE) >= 0 && args.length == 1) {
+                mTemplates.add(new FrameRateTemplate(null, null, args[0]));
+                return;
+            }
+
+            if (s.indexOf(EVENT_KEYWORD_START_APP_FRAMERATE_CAPTURE) >= 0 && args.length == 1) {
+                mTemplates.add(new FrameRateTemplate(args[0], null, null));
+                return;
+            }
+
+            if (s.indexOf(EVENT_KEYWORD_END_APP_FRAMERATE_CAPTURE) >= 0 && args.length == 2) {
+                mTemplates.add(new FrameRateTemplate(args[0], args[1], null));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Makes the events for one script command.  Templates never change once
+     * compiled; every call to emit() queues new event objects.
+     */
+    private abstract static class Template {
+        abstract void emit(Playback p);
+    }
+
+    private static class KeyTemplate extends Template {
+        final long mDownTime;
+        final long mEventTime;
+        final int mAction;
+        final int mCode;
+        final int mRepeat;
+        final int mMetaState;
+        final int mDevice;
+        final int mScanCode;
+
+        KeyTemplate(long downTime, long eventTime, int action, int code, int repeat,
+                int metaState, int device, int scanCode) {
+            mDownTime = downTime;
+            mEventTime = eventTime;
+            mAction = action;
+            mCode = code;
+            mRepeat = repeat;
+            mMetaState = metaState;
+            mDevice = device;
+            mScanCode = scanCode;
+        }
+
+        @Override
+        void emit(Playback p) {
+            Logger.out.println(" old key\n");
+            p.mQ.addLast(new MonkeyKeyEvent(mDownTime, mEventTime, mAction, mCode, mRepeat,
+                    mMetaState, mDevice, mScanCode));
+            Logger.out.println(" Key code " + mCode + "\n");
+            Logger.out.println("Added key up \n");
+        }
+    }
+
+    /**
+     * A recorded DispatchPointer or DispatchTrackball line, with or without a pointer id.
+     */
+    private static class MotionTemplate extends Template {
+        final boolean mTouch;
+        final boolean mLineByLine;
+        long mDownTime;
+        long mEventTime;
+        int mAction;
+        float mX;
+        float mY;
+        float mPressure;
+        float mSize;
+        int mMetaState;
+        float mXPrecision;
+        float mYPrecision;
+        int mDevice;
+        int mEdgeFlags;
+        int mPointerId; // -1 for the single pointer form
+
+        MotionTemplate(boolean touch, boolean lineByLine) {
+            mTouch = touch;
+            mLineByLine = lineByLine;
+        }
+
+        @Override
+        void emit(Playback p) {
+            if (mPointerId < 0) {
+                MonkeyMotionEvent e = mTouch
+                        ? p.mPool.obtainTouch(mAction) : p.mPool.obtainTrackball(mAction);
+                setFields(e).addPointer(0, mX, mY, mPressure, mSize);
+                p.mQ.addLast(e);
+                return;
+            }
+
+            MonkeyMotionEvent e;
+            if (mTouch) {
+                if (mAction == MotionEvent.ACTION_POINTER_DOWN) {
+                    e = p.mPool.obtainTouch(MotionEvent.ACTION_POINTER_DOWN
+                            | (mPointerId << MotionEvent.ACTION_POINTER_INDEX_SHIFT))
+                            .setIntermediateNote(true);
+                } else {
+                    e = p.mPool.obtainTouch(mAction);
+                }
+                if (p.mScriptStartTime < 0) {
+                    p.mMonkeyStartTime = SystemClock.uptimeMillis();
+                    p.mScriptStartTime = mEventTime;
+                }
+            } else {
+                e = p.mPool.obtainTrackball(mAction);
+            }
+
+            if (mPointerId == 1) {
+                setFields(e)
+                        .addPointer(0, p.mLastX[0], p.mLastY[0], mPressure, mSize)
+                        .addPointer(1, mX, mY, mPressure, mSize);
+                p.mLastX[1] = mX;
+                p.mLastY[1] = mY;
+            } else if (mPointerId == 0) {
+                setFields(e).addPointer(0, mX, mY, mPressure, mSize);
+                if (mAction == MotionEvent.ACTION_POINTER_UP) {
+                    e.addPointer(1, p.mLastX[1], p.mLastY[1]);
+                }
+                p.mLastX[0] = mX;
+                p.mLastY[0] = mY;
+            }
+
+            // Dynamically adjust waiting time to ensure that simulated evnets follow
+            // the time tap specified in the script
+            if (mLineByLine) {
+                long curUpTime = SystemClock.uptimeMillis();
+                long realElapsedTime = curUpTime - p.mMonkeyStartTime;
+                long scriptElapsedTime = mEventTime - p.mScriptStartTime;
+                if (realElapsedTime < scriptElapsedTime) {
+                    long waitDuration = scriptElapsedTime - realElapsedTime;
+                    p.mQ.addLast(new MonkeyWaitEvent(waitDuration));
+                }
+            }
+            p.mQ.addLast(e);
+        }
+
+        private MonkeyMotionEvent setFields(MonkeyMotionEvent e) {
+            return e.setDownTime(mDownTime)
+                    .setEventTime(mEventTime)
+                    .setMetaState(mMetaState)
+                    .setPrecision(mXPrecision, mYPrecision)
+                    .setDeviceId(mDevice)
+                    .setEdgeFlags(mEdgeFlags);
+        }
+    }
+
+    private static class RotationTemplate extends Template {
+        final int mDegree;
+        final boolean mPersist;
+
+        RotationTemplate(int degree, boolean persist) {
+            mDegree = degree;
+            mPersist = persist;
+        }
+
+        @Override
+        void emit(Playback p) {
+            p.mQ.addLast(new MonkeyRotationEvent(mDegree, mPersist));
+        }
+    }
+
+    private static class TapTemplate extends Template {
+        final float mX;
+        final float mY;
+        final long mDuration;
+
+        TapTemplate(float x, float y, long duration) {
+            mX = x;
+            mY = y;
+            mDuration = duration;
+        }
+
+        @Override
+        void emit(Playback p) {
+            long downTime = SystemClock.uptimeMillis();
+            p.mQ.addLast(p.mPool.obtainTouch(MotionEvent.ACTION_DOWN)
+                    .setDownTime(downTime)
+                    .setEventTime(downTime)
+                    .addPointer(0, mX, mY, 1, 5));
+            if (mDuration > 0) {
+                p.mQ.addLast(new MonkeyWaitEvent(mDuration));
+            }
+            p.mQ.addLast(p.mPool.obtainTouch(MotionEvent.ACTION_UP)
+                    .setDownTime(downTime)
+                    .setEventTime(downTime)
+                    .addPointer(0, mX, mY, 1, 5));
+        }
+    }
+
+    private static class PressAndHoldTemplate extends Template {
+        final float mX;
+        final float mY;
+        final long mDuration;
+
+        PressAndHoldTemplate(float x, float y, long duration) {
+            mX = x;
+            mY = y;
+            mDuration = duration;
+        }
+
+        @Override
+        void emit(Playback p) {
+            long downTime = SystemClock.uptimeMillis();
+            p.mQ.addLast(p.mPool.obtainTouch(MotionEvent.ACTION_DOWN)
+                    .setDownTime(downTime)
+                    .setEventTime(downTime)
+                    .addPointer(0, mX, mY, 1, 5));
+            // The line parser queued the wait twice and never queued the up event;
+            // kept that way so compiled scripts replay exactly as they used to.
+            MonkeyWaitEvent wait = new MonkeyWaitEvent(mDuration);
+            p.mQ.addLast(wait);
+            p.mQ.addLast(wait);
+        }
+    }
+
+    private static class DragTemplate extends Template {
+        final float mXStart;
+        final float mYStart;
+        final float mXEnd;
+        final float mYEnd;
+        final int mStepCount;
+
+        DragTemplate(float xStart, float yStart, float xEnd, float yEnd, int stepCount) {
+            mXStart = xStart;
+            mYStart = yStart;
+            mXEnd = xEnd;
+            mYEnd = yEnd;
+            mStepCount = stepCount;
+        }
+
+        @Override
+        void emit(Playback p) {
+            float x = mXStart;
+            float y = mYStart;
+            long downTime = SystemClock.uptimeMillis();
+            long eventTime = downTime;
+            float xStep = (mXEnd - mXStart) / mStepCount;
+            float yStep = (mYEnd - mYStart) / mStepCount;
+
+            p.mQ.addLast(p.mPool.obtainTouch(MotionEvent.ACTION_DOWN).setDownTime(downTime)
+                    .setEventTime(eventTime).addPointer(0, x, y, 1, 5));
+
+            for (int i = 0; i < mStepCount; ++i) {
+                x += xStep;
+                y += yStep;
+                eventTime = SystemClock.uptimeMillis();
+                p.mQ.addLast(p.mPool.obtainTouch(MotionEvent.ACTION_MOVE).setDownTime(downTime)
+                        .setEventTime(eventTime).addPointer(0, x, y, 1, 5));
+            }
+
+            eventTime = SystemClock.uptimeMillis();
+            p.mQ.addLast(p.mPool.obtainTouch(MotionEvent.ACTION_UP).setDownTime(downTime)
+                    .setEventTime(eventTime).addPointer(0, x, y, 1, 5));
+        }
+    }
+
+    private static class PinchZoomTemplate extends Template {
+        final float mPt1xStart;
+        final float mPt1yStart;
+        final float mPt1xEnd;
+        final float mPt1yEnd;
+        final float mPt2xStart;
+        final float mPt2yStart;
+        final float mPt2xEnd;
+        final float mPt2yEnd;
+        final int mStepCount;
+
+        PinchZoomTemplate(float pt1xStart, float pt1yStart, float pt1xEnd, float pt1yEnd,
+                float pt2xStart, float pt2yStart, float pt2xEnd, float pt2yEnd, int stepCount) {
+            mPt1xStart = pt1xStart;
+            mPt1yStart = pt1yStart;
+            mPt1xEnd = pt1xEnd;
+            mPt1yEnd = pt1yEnd;
+            mPt2xStart = pt2xStart;
+            mPt2yStart = pt2yStart;
+            mPt2xEnd = pt2xEnd;
+            mPt2yEnd = pt2yEnd;
+            mStepCount = stepCount;
+        }
+
+        @Override
+        void emit(Playback p) {
+            float x1 = mPt1xStart;
+            float y1 = mPt1yStart;
+            float x2 = mPt2xStart;
+            float y2 = mPt2yStart;
+
+            long downTime = SystemClock.uptimeMillis();
+            long eventTime = downTime;
+
+            float pt1xStep = (mPt1xEnd - mPt1xStart) / mStepCount;
+            float pt1yStep = (mPt1yEnd - mPt1yStart) / mStepCount;
+
+            float pt2xStep = (mPt2xEnd - mPt2xStart) / mStepCount;
+            float pt2yStep = (mPt2yEnd - mPt2yStart) / mStepCount;
+
+            p.mQ.addLast(p.mPool.obtainTouch(MotionEvent.ACTION_DOWN).setDownTime(downTime)
+                    .setEventTime(eventTime).addPointer(0, x1, y1, 1, 5));
+
+            p.mQ.addLast(p.mPool.obtainTouch(MotionEvent.ACTION_POINTER_DOWN
+                    | (1 << MotionEvent.ACTION_POINTER_INDEX_SHIFT)).setDownTime(downTime)
+                    .addPointer(0, x1, y1).addPointer(1, x2, y2).setIntermediateNote(true));
+
+            for (int i = 0; i < mStepCount; ++i) {
+                x1 += pt1xStep;
+                y1 += pt1yStep;
+                x2 += pt2xStep;
+                y2 += pt2yStep;
+
+                eventTime = SystemClock.uptimeMillis();
+                p.mQ.addLast(p.mPool.obtainTouch(MotionEvent.ACTION_MOVE).setDownTime(downTime)
+                        .setEventTime(eventTime).addPointer(0, x1, y1, 1, 5).addPointer(1, x2,
+                                y2, 1, 5));
+            }
+            eventTime = SystemClock.uptimeMillis();
+            p.mQ.addLast(p.mPool.obtainTouch(MotionEvent.ACTION_POINTER_UP)
+                    .setDownTime(downTime).setEventTime(eventTime).addPointer(0, x1, y1)
+                    .addPointer(1, x2, y2));
+        }
+    }
+
+    private static class FlipTemplate extends Template {
+        final boolean mKeyboardOpen;
+
+        FlipTemplate(boolean keyboardOpen) {
+            mKeyboardOpen = keyboardOpen;
+        }
+
+        @Override
+        void emit(Playback p) {
+            p.mQ.addLast(new MonkeyFlipEvent(mKeyboardOpen));
+        }
+    }
+
+    private static class ActivityTemplate extends Template {
+        final ComponentName mApp;
+        final long mAlarmTime; // -1 if not given
+
+        ActivityTemplate(ComponentName app, long alarmTime) {
+            mApp = app;
+            mAlarmTime = alarmTime;
+        }
+
+        @Override
+        void emit(Playback p) {
+            if (mAlarmTime < 0) {
+                p.mQ.addLast(new MonkeyActivityEvent(mApp));
+            } else {
+                p.mQ.addLast(new MonkeyActivityEvent(mApp, mAlarmTime));
+            }
+        }
+    }
+
+    private static class DeviceWakeUpTemplate extends Template {
+        static final ComponentName WAKE_UP_SCREEN = new ComponentName(
+                "com.google.android.powerutil", "com.google.android.powerutil.WakeUpScreen");
+
+        final long mDeviceSleepTime;
+
+        DeviceWakeUpTemplate(long deviceSleepTime) {
+            mDeviceSleepTime = deviceSleepTime;
+        }
+
+        @Override
+        void emit(Playback p) {
+            //Start the wakeUpScreen test activity to turn off the screen.
+            p.mQ.addLast(new MonkeyActivityEvent(WAKE_UP_SCREEN, mDeviceSleepTime));
+
+            //inject the special key for the wakeUpScreen test activity.
+            p.mQ.addLast(new MonkeyKeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_0));
+            p.mQ.addLast(new MonkeyKeyEvent(KeyEvent.ACTION_UP, KeyEvent.KEYCODE_0));
+
+            //Add the wait event after the device sleep event so that the monkey
+            //can continue after the device wake up.
+            p.mQ.addLast(new MonkeyWaitEvent(mDeviceSleepTime + 3000));
+
+            //Insert the menu key to unlock the screen
+            p.mQ.addLast(new MonkeyKeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_MENU));
+            p.mQ.addLast(new MonkeyKeyEvent(KeyEvent.ACTION_UP, KeyEvent.KEYCODE_MENU));
+
+            //Insert the back key to dismiss the test activity
+            p.mQ.addLast(new MonkeyKeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_BACK));
+            p.mQ.addLast(new MonkeyKeyEvent(KeyEvent.ACTION_UP, KeyEvent.KEYCODE_BACK));
+        }
+    }
+
+    private static class InstrumentationTemplate extends Template {
+        final String mTestName;
+        final String mRunnerName;
+
+        InstrumentationTemplate(String testName, String runnerName) {
+            mTestName = testName;
+            mRunnerName = runnerName;
+        }
+
+        @Override
+        void emit(Playback p) {
+            p.mQ.addLast(new MonkeyInstrumentationEvent(mTestName, mRunnerName));
+        }
+    }
+
+    private static class WaitTemplate extends Template {
+        final long mWaitTime;
+
+        WaitTemplate(long waitTime) {
+            mWaitTime = waitTime;
+        }
+
+        @Override
+        void emit(Playback p) {
+            p.mQ.addLast(new MonkeyWaitEvent(mWaitTime));
+        }
+    }
+
+    private static class KeyPressTemplate extends Template {
+        final int mKeyCode;
+
+        KeyPressTemplate(int keyCode) {
+            mKeyCode = keyCode;
+        }
+
+        @Override
+        void emit(Playback p) {
+            p.mQ.addLast(new MonkeyKeyEvent(KeyEvent.ACTION_DOWN, mKeyCode));
+            p.mQ.addLast(new MonkeyKeyEvent(KeyEvent.ACTION_UP, mKeyCode));
+        }
+    }
+
+    private static class LongPressTemplate extends Template {
+        @Override
+        void emit(Playback p) {
+            p.mQ.addLast(new MonkeyKeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_DPAD_CENTER));
+            p.mQ.addLast(new MonkeyWaitEvent(LONGPRESS_WAIT_TIME));
+            p.mQ.addLast(new MonkeyKeyEvent(KeyEvent.ACTION_UP, KeyEvent.KEYCODE_DPAD_CENTER));
+        }
+    }
+
+    /**
+     * PowerLog(type[, status]), or WriteLog() when the type is null.
+     */
+    private static class PowerTemplate extends Template {
+        final String mLogType;
+        final String mStatus;
+
+        PowerTemplate(String logType, String status) {
+            mLogType = logType;
+            mStatus = status;
+        }
+
+        @Override
+        void emit(Playback p) {
+            if (mLogType == null) {
+                p.mQ.addLast(new MonkeyPowerEvent());
+            } else if (mStatus == null) {
+                p.mQ.addLast(new MonkeyPowerEvent(mLogType));
+            } else {
+                p.mQ.addLast(new MonkeyPowerEvent(mLogType, mStatus));
+            }
+        }
+    }
+
+    private static class CommandTemplate extends Template {
+        final String mCmd;
+
+        CommandTemplate(String cmd) {
+            mCmd = cmd;
+        }
+
+        @Override
+        void emit(Playback p) {
+            p.mQ.addLast(new MonkeyCommandEvent(mCmd));
+        }
+    }
+
+    /**
+     * The four frame rate capture commands.  With an app it is the app frame rate
+     * capture; with a label (or test case name) it is the end of a capture.
+     */
+    private static class FrameRateTemplate extends Template {
+        final String mApp;
+        final String mAppLabel;
+        final String mTestCase;
+
+        FrameRateTemplate(String app, String appLabel, String testCase) {
+            mApp = app;
+            mAppLabel = appLabel;
+            mTestCase = testCase;
+        }
+
+        @Override
+        void emit(Playback p) {
+            if (mApp == null) {
+                if (mTestCase == null) {
+                    p.mQ.addLast(new MonkeyGetFrameRateEvent("start"));
+                } else {
+                    p.mQ.addLast(new MonkeyGetFrameRateEvent("end", mTestCase));
+                }
+            } else if (mAppLabel == null) {
+                p.mQ.addLast(new MonkeyGetAppFrameRateEvent("start", mApp));
+            } else {
+                p.mQ.addLast(new MonkeyGetAppFrameRateEvent("end", mApp, mAppLabel));
+            }
+        }
+    }
+}
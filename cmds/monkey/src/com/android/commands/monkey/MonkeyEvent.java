@@ -49,6 +49,10 @@ public abstract class MonkeyEvent {
     // error code for security exception during injection
     public static final int INJECT_ERROR_SECURITY_EXCEPTION = -2; //表示注入事件时出现安全异常的错误码，同样父类中定义
 
+    private long mThrottle; //注入此事件后需要停留的间隔时间，由MonkeyEventQueue设置，代替原来跟在后面的MonkeyThrottleEvent对象
+    MonkeyEventPool mPool; //从对象池获取时才会赋值，回收时放回这个对象池
+    boolean mRecycled; //标志位，防止同一个对象被回收两次
+
     /**
      * 创建MonkeyEvent对象，必须调用的构造方法，必须指定事件类型
      * @param type 表示事件的分类
@@ -73,6 +77,43 @@ public abstract class MonkeyEvent {
         return true;
     }
 
+    /**
+     * @return how long to sleep after injecting this event, in ms, or 0 for no sleep
+     */
+    public long getThrottle() {
+        return mThrottle;
+    }
+
+    /**
+     * Set how long to sleep after injecting this event.
+     *
+     * @param throttle the sleep in ms, or 0 for no sleep
+     */
+    public void setThrottle(long throttle) {
+        mThrottle = throttle;
+    }
+
+    /**
+     * Hand the event back once it has been injected and nothing refers to it
+     * any more. Events that came from a MonkeyEventPool are reset and reused,
+     * anything else is left to the garbage collector.
+     */
+    public void recycle() {
+        if (mPool != null && !mRecycled) {
+            mRecycled = true;
+            reset();
+            mPool.release(this);
+        }
+    }
+
+    /**
+     * Put the event back in its initial state before it goes back into its pool.
+     * Subclasses that can be pooled extend this to clear their own fields.
+     */
+    protected void reset() {
+        mThrottle = 0;
+    }
+
 
     /**实际注入事件
      * a method for injecting event 该方法用于具体执行事件，建议使用WMS系统服务和AMS系统服务，建议函数用日志开关（当然子类也可以不使用）
@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.util.Random;
+
+/**
+ * The random event generation behind MonkeySourceRandom, with no dependencies
+ * on the Android framework. The display size, the clock and the random number
+ * source are all passed in, and events are handed to an EventSink, so the same
+ * seed produces the same events whether they end up injected on a device or
+ * recorded on a build host.
+ */
+public class MonkeyEventGenerator {
+    // Values from android.view.MotionEvent, android.view.KeyEvent and
+    // android.view.Surface. They are part of the public API and will not change.
+    static final int ACTION_DOWN = 0;
+    static final int ACTION_UP = 1;
+    static final int ACTION_MOVE = 2;
+    static final int ACTION_POINTER_DOWN = 5;
+    static final int ACTION_POINTER_UP = 6;
+    static final int ACTION_POINTER_INDEX_SHIFT = 8;
+
+    static final int KEYCODE_HOME = 3;
+    static final int KEYCODE_BACK = 4;
+    static final int KEYCODE_CALL = 5;
+    static final int KEYCODE_ENDCALL = 6;
+    static final int KEYCODE_DPAD_UP = 19;
+    static final int KEYCODE_DPAD_DOWN = 20;
+    static final int KEYCODE_DPAD_LEFT = 21;
+    static final int KEYCODE_DPAD_RIGHT = 22;
+    static final int KEYCODE_DPAD_CENTER = 23;
+    static final int KEYCODE_VOLUME_UP = 24;
+    static final int KEYCODE_VOLUME_DOWN = 25;
+    static final int KEYCODE_POWER = 26;
+    static final int KEYCODE_MENU = 82;
+    static final int KEYCODE_MUTE = 91;
+    static final int KEYCODE_VOLUME_MUTE = 164;
+    static final int KEYCODE_SLEEP = 223;
+    static final int KEYCODE_SOFT_SLEEP = 276;
+
+    /** Key events that move around the UI. */
+    static final int[] NAV_KEYS = {
+        KEYCODE_DPAD_UP, KEYCODE_DPAD_DOWN,
+        KEYCODE_DPAD_LEFT, KEYCODE_DPAD_RIGHT,
+    };
+    /**
+     * Key events that perform major navigation options (so shouldn't be sent
+     * as much).
+     */
+    static final int[] MAJOR_NAV_KEYS = {
+        KEYCODE_MENU, /*KEYCODE_SOFT_RIGHT,*/
+        KEYCODE_DPAD_CENTER,
+    };
+    /** Key events that perform system operations. */
+    static final int[] SYS_KEYS = {
+        KEYCODE_HOME, KEYCODE_BACK,
+        KEYCODE_CALL, KEYCODE_ENDCALL,
+        KEYCODE_VOLUME_UP, KEYCODE_VOLUME_DOWN, KEYCODE_VOLUME_MUTE,
+        KEYCODE_MUTE,
+    };
+
+    // Indexes into the factors, see MonkeySourceRandom.
+    public static final int FACTOR_TOUCH        = 0;
+    public static final int FACTOR_MOTION       = 1;
+    public static final int FACTOR_PINCHZOOM    = 2;
+    public static final int FACTOR_TRACKBALL    = 3;
+    public static final int FACTOR_ROTATION     = 4;
+    public static final int FACTOR_PERMISSION   = 5;
+    public static final int FACTOR_NAV          = 6;
+    public static final int FACTOR_MAJORNAV     = 7;
+    public static final int FACTOR_SYSOPS       = 8;
+    public static final int FACTOR_APPSWITCH    = 9;
+    public static final int FACTOR_FLIP         = 10;
+    public static final int FACTOR_ANYTHING     = 11;
+    public static final int FACTORZ_COUNT       = 12;    // should be last+1
+
+    /** Possible screen rotations, Surface.ROTATION_0 to Surface.ROTATION_270. */
+    private static final int ROTATION_COUNT = 4;
+
+    private static final int GESTURE_TAP = 0;
+    private static final int GESTURE_DRAG = 1;
+    private static final int GESTURE_PINCH_OR_ZOOM = 2;
+
+    /**
+     * How far apart the samples of a fling are, as on a 120Hz touch panel.
+     * A sink that batches the moves of a fling spaces them this far apart.
+     */
+    public static final long MOVE_SAMPLE_MILLIS = 8;
+
+    // How long a fling lasts, from touching down to lifting off.
+    private static final int FLING_MIN_MILLIS = 60;
+    private static final int FLING_MAX_MILLIS = 250;
+
+    private final float[] mFactors;
+    private final boolean[] mPhysicalKeyExists;
+    private final int mAppCount;
+    private final MonkeyDisplaySize mDisplay;
+    private final MonkeyClock mClock;
+    private final Random mRandom;
+
+    private boolean mKeyboardOpen = false;
+    private boolean mFlings = false;
+
+    // Scratch space for the pointer coordinates of the current gesture, so
+    // generating a gesture doesn't allocate.
+    private final float[] mPointers = new float[4];
+    private final float[] mVectors = new float[4];
+    private int mWidth;
+    private int mHeight;
+
+    /**
+     * @param factors the running sum of the event percentages, scaled to 0..1
+     *        and indexed by the FACTOR_* values. The array is read on
+     *        every call, so the owner may normalize it after construction.
+     * @param physicalKeyExists whether each key code exists on the device. Its
+     *        length is one more than the largest key code.
+     * @param appCount the number of main activities to switch between
+     * @param display the display that pointer events are confined to
+     * @param clock the source of event down times
+     * @param random the random number source for everything
+     */
+    public MonkeyEventGenerator(float[] factors, boolean[] physicalKeyExists, int appCount,
+            MonkeyDisplaySize display, MonkeyClock clock, Random random) {
+        mFactors = factors;
+        mPhysicalKeyExists = physicalKeyExists;
+        mAppCount = appCount;
+        mDisplay = display;
+        mClock = clock;
+        mRandom = random;
+    }
+
+    /**
+     * Make drags flings: a straight, slightly bent stroke sampled every
+     * MOVE_SAMPLE_MILLIS, speeding up until just before it lifts off, instead
+     * of a random walk. Changes the events a seed produces.
+     */
+    public void setFlings(boolean flings) {
+        mFlings = flings;
+    }
+
+    /**
+     * Generate one random event, or one gesture made of several events, based on
+     * the factors.
+     */
+    public void generateEvents(EventSink sink) {
+        float cls = mRandom.nextFloat();
+        int lastKey = 0;
+
+        if (cls < mFactors[FACTOR_TOUCH]) {
+            generatePointerEvent(sink, GESTURE_TAP);
+            return;
+        } else if (cls < mFactors[FACTOR_MOTION]) {
+            generatePointerEvent(sink, GESTURE_DRAG);
+            return;
+        } else if (cls < mFactors[FACTOR_PINCHZOOM]) {
+            generatePointerEvent(sink, GESTURE_PINCH_OR_ZOOM);
+            return;
+        } else if (cls < mFactors[FACTOR_TRACKBALL]) {
+            generateTrackballEvent(sink);
+            return;
+        } else if (cls < mFactors[FACTOR_ROTATION]) {
+            generateRotationEvent(sink);
+            return;
+        } else if (cls < mFactors[FACTOR_PERMISSION]) {
+            sink.permission(mRandom);
+            return;
+        }
+
+        // The remaining event categories are injected as key events
+        for (;;) {
+            if (cls < mFactors[FACTOR_NAV]) {
+                lastKey = NAV_KEYS[mRandom.nextInt(NAV_KEYS.length)];
+            } else if (cls < mFactors[FACTOR_MAJORNAV]) {
+                lastKey = MAJOR_NAV_KEYS[mRandom.nextInt(MAJOR_NAV_KEYS.length)];
+            } else if (cls < mFactors[FACTOR_SYSOPS]) {
+                lastKey = SYS_KEYS[mRandom.nextInt(SYS_KEYS.length)];
+            } else if (cls < mFactors[FACTOR_APPSWITCH]) {
+                generateActivity(sink);
+                return;
+            } else if (cls < mFactors[FACTOR_FLIP]) {
+                sink.flip(mKeyboardOpen);
+                mKeyboardOpen = !mKeyboardOpen;
+                return;
+            } else {
+                lastKey = 1 + mRandom.nextInt(mPhysicalKeyExists.length - 2);
+            }
+
+            if (lastKey != KEYCODE_POWER
+                    && lastKey != KEYCODE_ENDCALL
+                    && lastKey != KEYCODE_SLEEP
+                    && lastKey != KEYCODE_SOFT_SLEEP
+                    && mPhysicalKeyExists[lastKey]) {
+                break;
+            }
+        }
+
+        sink.key(ACTION_DOWN, lastKey);
+        sink.key(ACTION_UP, lastKey);
+    }
+
+    /**
+     * Generate a switch to a random main activity.
+     */
+    public void generateActivity(EventSink sink) {
+        sink.activity(mRandom.nextInt(mAppCount));
+    }
+
+    /**
+     * Generates a random motion event. This method counts a down, move, and up as multiple events.
+     *
+     * TODO:  Test & fix the selectors when non-zero percentages
+     * TODO:  Longpress.
+     * TODO:  Meta state
+     * TODO:  More useful than the random walk here would be to pick a single random direction
+     * and distance, and divvy it up into a random number of segments.  (This would serve to
+     * generate fling gestures, which are important).
+     *
+     * @param gesture The gesture to perform.
+     */
+    private void generatePointerEvent(EventSink sink, int gesture) {
+        mWidth = mDisplay.getWidth();
+        mHeight = mDisplay.getHeight();
+
+        randomPoint(0);
+        randomVector(0);
+
+        long downAt = mClock.uptimeMillis();
+
+        sink.touch(ACTION_DOWN, downAt, 1, mPointers, false);
+
+        // sometimes we'll move during the touch
+        if (gesture == GESTURE_DRAG && mFlings) {
+            generateFling(sink, downAt);
+            sink.touch(ACTION_UP, downAt, 1, mPointers, false);
+            return;
+        } else if (gesture == GESTURE_DRAG) {
+            int count = mRandom.nextInt(10);
+            for (int i = 0; i < count; i++) {
+                randomWalk(0);
+                sink.touch(ACTION_MOVE, downAt, 1, mPointers, true);
+            }
+        } else if (gesture == GESTURE_PINCH_OR_ZOOM) {
+            randomPoint(1);
+            randomVector(1);
+
+            randomWalk(0);
+            sink.touch(ACTION_POINTER_DOWN | (1 << ACTION_POINTER_INDEX_SHIFT),
+                    downAt, 2, mPointers, true);
+
+            int count = mRandom.nextInt(10);
+            for (int i = 0; i < count; i++) {
+                randomWalk(0);
+                randomWalk(1);
+                sink.touch(ACTION_MOVE, downAt, 2, mPointers, true);
+            }
+
+            randomWalk(0);
+            randomWalk(1);
+            sink.touch(ACTION_POINTER_UP | (1 << ACTION_POINTER_INDEX_SHIFT),
+                    downAt, 2, mPointers, true);
+        }
+
+        randomWalk(0);
+        sink.touch(ACTION_UP, downAt, 1, mPointers, false);
+    }
+
+    /**
+     * Move pointer 0 along a fling from where it is. The distance along the
+     * stroke follows 2t^2 - t^3 of the time t from 0 to 1, so the finger
+     * starts still, peaks at 4/3 of its mean speed two thirds of the way and
+     * lifts off at its mean speed, the way a flick of the thumb does.
+     */
+    private void generateFling(EventSink sink, long downAt) {
+        double angle = mRandom.nextDouble() * 2 * Math.PI;
+        double distance = (0.2 + 0.6 * mRandom.nextDouble()) * Math.min(mWidth, mHeight);
+        // Thumbs pivot, so the stroke bows a little to one side.
+        double bend = (mRandom.nextDouble() - 0.5) * 0.2 * distance;
+        int millis = FLING_MIN_MILLIS + mRandom.nextInt(FLING_MAX_MILLIS - FLING_MIN_MILLIS + 1);
+        int samples = (int) Math.max(2, millis / MOVE_SAMPLE_MILLIS);
+
+        float x0 = mPointers[0];
+        float y0 = mPointers[1];
+        double dx = Math.cos(angle);
+        double dy = Math.sin(angle);
+        for (int i = 1; i <= samples; i++) {
+            double t = (double) i / samples;
+            double along = distance * t * t * (2 - t);
+            double across = bend * Math.sin(Math.PI * t);
+            mPointers[0] = (float) Math.max(Math.min(x0 + along * dx - across * dy, mWidth), 0);
+            mPointers[1] = (float) Math.max(Math.min(y0 + along * dy + across * dx, mHeight), 0);
+            sink.touch(ACTION_MOVE, downAt, 1, mPointers, true);
+        }
+    }
+
+    private void randomPoint(int pointer) {
+        mPointers[pointer * 2] = mRandom.nextInt(mWidth);
+        mPointers[pointer * 2 + 1] = mRandom.nextInt(mHeight);
+    }
+
+    private void randomVector(int pointer) {
+        mVectors[pointer * 2] = (mRandom.nextFloat() - 0.5f) * 50;
+        mVectors[pointer * 2 + 1] = (mRandom.nextFloat() - 0.5f) * 50;
+    }
+
+    private void randomWalk(int pointer) {
+        final int x = pointer * 2;
+        final int y = x + 1;
+        mPointers[x] = Math.max(Math.min(mPointers[x] + mRandom.nextFloat() * mVectors[x],
+                mWidth), 0);
+        mPointers[y] = Math.max(Math.min(mPointers[y] + mRandom.nextFloat() * mVectors[y],
+                mHeight), 0);
+    }
+
+    /**
+     * Generates a random trackball event. This consists of a sequence of small moves, followed by
+     * an optional single click.
+     *
+     * TODO:  Longpress.
+     * TODO:  Meta state
+     * TODO:  Parameterize the % clicked
+     * TODO:  More useful than the random walk here would be to pick a single random direction
+     * and distance, and divvy it up into a random number of segments.  (This would serve to
+     * generate fling gestures, which are important).
+     */
+    private void generateTrackballEvent(EventSink sink) {
+        for (int i = 0; i < 10; ++i) {
+            // generate a small random step
+            int dX = mRandom.nextInt(10) - 5;
+            int dY = mRandom.nextInt(10) - 5;
+
+            sink.trackball(ACTION_MOVE, -1, dX, dY, i > 0);
+        }
+
+        // 10% of trackball moves end with a click
+        if (0 == mRandom.nextInt(10)) {
+            long downAt = mClock.uptimeMillis();
+
+            sink.trackball(ACTION_DOWN, downAt, 0, 0, true);
+            sink.trackball(ACTION_UP, downAt, 0, 0, false);
+        }
+    }
+
+    /**
+     * Generates a random screen rotation event.
+     */
+    private void generateRotationEvent(EventSink sink) {
+        sink.rotation(mRandom.nextInt(ROTATION_COUNT), mRandom.nextBoolean());
+    }
+}
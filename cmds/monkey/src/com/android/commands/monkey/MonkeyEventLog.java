@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Splits a log written by MonkeyEventRecorder into its records, and writes
+ * a subset of them back out as a log that MonkeySourceReplay can play.
+ *
+ * This only walks the record layout and never builds events, so it has no
+ * dependencies on the Android framework and runs on the build host, where
+ * MonkeyReproMinimizer uses it to cut a log down. A record keeps its own
+ * delta, so a subset replays with the gaps each kept record had before it.
+ *
+ * Down and event times are stored relative to the time of their own record,
+ * which is the sum of the deltas before it. Leaving out a record in the
+ * middle of a gesture moves the records after it and so their down time,
+ * and the replay then takes them for a new gesture. groupGestures() gives
+ * the runs of records that have to be kept or dropped together.
+ */
+public class MonkeyEventLog {
+    // Same values as MonkeyEventRecorder and MonkeyEvent.EVENT_TYPE_*, which
+    // can't be used here since they pull in the framework.
+    static final int MAGIC = 0x4d4b4556; // "MKEV"
+    static final int VERSION = 2;
+    static final int POINTER_HAS_PRESSURE = 1;
+
+    static final int TYPE_KEY = 0;
+    static final int TYPE_TOUCH = 1;
+    static final int TYPE_TRACKBALL = 2;
+    static final int TYPE_ROTATION = 3;
+    static final int TYPE_ACTIVITY = 4;
+    static final int TYPE_FLIP = 5;
+    static final int TYPE_PERMISSION = 7;
+
+    // MotionEvent and KeyEvent actions.
+    private static final int ACTION_DOWN = 0;
+    private static final int ACTION_UP = 1;
+    private static final int ACTION_CANCEL = 3;
+
+    private MonkeyEventLog() {
+    }
+
+    /**
+     * Read a log and split it into records. Records of a version 1 log are
+     * brought up to the current version, so they can be written back out
+     * with writeRecords().
+     *
+     * @return the raw bytes of each record, type and delta included
+     * @throws IOException if the file can't be read or isn't a valid log
+     */
+    public static List<byte[]> readRecords(File file) throws IOException {
+        byte[] data;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (in.length() > Integer.MAX_VALUE) {
+                throw new IOException("event log is too large: " + file);
+            }
+            data = new byte[(int) in.length()];
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        List<byte[]> records = new ArrayList<byte[]>();
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("not a monkey event log: " + file);
+            }
+            long version = readVarint(buffer);
+            if (version < 1 || version > VERSION) {
+                throw new IOException("unsupported event log version " + version);
+            }
+            while (buffer.hasRemaining()) {
+                int start = buffer.position();
+                int type = skipRecord(buffer, version);
+                int length = buffer.position() - start;
+                // Version 1 motion records lack the count of historical samples.
+                boolean upgrade = version == 1
+                        && (type == TYPE_TOUCH || type == TYPE_TRACKBALL);
+                byte[] record = new byte[upgrade ? length + 1 : length];
+                System.arraycopy(data, start, record, 0, length);
+                records.add(record);
+            }
+        } catch (RuntimeException e) {
+            // A BufferUnderflowException or a bad record.
+            throw new IOException("event log " + file + " is corrupt after record "
+                    + records.size() + ": " + e);
+        }
+        return records;
+    }
+
+    /**
+     * Write records returned by readRecords() as a new log.
+     */
+    public static void writeRecords(File file, List<byte[]> records) throws IOException {
+        int size = 4 + 1;
+        for (byte[] record : records) {
+            size += record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.put((byte) VERSION);
+        for (byte[] record : records) {
+            buffer.put(record);
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(buffer.array(), 0, buffer.position());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return a short description of a record, such as "key 0 4" or
+     *         "touch 2 (3 pointers)", for printing the minimized sequence
+     */
+    public static String describe(byte[] record) {
+        ByteBuffer buffer = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+        int type = buffer.get();
+        readVarint(buffer);
+        switch (type) {
+            case TYPE_KEY:
+                return "key action=" + readVarint(buffer) + " code=" + readVarint(buffer);
+            case TYPE_TOUCH:
+            case TYPE_TRACKBALL: {
+                long action = readVarint(buffer);
+                readVarint(buffer);
+                readVarint(buffer);
+                readVarint(buffer);
+                readVarint(buffer);
+                readVarint(buffer);
+                buffer.position(buffer.position() + 8);
+                long count = readVarint(buffer);
+                StringBuilder sb = new StringBuilder(type == TYPE_TOUCH ? "touch" : "trackball");
+                sb.append(" action=").append(action);
+                if (count > 0) {
+                    readVarint(buffer);
+                    readVarint(buffer);
+                    sb.append(" x=").append(Float.intBitsToFloat(buffer.getInt()));
+                    sb.append(" y=").append(Float.intBitsToFloat(buffer.getInt()));
+                }
+                if (count > 1) {
+                    sb.append(" (").append(count).append(" pointers)");
+                }
+                int history = parse(record).historySize;
+                if (history > 0) {
+                    sb.append(" +").append(history).append(" historical");
+                }
+                return sb.toString();
+            }
+            case TYPE_ROTATION:
+                return "rotation " + readVarint(buffer);
+            case TYPE_ACTIVITY:
+                return "activity " + readString(buffer) + "/" + readString(buffer);
+            case TYPE_FLIP:
+                return "flip " + (readVarint(buffer) != 0 ? "open" : "closed");
+            case TYPE_PERMISSION:
+                return "permission " + readString(buffer) + " " + readString(buffer);
+            default:
+                return "type " + type;
+        }
+    }
+
+    /**
+     * The parts of a record that describe what the user did, as returned by
+     * parse(). Only the fields that make sense for the type are set.
+     */
+    public static class Record {
+        public int type;
+        /** ms since the previous record. */
+        public long delta;
+        /** The key or motion action, pointer index included. */
+        public int action;
+        /** The key code, rotation or keyboard state. */
+        public int value;
+        public int pointerCount;
+        /** The number of historical samples of a motion record. */
+        public int historySize;
+        /** The first pointer of a motion record. */
+        public float x;
+        public float y;
+        /** The "package/class" of an activity record. */
+        public String component;
+    }
+
+    /**
+     * Decode a record returned by readRecords().
+     *
+     * @throws IllegalArgumentException if the record is corrupt
+     */
+    public static Record parse(byte[] record) {
+        ByteBuffer buffer = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+        Record r = new Record();
+        try {
+            r.type = buffer.get();
+            r.delta = readVarint(buffer);
+            switch (r.type) {
+                case TYPE_KEY:
+                    r.action = (int) readVarint(buffer);
+                    r.value = (int) readVarint(buffer);
+                    break;
+                case TYPE_TOUCH:
+                case TYPE_TRACKBALL:
+                    r.action = (int) readVarint(buffer);
+                    for (int i = 0; i < 5; i++) {
+                        readVarint(buffer);
+                    }
+                    skip(buffer, 8);
+                    r.pointerCount = (int) readVarint(buffer);
+                    for (int i = 0; i < r.pointerCount; i++) {
+                        readVarint(buffer);
+                        long flags = readVarint(buffer);
+                        if (i == 0) {
+                            r.x = Float.intBitsToFloat(buffer.getInt());
+                            r.y = Float.intBitsToFloat(buffer.getInt());
+                        } else {
+                            skip(buffer, 8);
+                        }
+                        if ((flags & POINTER_HAS_PRESSURE) != 0) {
+                            skip(buffer, 8);
+                        }
+                    }
+                    r.historySize = (int) readVarint(buffer);
+                    break;
+                case TYPE_ROTATION:
+                case TYPE_FLIP:
+                    r.value = (int) readVarint(buffer);
+                    break;
+                case TYPE_ACTIVITY:
+                    r.component = readString(buffer) + "/" + readString(buffer);
+                    break;
+                default:
+                    break;
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("truncated record", e);
+        }
+        return r;
+    }
+
+    /**
+     * Group records into the units a subset can be cut from: a gesture, from
+     * the touch or trackball ACTION_DOWN to its ACTION_UP or ACTION_CANCEL,
+     * and a key press, from the key down to the up of the same key code, are
+     * one unit along with anything recorded in between. Gestures and presses
+     * that overlap share a unit, and one that never ends runs to the end of
+     * the log. Every other record is a unit of its own.
+     *
+     * @param records records from readRecords()
+     * @return the indices of the records of each unit, in order
+     * @throws IllegalArgumentException if a record is corrupt
+     */
+    public static List<int[]> groupGestures(List<byte[]> records) {
+        List<int[]> units = new ArrayList<int[]>();
+        boolean touchDown = false;
+        boolean trackballDown = false;
+        Set<Integer> keysDown = new HashSet<Integer>();
+        int start = 0;
+        for (int i = 0; i < records.size(); i++) {
+            Record r = parse(records.get(i));
+            int action = r.action & 0xff;
+            switch (r.type) {
+                case TYPE_TOUCH:
+                    if (action == ACTION_DOWN) {
+                        touchDown = true;
+                    } else if (action == ACTION_UP || action == ACTION_CANCEL) {
+                        touchDown = false;
+                    }
+                    break;
+                case TYPE_TRACKBALL:
+                    if (action == ACTION_DOWN) {
+                        trackballDown = true;
+                    } else if (action == ACTION_UP || action == ACTION_CANCEL) {
+                        trackballDown = false;
+                    }
+                    break;
+                case TYPE_KEY:
+                    if (r.action == ACTION_DOWN) {
+                        keysDown.add(r.value);
+                    } else if (r.action == ACTION_UP) {
+                        keysDown.remove(r.value);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if (!touchDown && !trackballDown && keysDown.isEmpty()) {
+                int[] unit = new int[i + 1 - start];
+                for (int j = 0; j < unit.length; j++) {
+                    unit[j] = start + j;
+                }
+                units.add(unit);
+                start = i + 1;
+            }
+        }
+        if (start < records.size()) {
+            int[] unit = new int[records.size() - start];
+            for (int j = 0; j < unit.length; j++) {
+                unit[j] = start + j;
+            }
+            units.add(unit);
+        }
+        return units;
+    }
+
+    /**
+     * Move past one record, following the layout written by MonkeyEventRecorder.
+     *
+     * @param version the version of the log the record is in
+     * @return the type of the record
+     */
+    private static int skipRecord(ByteBuffer buffer, long version) {
+        int type = buffer.get();
+        readVarint(buffer); // delta
+        switch (type) {
+            case TYPE_KEY:
+                // action, code, down time, event time, repeat, meta, device, scan code
+                for (int i = 0; i < 8; i++) {
+                    readVarint(buffer);
+                }
+                break;
+            case TYPE_TOUCH:
+            case TYPE_TRACKBALL: {
+                // action, down time, event time, meta, device, edge flags
+                for (int i = 0; i < 6; i++) {
+                    readVarint(buffer);
+                }
+                skip(buffer, 8); // x and y precision
+                long count = readVarint(buffer);
+                for (long i = 0; i < count; i++) {
+                    readVarint(buffer); // id
+                    long flags = readVarint(buffer);
+                    skip(buffer, (flags & POINTER_HAS_PRESSURE) != 0 ? 16 : 8);
+                }
+                if (version >= 2) {
+                    // Historical samples: a time, then x and y of each pointer.
+                    long history = readVarint(buffer);
+                    for (long h = 0; h < history; h++) {
+                        readVarint(buffer);
+                        skip(buffer, (int) Math.min(count * 8, Integer.MAX_VALUE));
+                    }
+                }
+                break;
+            }
+            case TYPE_ROTATION:
+                readVarint(buffer);
+                readVarint(buffer);
+                break;
+            case TYPE_ACTIVITY:
+                readString(buffer);
+                readString(buffer);
+                readVarint(buffer);
+                break;
+            case TYPE_FLIP:
+                readVarint(buffer);
+                break;
+            case TYPE_PERMISSION:
+                readString(buffer);
+                readString(buffer);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown event type " + type);
+        }
+        return type;
+    }
+
+    private static void skip(ByteBuffer buffer, int count) {
+        if (count > buffer.remaining()) {
+            throw new IllegalArgumentException("record runs past the end of the log");
+        }
+        buffer.position(buffer.position() + count);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = (int) readVarint(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+}
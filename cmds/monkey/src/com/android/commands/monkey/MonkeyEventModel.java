@@ -0,0 +1,621 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A Markov model of how people use the device, trained from recorded sessions
+ * by MonkeyModelTrainer and sampled by MonkeyModelGenerator.
+ *
+ * The model works on gestures rather than single events. A symbol is a
+ * gesture kind with one detail: the screen region a pointer gesture starts
+ * in, the key code of a key press, the rotation, or the activity switched to.
+ * The next symbol depends on the last few symbols (up to the order of the
+ * model) and on the activity the session is in. A state that was never seen
+ * in training backs off, first to the same history in any activity, then to
+ * a shorter history, down to the plain symbol frequencies.
+ *
+ * Besides the transitions the model keeps, for drags and pinches, the region
+ * the gesture ends in, and for each gesture kind how long it is held and how
+ * long the pause after it is. Durations are kept as log2 buckets of
+ * milliseconds.
+ *
+ * The file only holds counts. Every distribution is turned into an alias
+ * table (Vose's method) when the model is loaded, so drawing from one takes
+ * two random numbers whatever its size. This class has no dependencies on
+ * the Android framework, so the trainer can run on the build host.
+ */
+public class MonkeyEventModel {
+    static final int MAGIC = 0x4d4b4d4d; // "MKMM"
+    static final int VERSION = 1;
+
+    public static final int GESTURE_TAP = 0;
+    public static final int GESTURE_LONG_PRESS = 1;
+    public static final int GESTURE_DRAG = 2;
+    public static final int GESTURE_PINCH = 3;
+    public static final int GESTURE_TRACKBALL = 4;
+    public static final int GESTURE_KEY = 5;
+    public static final int GESTURE_ROTATION = 6;
+    public static final int GESTURE_APP_SWITCH = 7;
+    public static final int GESTURE_FLIP = 8;
+    public static final int GESTURE_COUNT = 9;
+
+    private static final String[] GESTURE_NAMES = {
+        "tap", "longpress", "drag", "pinch", "trackball", "key", "rotation", "appswitch",
+        "flip",
+    };
+
+    /** The longest history a model can have, limited by the state key layout. */
+    public static final int MAX_ORDER = 3;
+
+    /** Bucket b holds durations from 2^b up to 2^(b+1) ms, except bucket 0 holds 0 and 1. */
+    public static final int DURATION_BUCKETS = 20;
+
+    // A history slot of a state key: NONE is past the order of the state,
+    // START is before the first gesture of a session, symbol i is i + 2.
+    static final int HISTORY_NONE = 0;
+    static final int HISTORY_START = 1;
+
+    // There are 16 bits for each history slot and for the activity.
+    static final int MAX_SYMBOLS = 0xffff - 2;
+    static final int MAX_ACTIVITIES = 0xffff - 1;
+
+    private final int mOrder;
+    private final int mColumns;
+    private final int mRows;
+    private final String[] mActivities;
+    private final int[] mSymbols;
+
+    // What follows each state, keyed by stateKey().
+    private final long[] mStateKeys;
+    private final int[][] mStateSymbols;
+    private final long[][] mStateCounts;
+    // Where drags and pinches end, per symbol, or null for other symbols.
+    private final long[][] mEndCounts;
+    // Per gesture kind, indexed by duration bucket.
+    private final long[][] mHoldCounts;
+    private final long[][] mGapCounts;
+
+    // Built from the counts on first use.
+    private long[] mTableKeys;
+    private int[] mTableIndices;
+    private AliasTable[] mNext;
+    private AliasTable[] mEnd;
+    private AliasTable[] mHold;
+    private AliasTable[] mGap;
+
+    /**
+     * A discrete distribution that takes constant time to draw from.
+     */
+    static final class AliasTable {
+        private final int[] mValues;
+        private final int[] mAlias;
+        private final double[] mProbability;
+
+        /**
+         * @param values the outcomes
+         * @param counts how often each outcome was seen, all positive
+         */
+        AliasTable(int[] values, long[] counts) {
+            int n = values.length;
+            mValues = values;
+            mAlias = new int[n];
+            mProbability = new double[n];
+
+            double total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            double[] scaled = new double[n];
+            int[] small = new int[n];
+            int[] large = new int[n];
+            int smallCount = 0;
+            int largeCount = 0;
+            for (int i = 0; i < n; i++) {
+                scaled[i] = counts[i] * n / total;
+                if (scaled[i] < 1) {
+                    small[smallCount++] = i;
+                } else {
+                    large[largeCount++] = i;
+                }
+            }
+            while (smallCount > 0 && largeCount > 0) {
+                int s = small[--smallCount];
+                int l = large[--largeCount];
+                mProbability[s] = scaled[s];
+                mAlias[s] = l;
+                scaled[l] = scaled[l] + scaled[s] - 1;
+                if (scaled[l] < 1) {
+                    small[smallCount++] = l;
+                } else {
+                    large[largeCount++] = l;
+                }
+            }
+            // Whatever is left is 1 give or take rounding.
+            while (largeCount > 0) {
+                mProbability[large[--largeCount]] = 1;
+            }
+            while (smallCount > 0) {
+                mProbability[small[--smallCount]] = 1;
+            }
+        }
+
+        int draw(Random random) {
+            int i = random.nextInt(mValues.length);
+            return mValues[random.nextDouble() < mProbability[i] ? i : mAlias[i]];
+        }
+    }
+
+    /**
+     * @param order how many gestures of history the transitions use
+     * @param columns columns of the screen region grid
+     * @param rows rows of the screen region grid
+     * @param activities the "package/class" of each activity in the sessions
+     * @param symbols each symbol, as makeSymbol() returns
+     * @param stateKeys the key of each state, as stateKey() returns
+     * @param stateSymbols the symbols seen after each state
+     * @param stateCounts how often each of those was seen
+     * @param endCounts for each symbol, how often a drag or pinch ended in
+     *        each region, or null
+     * @param holdCounts for each gesture kind, the gesture durations per bucket
+     * @param gapCounts for each gesture kind, the pauses after it per bucket
+     */
+    MonkeyEventModel(int order, int columns, int rows, String[] activities, int[] symbols,
+            long[] stateKeys, int[][] stateSymbols, long[][] stateCounts, long[][] endCounts,
+            long[][] holdCounts, long[][] gapCounts) {
+        if (order < 0 || order > MAX_ORDER) {
+            throw new IllegalArgumentException("order must be 0 to " + MAX_ORDER);
+        }
+        if (symbols.length > MAX_SYMBOLS || activities.length > MAX_ACTIVITIES) {
+            throw new IllegalArgumentException("too many symbols or activities");
+        }
+        mOrder = order;
+        mColumns = columns;
+        mRows = rows;
+        mActivities = activities;
+        mSymbols = symbols;
+        mStateKeys = stateKeys;
+        mStateSymbols = stateSymbols;
+        mStateCounts = stateCounts;
+        mEndCounts = endCounts;
+        mHoldCounts = holdCounts;
+        mGapCounts = gapCounts;
+    }
+
+    public static int makeSymbol(int gesture, int detail) {
+        return (gesture << 16) | (detail & 0xffff);
+    }
+
+    public static int getGesture(int symbol) {
+        return symbol >>> 16;
+    }
+
+    public static int getDetail(int symbol) {
+        return symbol & 0xffff;
+    }
+
+    /**
+     * The key of a state.
+     *
+     * @param activity index of the activity plus one, or 0 for any activity
+     * @param history the HISTORY_* value or symbol index plus 2 of the most
+     *        recent gestures, most recent first
+     * @param level how many of them the state uses
+     */
+    static long stateKey(int activity, int[] history, int level) {
+        long key = (long) activity << 48;
+        for (int i = 0; i < level; i++) {
+            key |= (long) history[i] << (32 - i * 16);
+        }
+        return key;
+    }
+
+    /**
+     * @return the bucket a duration in ms falls in
+     */
+    public static int durationBucket(long millis) {
+        if (millis < 2) {
+            return 0;
+        }
+        int bucket = 63 - Long.numberOfLeadingZeros(millis);
+        return Math.min(bucket, DURATION_BUCKETS - 1);
+    }
+
+    public static String getGestureName(int gesture) {
+        return GESTURE_NAMES[gesture];
+    }
+
+    public int getOrder() {
+        return mOrder;
+    }
+
+    public int getColumns() {
+        return mColumns;
+    }
+
+    public int getRows() {
+        return mRows;
+    }
+
+    public int getSymbolCount() {
+        return mSymbols.length;
+    }
+
+    public int getSymbol(int index) {
+        return mSymbols[index];
+    }
+
+    public int getStateCount() {
+        return mStateKeys.length;
+    }
+
+    public int getActivityCount() {
+        return mActivities.length;
+    }
+
+    /**
+     * @return the "package/class" of an activity
+     */
+    public String getActivity(int index) {
+        return mActivities[index];
+    }
+
+    /**
+     * Draw the next symbol, backing off until a state that was seen in training.
+     *
+     * @param activity index of the current activity plus one, or 0 for none
+     * @param history as for stateKey(), at least getOrder() long
+     * @return the index of the symbol, or -1 if the model is empty
+     */
+    public int nextSymbol(int activity, int[] history, Random random) {
+        buildTables();
+        for (int level = mOrder; level >= 0; level--) {
+            int index = findState(stateKey(activity, history, level));
+            if (index < 0 && activity != 0) {
+                index = findState(stateKey(0, history, level));
+            }
+            if (index >= 0) {
+                return mNext[index].draw(random);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the region a drag or pinch symbol ends in, or -1 if it has none
+     */
+    public int endRegion(int symbolIndex, Random random) {
+        buildTables();
+        AliasTable table = mEnd[symbolIndex];
+        return table != null ? table.draw(random) : -1;
+    }
+
+    /**
+     * @return how long to hold a gesture of a kind, in ms
+     */
+    public long holdMillis(int gesture, Random random) {
+        buildTables();
+        return drawDuration(mHold[gesture], random);
+    }
+
+    /**
+     * @return how long to pause after a gesture of a kind, in ms
+     */
+    public long gapMillis(int gesture, Random random) {
+        buildTables();
+        return drawDuration(mGap[gesture], random);
+    }
+
+    private static long drawDuration(AliasTable table, Random random) {
+        if (table == null) {
+            return 0;
+        }
+        int bucket = table.draw(random);
+        if (bucket == 0) {
+            return random.nextInt(2);
+        }
+        long low = 1L << bucket;
+        return low + (long) (random.nextDouble() * low);
+    }
+
+    private int findState(long key) {
+        int mask = mTableKeys.length - 1;
+        for (int slot = hash(key) & mask; mTableIndices[slot] >= 0; slot = (slot + 1) & mask) {
+            if (mTableKeys[slot] == key) {
+                return mTableIndices[slot];
+            }
+        }
+        return -1;
+    }
+
+    private static int hash(long key) {
+        return (int) ((key * 0x9e3779b97f4a7c15L) >>> 32);
+    }
+
+    private synchronized void buildTables() {
+        if (mNext != null) {
+            return;
+        }
+        int capacity = Integer.highestOneBit(Math.max(mStateKeys.length, 1) * 2) * 2;
+        mTableKeys = new long[capacity];
+        mTableIndices = new int[capacity];
+        Arrays.fill(mTableIndices, -1);
+        AliasTable[] next = new AliasTable[mStateKeys.length];
+        for (int i = 0; i < mStateKeys.length; i++) {
+            int slot = hash(mStateKeys[i]) & (capacity - 1);
+            while (mTableIndices[slot] >= 0) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            mTableKeys[slot] = mStateKeys[i];
+            mTableIndices[slot] = i;
+            next[i] = new AliasTable(mStateSymbols[i], mStateCounts[i]);
+        }
+        mEnd = new AliasTable[mSymbols.length];
+        for (int i = 0; i < mSymbols.length; i++) {
+            mEnd[i] = histogram(mEndCounts[i]);
+        }
+        mHold = new AliasTable[GESTURE_COUNT];
+        mGap = new AliasTable[GESTURE_COUNT];
+        for (int i = 0; i < GESTURE_COUNT; i++) {
+            mHold[i] = histogram(mHoldCounts[i]);
+            mGap[i] = histogram(mGapCounts[i]);
+        }
+        mNext = next;
+    }
+
+    /**
+     * @return a table over the indices with a non-zero count, or null if there are none
+     */
+    private static AliasTable histogram(long[] counts) {
+        if (counts == null) {
+            return null;
+        }
+        int n = 0;
+        for (long count : counts) {
+            if (count > 0) {
+                n++;
+            }
+        }
+        if (n == 0) {
+            return null;
+        }
+        int[] values = new int[n];
+        long[] kept = new long[n];
+        n = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                values[n] = i;
+                kept[n++] = counts[i];
+            }
+        }
+        return new AliasTable(values, kept);
+    }
+
+    /**
+     * @return a short description of a symbol, such as "drag@5" or "key 4"
+     */
+    public String describeSymbol(int index) {
+        int symbol = mSymbols[index];
+        int gesture = getGesture(symbol);
+        int detail = getDetail(symbol);
+        switch (gesture) {
+            case GESTURE_TAP:
+            case GESTURE_LONG_PRESS:
+            case GESTURE_DRAG:
+            case GESTURE_PINCH:
+                return GESTURE_NAMES[gesture] + "@" + detail;
+            case GESTURE_KEY:
+            case GESTURE_ROTATION:
+                return GESTURE_NAMES[gesture] + " " + detail;
+            case GESTURE_APP_SWITCH:
+                return GESTURE_NAMES[gesture] + " " + mActivities[detail];
+            default:
+                return GESTURE_NAMES[gesture];
+        }
+    }
+
+    /**
+     * Read a model written by save().
+     *
+     * @throws IOException if the file can't be read or isn't a valid model
+     */
+    public static MonkeyEventModel load(File file) throws IOException {
+        byte[] data;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (in.length() > Integer.MAX_VALUE) {
+                throw new IOException("event model is too large: " + file);
+            }
+            data = new byte[(int) in.length()];
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("not a monkey event model: " + file);
+            }
+            long version = readVarint(buffer);
+            if (version != VERSION) {
+                throw new IOException("unsupported event model version " + version);
+            }
+            int order = readCount(buffer);
+            int columns = readCount(buffer);
+            int rows = readCount(buffer);
+            int regions = columns * rows;
+
+            String[] activities = new String[readCount(buffer)];
+            for (int i = 0; i < activities.length; i++) {
+                int length = readCount(buffer);
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                activities[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            int[] symbols = new int[readCount(buffer)];
+            long[][] endCounts = new long[symbols.length][];
+            for (int i = 0; i < symbols.length; i++) {
+                symbols[i] = (int) readVarint(buffer);
+                if (readVarint(buffer) != 0) {
+                    endCounts[i] = readCounts(buffer, regions);
+                }
+            }
+
+            int states = readCount(buffer);
+            long[] stateKeys = new long[states];
+            int[][] stateSymbols = new int[states][];
+            long[][] stateCounts = new long[states][];
+            for (int i = 0; i < states; i++) {
+                stateKeys[i] = readVarint(buffer);
+                int n = readCount(buffer);
+                if (n == 0) {
+                    throw new IllegalArgumentException("empty state");
+                }
+                stateSymbols[i] = new int[n];
+                stateCounts[i] = new long[n];
+                for (int j = 0; j < n; j++) {
+                    stateSymbols[i][j] = readCount(buffer);
+                    if (stateSymbols[i][j] >= symbols.length) {
+                        throw new IllegalArgumentException("bad symbol " + stateSymbols[i][j]);
+                    }
+                    stateCounts[i][j] = readVarint(buffer);
+                }
+            }
+
+            long[][] holdCounts = new long[GESTURE_COUNT][];
+            long[][] gapCounts = new long[GESTURE_COUNT][];
+            for (int i = 0; i < GESTURE_COUNT; i++) {
+                holdCounts[i] = readCounts(buffer, DURATION_BUCKETS);
+                gapCounts[i] = readCounts(buffer, DURATION_BUCKETS);
+            }
+            return new MonkeyEventModel(order, columns, rows, activities, symbols, stateKeys,
+                    stateSymbols, stateCounts, endCounts, holdCounts, gapCounts);
+        } catch (RuntimeException e) {
+            // A BufferUnderflowException or a bad value.
+            throw new IOException("event model " + file + " is corrupt: " + e);
+        }
+    }
+
+    /**
+     * Write the model. The layout is the magic and version, then varints:
+     * order, columns, rows; the activities as length and UTF-8; the symbols,
+     * each followed by 1 and the region counts or by 0; the states as key,
+     * entry count and symbol/count pairs; and the hold and gap bucket counts
+     * of each gesture kind.
+     */
+    public void save(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MAGIC & 0xff);
+        out.write((MAGIC >> 8) & 0xff);
+        out.write((MAGIC >> 16) & 0xff);
+        out.write((MAGIC >> 24) & 0xff);
+        writeVarint(out, VERSION);
+        writeVarint(out, mOrder);
+        writeVarint(out, mColumns);
+        writeVarint(out, mRows);
+        writeVarint(out, mActivities.length);
+        for (String activity : mActivities) {
+            byte[] bytes = activity.getBytes(StandardCharsets.UTF_8);
+            writeVarint(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        writeVarint(out, mSymbols.length);
+        for (int i = 0; i < mSymbols.length; i++) {
+            writeVarint(out, mSymbols[i]);
+            if (mEndCounts[i] != null) {
+                writeVarint(out, 1);
+                for (long count : mEndCounts[i]) {
+                    writeVarint(out, count);
+                }
+            } else {
+                writeVarint(out, 0);
+            }
+        }
+        writeVarint(out, mStateKeys.length);
+        for (int i = 0; i < mStateKeys.length; i++) {
+            writeVarint(out, mStateKeys[i]);
+            writeVarint(out, mStateSymbols[i].length);
+            for (int j = 0; j < mStateSymbols[i].length; j++) {
+                writeVarint(out, mStateSymbols[i][j]);
+                writeVarint(out, mStateCounts[i][j]);
+            }
+        }
+        for (int i = 0; i < GESTURE_COUNT; i++) {
+            for (long count : mHoldCounts[i]) {
+                writeVarint(out, count);
+            }
+            for (long count : mGapCounts[i]) {
+                writeVarint(out, count);
+            }
+        }
+
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            out.writeTo(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static long[] readCounts(ByteBuffer buffer, int n) {
+        long[] counts = new long[n];
+        for (int i = 0; i < n; i++) {
+            counts[i] = readVarint(buffer);
+        }
+        return counts;
+    }
+
+    private static int readCount(ByteBuffer buffer) {
+        long value = readVarint(buffer);
+        if (value < 0 || value > buffer.capacity()) {
+            throw new IllegalArgumentException("bad count " + value);
+        }
+        return (int) value;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+}
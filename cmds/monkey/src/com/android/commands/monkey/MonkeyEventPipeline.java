@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs another MonkeyEventSource on its own thread, ahead of the thread that
+ * injects the events, so the cost of generating events (parsing scripts,
+ * querying views) overlaps with the time spent waiting for injection.
+ *
+ * Events are handed over through a bounded single-producer, single-consumer
+ * ring. The producer blocks when the ring is full, so it never runs more than
+ * the ring's capacity ahead. A null from the wrapped source is passed through
+ * in order, and the producer keeps going afterwards since script sources
+ * return null at the end of every pass.
+ *
+ * Because events are generated early, anything the wrapped source stamps with
+ * the current time at generation (such as the down time of a random gesture)
+ * is up to a ring's worth of events older than it would otherwise be.
+ */
+public class MonkeyEventPipeline implements MonkeyEventSource {
+    // Handed over in place of a null from the wrapped source.
+    private static final MonkeyEvent NULL_EVENT = new MonkeyNoopEvent();
+
+    // How long a blocked side parks before checking again whether it was stopped.
+    private static final long PARK_NANOS = 10 * 1000 * 1000;
+
+    private final MonkeyEventSource mSource;
+    private final MonkeyEvent[] mRing;
+    private final int mMask;
+
+    // Index of the next slot to read, only written by the consumer.
+    private final AtomicLong mHead = new AtomicLong();
+    // Index of the next slot to write, only written by the producer.
+    private final AtomicLong mTail = new AtomicLong();
+
+    private volatile Thread mWaitingConsumer;
+    private volatile Thread mWaitingProducer;
+    private volatile boolean mStopped;
+    private volatile RuntimeException mProducerException;
+
+    private Thread mProducer;
+
+    /**
+     * @param source the source to run ahead
+     * @param capacity how many events the producer may run ahead, rounded up
+     *        to a power of two
+     */
+    public MonkeyEventPipeline(MonkeyEventSource source, int capacity) {
+        mSource = source;
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mRing = new MonkeyEvent[size];
+        mMask = size - 1;
+    }
+
+    public void setVerbose(int verbose) {
+        mSource.setVerbose(verbose);
+    }
+
+    public boolean validate() {
+        return mSource.validate();
+    }
+
+    /**
+     * Returns the next event from the wrapped source, waiting for the producer
+     * if it hasn't got one ready. The producer thread is started on the first call.
+     */
+    public MonkeyEvent getNextEvent() {
+        if (mProducer == null) {
+            start();
+        }
+
+        final long head = mHead.get();
+        while (head == mTail.get()) {
+            RuntimeException e = mProducerException;
+            if (e != null) {
+                throw e;
+            }
+            if (mStopped) {
+                return null;
+            }
+            mWaitingConsumer = Thread.currentThread();
+            // Check again now that the producer can see we're waiting, otherwise
+            // an event published in between would never wake us up.
+            if (head == mTail.get()) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            mWaitingConsumer = null;
+        }
+
+        final int index = (int) head & mMask;
+        MonkeyEvent ev = mRing[index];
+        mRing[index] = null;
+        mHead.set(head + 1);
+
+        Thread producer = mWaitingProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+        return ev == NULL_EVENT ? null : ev;
+    }
+
+    /**
+     * Stop the producer thread. Events it has already generated are dropped.
+     */
+    public void stop() {
+        mStopped = true;
+        Thread producer = mProducer;
+        if (producer != null) {
+            producer.interrupt();
+        }
+    }
+
+    private void start() {
+        mProducer = new Thread("MonkeyEventProducer") {
+            @Override
+            public void run() {
+                produce();
+            }
+        };
+        // Don't hold up the exit of the monkey if the source is stuck, e.g. in a
+        // blocking read on the network.
+        mProducer.setDaemon(true);
+        mProducer.start();
+    }
+
+    private void produce() {
+        try {
+            while (!mStopped) {
+                MonkeyEvent ev = mSource.getNextEvent();
+                if (!offer(ev == null ? NULL_EVENT : ev)) {
+                    return;
+                }
+            }
+        } catch (RuntimeException e) {
+            mProducerException = e;
+            Thread consumer = mWaitingConsumer;
+            if (consumer != null) {
+                LockSupport.unpark(consumer);
+            }
+        }
+    }
+
+    /**
+     * Publish an event, waiting while the ring is full.
+     *
+     * @return false if the pipeline was stopped while waiting
+     */
+    private boolean offer(MonkeyEvent ev) {
+        final long tail = mTail.get();
+        while (tail - mHead.get() == mRing.length) {
+            if (mStopped) {
+                return false;
+            }
+            mWaitingProducer = Thread.currentThread();
+            if (tail - mHead.get() == mRing.length) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            mWaitingProducer = null;
+        }
+
+        mRing[(int) tail & mMask] = ev;
+        mTail.set(tail + 1);
+
+        Thread consumer = mWaitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+/**
+ * Keeps injected touch, trackball and key events around for reuse, so a long
+ * random run doesn't allocate new event objects for every gesture.
+ *
+ * Events obtained here go back into the pool when MonkeyEvent.recycle() is
+ * called on them, which must only happen once nothing refers to them any more.
+ * Thread safe, since with a MonkeyEventPipeline events are obtained on the
+ * producer thread and recycled on the injecting thread.
+ */
+public class MonkeyEventPool {
+    private static final int DEFAULT_MAX_POOLED = 32;
+
+    private final MonkeyEvent[] mTouch;
+    private final MonkeyEvent[] mTrackball;
+    private final MonkeyEvent[] mKey;
+    private int mTouchCount;
+    private int mTrackballCount;
+    private int mKeyCount;
+
+    public MonkeyEventPool() {
+        this(DEFAULT_MAX_POOLED);
+    }
+
+    /**
+     * @param maxPooled the most events of each type to keep. Anything released
+     *        beyond that is left to the garbage collector.
+     */
+    public MonkeyEventPool(int maxPooled) {
+        mTouch = new MonkeyEvent[maxPooled];
+        mTrackball = new MonkeyEvent[maxPooled];
+        mKey = new MonkeyEvent[maxPooled];
+    }
+
+    public synchronized MonkeyTouchEvent obtainTouch(int action) {
+        MonkeyTouchEvent e;
+        if (mTouchCount > 0) {
+            e = (MonkeyTouchEvent) mTouch[--mTouchCount];
+            mTouch[mTouchCount] = null;
+            e.init(action);
+        } else {
+            e = new MonkeyTouchEvent(action);
+        }
+        return (MonkeyTouchEvent) claim(e);
+    }
+
+    public synchronized MonkeyTrackballEvent obtainTrackball(int action) {
+        MonkeyTrackballEvent e;
+        if (mTrackballCount > 0) {
+            e = (MonkeyTrackballEvent) mTrackball[--mTrackballCount];
+            mTrackball[mTrackballCount] = null;
+            e.init(action);
+        } else {
+            e = new MonkeyTrackballEvent(action);
+        }
+        return (MonkeyTrackballEvent) claim(e);
+    }
+
+    public synchronized MonkeyKeyEvent obtainKey(int action, int keyCode) {
+        MonkeyKeyEvent e;
+        if (mKeyCount > 0) {
+            e = (MonkeyKeyEvent) mKey[--mKeyCount];
+            mKey[mKeyCount] = null;
+            e.init(action, keyCode);
+        } else {
+            e = new MonkeyKeyEvent(action, keyCode);
+        }
+        return (MonkeyKeyEvent) claim(e);
+    }
+
+    private MonkeyEvent claim(MonkeyEvent e) {
+        e.mPool = this;
+        e.mRecycled = false;
+        return e;
+    }
+
+    /**
+     * Called by MonkeyEvent.recycle() once the event has been reset.
+     */
+    synchronized void release(MonkeyEvent e) {
+        switch (e.getEventType()) {
+            case MonkeyEvent.EVENT_TYPE_TOUCH:
+                if (mTouchCount < mTouch.length) {
+                    mTouch[mTouchCount++] = e;
+                }
+                break;
+            case MonkeyEvent.EVENT_TYPE_TRACKBALL:
+                if (mTrackballCount < mTrackball.length) {
+                    mTrackball[mTrackballCount++] = e;
+                }
+                break;
+            case MonkeyEvent.EVENT_TYPE_KEY:
+                if (mKeyCount < mKey.length) {
+                    mKey[mKeyCount++] = e;
+                }
+                break;
+        }
+    }
+}
@@ -16,42 +16,46 @@
 
 package com.android.commands.monkey;
 
-import java.util.LinkedList;
+import java.util.NoSuchElementException;
 import java.util.Random;
 
 /**
  * class for keeping a monkey event queue
- * 双向链表，存储的元素对象是MonkeyEvent
- * 自定义的LinkedList
+ * 环形缓冲区实现的事件队列，存储的元素对象是MonkeyEvent
+ * 间隔时间不再以MonkeyThrottleEvent对象的形式插入队列，而是直接记录在事件对象上（MonkeyEvent.getThrottle()）
  */
-@SuppressWarnings("serial")
-public class MonkeyEventQueue extends LinkedList<MonkeyEvent> {
+public class MonkeyEventQueue {
+    // Large enough for the longest gesture the random and script sources produce
+    // in one go. The buffer only grows if a burst is bigger than this.
+    private static final int INITIAL_CAPACITY = 64;
+
+    private MonkeyEvent[] mEvents = new MonkeyEvent[INITIAL_CAPACITY]; //环形缓冲区，长度总是2的幂
+    private int mHead; //队列头部元素的下标
+    private int mSize; //队列中的元素数量
 
     private Random mRandom; //MonkeyEventQueue对象持有的Random对象，用于生成随机间隔时间
     private long mThrottle; //MonkeyEventQueue对象持有的事件停留间隔时间
     private boolean mRandomizeThrottle; //MonkeyEventQueue对象持有的是否需要随机间隔
 
     /**
-     * 创建双向链表对象的构造方法
+     * 创建事件队列对象的构造方法
      * @param random 指定Random对象
      * @param throttle 指定间隔时间
      * @param randomizeThrottle 指定是否开启随机间隔
      */
     public MonkeyEventQueue(Random random, long throttle, boolean randomizeThrottle) {
-        super();
         mRandom = random;
         mThrottle = throttle;
         mRandomizeThrottle = randomizeThrottle;
     }
 
     /**
-     * 用于将事件添加到双向链表尾部的方法
-     * 不过我们新加了一个功能，要不要在它的尾部立即插入一个MonkeyThrottleEvent事件，它表示间隔时间
+     * 用于将事件添加到队列尾部的方法
+     * 如果事件支持间隔时间，则将间隔时间设置到事件对象上，注入该事件后，主循环会停留这段时间
      * @param e 表示事件对象（具体是由子类对象传递进来的）
      */
-    @Override
     public void addLast(MonkeyEvent e) {
-        super.add(e);
+        add(e);
         if (e.isThrottlable()) { //事件是否支持间隔时间
             long throttle = mThrottle; //固定间隔值
             if (mRandomizeThrottle && (mThrottle > 0)) { //如果支持随机间隔，重新计算间隔时间
@@ -62,7 +66,68 @@ public class MonkeyEventQueue extends LinkedList<MonkeyEvent> {
                 throttle %= mThrottle;
                 ++throttle;
             }
-            super.add(new MonkeyThrottleEvent(throttle));  //向当前事件的后面直接添加一个间隔事件
+            e.setThrottle(throttle); //记录在事件上，不再额外创建一个MonkeyThrottleEvent对象
+        }
+    }
+
+    /**
+     * Add an event to the end of the queue without setting its throttle.
+     */
+    public void add(MonkeyEvent e) {
+        if (mSize == mEvents.length) {
+            MonkeyEvent[] bigger = new MonkeyEvent[mEvents.length * 2];
+            for (int i = 0; i < mSize; i++) {
+                bigger[i] = mEvents[(mHead + i) & (mEvents.length - 1)];
+            }
+            mEvents = bigger;
+            mHead = 0;
+        }
+        mEvents[(mHead + mSize) & (mEvents.length - 1)] = e;
+        mSize++;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the event at the head of the queue
+     * @throws NoSuchElementException if the queue is empty
+     */
+    public MonkeyEvent getFirst() {
+        if (mSize == 0) {
+            throw new NoSuchElementException();
+        }
+        return mEvents[mHead];
+    }
+
+    /**
+     * Remove and return the event at the head of the queue.
+     *
+     * @throws NoSuchElementException if the queue is empty
+     */
+    public MonkeyEvent removeFirst() {
+        if (mSize == 0) {
+            throw new NoSuchElementException();
+        }
+        return poll();
+    }
+
+    /**
+     * Remove and return the event at the head of the queue, or null if it is empty.
+     */
+    public MonkeyEvent poll() {
+        if (mSize == 0) {
+            return null;
         }
+        MonkeyEvent e = mEvents[mHead];
+        mEvents[mHead] = null;
+        mHead = (mHead + 1) & (mEvents.length - 1);
+        mSize--;
+        return e;
     }
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.content.ComponentName;
+import android.view.MotionEvent;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Records the injected events to a compact binary log that
+ * MonkeySourceReplay can play back.
+ *
+ * The log starts with MAGIC and a varint VERSION. Each record is then
+ * <pre>
+ *   type        1 byte, a MonkeyEvent.EVENT_TYPE_*
+ *   delta       varint, ms since the previous record was injected
+ *   payload     depends on the type, see writeKey() and friends
+ * </pre>
+ * Integers are written as unsigned LEB128 varints, signed ones zigzag-encoded
+ * first. Down and event times are written relative to the record's own time,
+ * with 0 meaning "not set", so the replay can move them to its own clock.
+ * Coordinates are written as raw IEEE floats so they replay exactly. A motion
+ * record ends with the historical samples of the event, if it has any.
+ *
+ * Only events that change the device are recorded: keys, touches, trackball,
+ * rotation, activity launches, keyboard flips and permission changes. Throttle
+ * sleeps are implied by the record times, and script-only events such as
+ * profiling and waits are counted in getSkipped() and left out.
+ */
+public class MonkeyEventRecorder {
+    static final int MAGIC = 0x4d4b4556; // "MKEV"
+    // 2 added the historical samples of motion events.
+    static final int VERSION = 2;
+
+    // Set in the pointer flags when the pressure and size follow the coordinates.
+    static final int POINTER_HAS_PRESSURE = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileOutputStream mOut;
+    private final FileChannel mChannel;
+    private byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPos;
+
+    private long mLastTime = -1;
+    private long mRecorded;
+    private long mSkipped;
+
+    public MonkeyEventRecorder(String fileName) throws IOException {
+        mOut = new FileOutputStream(fileName);
+        mChannel = mOut.getChannel();
+        writeFixed32(MAGIC);
+        writeVarint(VERSION);
+    }
+
+    /**
+     * Record an event that is about to be injected.
+     *
+     * @param ev the event
+     * @param now the current uptime in ms
+     */
+    public void record(MonkeyEvent ev, long now) throws IOException {
+        // Dispatch on the class rather than the type: several script-only
+        // events (MonkeyCommandEvent and friends) claim EVENT_TYPE_ACTIVITY.
+        if (!(ev instanceof MonkeyKeyEvent || ev instanceof MonkeyMotionEvent
+                || ev instanceof MonkeyRotationEvent || ev instanceof MonkeyActivityEvent
+                || ev instanceof MonkeyFlipEvent || ev instanceof MonkeyPermissionEvent)) {
+            mSkipped++;
+            return;
+        }
+
+        if (mPos > BUFFER_SIZE - 256) {
+            flush();
+        }
+        mBuffer[mPos++] = (byte) ev.getEventType();
+        writeVarint(mLastTime < 0 ? 0 : Math.max(now - mLastTime, 0));
+        mLastTime = now;
+
+        if (ev instanceof MonkeyKeyEvent) {
+            writeKey((MonkeyKeyEvent) ev, now);
+        } else if (ev instanceof MonkeyMotionEvent) {
+            writeMotion((MonkeyMotionEvent) ev, now);
+        } else if (ev instanceof MonkeyRotationEvent) {
+            MonkeyRotationEvent e = (MonkeyRotationEvent) ev;
+            writeVarint(e.getRotation());
+            writeVarint(e.getPersist() ? 1 : 0);
+        } else if (ev instanceof MonkeyActivityEvent) {
+            MonkeyActivityEvent e = (MonkeyActivityEvent) ev;
+            ComponentName app = e.getComponent();
+            writeString(app.getPackageName());
+            writeString(app.getClassName());
+            writeVarint(e.mAlarmTime);
+        } else if (ev instanceof MonkeyFlipEvent) {
+            writeVarint(((MonkeyFlipEvent) ev).isKeyboardOpen() ? 1 : 0);
+        } else {
+            MonkeyPermissionEvent e = (MonkeyPermissionEvent) ev;
+            writeString(e.getPackageName());
+            writeString(e.getPermissionName());
+        }
+        mRecorded++;
+    }
+
+    /**
+     * @return how many events have been recorded
+     */
+    public long getRecorded() {
+        return mRecorded;
+    }
+
+    /**
+     * @return how many events were not recorded because their type isn't replayable
+     */
+    public long getSkipped() {
+        return mSkipped;
+    }
+
+    /**
+     * Write out everything recorded so far and close the file.
+     */
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            mOut.close();
+        }
+    }
+
+    private void writeKey(MonkeyKeyEvent e, long now) {
+        writeVarint(e.getAction());
+        writeVarint(e.getKeyCode());
+        writeTime(e.getDownTime(), now);
+        writeTime(e.getEventTime(), now);
+        writeVarint(e.getRepeatCount());
+        writeVarint(e.getMetaState());
+        writeSigned(e.getDeviceId());
+        writeVarint(e.getScanCode());
+    }
+
+    private void writeMotion(MonkeyMotionEvent e, long now) {
+        writeVarint(e.getAction());
+        writeTime(e.getDownTime(), now);
+        writeTime(e.getEventTime(), now);
+        writeVarint(e.getMetaState());
+        writeSigned(e.getDeviceId());
+        writeVarint(e.getEdgeFlags());
+        writeFixed32(Float.floatToIntBits(e.getXPrecision()));
+        writeFixed32(Float.floatToIntBits(e.getYPrecision()));
+        int count = e.getPointerCount();
+        writeVarint(count);
+        for (int i = 0; i < count; i++) {
+            if (mPos > mBuffer.length - 32) {
+                mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+            }
+            MotionEvent.PointerCoords c = e.getPointerCoords(i);
+            boolean hasPressure = c.pressure != 0 || c.size != 0;
+            writeVarint(e.getPointerId(i));
+            writeVarint(hasPressure ? POINTER_HAS_PRESSURE : 0);
+            writeFixed32(Float.floatToIntBits(c.x));
+            writeFixed32(Float.floatToIntBits(c.y));
+            if (hasPressure) {
+                writeFixed32(Float.floatToIntBits(c.pressure));
+                writeFixed32(Float.floatToIntBits(c.size));
+            }
+        }
+        // The samples: the time, then x and y of each pointer, for each.
+        int history = e.getHistorySize();
+        writeVarint(history);
+        for (int h = 0; h < history; h++) {
+            if (mPos > mBuffer.length - 16 - count * 8) {
+                mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2 + count * 8);
+            }
+            writeTime(e.getHistoricalTime(h), now);
+            for (int i = 0; i < count; i++) {
+                writeFixed32(Float.floatToIntBits(e.getHistoricalX(h, i)));
+                writeFixed32(Float.floatToIntBits(e.getHistoricalY(h, i)));
+            }
+        }
+    }
+
+    /**
+     * Write a time as its distance before the record's time, or 0 if it isn't set.
+     */
+    private void writeTime(long time, long now) {
+        writeVarint(time <= 0 ? 0 : zigzag(now - time) + 1);
+    }
+
+    private void writeString(String s) {
+        byte[] bytes = s != null ? s.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        writeVarint(bytes.length);
+        if (mPos + bytes.length > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mPos + bytes.length));
+        }
+        System.arraycopy(bytes, 0, mBuffer, mPos, bytes.length);
+        mPos += bytes.length;
+    }
+
+    private void writeSigned(long value) {
+        writeVarint(zigzag(value));
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            mBuffer[mPos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        mBuffer[mPos++] = (byte) value;
+    }
+
+    private void writeFixed32(int value) {
+        mBuffer[mPos++] = (byte) value;
+        mBuffer[mPos++] = (byte) (value >> 8);
+        mBuffer[mPos++] = (byte) (value >> 16);
+        mBuffer[mPos++] = (byte) (value >> 24);
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private void flush() throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(mBuffer, 0, mPos);
+        while (bb.hasRemaining()) {
+            mChannel.write(bb);
+        }
+        mPos = 0;
+        if (mBuffer.length > BUFFER_SIZE) {
+            mBuffer = new byte[BUFFER_SIZE];
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A MonkeyFarm.Device that stands in for a real one, for working on the farm
+ * without hardware.
+ *
+ * A session prints what the monkey would: its arguments, a crash or an ANR in
+ * one of the packages now and then, each followed by a saved bugreport, and
+ * the number of events injected. Whether a session fails depends only on its
+ * seed and package, as with a real app, so the same shard fails on whichever
+ * fake device runs it. A device can be made to go away after some sessions,
+ * to see the farm move its work elsewhere.
+ */
+public class MonkeyFakeDevice implements MonkeyFarm.Device {
+    private final String mName;
+    private final double mCrashRate;
+    private final double mAnrRate;
+    private final int mSessionsBeforeLost;
+    private final long mDelayMs;
+
+    // Reports the sessions have "saved", by device path.
+    private final HashSet<String> mReports = new HashSet<String>();
+    private int mSessions;
+
+    /**
+     * @param name the name of the device
+     * @param crashRate the chance of a session crashing, from 0 to 1
+     * @param anrRate the chance of a session not responding, from 0 to 1
+     * @param sessionsBeforeLost how many sessions it runs before it goes away,
+     *        or -1 to never go away
+     * @param delayMs how long each session takes
+     */
+    public MonkeyFakeDevice(String name, double crashRate, double anrRate,
+            int sessionsBeforeLost, long delayMs) {
+        mName = name;
+        mCrashRate = crashRate;
+        mAnrRate = anrRate;
+        mSessionsBeforeLost = sessionsBeforeLost;
+        mDelayMs = delayMs;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return how many sessions have been run on this device
+     */
+    public synchronized int getSessions() {
+        return mSessions;
+    }
+
+    @Override
+    public int runMonkey(List<String> args, MonkeyFarm.OutputListener listener)
+            throws IOException, InterruptedException {
+        synchronized (this) {
+            if (mSessionsBeforeLost >= 0 && mSessions >= mSessionsBeforeLost) {
+                throw new IOException(mName + " is not online");
+            }
+            mSessions++;
+        }
+
+        long seed = 0;
+        String pkg = "com.example.app";
+        for (int i = 0; i < args.size() - 1; i++) {
+            if (args.get(i).equals("-s")) {
+                seed = Long.parseLong(args.get(i + 1));
+            } else if (args.get(i).equals("-p")) {
+                pkg = args.get(i + 1);
+            }
+        }
+        long count = Long.parseLong(args.get(args.size() - 1));
+        // Scrambled, since Random's first draws for nearby seeds are close.
+        Random random = new Random((seed * 0x9e3779b97f4a7c15L) ^ pkg.hashCode());
+
+        listener.onLine(":Monkey: seed=" + seed + " count=" + count);
+        if (mDelayMs > 0) {
+            Thread.sleep(mDelayMs);
+        }
+        double roll = random.nextDouble();
+        long injected = count;
+        if (roll < mCrashRate + mAnrRate) {
+            boolean crash = roll < mCrashRate;
+            injected = (long) (random.nextDouble() * count);
+            int pid = 1000 + random.nextInt(30000);
+            listener.onLine("// " + (crash ? "CRASH: " : "NOT RESPONDING: ") + pkg
+                    + " (pid " + pid + ")");
+            String report = (crash ? "app_crash" : "anr_") + pkg + "_" + seed + ".txt";
+            synchronized (this) {
+                mReports.add(MonkeyFarm.DEVICE_REPORT_DIR + report);
+            }
+            listener.onLine(report + ":");
+            listener.onLine("** Monkey aborted due to error.");
+        }
+        listener.onLine("Events injected: " + injected);
+        listener.onLine("// Monkey finished");
+        return injected == count ? 0 : 1;
+    }
+
+    @Override
+    public boolean pull(String devicePath, File local) throws IOException {
+        synchronized (this) {
+            if (!mReports.remove(devicePath)) {
+                return false;
+            }
+        }
+        FileOutputStream out = new FileOutputStream(local);
+        try {
+            out.write(("fake report from " + mName + "\n").getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,553 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs monkey sessions across a farm of devices from the host.
+ *
+ * The work is split into shards, one per seed of a range, each running all the
+ * packages or, with perPackage, one per seed and package. Every device has a
+ * thread of its own that takes the next shard off a shared queue and runs it,
+ * so fast devices simply do more. When a device goes away, the shard it was
+ * running goes back to the front of the queue for the others, up to a number
+ * of attempts, and the device gets no more work.
+ *
+ * The monkey output of each shard is read as it arrives: crashes, ANRs, native
+ * crashes and saved reports go into one index for the whole farm, stamped with
+ * the host clock, so events from every device are on the same timeline. Saved
+ * reports are pulled into the output directory when their shard finishes, and
+ * the full output of every shard is kept next to them.
+ *
+ * Devices are reached through the Device interface: MonkeyAdbDevice over adb,
+ * or MonkeyFakeDevice to try the farm out without hardware.
+ *
+ * Run it on the host with
+ * <pre>
+ *   java -cp monkey-host.jar com.android.commands.monkey.MonkeyFarm \
+ *       [-s SERIAL]... [--fake-devices N] -p PACKAGE... [--per-package] \
+ *       --seeds FIRST-LAST [--events N] [--attempts N] [--timeout SEC] \
+ *       --out DIR [-- MONKEY_ARGS...]
+ * </pre>
+ */
+public class MonkeyFarm {
+    /** Where the monkey saves reports on the device, see MonkeyReportCapture. */
+    static final String DEVICE_REPORT_DIR = "/sdcard/";
+
+    private static final Pattern CRASH = Pattern.compile("^// CRASH: (\\S+)");
+    private static final Pattern ANR = Pattern.compile("^// NOT RESPONDING: (\\S+)");
+    private static final Pattern TOMBSTONE = Pattern.compile("^\\*\\* New tombstone found: (\\S+)");
+    // MonkeyReportCapture.capture() prints the report name before it runs.
+    private static final Pattern REPORT = Pattern.compile("^(\\S+\\.txt):$");
+    private static final Pattern INJECTED = Pattern.compile("^Events injected: (\\d+)");
+
+    /**
+     * A device that can run the monkey. Each device is used by one thread at a time.
+     */
+    public interface Device {
+        /**
+         * @return a name for the device, used in the index and for directories
+         */
+        String getName();
+
+        /**
+         * Run the monkey on the device.
+         *
+         * @param args the monkey arguments
+         * @param listener gets each line of output as it comes
+         * @return the exit status of the monkey
+         * @throws IOException if the device can't be reached any more
+         */
+        int runMonkey(List<String> args, OutputListener listener)
+                throws IOException, InterruptedException;
+
+        /**
+         * Copy a file off the device.
+         *
+         * @return false if there is no such file
+         * @throws IOException if the device can't be reached any more
+         */
+        boolean pull(String devicePath, File local) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Receives the monkey output of a shard.
+     */
+    public interface OutputListener {
+        void onLine(String line);
+    }
+
+    /**
+     * One monkey session: a seed and the packages it may visit.
+     */
+    public static class Shard {
+        public final int index;
+        public final long seed;
+        public final List<String> packages;
+        int attempts;
+
+        public Shard(int index, long seed, List<String> packages) {
+            this.index = index;
+            this.seed = seed;
+            this.packages = packages;
+        }
+
+        String getName() {
+            return String.format("%05d_seed%d", index, seed);
+        }
+    }
+
+    private final List<Device> mDevices;
+    private final List<String> mMonkeyArgs;
+    private final long mEventCount;
+    private final int mMaxAttempts;
+    private final File mOutDir;
+    private final PrintStream mOut;
+
+    private final BlockingDeque<Shard> mQueue = new LinkedBlockingDeque<Shard>();
+    // Shards that aren't finished or given up on yet.
+    private final AtomicInteger mRemaining = new AtomicInteger();
+    private final AtomicInteger mLiveDevices = new AtomicInteger();
+
+    private final long mStartNanos = System.nanoTime();
+    private final long mStartWallMs = System.currentTimeMillis();
+    private Writer mIndex;
+
+    // Guarded by this.
+    private int mCompleted;
+    private int mFailed;
+    private int mCrashes;
+    private int mAnrs;
+    private int mNativeCrashes;
+    private int mReports;
+    private final List<String> mLostDevices = new ArrayList<String>();
+
+    /**
+     * @param devices the devices to run on
+     * @param monkeyArgs extra monkey arguments for every shard
+     * @param eventCount how many events each shard injects
+     * @param maxAttempts how many devices a shard may be tried on before giving up
+     * @param outDir where the index, output and reports go
+     * @param out where to print progress, or null for none
+     */
+    public MonkeyFarm(List<? extends Device> devices, List<String> monkeyArgs, long eventCount,
+            int maxAttempts, File outDir, PrintStream out) {
+        if (devices.isEmpty()) {
+            throw new IllegalArgumentException("no devices to run on");
+        }
+        mDevices = new ArrayList<Device>(devices);
+        mMonkeyArgs = monkeyArgs;
+        mEventCount = eventCount;
+        mMaxAttempts = Math.max(maxAttempts, 1);
+        mOutDir = outDir;
+        mOut = out;
+    }
+
+    /**
+     * Split a seed range and package list into shards.
+     *
+     * @param perPackage true for a shard per seed and package, false for a
+     *        shard per seed with all the packages
+     */
+    public static List<Shard> makeShards(long firstSeed, long lastSeed, List<String> packages,
+            boolean perPackage) {
+        List<Shard> shards = new ArrayList<Shard>();
+        for (long seed = firstSeed; seed <= lastSeed; seed++) {
+            if (perPackage && !packages.isEmpty()) {
+                for (String pkg : packages) {
+                    shards.add(new Shard(shards.size(), seed, Collections.singletonList(pkg)));
+                }
+            } else {
+                shards.add(new Shard(shards.size(), seed, packages));
+            }
+        }
+        return shards;
+    }
+
+    /**
+     * Run the shards on the devices and wait until they are all done, or
+     * there are no devices left.
+     *
+     * @return the number of shards that didn't complete
+     */
+    public int run(List<Shard> shards) throws IOException, InterruptedException {
+        if (!mOutDir.isDirectory() && !mOutDir.mkdirs()) {
+            throw new IOException("can't create " + mOutDir);
+        }
+        mIndex = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(mOutDir, "index.jsonl")), StandardCharsets.UTF_8));
+        mQueue.addAll(shards);
+        mRemaining.set(shards.size());
+        mLiveDevices.set(mDevices.size());
+        log(null, null, "farm_start", shards.size() + " shards on " + mDevices.size()
+                + " devices");
+
+        ExecutorService executor = Executors.newFixedThreadPool(mDevices.size());
+        try {
+            for (final Device device : mDevices) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        runDevice(device);
+                    }
+                });
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+            }
+        } finally {
+            executor.shutdownNow();
+            int left;
+            synchronized (this) {
+                left = shards.size() - mCompleted;
+                log(null, null, "farm_end", mCompleted + " completed, " + left + " not");
+            }
+            mIndex.close();
+        }
+        synchronized (this) {
+            return shards.size() - mCompleted;
+        }
+    }
+
+    /**
+     * Take shards off the queue until there are none left or the device goes away.
+     */
+    private void runDevice(Device device) {
+        try {
+            while (mRemaining.get() > 0) {
+                // A shard may still come back from a device that went away.
+                Shard shard = mQueue.poll(100, TimeUnit.MILLISECONDS);
+                if (shard == null) {
+                    continue;
+                }
+                try {
+                    runShard(device, shard);
+                    mRemaining.decrementAndGet();
+                } catch (IOException e) {
+                    deviceLost(device, shard, e);
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // The farm is being stopped.
+        } finally {
+            if (mLiveDevices.decrementAndGet() == 0) {
+                // Nobody is left to run what's still queued.
+                Shard shard;
+                while ((shard = mQueue.poll()) != null) {
+                    synchronized (this) {
+                        mFailed++;
+                        log(null, shard, "shard_failed", "no devices left");
+                    }
+                    mRemaining.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private void deviceLost(Device device, Shard shard, IOException e) {
+        synchronized (this) {
+            mLostDevices.add(device.getName());
+            log(device, shard, "device_lost", e.getMessage());
+            shard.attempts++;
+            if (shard.attempts >= mMaxAttempts || mLiveDevices.get() <= 1) {
+                mFailed++;
+                log(device, shard, "shard_failed", "after " + shard.attempts + " attempts");
+                mRemaining.decrementAndGet();
+                return;
+            }
+        }
+        // Give it to the next device that is free.
+        mQueue.addFirst(shard);
+    }
+
+    private void runShard(final Device device, final Shard shard)
+            throws IOException, InterruptedException {
+        final File dir = new File(new File(mOutDir, device.getName()), shard.getName());
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can't create " + dir);
+        }
+        List<String> args = new ArrayList<String>();
+        for (String pkg : shard.packages) {
+            args.add("-p");
+            args.add(pkg);
+        }
+        args.add("-s");
+        args.add(Long.toString(shard.seed));
+        args.addAll(mMonkeyArgs);
+        args.add(Long.toString(mEventCount));
+
+        log(device, shard, "shard_start", join(args));
+        final List<String> reports = new ArrayList<String>();
+        final long[] injected = { -1 };
+        final Writer output = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(dir, "monkey.txt")), StandardCharsets.UTF_8));
+        int status;
+        try {
+            status = device.runMonkey(args, new OutputListener() {
+                @Override
+                public void onLine(String line) {
+                    try {
+                        output.write(line);
+                        output.write('\n');
+                    } catch (IOException e) {
+                        // Keep going; the index still has the events.
+                    }
+                    onOutput(device, shard, line, reports, injected);
+                }
+            });
+        } finally {
+            output.close();
+        }
+
+        for (String report : reports) {
+            File local = new File(dir, report);
+            if (device.pull(DEVICE_REPORT_DIR + report, local)
+                    || device.pull(DEVICE_REPORT_DIR + report + ".gz",
+                            new File(dir, report + ".gz"))) {
+                synchronized (this) {
+                    mReports++;
+                }
+                log(device, shard, "report_pulled", report);
+            }
+        }
+        synchronized (this) {
+            mCompleted++;
+            log(device, shard, "shard_end", "status " + status + ", " + injected[0]
+                    + " events injected");
+            if (mOut != null) {
+                mOut.println("// " + device.getName() + ": " + shard.getName() + " done, "
+                        + mCompleted + " completed");
+            }
+        }
+    }
+
+    private void onOutput(Device device, Shard shard, String line, List<String> reports,
+            long[] injected) {
+        Matcher m;
+        if ((m = CRASH.matcher(line)).find()) {
+            synchronized (this) {
+                mCrashes++;
+            }
+            log(device, shard, "crash", m.group(1));
+        } else if ((m = ANR.matcher(line)).find()) {
+            synchronized (this) {
+                mAnrs++;
+            }
+            log(device, shard, "anr", m.group(1));
+        } else if ((m = TOMBSTONE.matcher(line)).find()) {
+            synchronized (this) {
+                mNativeCrashes++;
+            }
+            log(device, shard, "native_crash", m.group(1));
+        } else if ((m = REPORT.matcher(line)).find()) {
+            reports.add(m.group(1));
+            log(device, shard, "report", m.group(1));
+        } else if ((m = INJECTED.matcher(line)).find()) {
+            injected[0] = Long.parseLong(m.group(1));
+        }
+    }
+
+    /**
+     * Add an entry to the index. Entries are written in the order they happen,
+     * whichever device they come from.
+     */
+    private synchronized void log(Device device, Shard shard, String event, String detail) {
+        long elapsedMs = (System.nanoTime() - mStartNanos) / 1000000;
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"timeMs\":").append(elapsedMs);
+        sb.append(",\"wallMs\":").append(mStartWallMs + elapsedMs);
+        sb.append(",\"event\":\"").append(event).append('"');
+        if (device != null) {
+            sb.append(",\"device\":\"").append(MonkeyJson.escape(device.getName()))
+                    .append('"');
+        }
+        if (shard != null) {
+            sb.append(",\"shard\":").append(shard.index);
+            sb.append(",\"seed\":").append(shard.seed);
+            sb.append(",\"packages\":[");
+            for (int i = 0; i < shard.packages.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append('"').append(MonkeyJson.escape(shard.packages.get(i))).append('"');
+            }
+            sb.append(']');
+        }
+        if (detail != null) {
+            sb.append(",\"detail\":\"").append(MonkeyJson.escape(detail)).append('"');
+        }
+        sb.append("}\n");
+        try {
+            mIndex.write(sb.toString());
+            // Keep the index readable while the farm runs.
+            mIndex.flush();
+        } catch (IOException e) {
+            if (mOut != null) {
+                mOut.println("** Failed to write the index: " + e);
+            }
+        }
+        if (mOut != null && !event.startsWith("shard_")) {
+            mOut.println("// " + event + (device != null ? " on " + device.getName() : "")
+                    + (detail != null ? ": " + detail : ""));
+        }
+    }
+
+    /**
+     * @return a summary of the run as one line of JSON
+     */
+    public synchronized String toJson() {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"elapsedMs\":").append((System.nanoTime() - mStartNanos) / 1000000);
+        sb.append(",\"devices\":").append(mDevices.size());
+        sb.append(",\"completed\":").append(mCompleted);
+        sb.append(",\"failed\":").append(mFailed);
+        sb.append(",\"crashes\":").append(mCrashes);
+        sb.append(",\"anrs\":").append(mAnrs);
+        sb.append(",\"nativeCrashes\":").append(mNativeCrashes);
+        sb.append(",\"reports\":").append(mReports);
+        sb.append(",\"lostDevices\":[");
+        for (int i = 0; i < mLostDevices.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append(MonkeyJson.escape(mLostDevices.get(i))).append('"');
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    private static String join(List<String> args) {
+        StringBuilder sb = new StringBuilder();
+        for (String arg : args) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(arg);
+        }
+        return sb.toString();
+    }
+
+    private static void showUsage() {
+        System.err.println("usage: MonkeyFarm [-s SERIAL]... [--fake-devices N]");
+        System.err.println("           -p PACKAGE... [--per-package] --seeds FIRST-LAST");
+        System.err.println("           [--events N] [--attempts N] [--timeout SEC]");
+        System.err.println("           --out DIR [-- MONKEY_ARGS...]");
+    }
+
+    public static void main(String[] args) {
+        List<String> serials = new ArrayList<String>();
+        int fakeDevices = 0;
+        List<String> packages = new ArrayList<String>();
+        boolean perPackage = false;
+        long firstSeed = -1;
+        long lastSeed = -1;
+        long events = 10000;
+        int attempts = 3;
+        long timeoutMs = MonkeyAdbDevice.DEFAULT_TIMEOUT_MS;
+        String out = null;
+        List<String> monkeyArgs = new ArrayList<String>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("-s")) {
+                    serials.add(args[++i]);
+                } else if (arg.equals("--fake-devices")) {
+                    fakeDevices = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-p")) {
+                    packages.add(args[++i]);
+                } else if (arg.equals("--per-package")) {
+                    perPackage = true;
+                } else if (arg.equals("--seeds")) {
+                    String range = args[++i];
+                    int dash = range.indexOf('-', 1);
+                    firstSeed = Long.parseLong(dash < 0 ? range : range.substring(0, dash));
+                    lastSeed = dash < 0 ? firstSeed : Long.parseLong(range.substring(dash + 1));
+                } else if (arg.equals("--events")) {
+                    events = Long.parseLong(args[++i]);
+                } else if (arg.equals("--attempts")) {
+                    attempts = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--timeout")) {
+                    timeoutMs = Long.parseLong(args[++i]) * 1000;
+                } else if (arg.equals("--out")) {
+                    out = args[++i];
+                } else if (arg.equals("--")) {
+                    for (i++; i < args.length; i++) {
+                        monkeyArgs.add(args[i]);
+                    }
+                } else {
+                    System.err.println("** Error: Unknown option: " + arg);
+                    showUsage();
+                    System.exit(1);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("** Error: " + e);
+            showUsage();
+            System.exit(1);
+        }
+        if (out == null || firstSeed < 0 || lastSeed < firstSeed) {
+            showUsage();
+            System.exit(1);
+        }
+
+        List<Device> devices = new ArrayList<Device>();
+        for (int i = 0; i < fakeDevices; i++) {
+            devices.add(new MonkeyFakeDevice("fake" + i, 0.05, 0.02, -1, 100));
+        }
+        for (String serial : serials) {
+            devices.add(new MonkeyAdbDevice(serial, timeoutMs));
+        }
+        if (devices.isEmpty()) {
+            // Whatever single device adb picks.
+            devices.add(new MonkeyAdbDevice(null, timeoutMs));
+        }
+
+        try {
+            List<Shard> shards = makeShards(firstSeed, lastSeed, packages, perPackage);
+            MonkeyFarm farm = new MonkeyFarm(devices, monkeyArgs, events, attempts,
+                    new File(out), System.out);
+            int left = farm.run(shards);
+            System.out.println(":Farm: " + farm.toJson());
+            System.exit(left == 0 ? 0 : 2);
+        } catch (IOException e) {
+            System.err.println("** Error: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.exit(1);
+        }
+    }
+}
@@ -63,6 +63,10 @@ public class MonkeyFlipEvent extends MonkeyEvent {
         mKeyboardOpen = keyboardOpen;
     }
 
+    boolean isKeyboardOpen() {
+        return mKeyboardOpen;
+    }
+
     /**
      *
      * @param iwm wires to current window manager 未使用
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Parses the per-frame timings printed by "dumpsys gfxinfo PACKAGE framestats".
+ *
+ * Each window of the package prints its title, followed by a table between two
+ * "---PROFILEDATA---" lines: a header row of column names and then one comma
+ * separated row per frame, with times in nanoseconds. Only the Flags,
+ * IntendedVsync and FrameCompleted columns are used, and they are looked up by
+ * name, so columns added by later releases don't matter. Frames with non-zero
+ * flags (the first frame of a window, frames skipped for being too old) are
+ * left out, like gfxinfo does for its own totals.
+ *
+ * This has no Android dependencies, so it can be run against saved dumps on
+ * the host.
+ */
+public class MonkeyFrameStatsParser {
+    /** Frames that take longer than this missed a 60 Hz vsync. */
+    public static final long JANK_NANOS = 16666667;
+
+    private static final String PROFILE_DATA = "---PROFILEDATA---";
+    private static final String VISIBILITY = " (visibility=";
+    private static final String VIEW_ROOT = "/android.view.ViewRootImpl@";
+
+    /**
+     * The frames of one window in a dump, oldest first.
+     */
+    public static class Window {
+        /** The window title, normally "package/activity". */
+        public final String name;
+        /** The IntendedVsync of each frame, which identifies it across dumps. */
+        public long[] vsyncs = new long[16];
+        /** The time from IntendedVsync to FrameCompleted of each frame. */
+        public long[] durations = new long[16];
+        public int count;
+
+        Window(String name) {
+            this.name = name;
+        }
+
+        void add(long vsync, long duration) {
+            if (count == vsyncs.length) {
+                vsyncs = Arrays.copyOf(vsyncs, count * 2);
+                durations = Arrays.copyOf(durations, count * 2);
+            }
+            vsyncs[count] = vsync;
+            durations[count] = duration;
+            count++;
+        }
+    }
+
+    private MonkeyFrameStatsParser() {
+    }
+
+    /**
+     * @param durationNanos the time from IntendedVsync to FrameCompleted
+     * @return true if the frame missed its vsync at 60 Hz
+     */
+    public static boolean isJanky(long durationNanos) {
+        return durationNanos > JANK_NANOS;
+    }
+
+    /**
+     * Parse a whole dump. Rows that can't be parsed are skipped.
+     *
+     * @return the windows that had a frame table, in the order they were printed
+     */
+    public static List<Window> parse(BufferedReader reader) throws IOException {
+        List<Window> windows = new ArrayList<Window>();
+        String title = null;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            if (!trimmed.equals(PROFILE_DATA)) {
+                title = trimmed;
+                continue;
+            }
+            Window window = new Window(windowName(title));
+            parseTable(reader, window);
+            if (window.count > 0) {
+                windows.add(window);
+            }
+            title = null;
+        }
+        return windows;
+    }
+
+    /**
+     * Read the rows of one table, up to and including the closing
+     * PROFILE_DATA line.
+     */
+    private static void parseTable(BufferedReader reader, Window window) throws IOException {
+        int flagsColumn = -1;
+        int vsyncColumn = -1;
+        int completedColumn = -1;
+        long[] values = new long[0];
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.equals(PROFILE_DATA)) {
+                return;
+            }
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (vsyncColumn < 0) {
+                // The header row.
+                String[] names = line.split(",");
+                for (int i = 0; i < names.length; i++) {
+                    String name = names[i].trim();
+                    if (name.equals("Flags")) {
+                        flagsColumn = i;
+                    } else if (name.equals("IntendedVsync")) {
+                        vsyncColumn = i;
+                    } else if (name.equals("FrameCompleted")) {
+                        completedColumn = i;
+                    }
+                }
+                if (vsyncColumn < 0 || completedColumn < 0) {
+                    // Not a table we understand; skip to its end.
+                    vsyncColumn = Integer.MAX_VALUE;
+                    completedColumn = -1;
+                }
+                values = new long[names.length];
+                continue;
+            }
+            if (completedColumn < 0 || parseRow(line, values) <= Math.max(vsyncColumn,
+                    Math.max(completedColumn, flagsColumn))) {
+                continue;
+            }
+            if (flagsColumn >= 0 && values[flagsColumn] != 0) {
+                continue;
+            }
+            long vsync = values[vsyncColumn];
+            long completed = values[completedColumn];
+            if (vsync <= 0 || completed < vsync) {
+                continue;
+            }
+            window.add(vsync, completed - vsync);
+        }
+    }
+
+    /**
+     * Parse the comma separated numbers of a row into values, without
+     * splitting the line into strings.
+     *
+     * @return the number of columns parsed, or -1 if the row isn't all numbers
+     */
+    static int parseRow(String line, long[] values) {
+        int column = 0;
+        long value = 0;
+        boolean digits = false;
+        int n = line.length();
+        for (int i = 0; i < n; i++) {
+            char c = line.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                digits = true;
+            } else if (c == ',') {
+                if (!digits) {
+                    return -1;
+                }
+                if (column < values.length) {
+                    values[column] = value;
+                }
+                column++;
+                value = 0;
+                digits = false;
+            } else if (c != ' ') {
+                return -1;
+            }
+        }
+        if (digits) {
+            // The last column doesn't always have a trailing comma.
+            if (column < values.length) {
+                values[column] = value;
+            }
+            column++;
+        }
+        return Math.min(column, values.length);
+    }
+
+    /**
+     * Turn the title gfxinfo prints for a window, like
+     * "com.foo/com.foo.Main/android.view.ViewRootImpl@1a2b (visibility=0)",
+     * into "com.foo/com.foo.Main".
+     */
+    static String windowName(String title) {
+        if (title == null) {
+            return "unknown";
+        }
+        int end = title.indexOf(VISIBILITY);
+        if (end >= 0) {
+            title = title.substring(0, end);
+        }
+        end = title.lastIndexOf(VIEW_ROOT);
+        if (end >= 0) {
+            title = title.substring(0, end);
+        }
+        return title;
+    }
+}
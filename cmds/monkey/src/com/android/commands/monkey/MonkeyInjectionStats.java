@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Injection latency and throughput counters for a monkey run.
+ *
+ * Latencies are kept per event type in MonkeyLatencyHistograms, with
+ * power-of-two buckets of microseconds. Everything lives in preallocated
+ * primitive arrays, so recording an event doesn't allocate.
+ *
+ * The event rate is tracked in a ring of one-second slots, from which the
+ * rate over the last 1, 10 and 60 seconds is computed. The wall time of the
+ * main loop is also split into injecting, throttling, capturing reports and
+ * fetching events from the source.
+ *
+ * toJson() writes the whole lot as a single line of JSON.
+ */
+public class MonkeyInjectionStats {
+    private static final int TYPE_COUNT = MonkeyEvent.EVENT_TYPE_NOOP + 1;
+    private static final String[] TYPE_NAMES = {
+        "key", "touch", "trackball", "rotation", "activity", "flip", "throttle",
+        "permission", "noop"
+    };
+
+    private static final int[] RATE_WINDOWS_SEC = { 1, 10, 60 };
+    // Must be larger than the largest window, plus the current partial second.
+    private static final int SLOT_COUNT = 64;
+
+    /** Time spent injecting events. */
+    public static final int TIME_INJECT = 0;
+    /** Time spent sleeping between events. */
+    public static final int TIME_THROTTLE = 1;
+    /** Time spent on crash handling and capturing reports. */
+    public static final int TIME_REPORT = 2;
+    /** Time spent getting events from the event source. */
+    public static final int TIME_FETCH = 3;
+    private static final int TIME_COUNT = 4;
+    private static final String[] TIME_NAMES = { "inject", "throttle", "report", "fetch" };
+
+    private final long mStartNanos;
+
+    private final MonkeyLatencyHistogram[] mLatencies =
+            new MonkeyLatencyHistogram[TYPE_COUNT];
+
+    private final long[] mTimeNanos = new long[TIME_COUNT];
+
+    // Events per second; mSlots[s % SLOT_COUNT] belongs to second mSlotSecond - (age).
+    private final long[] mSlots = new long[SLOT_COUNT];
+    private long mSlotSecond;
+    private long mEvents;
+
+    public MonkeyInjectionStats() {
+        mStartNanos = System.nanoTime();
+        for (int i = 0; i < TYPE_COUNT; i++) {
+            mLatencies[i] = new MonkeyLatencyHistogram();
+        }
+    }
+
+    /**
+     * Count one injected event. The time is only added to the latency
+     * histogram; whoever waited for it adds it to the TIME_* totals, since with
+     * async injection that isn't the thread that injected it.
+     *
+     * @param eventType the MonkeyEvent.EVENT_TYPE_* of the event
+     * @param nanos how long the injection took
+     */
+    public synchronized void recordLatency(int eventType, long nanos) {
+        if (eventType < 0 || eventType >= TYPE_COUNT) {
+            return;
+        }
+        mLatencies[eventType].record(nanos / 1000);
+        advanceSlots(System.nanoTime());
+        mSlots[(int) (mSlotSecond % SLOT_COUNT)]++;
+        mEvents++;
+    }
+
+    /**
+     * Add to one of the TIME_* totals.
+     */
+    public synchronized void addTime(int what, long nanos) {
+        mTimeNanos[what] += nanos;
+    }
+
+    /**
+     * @return the events per second over the last windowSec seconds, or over
+     *         the whole run if it is shorter than that
+     */
+    public synchronized double getRate(int windowSec) {
+        long now = System.nanoTime();
+        advanceSlots(now);
+        long events = 0;
+        for (int i = 0; i < windowSec && i <= mSlotSecond; i++) {
+            events += mSlots[(int) ((mSlotSecond - i) % SLOT_COUNT)];
+        }
+        // The current second is only partly over.
+        double seconds = Math.min(windowSec - 1 + ((now - mStartNanos) % 1000000000L) / 1e9,
+                (now - mStartNanos) / 1e9);
+        return seconds > 0 ? events / seconds : 0;
+    }
+
+    private void advanceSlots(long now) {
+        long second = (now - mStartNanos) / 1000000000L;
+        if (second - mSlotSecond >= SLOT_COUNT) {
+            Arrays.fill(mSlots, 0);
+        } else {
+            for (long s = mSlotSecond + 1; s <= second; s++) {
+                mSlots[(int) (s % SLOT_COUNT)] = 0;
+            }
+        }
+        if (second > mSlotSecond) {
+            mSlotSecond = second;
+        }
+    }
+
+    /**
+     * Write the counters as one line of JSON.
+     */
+    public synchronized String toJson() {
+        long elapsedNanos = System.nanoTime() - mStartNanos;
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("{\"elapsedMs\":").append(elapsedNanos / 1000000);
+        sb.append(",\"events\":").append(mEvents);
+        sb.append(",\"rate\":{");
+        for (int i = 0; i < RATE_WINDOWS_SEC.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("\"").append(RATE_WINDOWS_SEC[i]).append("s\":");
+            sb.append(String.format(Locale.US, "%.1f", getRate(RATE_WINDOWS_SEC[i])));
+        }
+        sb.append("},\"timeMs\":{");
+        long accounted = 0;
+        for (int i = 0; i < TIME_COUNT; i++) {
+            sb.append("\"").append(TIME_NAMES[i]).append("\":")
+                    .append(mTimeNanos[i] / 1000000).append(',');
+            accounted += mTimeNanos[i];
+        }
+        sb.append("\"other\":").append(Math.max(elapsedNanos - accounted, 0) / 1000000);
+        sb.append("},\"latencyUs\":{");
+        boolean first = true;
+        for (int t = 0; t < TYPE_COUNT; t++) {
+            MonkeyLatencyHistogram latency = mLatencies[t];
+            if (latency.getCount() == 0) {
+                continue;
+            }
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append("\"").append(TYPE_NAMES[t]).append("\":{");
+            sb.append("\"count\":").append(latency.getCount());
+            sb.append(",\"mean\":").append(latency.getMeanMicros());
+            sb.append(",\"p50\":").append(latency.percentile(0.50));
+            sb.append(",\"p90\":").append(latency.percentile(0.90));
+            sb.append(",\"p99\":").append(latency.percentile(0.99));
+            sb.append(",\"max\":").append(latency.getMaxMicros());
+            sb.append(",\"buckets\":");
+            latency.appendBuckets(sb);
+            sb.append('}');
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+}
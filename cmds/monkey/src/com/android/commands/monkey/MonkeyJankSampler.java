@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Samples the frame timings of the foreground package on a background thread
+ * while the monkey runs, and builds frame time percentiles and the share of
+ * janky frames per activity, both over the whole run and per time window.
+ *
+ * gfxinfo only keeps the last 120 or so frames of each window, so it is dumped
+ * every sampling interval and the frames are told apart by their IntendedVsync:
+ * a frame that was already counted in an earlier dump is skipped. If the oldest
+ * frame of a dump is newer than the last one counted, frames may have been
+ * missed in between, and the gap is counted so a too long interval shows up.
+ *
+ * Frame times go into histograms of 1 ms buckets, so the percentiles are
+ * accurate to 1 ms. The time windows are based on the IntendedVsync of the
+ * frames, which is on the same monotonic clock as System.nanoTime().
+ */
+public class MonkeyJankSampler {
+    private static final String FRAMESTATS_CMD = "dumpsys gfxinfo %s framestats";
+
+    // 1 ms buckets; the last one also holds everything slower.
+    private static final int BUCKET_COUNT = 128;
+
+    private final long mIntervalMs;
+    private final long mWindowNanos;
+    private final long mStartNanos;
+
+    // Everything below is guarded by this.
+    private final HashMap<String, Long> mLastVsync = new HashMap<String, Long>();
+    private final TreeMap<String, Activity> mActivities = new TreeMap<String, Activity>();
+    private int mSamples;
+    private int mFailedSamples;
+    private int mGaps;
+
+    private volatile boolean mStopped;
+    private Thread mThread;
+
+    /**
+     * Frame time histogram and jank count for one activity, or one time window
+     * of it.
+     */
+    private static class Histogram {
+        final int[] buckets = new int[BUCKET_COUNT];
+        long frames;
+        long janky;
+        long maxNanos;
+
+        void add(long nanos) {
+            int bucket = (int) Math.min(nanos / 1000000, BUCKET_COUNT - 1);
+            buckets[bucket]++;
+            frames++;
+            if (MonkeyFrameStatsParser.isJanky(nanos)) {
+                janky++;
+            }
+            if (nanos > maxNanos) {
+                maxNanos = nanos;
+            }
+        }
+
+        /**
+         * Returns the upper bound in ms of the bucket holding the given
+         * fraction of the frames, capped at the slowest frame.
+         */
+        double percentile(double fraction) {
+            long target = (long) Math.ceil(frames * fraction);
+            long seen = 0;
+            double max = maxNanos / 1e6;
+            for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+                seen += buckets[i];
+                if (seen >= target) {
+                    return Math.min(i + 1, max);
+                }
+            }
+            return max;
+        }
+
+        void appendJson(StringBuilder sb) {
+            sb.append("\"frames\":").append(frames);
+            sb.append(",\"janky\":").append(janky);
+            sb.append(String.format(Locale.US,
+                    ",\"jankyPct\":%.2f,\"p50\":%.1f,\"p90\":%.1f,\"p99\":%.1f,\"max\":%.1f",
+                    frames > 0 ? janky * 100.0 / frames : 0.0, percentile(0.50),
+                    percentile(0.90), percentile(0.99), maxNanos / 1e6));
+        }
+    }
+
+    private static class Activity {
+        final Histogram total = new Histogram();
+        // Time window index to its histogram.
+        final TreeMap<Long, Histogram> windows = new TreeMap<Long, Histogram>();
+    }
+
+    /**
+     * @param intervalMs how often to dump the frame timings
+     * @param windowMs the length of the time windows of the series
+     */
+    public MonkeyJankSampler(long intervalMs, long windowMs) {
+        mIntervalMs = intervalMs;
+        mWindowNanos = Math.max(windowMs, 1) * 1000000;
+        mStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Start sampling on a background thread.
+     */
+    public void start() {
+        mThread = new Thread("MonkeyJankSampler") {
+            @Override
+            public void run() {
+                while (!mStopped) {
+                    String pkg = Monkey.currentPackage;
+                    if (pkg != null) {
+                        sample(pkg);
+                    }
+                    try {
+                        Thread.sleep(mIntervalMs);
+                    } catch (InterruptedException e) {
+                        break; // stop() was called
+                    }
+                }
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stop sampling, taking one last sample so the frames of the last
+     * interval are counted too.
+     */
+    public void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mStopped = true;
+        mThread.interrupt();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+        String pkg = Monkey.currentPackage;
+        if (pkg != null) {
+            sample(pkg);
+        }
+    }
+
+    /**
+     * Dump the frame timings of a package and add the new frames.
+     */
+    private void sample(String pkg) {
+        String cmd = String.format(FRAMESTATS_CMD, pkg);
+        Process p = null;
+        try {
+            p = Runtime.getRuntime().exec(cmd);
+            // Read all of the output before waiting, so a large dump can't
+            // fill the pipe and block the command.
+            BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+            try {
+                addDump(reader);
+            } finally {
+                reader.close();
+            }
+            int status = p.waitFor();
+            if (status != 0) {
+                Logger.err.println("// Shell command " + cmd + " status was " + status);
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                mFailedSamples++;
+            }
+            if (!mStopped) {
+                Logger.err.println("// Exception from " + cmd + ": " + e);
+            }
+        } catch (InterruptedException e) {
+            // stop() was called while waiting for the command
+        } finally {
+            if (p != null) {
+                p.destroy();
+            }
+        }
+    }
+
+    /**
+     * Add the frames of one framestats dump that weren't in an earlier one.
+     */
+    public void addDump(BufferedReader reader) throws IOException {
+        List<MonkeyFrameStatsParser.Window> windows = MonkeyFrameStatsParser.parse(reader);
+        synchronized (this) {
+            mSamples++;
+            for (MonkeyFrameStatsParser.Window window : windows) {
+                addWindow(window);
+            }
+        }
+    }
+
+    private void addWindow(MonkeyFrameStatsParser.Window window) {
+        Long last = mLastVsync.get(window.name);
+        long lastVsync = last != null ? last : Long.MIN_VALUE;
+        if (last != null && window.vsyncs[0] > lastVsync) {
+            mGaps++; // the dump starts after the last frame counted
+        }
+        Activity activity = mActivities.get(window.name);
+        if (activity == null) {
+            activity = new Activity();
+            mActivities.put(window.name, activity);
+        }
+        long newest = lastVsync;
+        for (int i = 0; i < window.count; i++) {
+            long vsync = window.vsyncs[i];
+            if (vsync <= lastVsync) {
+                continue;
+            }
+            long duration = window.durations[i];
+            activity.total.add(duration);
+            long index = Math.max(vsync - mStartNanos, 0) / mWindowNanos;
+            Histogram histogram = activity.windows.get(index);
+            if (histogram == null) {
+                histogram = new Histogram();
+                activity.windows.put(index, histogram);
+            }
+            histogram.add(duration);
+            newest = Math.max(newest, vsync);
+        }
+        mLastVsync.put(window.name, newest);
+    }
+
+    /**
+     * Print one summary line per activity.
+     */
+    public synchronized void printSummary() {
+        for (Map.Entry<String, Activity> entry : mActivities.entrySet()) {
+            Histogram total = entry.getValue().total;
+            if (total.frames == 0) {
+                continue;
+            }
+            Logger.out.println(String.format(Locale.US,
+                    "// Frame stats: %s frames=%d p50=%.0fms p90=%.0fms p99=%.0fms janky=%.1f%%",
+                    entry.getKey(), total.frames, total.percentile(0.50),
+                    total.percentile(0.90), total.percentile(0.99),
+                    total.janky * 100.0 / total.frames));
+        }
+        if (mGaps > 0) {
+            Logger.out.println("// Frame stats: frames may have been missed " + mGaps
+                    + " times, use a shorter sampling interval");
+        }
+    }
+
+    /**
+     * Write everything as one line of JSON: per activity the totals and a
+     * series of time windows, each starting windowMs after the previous one.
+     */
+    public synchronized String toJson() {
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("{\"intervalMs\":").append(mIntervalMs);
+        sb.append(",\"windowMs\":").append(mWindowNanos / 1000000);
+        sb.append(",\"samples\":").append(mSamples);
+        sb.append(",\"failedSamples\":").append(mFailedSamples);
+        sb.append(",\"gaps\":").append(mGaps);
+        sb.append(",\"activities\":[");
+        boolean first = true;
+        for (Map.Entry<String, Activity> entry : mActivities.entrySet()) {
+            Activity activity = entry.getValue();
+            if (activity.total.frames == 0) {
+                continue;
+            }
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append("{\"name\":\"").append(MonkeyJson.escape(entry.getKey())).append("\",");
+            activity.total.appendJson(sb);
+            sb.append(",\"series\":[");
+            boolean firstWindow = true;
+            for (Map.Entry<Long, Histogram> window : activity.windows.entrySet()) {
+                if (!firstWindow) {
+                    sb.append(',');
+                }
+                firstWindow = false;
+                sb.append("{\"startMs\":").append(window.getKey() * (mWindowNanos / 1000000))
+                        .append(',');
+                window.getValue().appendJson(sb);
+                sb.append('}');
+            }
+            sb.append("]}");
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    /**
+     * Write the JSON to a file.
+     */
+    public void writeJson(File file) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(toJson());
+            writer.write('\n');
+        } finally {
+            writer.close();
+        }
+    }
+}
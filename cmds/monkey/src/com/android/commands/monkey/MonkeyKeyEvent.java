@@ -82,6 +82,28 @@ public class MonkeyKeyEvent extends MonkeyEvent {
         mKeyEvent = e;
     }
 
+    /**
+     * Start over as a new key event. Used by MonkeyEventPool.
+     */
+    void init(int action, int keyCode) {
+        mAction = action;
+        mKeyCode = keyCode;
+    }
+
+    @Override
+    protected void reset() {
+        super.reset();
+        mDownTime = -1;
+        mEventTime = -1;
+        mAction = 0;
+        mKeyCode = 0;
+        mRepeatCount = 0;
+        mMetaState = 0;
+        mDeviceId = KeyCharacterMap.VIRTUAL_KEYBOARD;
+        mScanCode = 0;
+        mKeyEvent = null;
+    }
+
     public int getKeyCode() {
         return mKeyEvent != null ? mKeyEvent.getKeyCode() : mKeyCode;
     }
@@ -98,6 +120,22 @@ public class MonkeyKeyEvent extends MonkeyEvent {
         return mKeyEvent != null ? mKeyEvent.getEventTime() : mEventTime;
     }
 
+    int getRepeatCount() {
+        return mKeyEvent != null ? mKeyEvent.getRepeatCount() : mRepeatCount;
+    }
+
+    int getMetaState() {
+        return mKeyEvent != null ? mKeyEvent.getMetaState() : mMetaState;
+    }
+
+    int getDeviceId() {
+        return mKeyEvent != null ? mKeyEvent.getDeviceId() : mDeviceId;
+    }
+
+    int getScanCode() {
+        return mKeyEvent != null ? mKeyEvent.getScanCode() : mScanCode;
+    }
+
     public void setDownTime(long downTime) {
         if (mKeyEvent != null) {
             throw new IllegalStateException("Cannot modify down time of this key event.");
@@ -130,6 +168,16 @@ public class MonkeyKeyEvent extends MonkeyEvent {
      */
     @Override
     public int injectEvent(IWindowManager iwm, IActivityManager iam, int verbose) {
+        return injectEvent(iwm, iam, verbose,
+                InputManager.INJECT_INPUT_EVENT_MODE_WAIT_FOR_RESULT);
+    }
+
+    /**
+     * Inject with the given InputManager.INJECT_INPUT_EVENT_MODE_* mode. With
+     * INJECT_INPUT_EVENT_MODE_ASYNC, INJECT_FAIL only means the event was
+     * rejected before it was queued for dispatch.
+     */
+    int injectEvent(IWindowManager iwm, IActivityManager iam, int verbose, int mode) {
         if (verbose > 1) {
             String note;  //用于存储动作的字符串
             if (mAction == KeyEvent.ACTION_UP) {
@@ -158,13 +206,19 @@ public class MonkeyKeyEvent extends MonkeyEvent {
             if (downTime <= 0) { //如果按下时间小于事件的发生时间
                 downTime = eventTime; //那么按下时间就用最近的发生时间
             }
-            keyEvent = new KeyEvent(downTime, eventTime, mAction, mKeyCode,
+            keyEvent = KeyEvent.obtain(downTime, eventTime, mAction, mKeyCode,
                     mRepeatCount, mMetaState, mDeviceId, mScanCode,
-                    KeyEvent.FLAG_FROM_SYSTEM, InputDevice.SOURCE_KEYBOARD);
+                    KeyEvent.FLAG_FROM_SYSTEM, InputDevice.SOURCE_KEYBOARD, null); //从KeyEvent的缓存中获取对象，注入后回收，避免每次都创建新对象
         }
-        if (!InputManager.getInstance().injectInputEvent(keyEvent,
-                InputManager.INJECT_INPUT_EVENT_MODE_WAIT_FOR_RESULT)) { //如果IMS注入事件失败，则返回INJECT_FAIL，表示注入事件失败
-            return MonkeyEvent.INJECT_FAIL; //key事件，也是通过InputManagerService系统服务注入的……
+        try {
+            if (!InputManager.getInstance().injectInputEvent(keyEvent,
+                    mode)) { //如果IMS注入事件失败，则返回INJECT_FAIL，表示注入事件失败
+                return MonkeyEvent.INJECT_FAIL; //key事件，也是通过InputManagerService系统服务注入的……
+            }
+        } finally {
+            if (keyEvent != mKeyEvent) {
+                keyEvent.recycle(); //只回收自己获取的KeyEvent对象，外部传入的不回收
+            }
         }
         return MonkeyEvent.INJECT_SUCCESS; //其他情况下返回注入事件成功
     }
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+/**
+ * A histogram of durations in microseconds with power-of-two buckets: bucket
+ * i counts the durations of at least 2^(i-1) and less than 2^i microseconds,
+ * and the last bucket everything longer. It also keeps the count, sum and
+ * maximum. Recording doesn't allocate. It isn't thread safe; the owner
+ * synchronizes.
+ *
+ * Used for the injection latencies of MonkeyInjectionStats and the schedule
+ * lag of MonkeyPacer. It has no dependencies on the Android framework.
+ */
+class MonkeyLatencyHistogram {
+    static final int BUCKET_COUNT = 32;
+
+    private final long[] mBuckets = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mSumMicros;
+    private long mMaxMicros;
+
+    void record(long micros) {
+        int bucket = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+        if (bucket >= BUCKET_COUNT) {
+            bucket = BUCKET_COUNT - 1;
+        }
+        mBuckets[bucket]++;
+        mCount++;
+        mSumMicros += micros;
+        if (micros > mMaxMicros) {
+            mMaxMicros = micros;
+        }
+    }
+
+    long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the mean in microseconds, or 0 if nothing was recorded
+     */
+    long getMeanMicros() {
+        return mCount > 0 ? mSumMicros / mCount : 0;
+    }
+
+    long getMaxMicros() {
+        return mMaxMicros;
+    }
+
+    /**
+     * @return the upper bound, in microseconds, of the bucket that holds the
+     *         given fraction of the durations, capped at the maximum
+     */
+    long percentile(double fraction) {
+        long target = (long) Math.ceil(mCount * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets[i];
+            if (seen >= target) {
+                return Math.min(i == 0 ? 1 : 1L << i, mMaxMicros);
+            }
+        }
+        return mMaxMicros;
+    }
+
+    /**
+     * Append the bucket counts as a JSON array, leaving out the trailing
+     * empty buckets.
+     */
+    void appendBuckets(StringBuilder sb) {
+        int last = BUCKET_COUNT - 1;
+        while (last > 0 && mBuckets[last] == 0) {
+            last--;
+        }
+        sb.append('[');
+        for (int i = 0; i <= last; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(mBuckets[i]);
+        }
+        sb.append(']');
+    }
+}
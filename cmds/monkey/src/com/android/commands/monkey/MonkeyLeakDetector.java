@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The memory samples of MonkeyMemorySampler and the check for slow leaks in
+ * them. It has no dependencies on the Android framework.
+ *
+ * The total PSS, Java heap and native heap of each sample are appended to a
+ * time series of primitive arrays for the package. Memory goes up and down as
+ * the monkey moves between screens, so the samples aren't compared directly.
+ * Instead, while an activity is in the foreground the lowest PSS seen is kept
+ * as the baseline of that visit, and each activity keeps the baselines of its
+ * last VISIT_WINDOW visits. A least squares slope is fitted to them whenever a
+ * visit ends. If it is above the threshold by MIN_STANDARD_ERRORS standard
+ * errors, and the growth it adds up to over those visits is more than
+ * MIN_GROWTH_KB, the package is taken to be leaking.
+ *
+ * Not thread safe.
+ */
+public class MonkeyLeakDetector {
+    /** How many visits of an activity the slope is fitted to. */
+    public static final int VISIT_WINDOW = 16;
+
+    /** Growth over the visits below which a slope is taken to be noise. */
+    public static final int MIN_GROWTH_KB = 2048;
+
+    /**
+     * How many standard errors the slope has to be above the threshold by, so
+     * that the scatter of the baselines isn't taken for a trend.
+     */
+    public static final double MIN_STANDARD_ERRORS = 2;
+
+    /** Indexes into the values filled in by parseMeminfo(). */
+    public static final int PSS = 0;
+    public static final int JAVA_HEAP = 1;
+    public static final int NATIVE_HEAP = 2;
+    public static final int VALUE_COUNT = 3;
+
+    private final double mThresholdKbPerMin;
+    private final TreeMap<String, Series> mSeries = new TreeMap<String, Series>();
+
+    /**
+     * The samples of one package, and the visits of its activities.
+     */
+    private static class Series {
+        int count;
+        int[] seconds = new int[64];
+        int[][] values = new int[VALUE_COUNT][64];
+
+        // The activity seen in the foreground at the last sample, and the
+        // lowest PSS and its time so far in that visit.
+        String visiting;
+        int visitMinKb;
+        double visitMinMinutes;
+
+        final HashMap<String, Visits> visits = new HashMap<String, Visits>();
+
+        boolean leaking;
+        String leakActivity;
+        double leakSlope;
+
+        void add(int second, int[] sample) {
+            if (count == seconds.length) {
+                seconds = Arrays.copyOf(seconds, count * 2);
+                for (int i = 0; i < VALUE_COUNT; i++) {
+                    values[i] = Arrays.copyOf(values[i], count * 2);
+                }
+            }
+            seconds[count] = second;
+            for (int i = 0; i < VALUE_COUNT; i++) {
+                values[i][count] = sample[i];
+            }
+            count++;
+        }
+    }
+
+    /**
+     * The baselines of the last VISIT_WINDOW visits of an activity, in a ring.
+     */
+    private static class Visits {
+        final double[] minutes = new double[VISIT_WINDOW];
+        final int[] baselineKb = new int[VISIT_WINDOW];
+        int next;
+        int total;
+
+        void add(double minute, int kb) {
+            minutes[next] = minute;
+            baselineKb[next] = kb;
+            next = (next + 1) % VISIT_WINDOW;
+            total++;
+        }
+
+        boolean isFull() {
+            return total >= VISIT_WINDOW;
+        }
+
+        /**
+         * Returns the least squares slope of the baselines in KB per minute.
+         */
+        double slope() {
+            int n = Math.min(total, VISIT_WINDOW);
+            return MonkeyLeakDetector.slope(minutes, baselineKb, n);
+        }
+
+        /**
+         * Returns the standard error of a slope fitted to the baselines.
+         */
+        double standardError(double slope) {
+            int n = Math.min(total, VISIT_WINDOW);
+            if (n < 3) {
+                return Double.MAX_VALUE;
+            }
+            double mx = 0, my = 0;
+            for (int i = 0; i < n; i++) {
+                mx += minutes[i];
+                my += baselineKb[i];
+            }
+            mx /= n;
+            my /= n;
+            double sxx = 0, residuals = 0;
+            for (int i = 0; i < n; i++) {
+                double dx = minutes[i] - mx;
+                double r = baselineKb[i] - my - slope * dx;
+                sxx += dx * dx;
+                residuals += r * r;
+            }
+            return sxx > 0 ? Math.sqrt(residuals / (n - 2) / sxx) : Double.MAX_VALUE;
+        }
+
+        /**
+         * Returns the time between the oldest and newest visit in the ring.
+         */
+        double span() {
+            int n = Math.min(total, VISIT_WINDOW);
+            double lo = Double.MAX_VALUE, hi = -Double.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                lo = Math.min(lo, minutes[i]);
+                hi = Math.max(hi, minutes[i]);
+            }
+            return n > 0 ? hi - lo : 0;
+        }
+    }
+
+    /**
+     * @param thresholdKbPerMin the slope of the visit baselines above which a
+     *        package is taken to be leaking
+     */
+    public MonkeyLeakDetector(double thresholdKbPerMin) {
+        mThresholdKbPerMin = thresholdKbPerMin;
+    }
+
+    public double getThresholdKbPerMin() {
+        return mThresholdKbPerMin;
+    }
+
+    /**
+     * Parse the output of "dumpsys meminfo PACKAGE" into the PSS, Java heap
+     * and native heap in KB, from the "App Summary" section. Releases without
+     * one only have the total PSS, from the TOTAL row of the main table, and
+     * the heaps are left at 0.
+     *
+     * @param values filled in at PSS, JAVA_HEAP and NATIVE_HEAP
+     * @return true if the total PSS was found
+     */
+    public static boolean parseMeminfo(BufferedReader reader, int[] values) throws IOException {
+        Arrays.fill(values, 0);
+        boolean found = false;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String trimmed = line.trim();
+            if (trimmed.startsWith("Java Heap:")) {
+                values[JAVA_HEAP] = firstNumber(trimmed, "Java Heap:".length());
+            } else if (trimmed.startsWith("Native Heap:")) {
+                values[NATIVE_HEAP] = firstNumber(trimmed, "Native Heap:".length());
+            } else if (trimmed.startsWith("TOTAL PSS:")) {
+                values[PSS] = firstNumber(trimmed, "TOTAL PSS:".length());
+                found = values[PSS] > 0;
+            } else if (trimmed.startsWith("TOTAL:")) {
+                values[PSS] = firstNumber(trimmed, "TOTAL:".length());
+                found = values[PSS] > 0;
+            } else if (!found && trimmed.startsWith("TOTAL ")) {
+                values[PSS] = firstNumber(trimmed, "TOTAL".length());
+                found = values[PSS] > 0;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the first run of digits at or after start, or 0 if there is none.
+     */
+    private static int firstNumber(String s, int start) {
+        int n = s.length();
+        int i = start;
+        while (i < n && (s.charAt(i) < '0' || s.charAt(i) > '9')) {
+            i++;
+        }
+        long value = 0;
+        while (i < n && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+            value = value * 10 + (s.charAt(i) - '0');
+            i++;
+        }
+        return (int) Math.min(value, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Add a sample of a package and check it for leaks.
+     *
+     * @param activity the activity of the package in the foreground, or null
+     *        if it isn't in the foreground
+     * @param elapsedMs the time since sampling started
+     * @param sample the values filled in by parseMeminfo()
+     * @return true if this sample showed the package to be leaking. Each
+     *         package is only reported once.
+     */
+    public boolean addSample(String pkg, String activity, long elapsedMs, int[] sample) {
+        Series series = mSeries.get(pkg);
+        if (series == null) {
+            series = new Series();
+            mSeries.put(pkg, series);
+        }
+        series.add((int) (elapsedMs / 1000), sample);
+
+        double minutes = elapsedMs / 60000.0;
+        int pss = sample[PSS];
+        if (activity != null && activity.equals(series.visiting)) {
+            if (pss < series.visitMinKb) {
+                series.visitMinKb = pss;
+                series.visitMinMinutes = minutes;
+            }
+            return false;
+        }
+        boolean leaking = series.visiting != null && endVisit(series);
+        series.visiting = activity;
+        series.visitMinKb = pss;
+        series.visitMinMinutes = minutes;
+        return leaking;
+    }
+
+    /**
+     * Add the baseline of the visit that just ended to its activity.
+     *
+     * @return true if the package is now taken to be leaking
+     */
+    private boolean endVisit(Series series) {
+        Visits visits = series.visits.get(series.visiting);
+        if (visits == null) {
+            visits = new Visits();
+            series.visits.put(series.visiting, visits);
+        }
+        visits.add(series.visitMinMinutes, series.visitMinKb);
+        if (series.leaking || !visits.isFull()) {
+            return false;
+        }
+        double slope = visits.slope();
+        if (slope - MIN_STANDARD_ERRORS * visits.standardError(slope) > mThresholdKbPerMin
+                && slope * visits.span() >= MIN_GROWTH_KB) {
+            series.leaking = true;
+            series.leakActivity = series.visiting;
+            series.leakSlope = slope;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the package has been taken to be leaking
+     */
+    public boolean isLeaking(String pkg) {
+        Series series = mSeries.get(pkg);
+        return series != null && series.leaking;
+    }
+
+    /**
+     * @return the activity whose visits showed the leak, or null if the
+     *         package isn't leaking
+     */
+    public String getLeakActivity(String pkg) {
+        Series series = mSeries.get(pkg);
+        return series != null ? series.leakActivity : null;
+    }
+
+    /**
+     * @return the slope of the visits that showed the leak in KB per minute,
+     *         or 0 if the package isn't leaking
+     */
+    public double getLeakSlope(String pkg) {
+        Series series = mSeries.get(pkg);
+        return series != null ? series.leakSlope : 0;
+    }
+
+    /**
+     * @return the least squares slope of all of the PSS samples of a package,
+     *         in KB per minute
+     */
+    public double getTrend(String pkg) {
+        Series series = mSeries.get(pkg);
+        if (series == null) {
+            return 0;
+        }
+        double[] minutes = new double[series.count];
+        for (int i = 0; i < series.count; i++) {
+            minutes[i] = series.seconds[i] / 60.0;
+        }
+        return slope(minutes, series.values[PSS], series.count);
+    }
+
+    /**
+     * Returns the least squares slope of the first n points.
+     */
+    static double slope(double[] x, int[] y, int n) {
+        double sx = 0, sy = 0, sxx = 0, sxy = 0;
+        for (int i = 0; i < n; i++) {
+            sx += x[i];
+            sy += y[i];
+            sxx += x[i] * x[i];
+            sxy += x[i] * y[i];
+        }
+        double d = n * sxx - sx * sx;
+        return d > 0 ? (n * sxy - sx * sy) / d : 0;
+    }
+
+    /**
+     * Returns one summary line per package, in the order of their names.
+     */
+    public String[] summarize() {
+        String[] lines = new String[mSeries.size()];
+        int n = 0;
+        for (Map.Entry<String, Series> entry : mSeries.entrySet()) {
+            Series series = entry.getValue();
+            int[] pss = series.values[PSS];
+            int max = 0;
+            for (int i = 0; i < series.count; i++) {
+                max = Math.max(max, pss[i]);
+            }
+            lines[n++] = String.format(Locale.US,
+                    "%s samples=%d pss first=%dKB last=%dKB max=%dKB trend=%.1fKB/min%s",
+                    entry.getKey(), series.count, pss[0], pss[series.count - 1], max,
+                    getTrend(entry.getKey()), series.leaking ? " LEAK" : "");
+        }
+        return lines;
+    }
+
+    /**
+     * Append the packages as a JSON array, with the samples of each package
+     * as parallel arrays.
+     */
+    public void appendJson(StringBuilder sb) {
+        sb.append('[');
+        boolean first = true;
+        for (Map.Entry<String, Series> entry : mSeries.entrySet()) {
+            Series series = entry.getValue();
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append("{\"name\":\"").append(entry.getKey()).append('"');
+            sb.append(String.format(Locale.US, ",\"trendKbPerMin\":%.1f",
+                    getTrend(entry.getKey())));
+            sb.append(",\"leak\":").append(series.leaking);
+            if (series.leaking) {
+                sb.append(",\"leakActivity\":\"").append(series.leakActivity).append('"');
+                sb.append(String.format(Locale.US, ",\"leakKbPerMin\":%.1f", series.leakSlope));
+            }
+            appendArray(sb, "seconds", series.seconds, series.count);
+            appendArray(sb, "pssKb", series.values[PSS], series.count);
+            appendArray(sb, "javaHeapKb", series.values[JAVA_HEAP], series.count);
+            appendArray(sb, "nativeHeapKb", series.values[NATIVE_HEAP], series.count);
+            sb.append('}');
+        }
+        sb.append(']');
+    }
+
+    private static void appendArray(StringBuilder sb, String name, int[] values, int count) {
+        sb.append(",\"").append(name).append("\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(values[i]);
+        }
+        sb.append(']');
+    }
+}
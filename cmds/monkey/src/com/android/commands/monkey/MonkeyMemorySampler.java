@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.content.ComponentName;
+import android.content.Intent;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Samples the memory use of the target packages on a background thread during
+ * long runs, and looks for slow leaks.
+ *
+ * Every interval "dumpsys meminfo PACKAGE" is run for each target package, or
+ * for the foreground package if no packages were given with -p, and the total
+ * PSS, Java heap and native heap are added to the samples of that package.
+ *
+ * MonkeyLeakDetector keeps the series and looks for activities whose memory
+ * grows from visit to visit. When a package is taken to be leaking, a heap
+ * dump, and with --bugreport a bugreport, are captured once for it, through
+ * the report capture so they don't hold up injection.
+ */
+public class MonkeyMemorySampler {
+    private static final String MEMINFO_CMD = "dumpsys meminfo %s";
+    private static final String DUMPHEAP_CMD = "am dumpheap %s %s";
+    private static final String HEAP_DUMP_DIR = "/data/local/tmp";
+
+    private final long mIntervalMs;
+    private final String[] mPackages;
+    private final MonkeyReportCapture mReportCapture;
+    private final boolean mTakeBugreport;
+    private final long mStartMs;
+
+    // Guarded by this.
+    private final MonkeyLeakDetector mDetector;
+    private int mFailedSamples;
+
+    private volatile boolean mStopped;
+    private Thread mThread;
+
+    /**
+     * @param intervalMs how often to sample
+     * @param thresholdKbPerMin the slope of the visit baselines above which a
+     *        package is taken to be leaking
+     * @param packages the packages to sample, or an empty set to sample the
+     *        foreground package
+     * @param reportCapture captures the heap dump and bugreport of a leak
+     * @param takeBugreport whether to take a bugreport of a leak as well as a
+     *        heap dump
+     */
+    public MonkeyMemorySampler(long intervalMs, double thresholdKbPerMin, Set<String> packages,
+            MonkeyReportCapture reportCapture, boolean takeBugreport) {
+        mIntervalMs = intervalMs;
+        mDetector = new MonkeyLeakDetector(thresholdKbPerMin);
+        mPackages = packages.toArray(new String[packages.size()]);
+        Arrays.sort(mPackages);
+        mReportCapture = reportCapture;
+        mTakeBugreport = takeBugreport;
+        mStartMs = System.currentTimeMillis();
+    }
+
+    /**
+     * Start sampling on a background thread.
+     */
+    public void start() {
+        mThread = new Thread("MonkeyMemorySampler") {
+            @Override
+            public void run() {
+                while (!mStopped) {
+                    sampleAll();
+                    try {
+                        Thread.sleep(mIntervalMs);
+                    } catch (InterruptedException e) {
+                        break; // stop() was called
+                    }
+                }
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stop sampling and wait for the sampler thread to finish.
+     */
+    public void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mStopped = true;
+        mThread.interrupt();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    private void sampleAll() {
+        String foreground = Monkey.currentPackage;
+        Intent intent = Monkey.currentIntent;
+        ComponentName component = intent != null ? intent.getComponent() : null;
+        String activity = null;
+        if (component != null && component.getPackageName().equals(foreground)) {
+            activity = component.getClassName();
+        }
+
+        String[] packages = mPackages;
+        if (packages.length == 0) {
+            if (foreground == null) {
+                return;
+            }
+            packages = new String[] { foreground };
+        }
+        int[] sample = new int[MonkeyLeakDetector.VALUE_COUNT];
+        for (String pkg : packages) {
+            if (mStopped) {
+                return;
+            }
+            if (dumpMeminfo(pkg, sample) && addSample(pkg, pkg.equals(foreground) ? activity : null,
+                    System.currentTimeMillis() - mStartMs, sample)) {
+                captureLeak(pkg);
+            }
+        }
+    }
+
+    /**
+     * Run dumpsys meminfo for a package.
+     *
+     * @return false if it failed or the package isn't running
+     */
+    private boolean dumpMeminfo(String pkg, int[] sample) {
+        String cmd = String.format(MEMINFO_CMD, pkg);
+        Process p = null;
+        try {
+            p = Runtime.getRuntime().exec(cmd);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+            boolean parsed;
+            try {
+                parsed = MonkeyLeakDetector.parseMeminfo(reader, sample);
+            } finally {
+                reader.close();
+            }
+            p.waitFor();
+            return parsed;
+        } catch (IOException e) {
+            synchronized (this) {
+                mFailedSamples++;
+            }
+            if (!mStopped) {
+                Logger.err.println("// Exception from " + cmd + ": " + e);
+            }
+            return false;
+        } catch (InterruptedException e) {
+            return false; // stop() was called while waiting for the command
+        } finally {
+            if (p != null) {
+                p.destroy();
+            }
+        }
+    }
+
+    /**
+     * Add a sample of a package to the detector, and report it if it shows
+     * the package to be leaking.
+     *
+     * @return true if the package is newly taken to be leaking
+     */
+    private synchronized boolean addSample(String pkg, String activity, long elapsedMs,
+            int[] sample) {
+        if (!mDetector.addSample(pkg, activity, elapsedMs, sample)) {
+            return false;
+        }
+        Logger.out.println(String.format(Locale.US,
+                "// Memory: possible leak in %s: %s grew %.0f KB/min over its last %d visits",
+                pkg, mDetector.getLeakActivity(pkg), mDetector.getLeakSlope(pkg),
+                MonkeyLeakDetector.VISIT_WINDOW));
+        return true;
+    }
+
+    /**
+     * Dump the heap of a leaking package and, if asked to, take a bugreport.
+     * Without --bugreport the capture would print it to the log. With
+     * --async-reports they run on the report threads, otherwise on the sampler
+     * thread; either way the main loop keeps injecting.
+     */
+    private void captureLeak(final String pkg) {
+        if (mReportCapture == null) {
+            return;
+        }
+        String time = MonkeyUtils.toCalendarTime(System.currentTimeMillis())
+                .replaceAll("[ ,:]", "_");
+        final String heapFile = HEAP_DUMP_DIR + "/leak_" + pkg + "_" + time + ".hprof";
+        final String reportName = "leak_" + pkg + "_" + time + ".txt";
+        mReportCapture.submit("leak " + pkg, new Runnable() {
+            @Override
+            public void run() {
+                mReportCapture.capture("heap dump " + heapFile,
+                        String.format(DUMPHEAP_CMD, pkg, heapFile));
+                if (mTakeBugreport) {
+                    mReportCapture.capture(reportName, "bugreport");
+                }
+            }
+        });
+    }
+
+    /**
+     * Print one summary line per package.
+     */
+    public synchronized void printSummary() {
+        for (String line : mDetector.summarize()) {
+            Logger.out.println("// Memory: " + line);
+        }
+    }
+
+    /**
+     * Write everything as one line of JSON, with the samples of each package
+     * as parallel arrays.
+     */
+    public synchronized String toJson() {
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("{\"intervalMs\":").append(mIntervalMs);
+        sb.append(String.format(Locale.US, ",\"thresholdKbPerMin\":%.1f",
+                mDetector.getThresholdKbPerMin()));
+        sb.append(",\"failedSamples\":").append(mFailedSamples);
+        sb.append(",\"packages\":");
+        mDetector.appendJson(sb);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    /**
+     * Write the JSON to a file.
+     */
+    public void writeJson(File file) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(toJson());
+            writer.write('\n');
+        } finally {
+            writer.close();
+        }
+    }
+}
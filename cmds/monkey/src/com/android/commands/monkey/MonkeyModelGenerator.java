@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.util.Random;
+
+/**
+ * Generates gestures by walking a MonkeyEventModel, the way MonkeyEventGenerator
+ * does from the event percentages. It has no dependencies on the Android
+ * framework; events go to an EventSink.
+ *
+ * Each call draws one symbol and turns it into events: a pointer gesture
+ * starts at a random point of its region, and drags and pinches end in a
+ * region drawn from the model. The hold and pause times drawn for the gesture
+ * are left in getStepMillis() and getGapMillis() for the caller to apply,
+ * since a sink only knows about events.
+ */
+public class MonkeyModelGenerator {
+    // Frame time the moves of a drag or pinch are spread over.
+    private static final long MOVE_INTERVAL_MS = 16;
+    private static final int MAX_MOVES = 30;
+    private static final int TRACKBALL_MOVES = 10;
+
+    private final MonkeyEventModel mModel;
+    private final int[] mAppIndices;
+    private final int mAppCount;
+    private final MonkeyDisplaySize mDisplay;
+    private final MonkeyClock mClock;
+    private final Random mRandom;
+
+    // Most recent first, in the form MonkeyEventModel.stateKey() takes.
+    private final int[] mHistory = new int[MonkeyEventModel.MAX_ORDER];
+    // The model activity the session is in, plus one, or 0 if not known.
+    private int mActivity;
+    private boolean mKeyboardOpen = false;
+
+    private long mStepMillis;
+    private long mGapMillis;
+    private int mGesture = -1;
+
+    // Scratch space for the pointer coordinates of the current gesture.
+    private final float[] mPointers = new float[4];
+    private final float[] mPoint = new float[2];
+
+    /**
+     * @param model the model to walk
+     * @param appIndices for each activity of the model, the index of the same
+     *        main activity, or -1 if it isn't one
+     * @param appCount the number of main activities to switch between
+     * @param display the display that pointer events are confined to
+     * @param clock the source of event down times
+     * @param random the random number source for everything
+     */
+    public MonkeyModelGenerator(MonkeyEventModel model, int[] appIndices, int appCount,
+            MonkeyDisplaySize display, MonkeyClock clock, Random random) {
+        mModel = model;
+        mAppIndices = appIndices;
+        mAppCount = appCount;
+        mDisplay = display;
+        mClock = clock;
+        mRandom = random;
+        resetHistory();
+    }
+
+    /**
+     * Start over as if at the beginning of a recorded session.
+     */
+    public void resetHistory() {
+        for (int i = 0; i < mHistory.length; i++) {
+            mHistory[i] = MonkeyEventModel.HISTORY_START;
+        }
+    }
+
+    /**
+     * @return the gesture kind generated last, or -1 before the first
+     */
+    public int getGesture() {
+        return mGesture;
+    }
+
+    /**
+     * @return how long to wait after each event of the last gesture but its last
+     */
+    public long getStepMillis() {
+        return mStepMillis;
+    }
+
+    /**
+     * @return how long to wait after the last event of the last gesture
+     */
+    public long getGapMillis() {
+        return mGapMillis;
+    }
+
+    /**
+     * Switch to a random main activity, and take it as the current activity
+     * if the model knows it.
+     */
+    public void generateActivity(EventSink sink) {
+        int appIndex = mRandom.nextInt(mAppCount);
+        mActivity = 0;
+        for (int i = 0; i < mAppIndices.length; i++) {
+            if (mAppIndices[i] == appIndex) {
+                mActivity = i + 1;
+                break;
+            }
+        }
+        sink.activity(appIndex);
+    }
+
+    /**
+     * Draw the next gesture from the model and generate its events.
+     */
+    public void generateEvents(EventSink sink) {
+        int index = mModel.nextSymbol(mActivity, mHistory, mRandom);
+        for (int i = mHistory.length - 1; i > 0; i--) {
+            mHistory[i] = mHistory[i - 1];
+        }
+        mHistory[0] = index + 2;
+
+        int symbol = mModel.getSymbol(index);
+        int gesture = MonkeyEventModel.getGesture(symbol);
+        int detail = MonkeyEventModel.getDetail(symbol);
+        long hold = mModel.holdMillis(gesture, mRandom);
+        int events = 1;
+        switch (gesture) {
+            case MonkeyEventModel.GESTURE_TAP:
+            case MonkeyEventModel.GESTURE_LONG_PRESS:
+                events = generateTap(sink, detail);
+                break;
+            case MonkeyEventModel.GESTURE_DRAG:
+                events = generateDrag(sink, index, detail, hold);
+                break;
+            case MonkeyEventModel.GESTURE_PINCH:
+                events = generatePinch(sink, index, detail, hold);
+                break;
+            case MonkeyEventModel.GESTURE_TRACKBALL:
+                events = generateTrackball(sink);
+                break;
+            case MonkeyEventModel.GESTURE_KEY:
+                sink.key(MonkeyEventGenerator.ACTION_DOWN, detail);
+                sink.key(MonkeyEventGenerator.ACTION_UP, detail);
+                events = 2;
+                break;
+            case MonkeyEventModel.GESTURE_ROTATION:
+                sink.rotation(detail, false);
+                break;
+            case MonkeyEventModel.GESTURE_APP_SWITCH: {
+                int appIndex = detail < mAppIndices.length ? mAppIndices[detail] : -1;
+                if (appIndex >= 0) {
+                    mActivity = detail + 1;
+                    sink.activity(appIndex);
+                } else {
+                    // Not an activity of this device; go somewhere anyway.
+                    generateActivity(sink);
+                }
+                break;
+            }
+            case MonkeyEventModel.GESTURE_FLIP:
+                sink.flip(mKeyboardOpen);
+                mKeyboardOpen = !mKeyboardOpen;
+                break;
+            default:
+                break;
+        }
+        mGesture = gesture;
+        mStepMillis = events > 1 ? hold / (events - 1) : 0;
+        mGapMillis = mModel.gapMillis(gesture, mRandom);
+    }
+
+    private int generateTap(EventSink sink, int region) {
+        randomPointIn(region);
+        mPointers[0] = mPoint[0];
+        mPointers[1] = mPoint[1];
+        long downAt = mClock.uptimeMillis();
+        sink.touch(MonkeyEventGenerator.ACTION_DOWN, downAt, 1, mPointers, false);
+        sink.touch(MonkeyEventGenerator.ACTION_UP, downAt, 1, mPointers, false);
+        return 2;
+    }
+
+    private int generateDrag(EventSink sink, int index, int region, long hold) {
+        randomPointIn(region);
+        float startX = mPoint[0];
+        float startY = mPoint[1];
+        int end = mModel.endRegion(index, mRandom);
+        randomPointIn(end >= 0 ? end : region);
+        float endX = mPoint[0];
+        float endY = mPoint[1];
+
+        int moves = moveCount(hold);
+        long downAt = mClock.uptimeMillis();
+        mPointers[0] = startX;
+        mPointers[1] = startY;
+        sink.touch(MonkeyEventGenerator.ACTION_DOWN, downAt, 1, mPointers, false);
+        for (int i = 1; i <= moves; i++) {
+            float f = (float) i / moves;
+            mPointers[0] = startX + (endX - startX) * f;
+            mPointers[1] = startY + (endY - startY) * f;
+            sink.touch(MonkeyEventGenerator.ACTION_MOVE, downAt, 1, mPointers, true);
+        }
+        sink.touch(MonkeyEventGenerator.ACTION_UP, downAt, 1, mPointers, false);
+        return moves + 2;
+    }
+
+    /**
+     * The first pointer goes from its region to the end region drawn from the
+     * model, and the second one mirrors it around where the first one started,
+     * so a pinch whose first pointer moves inwards zooms out and the other way
+     * around.
+     */
+    private int generatePinch(EventSink sink, int index, int region, long hold) {
+        int width = mDisplay.getWidth();
+        int height = mDisplay.getHeight();
+        randomPointIn(region);
+        float startX = mPoint[0];
+        float startY = mPoint[1];
+        int end = mModel.endRegion(index, mRandom);
+        randomPointIn(end >= 0 ? end : region);
+        float dx = mPoint[0] - startX;
+        float dy = mPoint[1] - startY;
+        // Start the second pointer a little towards the middle of the screen.
+        float otherX = startX + (width / 2 - startX) / 4;
+        float otherY = startY + (height / 2 - startY) / 4;
+
+        int moves = moveCount(hold);
+        long downAt = mClock.uptimeMillis();
+        mPointers[0] = startX;
+        mPointers[1] = startY;
+        sink.touch(MonkeyEventGenerator.ACTION_DOWN, downAt, 1, mPointers, false);
+        mPointers[2] = otherX;
+        mPointers[3] = otherY;
+        sink.touch(MonkeyEventGenerator.ACTION_POINTER_DOWN
+                | (1 << MonkeyEventGenerator.ACTION_POINTER_INDEX_SHIFT),
+                downAt, 2, mPointers, true);
+        for (int i = 1; i <= moves; i++) {
+            float f = (float) i / moves;
+            mPointers[0] = clamp(startX + dx * f, width);
+            mPointers[1] = clamp(startY + dy * f, height);
+            mPointers[2] = clamp(otherX - dx * f, width);
+            mPointers[3] = clamp(otherY - dy * f, height);
+            sink.touch(MonkeyEventGenerator.ACTION_MOVE, downAt, 2, mPointers, true);
+        }
+        sink.touch(MonkeyEventGenerator.ACTION_POINTER_UP
+                | (1 << MonkeyEventGenerator.ACTION_POINTER_INDEX_SHIFT),
+                downAt, 2, mPointers, true);
+        sink.touch(MonkeyEventGenerator.ACTION_UP, downAt, 1, mPointers, false);
+        return moves + 4;
+    }
+
+    private int generateTrackball(EventSink sink) {
+        // One direction for the whole roll, like a thumb on the ball.
+        int dX = mRandom.nextInt(10) - 5;
+        int dY = mRandom.nextInt(10) - 5;
+        for (int i = 0; i < TRACKBALL_MOVES; ++i) {
+            sink.trackball(MonkeyEventGenerator.ACTION_MOVE, -1, dX, dY, i > 0);
+        }
+        return TRACKBALL_MOVES;
+    }
+
+    private static int moveCount(long hold) {
+        return (int) Math.max(1, Math.min(hold / MOVE_INTERVAL_MS, MAX_MOVES));
+    }
+
+    private static float clamp(float value, int max) {
+        return Math.max(Math.min(value, max), 0);
+    }
+
+    /**
+     * Put a random point of a region of the model's grid in mPoint.
+     */
+    private void randomPointIn(int region) {
+        int columns = mModel.getColumns();
+        int rows = mModel.getRows();
+        float cellWidth = (float) mDisplay.getWidth() / columns;
+        float cellHeight = (float) mDisplay.getHeight() / rows;
+        mPoint[0] = ((region % columns) + mRandom.nextFloat()) * cellWidth;
+        mPoint[1] = ((region / columns) + mRandom.nextFloat()) * cellHeight;
+    }
+}
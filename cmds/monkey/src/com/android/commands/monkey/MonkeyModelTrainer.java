@@ -0,0 +1,704 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Trains a MonkeyEventModel from recorded input sessions.
+ *
+ * A session is either an event log written by --record-events, or the text
+ * that "getevent -lt" prints while someone uses the device. Events are put
+ * back together into gestures: a touch from down to up is a tap, a long
+ * press, a drag or a pinch depending on how long it was held, how far it
+ * moved and how many pointers it had; a run of trackball moves is one
+ * trackball gesture; a key press is its down and up. Each file is a session
+ * of its own, so histories don't run from one into the next.
+ *
+ * Screen regions are cells of a grid over the extent of the session, which
+ * is the --size given or else the furthest point touched. For getevent,
+ * which reports raw axis values, the observed extent is always used.
+ * getevent input is read as a single touch screen using multi-touch slots,
+ * or BTN_TOUCH for single-touch devices, plus the common navigation keys.
+ *
+ * Run it on the host with
+ * <pre>
+ *   java -cp monkey-host.jar com.android.commands.monkey.MonkeyModelTrainer \
+ *       [--order N] [--grid COLUMNSxROWS] [--size WIDTHxHEIGHT] \
+ *       [--max-gap MS] [--min-count N] OUT_MODEL SESSION...
+ * </pre>
+ */
+public class MonkeyModelTrainer {
+    /** Held at least this long, a touch is a long press (ViewConfiguration's timeout). */
+    static final long LONG_PRESS_MS = 500;
+    /** Trackball moves further apart than this are separate gestures. */
+    static final long TRACKBALL_RUN_MS = 250;
+    /** A touch that moves further than this fraction of the screen diagonal is a drag. */
+    static final float DRAG_SLOP = 0.02f;
+
+    // Values from android.view.MotionEvent and android.view.KeyEvent.
+    private static final int ACTION_CANCEL = 3;
+    private static final int ACTION_MASK = 0xff;
+    private static final int KEYCODE_ENDCALL = 6;
+    private static final int KEYCODE_POWER = 26;
+    private static final int KEYCODE_SLEEP = 223;
+    private static final int KEYCODE_SOFT_SLEEP = 276;
+
+    /** Linux key names that getevent -l prints, and their Android key codes. */
+    private static final HashMap<String, Integer> LINUX_KEYS = new HashMap<String, Integer>();
+
+    static {
+        LINUX_KEYS.put("KEY_HOME", 3);
+        LINUX_KEYS.put("KEY_HOMEPAGE", 3);
+        LINUX_KEYS.put("KEY_BACK", 4);
+        LINUX_KEYS.put("KEY_UP", 19);
+        LINUX_KEYS.put("KEY_DOWN", 20);
+        LINUX_KEYS.put("KEY_LEFT", 21);
+        LINUX_KEYS.put("KEY_RIGHT", 22);
+        LINUX_KEYS.put("KEY_VOLUMEUP", 24);
+        LINUX_KEYS.put("KEY_VOLUMEDOWN", 25);
+        LINUX_KEYS.put("KEY_POWER", KEYCODE_POWER);
+        LINUX_KEYS.put("KEY_CAMERA", 27);
+        LINUX_KEYS.put("KEY_ENTER", 66);
+        LINUX_KEYS.put("KEY_BACKSPACE", 67);
+        LINUX_KEYS.put("KEY_MENU", 82);
+        LINUX_KEYS.put("KEY_SEARCH", 84);
+        LINUX_KEYS.put("KEY_MUTE", 164);
+        LINUX_KEYS.put("KEY_APPSELECT", 187);
+        LINUX_KEYS.put("KEY_SLEEP", KEYCODE_SLEEP);
+    }
+
+    // "[   12345.678901] /dev/input/event2: EV_ABS       ABS_MT_POSITION_X    0000021c"
+    private static final Pattern GETEVENT_LINE = Pattern.compile(
+            "^\\[\\s*(\\d+)\\.(\\d+)\\]\\s+\\S+:\\s+(\\S+)\\s+(\\S+)\\s+(\\S+)\\s*$");
+
+    private final int mOrder;
+    private final int mColumns;
+    private final int mRows;
+    private final long mMaxGapMs;
+
+    private final HashMap<String, Integer> mActivityIndices = new HashMap<String, Integer>();
+    private final List<String> mActivities = new ArrayList<String>();
+    private final HashMap<Integer, Integer> mSymbolIndices = new HashMap<Integer, Integer>();
+    private final List<Integer> mSymbols = new ArrayList<Integer>();
+    private final List<long[]> mEndCounts = new ArrayList<long[]>();
+    private final TreeMap<Long, TreeMap<Integer, long[]>> mStates =
+            new TreeMap<Long, TreeMap<Integer, long[]>>();
+    private final long[][] mHoldCounts =
+            new long[MonkeyEventModel.GESTURE_COUNT][MonkeyEventModel.DURATION_BUCKETS];
+    private final long[][] mGapCounts =
+            new long[MonkeyEventModel.GESTURE_COUNT][MonkeyEventModel.DURATION_BUCKETS];
+    private final long[] mGestureCounts = new long[MonkeyEventModel.GESTURE_COUNT];
+
+    private int mSessions;
+    private long mGestures;
+
+    // The session being trained on.
+    private final int[] mHistory = new int[MonkeyEventModel.MAX_ORDER];
+    private int mActivity;
+    private int mLastGesture;
+    private long mLastEnd;
+    private float mWidth;
+    private float mHeight;
+
+    /**
+     * @param order how many gestures of history the transitions use
+     * @param columns columns of the screen region grid
+     * @param rows rows of the screen region grid
+     * @param maxGapMs the longest pause to learn; longer ones count as this long
+     */
+    public MonkeyModelTrainer(int order, int columns, int rows, long maxGapMs) {
+        if (order < 0 || order > MonkeyEventModel.MAX_ORDER) {
+            throw new IllegalArgumentException("order must be 0 to "
+                    + MonkeyEventModel.MAX_ORDER);
+        }
+        if (columns <= 0 || rows <= 0 || columns * rows > 0xffff) {
+            throw new IllegalArgumentException("bad grid " + columns + "x" + rows);
+        }
+        mOrder = order;
+        mColumns = columns;
+        mRows = rows;
+        mMaxGapMs = maxGapMs;
+    }
+
+    public int getSessions() {
+        return mSessions;
+    }
+
+    public long getGestures() {
+        return mGestures;
+    }
+
+    /**
+     * @return how many gestures of a kind were learned
+     */
+    public long getGestureCount(int gesture) {
+        return mGestureCounts[gesture];
+    }
+
+    /**
+     * Read a session from a file, either an event log or getevent -lt output.
+     *
+     * @param width the width of the screen the session was recorded on, or 0
+     *        to use the furthest point touched
+     * @param height the same for the height
+     */
+    public void addFile(File file, int width, int height) throws IOException {
+        byte[] head = new byte[4];
+        int read = 0;
+        FileInputStream in = new FileInputStream(file);
+        try {
+            read = in.read(head);
+        } finally {
+            in.close();
+        }
+        boolean eventLog = read == 4 && ((head[0] & 0xff) | (head[1] & 0xff) << 8
+                | (head[2] & 0xff) << 16 | (head[3] & 0xff) << 24) == MonkeyEventLog.MAGIC;
+
+        List<MonkeyEventLog.Record> records;
+        if (eventLog) {
+            records = new ArrayList<MonkeyEventLog.Record>();
+            for (byte[] record : MonkeyEventLog.readRecords(file)) {
+                try {
+                    records.add(MonkeyEventLog.parse(record));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("event log " + file + " is corrupt: " + e.getMessage());
+                }
+            }
+        } else {
+            records = readGetevent(file);
+            width = 0;
+            height = 0;
+        }
+        addSession(records, width, height);
+    }
+
+    /**
+     * Learn from one session.
+     *
+     * @param records the events of the session, in order
+     * @param width the width of the screen, or 0 to use the furthest point touched
+     * @param height the same for the height
+     */
+    public void addSession(List<MonkeyEventLog.Record> records, int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        if (width <= 0 || height <= 0) {
+            for (MonkeyEventLog.Record r : records) {
+                if (r.type == MonkeyEventLog.TYPE_TOUCH && r.pointerCount > 0) {
+                    mWidth = Math.max(mWidth, r.x + 1);
+                    mHeight = Math.max(mHeight, r.y + 1);
+                }
+            }
+        }
+        for (int i = 0; i < mHistory.length; i++) {
+            mHistory[i] = MonkeyEventModel.HISTORY_START;
+        }
+        mActivity = 0;
+        mLastGesture = -1;
+        mLastEnd = 0;
+        mSessions++;
+
+        final float slop = DRAG_SLOP * (float) Math.hypot(mWidth, mHeight);
+        final HashMap<Integer, Long> keysDown = new HashMap<Integer, Long>();
+        long time = 0;
+
+        boolean touching = false;
+        long downTime = 0;
+        float startX = 0;
+        float startY = 0;
+        int pointers = 0;
+        boolean moved = false;
+
+        boolean rolling = false;
+        long rollStart = 0;
+        long rollLast = 0;
+
+        for (MonkeyEventLog.Record r : records) {
+            time += r.delta;
+            if (rolling && (r.type != MonkeyEventLog.TYPE_TRACKBALL
+                    || time - rollLast > TRACKBALL_RUN_MS)) {
+                addGesture(MonkeyEventModel.GESTURE_TRACKBALL, 0, rollStart, rollLast, -1);
+                rolling = false;
+            }
+            switch (r.type) {
+                case MonkeyEventLog.TYPE_TOUCH: {
+                    int action = r.action & ACTION_MASK;
+                    if (action == MonkeyEventGenerator.ACTION_DOWN) {
+                        touching = true;
+                        downTime = time;
+                        startX = r.x;
+                        startY = r.y;
+                        pointers = 1;
+                        moved = false;
+                    } else if (!touching) {
+                        // The rest of a gesture that started before the recording.
+                    } else if (action == ACTION_CANCEL) {
+                        touching = false;
+                    } else {
+                        pointers = Math.max(pointers, r.pointerCount);
+                        if (Math.hypot(r.x - startX, r.y - startY) > slop) {
+                            moved = true;
+                        }
+                        if (action == MonkeyEventGenerator.ACTION_UP) {
+                            touching = false;
+                            int gesture;
+                            if (pointers > 1) {
+                                gesture = MonkeyEventModel.GESTURE_PINCH;
+                            } else if (moved) {
+                                gesture = MonkeyEventModel.GESTURE_DRAG;
+                            } else if (time - downTime >= LONG_PRESS_MS) {
+                                gesture = MonkeyEventModel.GESTURE_LONG_PRESS;
+                            } else {
+                                gesture = MonkeyEventModel.GESTURE_TAP;
+                            }
+                            addGesture(gesture, region(startX, startY), downTime, time,
+                                    region(r.x, r.y));
+                        }
+                    }
+                    break;
+                }
+                case MonkeyEventLog.TYPE_TRACKBALL:
+                    if (!rolling) {
+                        rolling = true;
+                        rollStart = time;
+                    }
+                    rollLast = time;
+                    break;
+                case MonkeyEventLog.TYPE_KEY:
+                    if (r.action == MonkeyEventGenerator.ACTION_DOWN) {
+                        if (!keysDown.containsKey(r.value)) {
+                            keysDown.put(r.value, time);
+                        }
+                    } else if (r.action == MonkeyEventGenerator.ACTION_UP) {
+                        Long down = keysDown.remove(r.value);
+                        if (down != null && isSafeKey(r.value)) {
+                            addGesture(MonkeyEventModel.GESTURE_KEY, r.value, down, time, -1);
+                        }
+                    }
+                    break;
+                case MonkeyEventLog.TYPE_ROTATION:
+                    addGesture(MonkeyEventModel.GESTURE_ROTATION, r.value, time, time, -1);
+                    break;
+                case MonkeyEventLog.TYPE_ACTIVITY: {
+                    int index = internActivity(r.component);
+                    addGesture(MonkeyEventModel.GESTURE_APP_SWITCH, index, time, time, -1);
+                    mActivity = index + 1;
+                    break;
+                }
+                case MonkeyEventLog.TYPE_FLIP:
+                    addGesture(MonkeyEventModel.GESTURE_FLIP, 0, time, time, -1);
+                    break;
+                default:
+                    // Permission changes aren't something a user does.
+                    break;
+            }
+        }
+        if (rolling) {
+            addGesture(MonkeyEventModel.GESTURE_TRACKBALL, 0, rollStart, rollLast, -1);
+        }
+    }
+
+    /**
+     * Keys that would end the session, which the monkey never sends either.
+     */
+    private static boolean isSafeKey(int keyCode) {
+        return keyCode != KEYCODE_POWER && keyCode != KEYCODE_ENDCALL
+                && keyCode != KEYCODE_SLEEP && keyCode != KEYCODE_SOFT_SLEEP
+                && keyCode > 0 && keyCode <= 0xffff;
+    }
+
+    private int region(float x, float y) {
+        int column = (int) (x * mColumns / mWidth);
+        int row = (int) (y * mRows / mHeight);
+        column = Math.max(0, Math.min(column, mColumns - 1));
+        row = Math.max(0, Math.min(row, mRows - 1));
+        return row * mColumns + column;
+    }
+
+    private int internActivity(String component) {
+        Integer index = mActivityIndices.get(component);
+        if (index == null) {
+            if (mActivities.size() >= MonkeyEventModel.MAX_ACTIVITIES) {
+                throw new IllegalStateException("too many activities");
+            }
+            index = mActivities.size();
+            mActivities.add(component);
+            mActivityIndices.put(component, index);
+        }
+        return index;
+    }
+
+    private int internSymbol(int symbol) {
+        Integer index = mSymbolIndices.get(symbol);
+        if (index == null) {
+            if (mSymbols.size() >= MonkeyEventModel.MAX_SYMBOLS) {
+                throw new IllegalStateException("too many symbols");
+            }
+            index = mSymbols.size();
+            mSymbols.add(symbol);
+            mSymbolIndices.put(symbol, index);
+            int gesture = MonkeyEventModel.getGesture(symbol);
+            mEndCounts.add(gesture == MonkeyEventModel.GESTURE_DRAG
+                    || gesture == MonkeyEventModel.GESTURE_PINCH
+                    ? new long[mColumns * mRows] : null);
+        }
+        return index;
+    }
+
+    /**
+     * Count one gesture: the transition to it from every state it backs off
+     * through, how long it was held, where it ended and the pause before it.
+     */
+    private void addGesture(int gesture, int detail, long start, long end, int endRegion) {
+        int index = internSymbol(MonkeyEventModel.makeSymbol(gesture, detail));
+        if (mLastGesture >= 0) {
+            long gap = Math.min(Math.max(start - mLastEnd, 0), mMaxGapMs);
+            mGapCounts[mLastGesture][MonkeyEventModel.durationBucket(gap)]++;
+        }
+        for (int level = 0; level <= mOrder; level++) {
+            count(MonkeyEventModel.stateKey(mActivity, mHistory, level), index);
+            if (mActivity != 0) {
+                count(MonkeyEventModel.stateKey(0, mHistory, level), index);
+            }
+        }
+        mHoldCounts[gesture][MonkeyEventModel.durationBucket(end - start)]++;
+        long[] ends = mEndCounts.get(index);
+        if (ends != null && endRegion >= 0) {
+            ends[endRegion]++;
+        }
+        for (int i = mHistory.length - 1; i > 0; i--) {
+            mHistory[i] = mHistory[i - 1];
+        }
+        mHistory[0] = index + 2;
+        mLastGesture = gesture;
+        mLastEnd = end;
+        mGestureCounts[gesture]++;
+        mGestures++;
+    }
+
+    private void count(long key, int symbolIndex) {
+        TreeMap<Integer, long[]> next = mStates.get(key);
+        if (next == null) {
+            next = new TreeMap<Integer, long[]>();
+            mStates.put(key, next);
+        }
+        long[] count = next.get(symbolIndex);
+        if (count == null) {
+            count = new long[1];
+            next.put(symbolIndex, count);
+        }
+        count[0]++;
+    }
+
+    /**
+     * Build the model from everything added so far.
+     *
+     * @param minCount transitions seen fewer times than this are left out of
+     *        states with history, which then back off for them instead. The
+     *        plain symbol frequencies are always kept whole.
+     */
+    public MonkeyEventModel build(int minCount) {
+        List<Long> keys = new ArrayList<Long>();
+        List<int[]> stateSymbols = new ArrayList<int[]>();
+        List<long[]> stateCounts = new ArrayList<long[]>();
+        for (Map.Entry<Long, TreeMap<Integer, long[]>> state : mStates.entrySet()) {
+            boolean hasHistory = (state.getKey() & 0xffffffffffffL) != 0;
+            int n = 0;
+            for (long[] count : state.getValue().values()) {
+                if (!hasHistory || count[0] >= minCount) {
+                    n++;
+                }
+            }
+            if (n == 0) {
+                continue;
+            }
+            int[] symbols = new int[n];
+            long[] counts = new long[n];
+            n = 0;
+            for (Map.Entry<Integer, long[]> entry : state.getValue().entrySet()) {
+                long count = entry.getValue()[0];
+                if (!hasHistory || count >= minCount) {
+                    symbols[n] = entry.getKey();
+                    counts[n++] = count;
+                }
+            }
+            keys.add(state.getKey());
+            stateSymbols.add(symbols);
+            stateCounts.add(counts);
+        }
+
+        long[] stateKeys = new long[keys.size()];
+        for (int i = 0; i < stateKeys.length; i++) {
+            stateKeys[i] = keys.get(i);
+        }
+        int[] symbols = new int[mSymbols.size()];
+        for (int i = 0; i < symbols.length; i++) {
+            symbols[i] = mSymbols.get(i);
+        }
+        return new MonkeyEventModel(mOrder, mColumns, mRows,
+                mActivities.toArray(new String[mActivities.size()]), symbols, stateKeys,
+                stateSymbols.toArray(new int[stateSymbols.size()][]),
+                stateCounts.toArray(new long[stateCounts.size()][]),
+                mEndCounts.toArray(new long[mEndCounts.size()][]), mHoldCounts, mGapCounts);
+    }
+
+    /**
+     * Turn "getevent -lt" output into touch and key records. Touch records
+     * carry the pointer count and the position of the first pointer, which is
+     * all the trainer looks at.
+     */
+    static List<MonkeyEventLog.Record> readGetevent(File file) throws IOException {
+        List<MonkeyEventLog.Record> records = new ArrayList<MonkeyEventLog.Record>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            // Multi-touch slots: tracking id (-1 for none) and position.
+            final int maxSlots = 16;
+            int[] ids = new int[maxSlots];
+            float[] xs = new float[maxSlots];
+            float[] ys = new float[maxSlots];
+            for (int i = 0; i < maxSlots; i++) {
+                ids[i] = -1;
+            }
+            int slot = 0;
+            boolean multiTouch = false;
+            boolean buttonDown = false;
+            int lastCount = 0;
+            float lastX = -1;
+            float lastY = -1;
+            long lastTime = -1;
+
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                Matcher m = GETEVENT_LINE.matcher(line);
+                if (!m.matches()) {
+                    // "add device" headers and the like.
+                    continue;
+                }
+                String fraction = (m.group(2) + "000").substring(0, 3);
+                long time = Long.parseLong(m.group(1)) * 1000 + Long.parseLong(fraction);
+                String type = m.group(3);
+                String code = m.group(4);
+                String value = m.group(5);
+                int pending = -1;
+                int keyCode = 0;
+                int keyAction = 0;
+
+                if (type.equals("EV_ABS")) {
+                    int v;
+                    try {
+                        v = (int) Long.parseLong(value, 16);
+                    } catch (NumberFormatException e) {
+                        throw new IOException(file + ":" + lineNumber + ": bad value " + value);
+                    }
+                    if (code.equals("ABS_MT_SLOT")) {
+                        slot = v;
+                    } else if (slot < 0 || slot >= maxSlots) {
+                        // Ignore slots past what a hand can do.
+                    } else if (code.equals("ABS_MT_TRACKING_ID")) {
+                        multiTouch = true;
+                        ids[slot] = v;
+                    } else if (code.equals("ABS_MT_POSITION_X") || code.equals("ABS_X")) {
+                        xs[slot] = v;
+                    } else if (code.equals("ABS_MT_POSITION_Y") || code.equals("ABS_Y")) {
+                        ys[slot] = v;
+                    }
+                } else if (type.equals("EV_KEY")) {
+                    boolean down = value.equals("DOWN") || value.equals("00000001");
+                    boolean up = value.equals("UP") || value.equals("00000000");
+                    if (code.equals("BTN_TOUCH")) {
+                        buttonDown = down;
+                    } else if (down || up) {
+                        Integer mapped = LINUX_KEYS.get(code);
+                        if (mapped != null) {
+                            keyCode = mapped;
+                            keyAction = down ? MonkeyEventGenerator.ACTION_DOWN
+                                    : MonkeyEventGenerator.ACTION_UP;
+                        }
+                    }
+                } else if (type.equals("EV_SYN") && code.equals("SYN_REPORT")) {
+                    pending = 0;
+                }
+
+                if (keyCode != 0) {
+                    MonkeyEventLog.Record r = new MonkeyEventLog.Record();
+                    r.type = MonkeyEventLog.TYPE_KEY;
+                    r.action = keyAction;
+                    r.value = keyCode;
+                    r.delta = lastTime < 0 ? 0 : time - lastTime;
+                    lastTime = time;
+                    records.add(r);
+                }
+                if (pending < 0) {
+                    continue;
+                }
+
+                int count = 0;
+                int first = -1;
+                if (multiTouch) {
+                    for (int i = 0; i < maxSlots; i++) {
+                        if (ids[i] != -1) {
+                            count++;
+                            if (first < 0) {
+                                first = i;
+                            }
+                        }
+                    }
+                } else if (buttonDown) {
+                    count = 1;
+                    first = 0;
+                }
+                int action;
+                if (count > 0 && lastCount == 0) {
+                    action = MonkeyEventGenerator.ACTION_DOWN;
+                } else if (count > lastCount) {
+                    action = MonkeyEventGenerator.ACTION_POINTER_DOWN;
+                } else if (count == 0 && lastCount > 0) {
+                    action = MonkeyEventGenerator.ACTION_UP;
+                } else if (count < lastCount) {
+                    action = MonkeyEventGenerator.ACTION_POINTER_UP;
+                } else if (count > 0 && (xs[first] != lastX || ys[first] != lastY)) {
+                    action = MonkeyEventGenerator.ACTION_MOVE;
+                } else {
+                    continue;
+                }
+                MonkeyEventLog.Record r = new MonkeyEventLog.Record();
+                r.type = MonkeyEventLog.TYPE_TOUCH;
+                r.action = action;
+                r.pointerCount = Math.max(count, lastCount);
+                if (first >= 0) {
+                    lastX = xs[first];
+                    lastY = ys[first];
+                }
+                r.x = lastX;
+                r.y = lastY;
+                r.delta = lastTime < 0 ? 0 : time - lastTime;
+                lastTime = time;
+                lastCount = count;
+                records.add(r);
+            }
+        } finally {
+            in.close();
+        }
+        return records;
+    }
+
+    private static void showUsage() {
+        System.err.println("usage: MonkeyModelTrainer [--order N] [--grid COLUMNSxROWS]");
+        System.err.println("           [--size WIDTHxHEIGHT] [--max-gap MS] [--min-count N]");
+        System.err.println("           OUT_MODEL SESSION...");
+        System.err.println("  A SESSION is an event log from --record-events or the output");
+        System.err.println("  of getevent -lt.");
+    }
+
+    private static int[] parseSize(String value) {
+        int x = value.indexOf('x');
+        if (x < 0) {
+            throw new IllegalArgumentException("expected AxB, got " + value);
+        }
+        return new int[] {
+            Integer.parseInt(value.substring(0, x)), Integer.parseInt(value.substring(x + 1)),
+        };
+    }
+
+    public static void main(String[] args) {
+        int order = 2;
+        int[] grid = { 4, 6 };
+        int[] size = { 0, 0 };
+        long maxGapMs = 10000;
+        int minCount = 1;
+        List<String> files = new ArrayList<String>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--order")) {
+                    order = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--grid")) {
+                    grid = parseSize(args[++i]);
+                } else if (arg.equals("--size")) {
+                    size = parseSize(args[++i]);
+                } else if (arg.equals("--max-gap")) {
+                    maxGapMs = Long.parseLong(args[++i]);
+                } else if (arg.equals("--min-count")) {
+                    minCount = Integer.parseInt(args[++i]);
+                } else if (arg.startsWith("-")) {
+                    System.err.println("** Error: Unknown option: " + arg);
+                    showUsage();
+                    System.exit(1);
+                } else {
+                    files.add(arg);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("** Error: " + e);
+            showUsage();
+            System.exit(1);
+        }
+        if (files.size() < 2) {
+            showUsage();
+            System.exit(1);
+        }
+
+        try {
+            MonkeyModelTrainer trainer = new MonkeyModelTrainer(order, grid[0], grid[1],
+                    maxGapMs);
+            for (String name : files.subList(1, files.size())) {
+                trainer.addFile(new File(name), size[0], size[1]);
+            }
+            if (trainer.getGestures() == 0) {
+                System.err.println("** No gestures found in the sessions");
+                System.exit(2);
+            }
+            MonkeyEventModel model = trainer.build(minCount);
+            File out = new File(files.get(0));
+            model.save(out);
+            System.out.println("// Trained on " + trainer.getGestures() + " gestures in "
+                    + trainer.getSessions() + " session(s): " + model.getSymbolCount()
+                    + " symbols, " + model.getStateCount() + " states, "
+                    + model.getActivityCount() + " activities, " + out.length()
+                    + " bytes written to " + out);
+            for (int i = 0; i < MonkeyEventModel.GESTURE_COUNT; i++) {
+                long count = trainer.getGestureCount(i);
+                if (count > 0) {
+                    System.out.println("//   " + MonkeyEventModel.getGestureName(i) + ": "
+                            + count);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("** Error: " + e.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.err.println("** Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -23,6 +23,8 @@ import android.util.SparseArray;
 import android.view.IWindowManager;
 import android.view.MotionEvent;
 
+import java.util.Arrays;
+
 
 /**
  * monkey motion event
@@ -47,6 +49,22 @@ public abstract class MonkeyMotionEvent extends MonkeyEvent {
     //If true, this is an intermediate step (more verbose logging, only)
     private boolean mIntermediateNote; //标志位，用于标记是否为过渡事件，过渡事件主要是为了控制日志打印
 
+    // PointerCoords by pointer id, kept across reset() so a pooled event doesn't
+    // allocate new ones every time it is reused.
+    private static final int MAX_CACHED_POINTERS = 4;
+    private MotionEvent.PointerCoords[] mCoordsCache;
+    // Arrays handed to MotionEvent.obtain(), kept for the same reason.
+    private int[] mPointerIds;
+    private MotionEvent.PointerCoords[] mPointerCoords;
+
+    // Earlier samples of the pointers, oldest first, sent in the same MotionEvent
+    // the way touch hardware batches them. Each has the uptime it was taken at
+    // and x and y for every pointer, in pointer index order.
+    private int mHistoryCount;
+    private long[] mHistoryTimes;
+    private float[] mHistoryXY;
+    private MotionEvent.PointerCoords[] mHistoryCoords;
+
     /**
      * 用于子类调用的构造方法，创建对象，必备
      * @param type 表示事件类型
@@ -86,7 +104,7 @@ public abstract class MonkeyMotionEvent extends MonkeyEvent {
      */
     public MonkeyMotionEvent addPointer(int id, float x, float y,
             float pressure, float size) {
-        MotionEvent.PointerCoords c = new MotionEvent.PointerCoords(); //创建PointerCoords对象，PointerCoords是MotionEvent中的静态内部类
+        MotionEvent.PointerCoords c = obtainCoords(id); //获取PointerCoords对象，PointerCoords是MotionEvent中的静态内部类
         c.x = x; //PointerCoords对象持有x
         c.y = y;
         c.pressure = pressure;
@@ -95,6 +113,99 @@ public abstract class MonkeyMotionEvent extends MonkeyEvent {
         return this; //继续返回当前对象,即MonkeyMotionEvent对象
     }
 
+    /**
+     * Get the PointerCoords for a pointer id, reusing the one from an earlier
+     * use of this event when there is one.
+     */
+    private MotionEvent.PointerCoords obtainCoords(int id) {
+        if (id < 0 || id >= MAX_CACHED_POINTERS) {
+            return new MotionEvent.PointerCoords();
+        }
+        if (mCoordsCache == null) {
+            mCoordsCache = new MotionEvent.PointerCoords[MAX_CACHED_POINTERS];
+        }
+        MotionEvent.PointerCoords c = mCoordsCache[id];
+        if (c == null) {
+            c = mCoordsCache[id] = new MotionEvent.PointerCoords();
+        } else {
+            c.clear();
+        }
+        return c;
+    }
+
+    /**
+     * Start over as a new event with the given action. Used by MonkeyEventPool.
+     */
+    void init(int action) {
+        mAction = action;
+    }
+
+    @Override
+    protected void reset() {
+        super.reset();
+        mDownTime = -1;
+        mEventTime = -1;
+        mAction = 0;
+        mPointers.clear();
+        mMetaState = 0;
+        mXPrecision = 1;
+        mYPrecision = 1;
+        mDeviceId = 0;
+        mFlags = 0;
+        mEdgeFlags = 0;
+        mIntermediateNote = false;
+        mHistoryCount = 0;
+    }
+
+    /**
+     * Add an earlier sample of the pointers, to be sent as historical data in
+     * the same MotionEvent rather than as an event of its own. Samples are
+     * added oldest first; the pointers added with addPointer() are the newest.
+     *
+     * The sample times are clamped to lie between the down time and the
+     * event time when the event is injected, and an event with samples whose
+     * event time is still to come waits for it, as the hardware would.
+     *
+     * @param sampleTime the uptime the sample was taken at
+     * @param xy x and y of each pointer, in the order they were added
+     * @param pointerCount the number of pointers in xy, which must match the
+     *        number of pointers of the event
+     */
+    public MonkeyMotionEvent addHistoricalSample(long sampleTime, float[] xy, int pointerCount) {
+        if (mHistoryTimes == null || mHistoryCount == mHistoryTimes.length) {
+            mHistoryTimes = Arrays.copyOf(mHistoryTimes != null ? mHistoryTimes : new long[4],
+                    Math.max(4, mHistoryCount * 2));
+        }
+        int needed = (mHistoryCount + 1) * pointerCount * 2;
+        if (mHistoryXY == null || mHistoryXY.length < needed) {
+            mHistoryXY = Arrays.copyOf(mHistoryXY != null ? mHistoryXY : new float[0],
+                    Math.max(needed, mHistoryTimes.length * pointerCount * 2));
+        }
+        mHistoryTimes[mHistoryCount] = sampleTime;
+        System.arraycopy(xy, 0, mHistoryXY, mHistoryCount * pointerCount * 2, pointerCount * 2);
+        mHistoryCount++;
+        return this;
+    }
+
+    /**
+     * @return the number of historical samples before the current one
+     */
+    public int getHistorySize() {
+        return mHistoryCount;
+    }
+
+    long getHistoricalTime(int pos) {
+        return mHistoryTimes[pos];
+    }
+
+    float getHistoricalX(int pos, int index) {
+        return mHistoryXY[(pos * mPointers.size() + index) * 2];
+    }
+
+    float getHistoricalY(int pos, int index) {
+        return mHistoryXY[(pos * mPointers.size() + index) * 2 + 1];
+    }
+
     public MonkeyMotionEvent setIntermediateNote(boolean b) {
         mIntermediateNote = b;
         return this;
@@ -116,6 +227,38 @@ public abstract class MonkeyMotionEvent extends MonkeyEvent {
         return mEventTime;
     }
 
+    int getMetaState() {
+        return mMetaState;
+    }
+
+    float getXPrecision() {
+        return mXPrecision;
+    }
+
+    float getYPrecision() {
+        return mYPrecision;
+    }
+
+    int getDeviceId() {
+        return mDeviceId;
+    }
+
+    int getEdgeFlags() {
+        return mEdgeFlags;
+    }
+
+    int getPointerCount() {
+        return mPointers.size();
+    }
+
+    int getPointerId(int index) {
+        return mPointers.keyAt(index);
+    }
+
+    MotionEvent.PointerCoords getPointerCoords(int index) {
+        return mPointers.valueAt(index);
+    }
+
     public MonkeyMotionEvent setDownTime(long downTime) {
         mDownTime = downTime;
         return this;
@@ -153,18 +296,60 @@ public abstract class MonkeyMotionEvent extends MonkeyEvent {
      */
     private MotionEvent getEvent() {
         int pointerCount = mPointers.size(); //检查触摸点的数量，如果是点事件，这里其实值为1
-        int[] pointerIds = new int[pointerCount]; //创建数组对象，数组容量为触摸点的数量，用于存储每个触摸点的key
-        MotionEvent.PointerCoords[] pointerCoords = new MotionEvent.PointerCoords[pointerCount]; //创建PointerCoords数组对象，容量也是触摸点的数量，用于分离value
+        if (mPointerIds == null || mPointerIds.length != pointerCount) { //MotionEvent.obtain()会复制这两个数组，所以同样数量的触摸点可以复用
+            mPointerIds = new int[pointerCount]; //创建数组对象，数组容量为触摸点的数量，用于存储每个触摸点的key
+            mPointerCoords = new MotionEvent.PointerCoords[pointerCount]; //创建PointerCoords数组对象，容量也是触摸点的数量，用于分离value
+        }
+        int[] pointerIds = mPointerIds;
+        MotionEvent.PointerCoords[] pointerCoords = mPointerCoords;
         for (int i = 0; i < pointerCount; i++) { //遍历所有触摸点
             pointerIds[i] = mPointers.keyAt(i); //把SparseArray中的保存的key，取出来，存放到临时数组中（典型的将所有key转化为一个list）
             pointerCoords[i] = mPointers.valueAt(i); //把SparseArray中的value，取出来，存放到临时数组中（典型的将所有value转化为一个list）
         }
 
-        MotionEvent ev = MotionEvent.obtain(mDownTime,
-                mEventTime < 0 ? SystemClock.uptimeMillis() : mEventTime,
-                mAction, pointerCount, pointerIds, pointerCoords,
-                mMetaState, mXPrecision, mYPrecision, mDeviceId, mEdgeFlags, mSource, mFlags); //通过MotionEvent的静态方法obtain()，获取到在内存中缓存的一个MotionEvent对象，它不一定是一个点哦
-        //传入参数为按下时间、触发时间（做了保护，如果小于0，则直接使用当前系统开机至今的时间）、需要做的动作、触摸点数量、所有触摸点在SparseArray中的key，所有触摸在SarpseArray中保存的Value对象、
+        long eventTime = mEventTime < 0 ? SystemClock.uptimeMillis() : mEventTime;
+        if (mHistoryCount == 0) {
+            return MotionEvent.obtain(mDownTime, eventTime,
+                    mAction, pointerCount, pointerIds, pointerCoords,
+                    mMetaState, mXPrecision, mYPrecision, mDeviceId, mEdgeFlags, mSource, mFlags); //通过MotionEvent的静态方法obtain()，获取到在内存中缓存的一个MotionEvent对象，它不一定是一个点哦
+            //传入参数为按下时间、触发时间（做了保护，如果小于0，则直接使用当前系统开机至今的时间）、需要做的动作、触摸点数量、所有触摸点在SparseArray中的key，所有触摸在SarpseArray中保存的Value对象、
+        }
+
+        // A batch can't go out before its newest sample was taken.
+        long now = SystemClock.uptimeMillis();
+        if (eventTime > now) {
+            SystemClock.sleep(eventTime - now);
+        }
+
+        // The oldest sample starts the event, the others are added as batches
+        // and the current pointers come last. Samples never go back in time or
+        // before the down, nor past the current pointers.
+        if (mHistoryCoords == null || mHistoryCoords.length != pointerCount) {
+            mHistoryCoords = new MotionEvent.PointerCoords[pointerCount];
+            for (int i = 0; i < pointerCount; i++) {
+                mHistoryCoords[i] = new MotionEvent.PointerCoords();
+            }
+        }
+        MotionEvent ev = null;
+        long sampleTime = mDownTime;
+        for (int h = 0; h < mHistoryCount; h++) {
+            for (int i = 0; i < pointerCount; i++) {
+                MotionEvent.PointerCoords c = mHistoryCoords[i];
+                c.copyFrom(pointerCoords[i]);
+                c.x = mHistoryXY[(h * pointerCount + i) * 2];
+                c.y = mHistoryXY[(h * pointerCount + i) * 2 + 1];
+            }
+            sampleTime = Math.min(Math.max(mHistoryTimes[h], sampleTime), eventTime);
+            if (ev == null) {
+                ev = MotionEvent.obtain(mDownTime, sampleTime,
+                        mAction, pointerCount, pointerIds, mHistoryCoords,
+                        mMetaState, mXPrecision, mYPrecision, mDeviceId, mEdgeFlags, mSource,
+                        mFlags);
+            } else {
+                ev.addBatch(sampleTime, mHistoryCoords, mMetaState);
+            }
+        }
+        ev.addBatch(eventTime, pointerCoords, mMetaState);
         return ev; //使用的是MotionEvent对象
     }
 
@@ -182,6 +367,16 @@ public abstract class MonkeyMotionEvent extends MonkeyEvent {
      */
     @Override
     public int injectEvent(IWindowManager iwm, IActivityManager iam, int verbose) {
+        return injectEvent(iwm, iam, verbose,
+                InputManager.INJECT_INPUT_EVENT_MODE_WAIT_FOR_RESULT);
+    }
+
+    /**
+     * Inject with the given InputManager.INJECT_INPUT_EVENT_MODE_* mode. With
+     * INJECT_INPUT_EVENT_MODE_ASYNC, INJECT_FAIL only means the event was
+     * rejected before it was queued for dispatch.
+     */
+    int injectEvent(IWindowManager iwm, IActivityManager iam, int verbose, int mode) {
         MotionEvent me = getEvent(); //获取到封装好的MotionEvent对象（可能是一个点，也可能是多个点）
         if ((verbose > 0 && !mIntermediateNote) || verbose > 1) { //这个verbose这牛逼？原来这里只是为了向标准输出流输出日志，如果verbose大于0，且不是过渡事件，或者verbose大于1
             StringBuilder msg = new StringBuilder(":Sending "); //用于保存日志的StringBuilder对象
@@ -216,11 +411,14 @@ public abstract class MonkeyMotionEvent extends MonkeyEvent {
                 msg.append(" ").append(me.getPointerId(i));
                 msg.append(":(").append(me.getX(i)).append(",").append(me.getY(i)).append(")");
             }
+            if (me.getHistorySize() > 0) {
+                msg.append(" +").append(me.getHistorySize()).append(" historical");
+            }
             Logger.out.println(msg.toString());
         }
         try {
             if (!InputManager.getInstance().injectInputEvent(me,  //走到这里才是真的向手机注入事件，通过InputManager的injectInputEvent注入事件，传入MotionEvent对象
-                    InputManager.INJECT_INPUT_EVENT_MODE_WAIT_FOR_RESULT)) { //依赖InputManagerService系统服务注入事件,看来还得死磕Android的系统服务
+                    mode)) { //依赖InputManagerService系统服务注入事件,看来还得死磕Android的系统服务
                 return MonkeyEvent.INJECT_FAIL; //只要IMS返回的是失败，则证明注入失败，看来这里也是同步方法，Monkey主线程会等待执行完……
             }
         } finally {
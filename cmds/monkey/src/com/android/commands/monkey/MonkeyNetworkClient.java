@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import com.android.commands.monkey.MonkeyNetworkProtocol.FrameWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Host side client for the binary monkey network protocol described in
+ * MonkeyNetworkProtocol. It has no dependencies on the Android framework.
+ *
+ * Requests are buffered and only sent when a reply is waited for or flush()
+ * is called, so a script can send a whole sequence in one write:
+ * <pre>
+ *   MonkeyNetworkClient monkey = MonkeyNetworkClient.connect("localhost", 1080);
+ *   monkey.tap(100, 200);
+ *   int swipe = monkey.gesture()
+ *           .touch(MonkeyNetworkClient.ACTION_DOWN, 100, 800)
+ *           .touch(MonkeyNetworkClient.ACTION_MOVE, 100, 400)
+ *           .touch(MonkeyNetworkClient.ACTION_UP, 100, 200)
+ *           .send();
+ *   monkey.waitFor(swipe).check();
+ *   monkey.close();
+ * </pre>
+ * Every request method returns the request id, and waitFor() returns its
+ * reply. Replies come back in order, so waiting for one request also reads
+ * the replies of the requests before it, which are kept until asked for.
+ * A client is not thread safe.
+ */
+public class MonkeyNetworkClient {
+    // The android.view.MotionEvent and KeyEvent actions the monkey accepts.
+    public static final int ACTION_DOWN = 0;
+    public static final int ACTION_UP = 1;
+    public static final int ACTION_MOVE = 2;
+
+    /** Replies longer than this are taken to mean the stream is broken. */
+    static final int MAX_REPLY_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * The reply to a request.
+     */
+    public static class Reply {
+        public final long requestId;
+        public final boolean ok;
+        private final ByteBuffer mBody;
+
+        Reply(long requestId, boolean ok, ByteBuffer body) {
+            this.requestId = requestId;
+            this.ok = ok;
+            mBody = body;
+        }
+
+        /**
+         * @return this reply, if it is OK
+         * @throws IOException with the error message, if it isn't
+         */
+        public Reply check() throws IOException {
+            if (!ok) {
+                throw new IOException("request " + requestId + " failed: " + getMessage());
+            }
+            return this;
+        }
+
+        /**
+         * @return the error message, or what a text() command returned
+         */
+        public String getMessage() {
+            ByteBuffer body = mBody.duplicate();
+            return body.hasRemaining() ? MonkeyNetworkProtocol.readString(body) : "";
+        }
+
+        /**
+         * @return the {window id, view id} returned by rootView() or parent()
+         */
+        public int[] getId() {
+            ByteBuffer body = mBody.duplicate();
+            return new int[] {
+                (int) MonkeyNetworkProtocol.readSigned(body),
+                (int) MonkeyNetworkProtocol.readSigned(body),
+            };
+        }
+
+        /**
+         * @return the ids returned by children() or viewsWithText(), as
+         *         {window id, view id, window id, view id, ...}
+         */
+        public int[] getIds() {
+            ByteBuffer body = mBody.duplicate();
+            int[] ids = new int[(int) MonkeyNetworkProtocol.readVarint(body) * 2];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = (int) MonkeyNetworkProtocol.readSigned(body);
+            }
+            return ids;
+        }
+
+        /**
+         * @return what viewInfo() returned
+         */
+        public ViewInfo getViewInfo() {
+            ByteBuffer body = mBody.duplicate();
+            ViewInfo info = new ViewInfo();
+            info.className = MonkeyNetworkProtocol.readString(body);
+            info.text = MonkeyNetworkProtocol.readString(body);
+            info.left = (int) MonkeyNetworkProtocol.readSigned(body);
+            info.top = (int) MonkeyNetworkProtocol.readSigned(body);
+            info.width = (int) MonkeyNetworkProtocol.readSigned(body);
+            info.height = (int) MonkeyNetworkProtocol.readSigned(body);
+            info.flags = (int) MonkeyNetworkProtocol.readVarint(body);
+            info.childCount = (int) MonkeyNetworkProtocol.readVarint(body);
+            return info;
+        }
+
+        /**
+         * @return what dumpTree() returned. Use Snapshot.applyTo() to bring
+         *         the earlier dump up to date if it is a diff.
+         */
+        public MonkeyViewTree.Snapshot getViewTree() {
+            byte[] payload = new byte[mBody.remaining()];
+            mBody.duplicate().get(payload);
+            return MonkeyViewTree.decode(payload);
+        }
+    }
+
+    /**
+     * What viewInfo() returns about a view.
+     */
+    public static class ViewInfo {
+        public String className;
+        /** Empty for password fields. */
+        public String text;
+        public int left;
+        public int top;
+        public int width;
+        public int height;
+        /** MonkeyNetworkProtocol.VIEW_* bits. */
+        public int flags;
+        public int childCount;
+    }
+
+    /**
+     * Events to be queued together, so that no other session's events can
+     * land in the middle of them.
+     */
+    public class Gesture {
+        private final FrameWriter mEvents = new FrameWriter();
+        private int mCount;
+
+        Gesture() {
+        }
+
+        public Gesture touch(int action, int x, int y) {
+            mEvents.writeByte(MonkeyNetworkProtocol.OP_TOUCH).writeVarint(action)
+                    .writeSigned(x).writeSigned(y);
+            mCount++;
+            return this;
+        }
+
+        public Gesture key(int action, int keyCode) {
+            mEvents.writeByte(MonkeyNetworkProtocol.OP_KEY).writeVarint(action)
+                    .writeVarint(keyCode);
+            mCount++;
+            return this;
+        }
+
+        public Gesture sleep(long ms) {
+            mEvents.writeByte(MonkeyNetworkProtocol.OP_SLEEP).writeVarint(ms);
+            mCount++;
+            return this;
+        }
+
+        /**
+         * @return the request id
+         */
+        public int send() throws IOException {
+            int id = mNextId++;
+            FrameWriter frame = new FrameWriter(id, MonkeyNetworkProtocol.OP_GESTURE)
+                    .writeVarint(mCount).write(mEvents);
+            return MonkeyNetworkClient.this.send(id, frame);
+        }
+    }
+
+    private final Socket mSocket;
+    private final OutputStream mOut;
+    private final InputStream mIn;
+    private final int mServerVersion;
+    private final HashMap<Long, Reply> mReplies = new HashMap<Long, Reply>();
+    private int mNextId = 1;
+
+    private MonkeyNetworkClient(Socket socket, InputStream in, int serverVersion)
+            throws IOException {
+        mSocket = socket;
+        mOut = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+        mIn = in;
+        mServerVersion = serverVersion;
+    }
+
+    /**
+     * Connect to a monkey started with --port, check that it speaks the
+     * binary protocol and switch the session to it.
+     */
+    public static MonkeyNetworkClient connect(String host, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port));
+            OutputStream out = socket.getOutputStream();
+            // Read the text replies a byte at a time, so nothing after the
+            // switch is read ahead into a reader that is then thrown away.
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            out.write("getvar monkey.version\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String reply = readLine(in);
+            int version;
+            try {
+                version = reply.startsWith("OK:") ? Integer.parseInt(reply.substring(3).trim()) : 0;
+            } catch (NumberFormatException e) {
+                version = 0;
+            }
+            if (version < MonkeyNetworkProtocol.VERSION) {
+                throw new IOException("monkey speaks protocol version " + version
+                        + ", the binary protocol needs " + MonkeyNetworkProtocol.VERSION);
+            }
+
+            out.write((MonkeyNetworkProtocol.BINARY_COMMAND + " " + MonkeyNetworkProtocol.VERSION
+                    + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            reply = readLine(in);
+            if (!reply.startsWith("OK")) {
+                throw new IOException("monkey refused the binary protocol: " + reply);
+            }
+            return new MonkeyNetworkClient(socket, in, version);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the MONKEY_NETWORK_VERSION of the monkey
+     */
+    public int getServerVersion() {
+        return mServerVersion;
+    }
+
+    public int key(int action, int keyCode) throws IOException {
+        int id = mNextId++;
+        return send(id, new FrameWriter(id, MonkeyNetworkProtocol.OP_KEY)
+                .writeVarint(action).writeVarint(keyCode));
+    }
+
+    public int touch(int action, int x, int y) throws IOException {
+        int id = mNextId++;
+        return send(id, new FrameWriter(id, MonkeyNetworkProtocol.OP_TOUCH)
+                .writeVarint(action).writeSigned(x).writeSigned(y));
+    }
+
+    public int trackball(int dx, int dy) throws IOException {
+        int id = mNextId++;
+        return send(id, new FrameWriter(id, MonkeyNetworkProtocol.OP_TRACKBALL)
+                .writeSigned(dx).writeSigned(dy));
+    }
+
+    public int tap(int x, int y) throws IOException {
+        int id = mNextId++;
+        return send(id, new FrameWriter(id, MonkeyNetworkProtocol.OP_TAP)
+                .writeSigned(x).writeSigned(y));
+    }
+
+    public int press(int keyCode) throws IOException {
+        int id = mNextId++;
+        return send(id, new FrameWriter(id, MonkeyNetworkProtocol.OP_PRESS).writeVarint(keyCode));
+    }
+
+    public int sleep(long ms) throws IOException {
+        int id = mNextId++;
+        return send(id, new FrameWriter(id, MonkeyNetworkProtocol.OP_SLEEP).writeVarint(ms));
+    }
+
+    public int flip(boolean open) throws IOException {
+        int id = mNextId++;
+        return send(id, new FrameWriter(id, MonkeyNetworkProtocol.OP_FLIP)
+                .writeVarint(open ? 1 : 0));
+    }
+
+    public int type(String text) throws IOException {
+        int id = mNextId++;
+        return send(id, new FrameWriter(id, MonkeyNetworkProtocol.OP_TYPE).writeString(text));
+    }
+
+    public int wake() throws IOException {
+        int id = mNextId++;
+        return send(id, new FrameWriter(id, MonkeyNetworkProtocol.OP_WAKE));
+    }
+
+    /**
+     * Run any text command, such as "getvar build.display".
+     */
+    public int text(String commandLine) throws IOException {
+        int id = mNextId++;
+        return send(id, new FrameWriter(id, MonkeyNetworkProtocol.OP_TEXT)
+                .writeString(commandLine));
+    }
+
+    public Gesture gesture() {
+        return new Gesture();
+    }
+
+    public int rootView() throws IOException {
+        int id = mNextId++;
+        return send(id, new FrameWriter(id, MonkeyNetworkProtocol.OP_ROOT_VIEW));
+    }
+
+    public int parent(int windowId, int viewId) throws IOException {
+        return viewRequest(MonkeyNetworkProtocol.OP_PARENT, windowId, viewId);
+    }
+
+    public int children(int windowId, int viewId) throws IOException {
+        return viewRequest(MonkeyNetworkProtocol.OP_CHILDREN, windowId, viewId);
+    }
+
+    public int viewInfo(int windowId, int viewId) throws IOException {
+        return viewRequest(MonkeyNetworkProtocol.OP_VIEW_INFO, windowId, viewId);
+    }
+
+    public int viewsWithText(String text) throws IOException {
+        int id = mNextId++;
+        return send(id, new FrameWriter(id, MonkeyNetworkProtocol.OP_VIEWS_WITH_TEXT)
+                .writeString(text));
+    }
+
+    /**
+     * Dump every view of the active window at once.
+     *
+     * @param sinceGeneration the generation of a dump already read, to get
+     *        only what changed since; the monkey sends everything instead if
+     *        it no longer has that dump. 0 for everything.
+     * @param deflate whether the monkey should compress the dump
+     */
+    public int dumpTree(long sinceGeneration, boolean deflate) throws IOException {
+        int id = mNextId++;
+        return send(id, new FrameWriter(id, MonkeyNetworkProtocol.OP_DUMP_TREE)
+                .writeVarint(sinceGeneration)
+                .writeVarint(deflate ? MonkeyNetworkProtocol.DUMP_DEFLATE : 0));
+    }
+
+    private int viewRequest(int opcode, int windowId, int viewId) throws IOException {
+        int id = mNextId++;
+        return send(id, new FrameWriter(id, opcode).writeSigned(windowId).writeSigned(viewId));
+    }
+
+    /**
+     * Send everything buffered so far.
+     */
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    /**
+     * Send everything buffered so far and wait for the reply to a request.
+     */
+    public Reply waitFor(int requestId) throws IOException {
+        Reply reply = mReplies.remove((long) requestId);
+        if (reply != null) {
+            return reply;
+        }
+        mOut.flush();
+        while (true) {
+            reply = readReply();
+            if (reply.requestId == requestId) {
+                return reply;
+            }
+            mReplies.put(reply.requestId, reply);
+        }
+    }
+
+    /**
+     * End the session, leaving the monkey running for the next one.
+     */
+    public void close() throws IOException {
+        try {
+            int id = mNextId++;
+            send(id, new FrameWriter(id, MonkeyNetworkProtocol.OP_DONE));
+            waitFor(id);
+        } finally {
+            mSocket.close();
+        }
+    }
+
+    /**
+     * Stop the monkey.
+     */
+    public void quit() throws IOException {
+        try {
+            int id = mNextId++;
+            send(id, new FrameWriter(id, MonkeyNetworkProtocol.OP_QUIT));
+            waitFor(id);
+        } finally {
+            mSocket.close();
+        }
+    }
+
+    private int send(int id, FrameWriter frame) throws IOException {
+        ByteBuffer bytes = frame.toFrame();
+        mOut.write(bytes.array(), bytes.position(), bytes.remaining());
+        return id;
+    }
+
+    private Reply readReply() throws IOException {
+        long length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = mIn.read();
+            if (b < 0) {
+                throw new EOFException("monkey closed the connection");
+            }
+            length |= (long) (b & 0x7f) << shift;
+            if (b < 0x80) {
+                break;
+            }
+            if (shift >= 28) {
+                throw new IOException("bad reply length");
+            }
+        }
+        if (length > MAX_REPLY_LENGTH) {
+            throw new IOException("reply of " + length + " bytes is too long");
+        }
+        byte[] frame = new byte[(int) length];
+        for (int n = 0; n < frame.length; ) {
+            int count = mIn.read(frame, n, frame.length - n);
+            if (count < 0) {
+                throw new EOFException("monkey closed the connection");
+            }
+            n += count;
+        }
+        ByteBuffer body = ByteBuffer.wrap(frame);
+        try {
+            long requestId = MonkeyNetworkProtocol.readVarint(body);
+            int status = body.get() & 0xff;
+            return new Reply(requestId, status == MonkeyNetworkProtocol.STATUS_OK, body.slice());
+        } catch (RuntimeException e) {
+            // A BufferUnderflowException or a bad varint.
+            throw new IOException("bad reply: " + e);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int c = in.read(); c != '\n'; c = in.read()) {
+            if (c < 0) {
+                throw new EOFException("monkey closed the connection");
+            }
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+}
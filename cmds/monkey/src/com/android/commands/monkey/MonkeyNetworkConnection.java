@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedList;
+import java.util.Queue;
+
+/**
+ * One client of the network monkey (MonkeySourceNetwork) on its non-blocking
+ * selector: the bytes read but not yet split into lines (or frames, once it
+ * has switched to binary), the lines and frames not yet run, and the replies
+ * not yet written. It has no dependencies on the Android framework.
+ *
+ * A connection that is done is closed only once its replies have all been
+ * written, so a client that pipelines a command and "done" still gets the
+ * whole reply to the command.
+ */
+public class MonkeyNetworkConnection {
+    /** Lines longer than this are refused and the connection is dropped. */
+    public static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private static final int WRITE_BUFFER_SIZE = 4 * 1024;
+
+    private final SocketChannel mChannel;
+    private final SelectionKey mKey;
+    private final ByteBuffer mIn = ByteBuffer.allocate(MAX_LINE_LENGTH);
+    private final Queue<String> mLines = new LinkedList<String>();
+    private final Queue<byte[]> mFrames = new LinkedList<byte[]>();
+    private ByteBuffer mOut = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    private boolean mBinary; // switched to MonkeyNetworkProtocol framing
+    private boolean mEof; // no more input
+    private boolean mClosing; // close once the replies are written
+    private boolean mClosed;
+
+    /**
+     * @param channel the client's channel, non-blocking
+     * @param key the channel's key with its selector
+     */
+    public MonkeyNetworkConnection(SocketChannel channel, SelectionKey key) {
+        mChannel = channel;
+        mKey = key;
+    }
+
+    /**
+     * @return the lines read and not yet run
+     */
+    public Queue<String> getLines() {
+        return mLines;
+    }
+
+    /**
+     * @return the frames read and not yet run
+     */
+    public Queue<byte[]> getFrames() {
+        return mFrames;
+    }
+
+    public boolean isBinary() {
+        return mBinary;
+    }
+
+    /**
+     * Split what follows into frames instead of lines. The bytes already read
+     * after the last line are taken to be frames.
+     *
+     * @throws IllegalArgumentException if they hold a bad frame
+     */
+    public void switchToBinary() {
+        mBinary = true;
+        mLines.clear();
+        splitFrames();
+    }
+
+    /**
+     * @return true once close() or closeWhenWritten() has been called
+     */
+    public boolean isClosing() {
+        return mClosing || mClosed;
+    }
+
+    /**
+     * @return true once the channel is closed
+     */
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * @return the number of reply bytes not yet written
+     */
+    public int getPendingBytes() {
+        return mOut.position();
+    }
+
+    /**
+     * Read what has arrived and split off the complete lines, or frames if
+     * binary. Everything that has arrived is read at once, so a client that
+     * sends many commands without waiting for the replies costs one read.
+     *
+     * @return false if the client has closed its end; the lines and frames
+     *         already read are left to be run
+     * @throws IOException if the read failed
+     * @throws IllegalArgumentException if a line is too long or a frame is
+     *         bad; the lines and frames before it are left to be run
+     */
+    public boolean read() throws IOException {
+        if (isClosing() || mEof) {
+            return !mEof;
+        }
+        int count = mChannel.read(mIn);
+        if (mBinary) {
+            splitFrames();
+        } else {
+            splitLines();
+        }
+        if (count < 0) {
+            mEof = true;
+            updateInterest();
+        }
+        return count >= 0;
+    }
+
+    private void splitLines() {
+        int start = 0;
+        int end = mIn.position();
+        byte[] bytes = mIn.array();
+        for (int i = 0; i < end; i++) {
+            if (bytes[i] == '\n') {
+                int lineEnd = i > start && bytes[i - 1] == '\r' ? i - 1 : i;
+                mLines.offer(new String(bytes, start, lineEnd - start, StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+        }
+        mIn.limit(end);
+        mIn.position(start);
+        mIn.compact(); // the part of a line that hasn't all arrived moves to the start
+
+        if (!mIn.hasRemaining()) {
+            throw new IllegalArgumentException("line too long");
+        }
+    }
+
+    private void splitFrames() {
+        mIn.flip();
+        try {
+            for (byte[] frame = MonkeyNetworkProtocol.nextFrame(mIn); frame != null;
+                    frame = MonkeyNetworkProtocol.nextFrame(mIn)) {
+                mFrames.offer(frame);
+            }
+        } finally {
+            mIn.compact(); // the part of a frame that hasn't all arrived moves to the start
+        }
+    }
+
+    /**
+     * Queue bytes for the client and write what the socket will take.
+     * Nothing is written once the connection is closed.
+     *
+     * @throws IOException if the write failed; the connection is closed
+     */
+    public void write(ByteBuffer bytes) throws IOException {
+        if (mClosed) {
+            return;
+        }
+        if (mOut.remaining() < bytes.remaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(mOut.capacity() * 2,
+                    mOut.position() + bytes.remaining()));
+            mOut.flip();
+            bigger.put(mOut);
+            mOut = bigger;
+        }
+        mOut.put(bytes);
+        flush();
+    }
+
+    /**
+     * Write as much of the pending replies as the socket takes, and watch for
+     * it becoming writable again if some are left. A closing connection is
+     * closed once they are all written.
+     *
+     * @throws IOException if the write failed; the connection is closed
+     */
+    public void flush() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mOut.flip();
+        try {
+            mChannel.write(mOut);
+        } catch (IOException e) {
+            close();
+            throw e;
+        } finally {
+            mOut.compact();
+        }
+        if (mClosing && mOut.position() == 0) {
+            close();
+            return;
+        }
+        updateInterest();
+    }
+
+    /**
+     * Stop reading and running commands, and close the channel once the
+     * replies already queued have been written.
+     *
+     * @throws IOException if writing them failed; the connection is closed
+     */
+    public void closeWhenWritten() throws IOException {
+        if (isClosing()) {
+            return;
+        }
+        mClosing = true;
+        mLines.clear();
+        mFrames.clear();
+        flush();
+    }
+
+    /**
+     * Close the channel now, dropping any replies not yet written.
+     */
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mLines.clear();
+        mFrames.clear();
+        mKey.cancel();
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            // Nothing more can be done with it either way.
+        }
+    }
+
+    private void updateInterest() {
+        int ops = mEof || mClosing ? 0 : SelectionKey.OP_READ;
+        if (mOut.position() > 0) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        mKey.interestOps(ops);
+    }
+}
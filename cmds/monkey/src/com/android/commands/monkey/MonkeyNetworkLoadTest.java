@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many commands per second the network monkey
+ * (MonkeySourceNetwork, "monkey --port") can take, from the host.
+ *
+ * Each client sends the same command over and over, tagged with request ids,
+ * keeping up to a window of them in flight, and matches the replies by id to
+ * time each one. Replies must come back in the order the commands were sent;
+ * one that doesn't carry the id of the next command due is counted as out of
+ * order. A window of 1 is the classic one round trip per command;
+ * larger windows show what pipelining gains. Run it with the port forwarded:
+ * <pre>
+ *   adb forward tcp:1080 tcp:1080
+ *   adb shell monkey --port 1080 &amp;
+ *   java -cp monkey-host.jar com.android.commands.monkey.MonkeyNetworkLoadTest \
+ *       [--host HOST] [--port PORT] [--clients N] [--count N] [--window N] \
+ *       [--command COMMAND]
+ * </pre>
+ */
+public class MonkeyNetworkLoadTest {
+    private static final String DEFAULT_HOST = "localhost";
+    private static final int DEFAULT_PORT = 1080;
+    // Injects a throttle of 0ms, so the device does nothing but run the protocol.
+    private static final String DEFAULT_COMMAND = "sleep 0";
+
+    /**
+     * One connection sending count commands with up to window in flight.
+     */
+    static class LoadClient {
+        private final int mIndex;
+        private final String mIndexString;
+        private final Socket mSocket;
+        private final int mCount;
+        private final Semaphore mWindow;
+        private final String mCommand;
+        private final long[] mSentNanos;
+        private final long[] mLatencyNanos;
+        private final AtomicLong mErrors = new AtomicLong();
+        // Written by the reader thread, read once it has been joined.
+        private long mOutOfOrder;
+        private IOException mFailure;
+
+        LoadClient(int index, String host, int port, int count, int window, String command)
+                throws IOException {
+            mIndex = index;
+            mIndexString = Integer.toString(index);
+            mSocket = new Socket();
+            mSocket.setTcpNoDelay(true);
+            mSocket.connect(new InetSocketAddress(host, port));
+            mCount = count;
+            mWindow = new Semaphore(window);
+            mCommand = command;
+            mSentNanos = new long[count];
+            mLatencyNanos = new long[count];
+        }
+
+        /**
+         * Send everything and read every reply. Returns once all replies are in.
+         */
+        void run() throws IOException, InterruptedException {
+            Thread reader = new Thread("MonkeyNetworkLoadTest reader " + mIndex) {
+                @Override
+                public void run() {
+                    readReplies();
+                }
+            };
+            reader.setDaemon(true);
+            reader.start();
+
+            OutputStream out = mSocket.getOutputStream();
+            String prefix = "@" + mIndexString + ".";
+            for (int i = 0; i < mCount; i++) {
+                mWindow.acquire();
+                byte[] line = (prefix + i + " " + mCommand + "\n")
+                        .getBytes(StandardCharsets.UTF_8);
+                mSentNanos[i] = System.nanoTime();
+                out.write(line);
+                out.flush();
+            }
+            reader.join();
+            if (mFailure != null) {
+                throw mFailure;
+            }
+            out.write("done\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            mSocket.close();
+        }
+
+        private void readReplies() {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(
+                        mSocket.getInputStream(), StandardCharsets.UTF_8));
+                for (int received = 0; received < mCount; ) {
+                    String line = in.readLine();
+                    if (line == null) {
+                        throw new IOException("connection closed after " + received
+                                + " replies");
+                    }
+                    long now = System.nanoTime();
+                    int dot = line.indexOf('.');
+                    int space = line.indexOf(' ');
+                    if (!line.startsWith("@") || dot < 0 || space < dot) {
+                        continue; // not one of ours, e.g. a deferred reply
+                    }
+                    int id = Integer.parseInt(line.substring(dot + 1, space));
+                    if (id != received || !line.substring(1, dot).equals(mIndexString)) {
+                        mOutOfOrder++;
+                    }
+                    if (id >= 0 && id < mCount) {
+                        mLatencyNanos[id] = now - mSentNanos[id];
+                    }
+                    if (!line.startsWith("OK", space + 1)) {
+                        mErrors.incrementAndGet();
+                    }
+                    received++;
+                    mWindow.release();
+                }
+            } catch (IOException | RuntimeException e) {
+                mFailure = e instanceof IOException ? (IOException) e : new IOException(e);
+                // Let the sender finish so run() can report it.
+                mWindow.release(mCount);
+            }
+        }
+    }
+
+    /**
+     * What a run measured.
+     */
+    static class Result {
+        final long commands;
+        final long errors;
+        /** Replies that didn't carry the id of the next command due. */
+        final long outOfOrder;
+        final long elapsedNanos;
+
+        Result(long commands, long errors, long outOfOrder, long elapsedNanos) {
+            this.commands = commands;
+            this.errors = errors;
+            this.outOfOrder = outOfOrder;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        double commandsPerSec() {
+            return commands * 1e9 / elapsedNanos;
+        }
+    }
+
+    private static void showUsage() {
+        System.err.println("usage: MonkeyNetworkLoadTest [--host HOST] [--port PORT]"
+                + " [--clients N] [--count N]\n"
+                + "              [--window N] [--command COMMAND]\n"
+                + "\n"
+                + "Sends COUNT copies of COMMAND (default \"" + DEFAULT_COMMAND + "\") on each"
+                + " of N\n"
+                + "connections, with up to WINDOW (default 64) unanswered at a time,\n"
+                + "and prints the commands per second and the reply latencies. Use\n"
+                + "--window 1 for the one round trip per command baseline.");
+    }
+
+    public static void main(String[] args) {
+        String host = DEFAULT_HOST;
+        int port = DEFAULT_PORT;
+        int clients = 1;
+        int count = 10000;
+        int window = 64;
+        String command = DEFAULT_COMMAND;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--host")) {
+                    host = args[++i];
+                } else if (arg.equals("--port")) {
+                    port = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--clients")) {
+                    clients = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--count")) {
+                    count = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--window")) {
+                    window = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--command")) {
+                    command = args[++i];
+                } else {
+                    System.err.println("** Error: Unknown option: " + arg);
+                    showUsage();
+                    System.exit(1);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("** Error: " + e);
+            showUsage();
+            System.exit(1);
+        }
+        if (clients < 1 || count < 1 || window < 1) {
+            System.err.println("** Error: --clients, --count and --window must be positive");
+            System.exit(1);
+        }
+
+        try {
+            run(host, port, clients, count, window, command);
+        } catch (IOException e) {
+            System.err.println("** Error: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.exit(1);
+        }
+    }
+
+    static Result run(String host, int port, int clientCount, int count, int window,
+            String command) throws IOException, InterruptedException {
+        final List<LoadClient> clients = new ArrayList<LoadClient>();
+        for (int i = 0; i < clientCount; i++) {
+            clients.add(new LoadClient(i, host, port, count, window, command));
+        }
+
+        final IOException[] failure = new IOException[1];
+        List<Thread> threads = new ArrayList<Thread>();
+        long start = System.nanoTime();
+        for (final LoadClient client : clients) {
+            Thread t = new Thread("MonkeyNetworkLoadTest " + client.mIndex) {
+                @Override
+                public void run() {
+                    try {
+                        client.run();
+                    } catch (IOException e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    } catch (InterruptedException e) {
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        long total = (long) clientCount * count;
+        long[] latencies = new long[(int) total];
+        long errors = 0;
+        long outOfOrder = 0;
+        int n = 0;
+        for (LoadClient client : clients) {
+            System.arraycopy(client.mLatencyNanos, 0, latencies, n, count);
+            n += count;
+            errors += client.mErrors.get();
+            outOfOrder += client.mOutOfOrder;
+        }
+        Arrays.sort(latencies);
+        System.out.println(String.format(Locale.US,
+                ":LoadTest: clients=%d window=%d commands=%d errors=%d out_of_order=%d"
+                    + " seconds=%.3f commands_per_sec=%.1f",
+                clientCount, window, total, errors, outOfOrder, elapsed / 1e9,
+                total * 1e9 / elapsed));
+        System.out.println(String.format(Locale.US,
+                ":LoadTest: latency_ms p50=%.3f p90=%.3f p99=%.3f max=%.3f",
+                percentile(latencies, 50) / 1e6, percentile(latencies, 90) / 1e6,
+                percentile(latencies, 99) / 1e6, latencies[latencies.length - 1] / 1e6));
+        return new Result(total, errors, outOfOrder, elapsed);
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        int index = (int) Math.ceil(sorted.length * percent / 100.0) - 1;
+        return sorted[Math.max(Math.min(index, sorted.length - 1), 0)];
+    }
+}
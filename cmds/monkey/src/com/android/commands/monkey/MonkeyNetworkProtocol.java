@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The binary framing of the monkey network protocol, shared by the device
+ * side (MonkeySourceNetworkBinary) and the host side (MonkeyNetworkClient).
+ * It has no dependencies on the Android framework.
+ *
+ * A text session switches to binary by checking that the monkey.version var
+ * is at least VERSION, sending "binary VERSION" and waiting for its OK. From
+ * then on both directions carry frames:
+ * <pre>
+ *   length      varint, the number of bytes that follow
+ *   request id  varint, chosen by the client and echoed in the reply
+ *   opcode      1 byte, an OP_* in requests, a STATUS_* in replies
+ *   arguments   varints, signed ones zigzag-encoded, and strings as a
+ *               varint byte count then UTF-8
+ * </pre>
+ * Every request gets exactly one reply, in order. An error reply carries a
+ * message string; an OK reply carries what the opcode returns, if anything.
+ */
+public class MonkeyNetworkProtocol {
+    /** The first MONKEY_NETWORK_VERSION that speaks the binary protocol. */
+    public static final int VERSION = 4;
+
+    /** The text command that switches a session to binary. */
+    public static final String BINARY_COMMAND = "binary";
+
+    /** Frames longer than this are refused and the session is dropped. */
+    public static final int MAX_FRAME_LENGTH = 60 * 1024;
+
+    // Events. These take the same arguments as the text commands of the same name.
+    public static final int OP_KEY = 1;        // action, keycode
+    public static final int OP_TOUCH = 2;      // action, signed x, signed y
+    public static final int OP_TRACKBALL = 3;  // signed dx, signed dy
+    public static final int OP_TAP = 4;        // signed x, signed y
+    public static final int OP_PRESS = 5;      // keycode
+    public static final int OP_SLEEP = 6;      // ms
+    public static final int OP_FLIP = 7;       // 1 for open, 0 for closed
+    public static final int OP_TYPE = 8;       // string
+    public static final int OP_WAKE = 9;
+    // count, then count event requests without their request ids, queued as one
+    public static final int OP_GESTURE = 10;
+
+    // Anything else: a text command line, replied to with its message string.
+    public static final int OP_TEXT = 16;
+
+    // Views, addressed by signed window id and signed accessibility view id.
+    public static final int OP_ROOT_VIEW = 32;       // -> ids
+    public static final int OP_PARENT = 33;          // ids -> ids
+    public static final int OP_CHILDREN = 34;        // ids -> count, ids...
+    public static final int OP_VIEWS_WITH_TEXT = 35; // string -> count, ids...
+    // ids -> class, text, signed left, top, width, height, VIEW_* flags, child count
+    public static final int OP_VIEW_INFO = 36;
+    // since generation, DUMP_* options -> the MonkeyViewTree payload
+    public static final int OP_DUMP_TREE = 37;
+
+    // Session.
+    public static final int OP_DONE = 64;
+    public static final int OP_QUIT = 65;
+
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_ERROR = 1;
+
+    // Bits of the flags returned by OP_VIEW_INFO.
+    public static final int VIEW_CHECKED = 1 << 0;
+    public static final int VIEW_ENABLED = 1 << 1;
+    public static final int VIEW_SELECTED = 1 << 2;
+    public static final int VIEW_FOCUSED = 1 << 3;
+    public static final int VIEW_CLICKABLE = 1 << 4;
+    public static final int VIEW_SCROLLABLE = 1 << 5;
+    // The text of a password field is never sent.
+    public static final int VIEW_PASSWORD = 1 << 6;
+
+    // Options of OP_DUMP_TREE.
+    public static final int DUMP_DEFLATE = 1 << 0;
+
+    private MonkeyNetworkProtocol() {
+    }
+
+    /**
+     * Builds one frame.
+     */
+    public static class FrameWriter {
+        // Room for the length, filled in by toFrame().
+        private static final int HEADER = 5;
+
+        private byte[] mBuffer = new byte[64];
+        private int mPos = HEADER;
+
+        /**
+         * Start a frame with its request id and opcode or status.
+         */
+        public FrameWriter(long requestId, int code) {
+            writeVarint(requestId);
+            writeByte(code);
+        }
+
+        /**
+         * Start a bare body, to be added to a frame with write(FrameWriter).
+         */
+        public FrameWriter() {
+        }
+
+        public FrameWriter writeByte(int value) {
+            ensure(1);
+            mBuffer[mPos++] = (byte) value;
+            return this;
+        }
+
+        public FrameWriter writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                mBuffer[mPos++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            mBuffer[mPos++] = (byte) value;
+            return this;
+        }
+
+        public FrameWriter writeSigned(long value) {
+            return writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        public FrameWriter writeString(String s) {
+            byte[] bytes = s != null ? s.getBytes(StandardCharsets.UTF_8) : new byte[0];
+            writeVarint(bytes.length);
+            return writeBytes(bytes);
+        }
+
+        public FrameWriter writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, mBuffer, mPos, bytes.length);
+            mPos += bytes.length;
+            return this;
+        }
+
+        /**
+         * Append everything written to another writer after its header.
+         */
+        public FrameWriter write(FrameWriter body) {
+            int length = body.mPos - HEADER;
+            ensure(length);
+            System.arraycopy(body.mBuffer, HEADER, mBuffer, mPos, length);
+            mPos += length;
+            return this;
+        }
+
+        /**
+         * @return the number of bytes after the header written so far
+         */
+        public int length() {
+            return mPos - HEADER;
+        }
+
+        /**
+         * @return the bytes after the header, without a length
+         */
+        public byte[] toByteArray() {
+            return Arrays.copyOfRange(mBuffer, HEADER, mPos);
+        }
+
+        /**
+         * @return the frame, length included, ready to write
+         */
+        public ByteBuffer toFrame() {
+            int length = mPos - HEADER;
+            int start = HEADER - varintSize(length);
+            int pos = start;
+            for (long value = length; ; value >>>= 7) {
+                if ((value & ~0x7fL) == 0) {
+                    mBuffer[pos] = (byte) value;
+                    break;
+                }
+                mBuffer[pos++] = (byte) ((value & 0x7f) | 0x80);
+            }
+            return ByteBuffer.wrap(mBuffer, start, mPos - start);
+        }
+
+        private void ensure(int count) {
+            if (mPos + count > mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mPos + count));
+            }
+        }
+    }
+
+    /**
+     * Split the next frame off the bytes between in's position and limit.
+     *
+     * @return the frame without its length, or null if it hasn't all arrived,
+     *         in which case the position is left where it was
+     * @throws IllegalArgumentException if the frame is longer than MAX_FRAME_LENGTH
+     */
+    public static byte[] nextFrame(ByteBuffer in) {
+        int start = in.position();
+        long length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (!in.hasRemaining()) {
+                in.position(start);
+                return null;
+            }
+            byte b = in.get();
+            length |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                break;
+            }
+            if (shift >= 28) {
+                throw new IllegalArgumentException("bad frame length");
+            }
+        }
+        if (length > MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("frame of " + length + " bytes is too long");
+        }
+        if (in.remaining() < length) {
+            in.position(start);
+            return null;
+        }
+        byte[] frame = new byte[(int) length];
+        in.get(frame);
+        return frame;
+    }
+
+    public static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+
+    public static long readSigned(ByteBuffer in) {
+        long value = readVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static String readString(ByteBuffer in) {
+        long length = readVarint(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[(int) length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop pacing for a target event rate.
+ *
+ * Every event gets an absolute deadline computed from the start of the run,
+ * so the time spent generating and injecting an event doesn't push back the
+ * events after it, and the achieved rate doesn't drift as the device slows
+ * down. When the loop falls behind, the events that are due go out back to
+ * back until it catches up; the schedule itself is never moved.
+ *
+ * How far each event started after its deadline is kept in a histogram. This
+ * is the delay the schedule would have seen, so a stall shows up in the
+ * events that were queued behind it instead of being hidden by them, which
+ * is what a closed loop of sleeps would do.
+ *
+ * Arrivals can be evenly spaced, a Poisson process with the same mean rate,
+ * or bursts of several events that share a deadline followed by a gap that
+ * keeps the mean rate. The events of a burst go out back to back, so only the
+ * first one of each burst is measured against its deadline.
+ */
+public class MonkeyPacer {
+    /** Evenly spaced events. */
+    public static final int ARRIVAL_CONSTANT = 0;
+    /** Exponentially distributed gaps between events. */
+    public static final int ARRIVAL_POISSON = 1;
+    /** Bursts of events with no gap between them. */
+    public static final int ARRIVAL_BURST = 2;
+    private static final String[] ARRIVAL_NAMES = { "constant", "poisson", "burst" };
+
+    // An event that starts later than this after its deadline counts as late.
+    private static final long LATE_NANOS = 1000000;
+
+    // Don't park for less than this, the wakeup costs more than it saves.
+    private static final long MIN_PARK_NANOS = 50000;
+
+    private final double mIntervalNanos;
+    private final double mRate;
+    private final int mArrival;
+    private final int mBurstSize;
+    private final Random mRandom;
+
+    private long mStartNanos;
+    // Offset of the next deadline from mStartNanos. Kept as a double so the
+    // rounding of a fractional interval doesn't add up over a long run.
+    private double mNextOffset;
+    private int mInBurst;
+
+    private long mEvents;
+    private long mLate;
+    private final MonkeyLatencyHistogram mLag = new MonkeyLatencyHistogram();
+
+    /**
+     * @param rate the target number of events per second
+     * @param arrival one of the ARRIVAL_* patterns
+     * @param burstSize the number of events in a burst, for ARRIVAL_BURST
+     * @param random used for the Poisson gaps; pass one that isn't shared with
+     *        the event source so pacing doesn't change the events generated
+     */
+    public MonkeyPacer(double rate, int arrival, int burstSize, Random random) {
+        mRate = rate;
+        mIntervalNanos = 1e9 / rate;
+        mArrival = arrival;
+        mBurstSize = Math.max(burstSize, 1);
+        mRandom = random;
+    }
+
+    /**
+     * Returns the ARRIVAL_* constant for a name, or -1 if there is none.
+     */
+    public static int parseArrival(String name) {
+        for (int i = 0; i < ARRIVAL_NAMES.length; i++) {
+            if (ARRIVAL_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Wait until the next event is due. The first call starts the schedule
+     * and returns straight away.
+     *
+     * @return how far behind the schedule the event is, in nanoseconds
+     */
+    public long awaitNext() {
+        if (mEvents == 0) {
+            mStartNanos = System.nanoTime();
+        }
+        long deadline = mStartNanos + (long) mNextOffset;
+        boolean measure = mArrival != ARRIVAL_BURST || mInBurst == 0;
+        advance();
+
+        long now = System.nanoTime();
+        while (deadline - now > MIN_PARK_NANOS) {
+            LockSupport.parkNanos(deadline - now);
+            if (Thread.interrupted()) {
+                // Leave the interrupt for whoever checks it next.
+                Thread.currentThread().interrupt();
+                break;
+            }
+            now = System.nanoTime();
+        }
+        long lag = Math.max(now - deadline, 0);
+        mEvents++;
+        if (measure) {
+            record(lag);
+        }
+        return lag;
+    }
+
+    /**
+     * Move mNextOffset on to the deadline of the event after this one.
+     */
+    private void advance() {
+        switch (mArrival) {
+            case ARRIVAL_POISSON:
+                // 1 - nextDouble() is never 0, so the log is finite.
+                mNextOffset += -Math.log(1.0 - mRandom.nextDouble()) * mIntervalNanos;
+                break;
+            case ARRIVAL_BURST:
+                if (++mInBurst >= mBurstSize) {
+                    mInBurst = 0;
+                    mNextOffset += mBurstSize * mIntervalNanos;
+                }
+                break;
+            default:
+                mNextOffset += mIntervalNanos;
+                break;
+        }
+    }
+
+    private void record(long lagNanos) {
+        if (lagNanos > LATE_NANOS) {
+            mLate++;
+        }
+        mLag.record(lagNanos / 1000);
+    }
+
+    /** Returns the number of events paced so far. */
+    public long getEvents() {
+        return mEvents;
+    }
+
+    /** Returns the number of events measured, which is one per burst for bursts. */
+    public long getMeasured() {
+        return mLag.getCount();
+    }
+
+    /** Returns the number of measured events that started more than 1 ms late. */
+    public long getLate() {
+        return mLate;
+    }
+
+    /** Returns the rate achieved so far, in events per second. */
+    public double getAchievedRate() {
+        if (mEvents < 2) {
+            return 0;
+        }
+        long elapsed = System.nanoTime() - mStartNanos;
+        return elapsed > 0 ? (mEvents - 1) * 1e9 / elapsed : 0;
+    }
+
+    /**
+     * Returns true if the run kept up with the target: fewer than 1% of the
+     * measured events were late and the rate achieved was within 5% of the target.
+     */
+    public boolean metTarget() {
+        return mLate * 100 < mLag.getCount() && getAchievedRate() >= mRate * 0.95;
+    }
+
+    /**
+     * Write the schedule and the lag as one line of JSON.
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"arrival\":\"").append(ARRIVAL_NAMES[mArrival]).append('"');
+        if (mArrival == ARRIVAL_BURST) {
+            sb.append(",\"burstSize\":").append(mBurstSize);
+        }
+        sb.append(String.format(Locale.US, ",\"target\":%.1f,\"achieved\":%.1f",
+                mRate, getAchievedRate()));
+        sb.append(",\"events\":").append(mEvents);
+        long measured = mLag.getCount();
+        sb.append(",\"measured\":").append(measured);
+        sb.append(",\"late\":").append(mLate);
+        sb.append(String.format(Locale.US, ",\"latePct\":%.2f",
+                measured > 0 ? mLate * 100.0 / measured : 0.0));
+        sb.append(",\"lagUs\":{\"p50\":").append(mLag.percentile(0.50));
+        sb.append(",\"p99\":").append(mLag.percentile(0.99));
+        sb.append(",\"max\":").append(mLag.getMaxMicros()).append("}}");
+        return sb.toString();
+    }
+}
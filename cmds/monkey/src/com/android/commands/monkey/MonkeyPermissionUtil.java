@@ -77,6 +77,8 @@ public class MonkeyPermissionUtil {
     private boolean mTargetSystemPackages; //持有的是否为系统包
     private IPackageManager mPm; //PMS系统服务
     private final IPermissionManager mPermManager; //PermissionManager权限
+    /** where resolved permissions are kept across runs, or null to ask every time */
+    private MonkeyAppCache mAppCache;
 
     /** keep track of runtime permissions requested for each package targeted */
     private Map<String, List<PermissionInfo>> mPermissionMap; //持有的Map，Key为String，Value为List对象，list的每个元素PermissionInfo对象
@@ -98,21 +100,35 @@ public class MonkeyPermissionUtil {
         mTargetSystemPackages = targetSystemPackages;
     }
 
+    /**
+     * Take the permissions of packages from a cache, resolving only those
+     * installed or updated since it was written.
+     * @param appCache the synced cache, or null to ask the package manager
+     */
+    public void setAppCache(MonkeyAppCache appCache) {
+        mAppCache = appCache;
+    }
+
     /**
      * Decide if a package should be targeted by permission monkey
      * @param info 包信息对象
      * @return 是否为目标包（可用的应用）
      */
     private boolean shouldTargetPackage(PackageInfo info) {
+        return shouldTargetPackage(info.packageName,
+                (info.applicationInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0);
+    }
+
+    private boolean shouldTargetPackage(String packageName, boolean system) {
         // target if permitted by white listing / black listing rules
-        if (MonkeyUtils.getPackageFilter().checkEnteringPackage(info.packageName)) {
+        if (MonkeyUtils.getPackageFilter().checkEnteringPackage(packageName)) {
             return true; //如果是允许进入的包，则直接返回true，不管别的事情
         }
         if (mTargetSystemPackages //如果支持系统应用、且不是无效包、应用的flags与FLAG_SYSTEM位与不等于0，直接返回true
                 // not explicitly black listed
-                && !MonkeyUtils.getPackageFilter().isPackageInvalid(info.packageName)
+                && !MonkeyUtils.getPackageFilter().isPackageInvalid(packageName)
                 // is a system app
-                && (info.applicationInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0) {
+                && system) {
             return true;
         }
         return false; //说不是支持的应用
@@ -127,6 +143,28 @@ public class MonkeyPermissionUtil {
                 && isModernPermissionGroup(pi.group);
     }
 
+    /**
+     * The runtime permissions of a package that permission events may change.
+     */
+    private List<PermissionInfo> getTargetedPermissions(PackageInfo info)
+            throws RemoteException {
+        List<PermissionInfo> permissions = new ArrayList<>(); //创建一个List对象，每个元素为PermissionInfo对象
+        if (info.applicationInfo.targetSdkVersion <= Build.VERSION_CODES.LOLLIPOP_MR1) { //判断API版本
+            // skip apps targetting lower API level
+            return permissions;
+        }
+        if (info.requestedPermissions == null) {
+            return permissions;
+        }
+        for (String perm : info.requestedPermissions) {
+            PermissionInfo pi = mPermManager.getPermissionInfo(perm, "shell", 0);
+            if (pi != null && shouldTargetPermission(info.packageName, pi)) {
+                permissions.add(pi);
+            }
+        }
+        return permissions;
+    }
+
     /**
      *
      * @return
@@ -134,29 +172,32 @@ public class MonkeyPermissionUtil {
     public boolean populatePermissionsMapping() {
         mPermissionMap = new HashMap<>(); //创建HashMap对象
         try {
-            List<?> pkgInfos = mPm.getInstalledPackages(
-                    PackageManager.GET_PERMISSIONS, UserHandle.myUserId()).getList(); //通过PMS获取所有已安装包的信息
-            for (Object o : pkgInfos) { //遍历所有安装包信息
-                PackageInfo info = (PackageInfo)o; //元素向下转型为PackageInfo对象
-                if (!shouldTargetPackage(info)) { //检查是不是可以使用的应用
-                    continue; //如果不是目标包，直接中断一次循环
-                }
-                List<PermissionInfo> permissions = new ArrayList<>(); //创建一个List对象，每个元素为PermissionInfo对象
-                if (info.applicationInfo.targetSdkVersion <= Build.VERSION_CODES.LOLLIPOP_MR1) { //判断API版本
-                    // skip apps targetting lower API level
-                    continue;
-                }
-                if (info.requestedPermissions == null) {
-                    continue;
-                }
-                for (String perm : info.requestedPermissions) {
-                    PermissionInfo pi = mPermManager.getPermissionInfo(perm, "shell", 0);
-                    if (pi != null && shouldTargetPermission(info.packageName, pi)) {
-                        permissions.add(pi);
+            if (mAppCache != null) {
+                Map<String, List<PermissionInfo>> cached = mAppCache.getPermissions(
+                        new MonkeyAppCache.PermissionResolver() {
+                            @Override
+                            public List<PermissionInfo> resolve(PackageInfo info)
+                                    throws RemoteException {
+                                return getTargetedPermissions(info);
+                            }
+                        });
+                for (Map.Entry<String, List<PermissionInfo>> e : cached.entrySet()) {
+                    if (shouldTargetPackage(e.getKey(), mAppCache.isSystemPackage(e.getKey()))) {
+                        mPermissionMap.put(e.getKey(), e.getValue());
                     }
                 }
-                if (!permissions.isEmpty()) {
-                    mPermissionMap.put(info.packageName, permissions); //包名作为Key，List对象为Value，这个Map保存着每个应用的拥有权限情况，因为一个应用，会有多个权限，所以Key为包名，Value为一个List
+            } else {
+                List<?> pkgInfos = mPm.getInstalledPackages(
+                        PackageManager.GET_PERMISSIONS, UserHandle.myUserId()).getList(); //通过PMS获取所有已安装包的信息
+                for (Object o : pkgInfos) { //遍历所有安装包信息
+                    PackageInfo info = (PackageInfo)o; //元素向下转型为PackageInfo对象
+                    if (!shouldTargetPackage(info)) { //检查是不是可以使用的应用
+                        continue; //如果不是目标包，直接中断一次循环
+                    }
+                    List<PermissionInfo> permissions = getTargetedPermissions(info);
+                    if (!permissions.isEmpty()) {
+                        mPermissionMap.put(info.packageName, permissions); //包名作为Key，List对象为Value，这个Map保存着每个应用的拥有权限情况，因为一个应用，会有多个权限，所以Key为包名，Value为一个List
+                    }
                 }
             }
         } catch (RemoteException re) {
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.util.Random;
+
+/**
+ * A Random whose state can be saved and restored, so a checkpointed run can
+ * carry on with the same sequence of numbers.
+ *
+ * It uses the same 48-bit linear congruential generator and seed scrambling
+ * that java.util.Random documents, so a given seed still produces exactly the
+ * same events as before. Everything Random returns is built on next(), except
+ * for the second value cached by nextGaussian(), which isn't part of the
+ * saved state; the monkey doesn't use it.
+ */
+public class MonkeyRandom extends Random {
+    private static final long MULTIPLIER = 0x5DEECE66DL;
+    private static final long ADDEND = 0xBL;
+    private static final long MASK = (1L << 48) - 1;
+
+    // Not initialized here: Random's constructor calls setSeed() before the
+    // field initializers of this class would run.
+    private long mState;
+
+    public MonkeyRandom(long seed) {
+        super(seed);
+    }
+
+    @Override
+    public synchronized void setSeed(long seed) {
+        super.setSeed(seed);
+        mState = (seed ^ MULTIPLIER) & MASK;
+    }
+
+    @Override
+    protected synchronized int next(int bits) {
+        mState = (mState * MULTIPLIER + ADDEND) & MASK;
+        return (int) (mState >>> (48 - bits));
+    }
+
+    /**
+     * @return the state of the generator, for setState()
+     */
+    public synchronized long getState() {
+        return mState;
+    }
+
+    /**
+     * Continue from a state returned by getState().
+     */
+    public synchronized void setState(long state) {
+        mState = state & MASK;
+    }
+}
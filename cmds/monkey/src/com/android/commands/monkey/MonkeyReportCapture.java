@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Runs the command line reports (bugreport, procrank, dumpsys meminfo, ANR
+ * traces) and saves or prints their output.
+ *
+ * Reports can be captured on the calling thread with capture(), or handed to a
+ * small bounded pool of threads with submit() so the monkey keeps injecting
+ * while they run. Submitted reports are de-duplicated by key: while a report
+ * with a given key is queued or running, further requests for the same key
+ * are coalesced into it, so a burst of ANRs from one process gives one
+ * bugreport rather than a queue of them.
+ *
+ * When the output goes to a file, the child's stdout is streamed straight into
+ * it, with FileChannel.transferFrom() for plain files and through a
+ * GZIPOutputStream for compressed ones, rather than being split into lines.
+ */
+public class MonkeyReportCapture {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File mDir;
+    private final boolean mToFile;
+    private final boolean mCompress;
+
+    // Guarded by this.
+    private final HashSet<String> mPending = new HashSet<String>();
+    private int mCoalesced;
+
+    // Reports that print to the console hold this, so they don't interleave.
+    private final Object mConsoleLock = new Object();
+
+    private ThreadPoolExecutor mExecutor;
+
+    /**
+     * @param dir where to save the reports
+     * @param toFile true to save the reports in dir, false to print them to
+     *        the error stream
+     * @param compress true to gzip the saved reports
+     */
+    public MonkeyReportCapture(File dir, boolean toFile, boolean compress) {
+        mDir = dir;
+        mToFile = toFile;
+        mCompress = compress;
+    }
+
+    /**
+     * Run submitted reports on their own threads instead of the caller's.
+     *
+     * @param threads how many reports may run at once
+     * @param maxQueued how many more may wait for a thread; beyond that,
+     *        reports are dropped
+     */
+    public void startAsync(int threads, int maxQueued) {
+        mExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(maxQueued, 1)),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "MonkeyReportCapture");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * @return true if submit() runs reports in the background
+     */
+    public boolean isAsync() {
+        return mExecutor != null;
+    }
+
+    /**
+     * Run a report in the background, or right away if startAsync() was not
+     * called.
+     *
+     * @param key reports with the same key are coalesced while one is pending
+     * @param report the work, which typically ends up calling capture()
+     * @return false if the report was coalesced or dropped
+     */
+    public boolean submit(final String key, final Runnable report) {
+        if (mExecutor == null) {
+            report.run();
+            return true;
+        }
+        synchronized (this) {
+            if (!mPending.add(key)) {
+                mCoalesced++;
+                Logger.err.println("// " + key + " report already pending, coalesced");
+                return false;
+            }
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        report.run();
+                    } finally {
+                        finished(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Logger.err.println("// Too many reports pending, dropped " + key);
+            finished(key);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return how many reports are queued or running
+     */
+    public synchronized int getPending() {
+        return mPending.size();
+    }
+
+    /**
+     * @return how many requests were folded into a report that was already pending
+     */
+    public synchronized int getCoalesced() {
+        return mCoalesced;
+    }
+
+    /**
+     * Block until every submitted report has finished.
+     */
+    public synchronized void awaitIdle() {
+        while (!mPending.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Wait for the submitted reports and then end the threads.
+     */
+    public void shutdown() {
+        if (mExecutor != null) {
+            awaitIdle();
+            mExecutor.shutdown();
+        }
+    }
+
+    private synchronized void finished(String key) {
+        mPending.remove(key);
+        notifyAll();
+    }
+
+    /**
+     * Run a command on the calling thread and save or print its output.
+     *
+     * @param reportName Simple tag that will print before the report and in
+     *            various annotations, and the name of the saved file.
+     * @param command Command line to execute.
+     */
+    public void capture(String reportName, String command) {
+        Logger.err.println(reportName + ":");
+        try {
+            // Process must be fully qualified here because android.os.Process
+            // is used elsewhere
+            java.lang.Process p = Runtime.getRuntime().exec(command);
+            InputStream in = p.getInputStream();
+            if (mToFile) {
+                saveOutput(in, reportName);
+            } else {
+                printOutput(in);
+            }
+            int status = p.waitFor();
+            Logger.err.println("// " + reportName + " status was " + status);
+        } catch (Exception e) {
+            Logger.err.println("// Exception from " + reportName + ":");
+            Logger.err.println(e.toString());
+        }
+    }
+
+    private void printOutput(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        synchronized (mConsoleLock) {
+            String s;
+            while ((s = reader.readLine()) != null) {
+                Logger.err.println(s);
+            }
+        }
+    }
+
+    private void saveOutput(InputStream in, String reportName) throws IOException {
+        try {
+            if (mCompress) {
+                OutputStream out = new GZIPOutputStream(
+                        new FileOutputStream(new File(mDir, reportName + ".gz"), true),
+                        BUFFER_SIZE);
+                try {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int n;
+                    while ((n = in.read(buffer)) >= 0) {
+                        out.write(buffer, 0, n);
+                    }
+                } finally {
+                    out.close();
+                }
+            } else {
+                FileChannel out = new FileOutputStream(new File(mDir, reportName), true)
+                        .getChannel();
+                try {
+                    ReadableByteChannel src = Channels.newChannel(in);
+                    long position = out.size();
+                    long n;
+                    // The source blocks until it has data, so 0 means end of stream.
+                    while ((n = out.transferFrom(src, position, BUFFER_SIZE)) > 0) {
+                        position += n;
+                    }
+                } finally {
+                    out.close();
+                }
+            }
+        } catch (IOException e) {
+            // When no space left on the device the write will occur an I/O
+            // exception, so keep reading the pipe to avoid the child hanging
+            // forever.
+            byte[] discard = new byte[BUFFER_SIZE];
+            while (in.read(discard) >= 0) {
+            }
+            Logger.err.println(e.toString());
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * Cuts an event log that makes an app crash down to a short sequence of
+ * events that still does, by delta debugging (Zeller's ddmin).
+ *
+ * The log is split into records with MonkeyEventLog, and the records into
+ * units with MonkeyEventLog.groupGestures(): a whole gesture or key press,
+ * or a single other event. Cutting a gesture apart would change the down
+ * times of the records after the cut, so units are kept or dropped whole.
+ * At granularity n the current sequence of units is cut into n chunks, and
+ * each chunk and each complement (the sequence without that chunk) is tried.
+ * The first one that still reproduces, in that order, becomes the new
+ * sequence; if none does, n is doubled, until the chunks are single units.
+ * The result is 1-minimal in units: taking out any one gesture, key press
+ * or other event makes the failure go away.
+ *
+ * A trial is handed to a TargetRunner, which replays the events on a device
+ * (MonkeyAdbTarget) or a stand-in (MonkeySimulatedTarget) and says whether
+ * the failure happened. With several runners, the candidates of a round run
+ * in parallel, one per runner, and the round stops as soon as the earliest
+ * candidate that can still win has reproduced. Outcomes are cached, since
+ * ddmin asks about the same subsets again at finer granularities.
+ *
+ * Run it on the host with
+ * <pre>
+ *   java -cp monkey-host.jar com.android.commands.monkey.MonkeyReproMinimizer \
+ *       [-s SERIAL]... [-p PACKAGE] [--signature REGEX] [--attempts N] \
+ *       [--timeout SEC] IN_LOG OUT_LOG
+ * </pre>
+ */
+public class MonkeyReproMinimizer {
+    /**
+     * Replays a sequence of events somewhere and reports whether it failed.
+     * Each runner is used by one trial at a time.
+     */
+    public interface TargetRunner {
+        /**
+         * @return a name for the target, for the progress output
+         */
+        String getName();
+
+        /**
+         * Bring the target back to a known state, replay the records and
+         * check for the failure.
+         *
+         * @param records records from MonkeyEventLog.readRecords()
+         * @return true if the failure happened
+         */
+        boolean reproduces(List<byte[]> records) throws IOException, InterruptedException;
+    }
+
+    private final List<byte[]> mRecords;
+    private final List<int[]> mUnits;
+    private final BlockingQueue<TargetRunner> mRunners;
+    private final ExecutorService mExecutor;
+    private final int mAttempts;
+    private final PrintStream mOut;
+
+    // Outcome of every subset tried, keyed by the indices of its units.
+    private final HashMap<BitSet, Boolean> mCache = new HashMap<BitSet, Boolean>();
+
+    private int mTrials;
+    private int mCacheHits;
+
+    /**
+     * @param records the records of the failing log
+     * @throws IllegalArgumentException if a record is corrupt
+     * @param runners the targets to run trials on, in parallel
+     * @param attempts how many times to replay a subset before deciding it
+     *        doesn't fail, for failures that don't happen every time
+     * @param out where to print progress, or null for none
+     */
+    public MonkeyReproMinimizer(List<byte[]> records, List<? extends TargetRunner> runners,
+            int attempts, PrintStream out) {
+        if (runners.isEmpty()) {
+            throw new IllegalArgumentException("no targets to run trials on");
+        }
+        mRecords = records;
+        mUnits = MonkeyEventLog.groupGestures(records);
+        mRunners = new ArrayBlockingQueue<TargetRunner>(runners.size(), false, runners);
+        mExecutor = Executors.newFixedThreadPool(runners.size());
+        mAttempts = Math.max(attempts, 1);
+        mOut = out;
+    }
+
+    /**
+     * @return how many subsets were replayed
+     */
+    public int getTrials() {
+        return mTrials;
+    }
+
+    /**
+     * @return how many subsets were answered from the cache
+     */
+    public int getCacheHits() {
+        return mCacheHits;
+    }
+
+    /**
+     * Minimize the log.
+     *
+     * @return the indices of the records in the minimal sequence, in order,
+     *         or null if the whole log doesn't reproduce the failure
+     */
+    public int[] minimize() throws IOException, InterruptedException {
+        try {
+            int[] current = new int[mUnits.size()];
+            for (int i = 0; i < current.length; i++) {
+                current[i] = i;
+            }
+            List<int[]> all = new ArrayList<int[]>();
+            all.add(current);
+            if (runRound(all) != 0) {
+                return null;
+            }
+
+            int n = 2;
+            while (current.length >= 2) {
+                n = Math.min(n, current.length);
+                List<int[]> candidates = new ArrayList<int[]>(2 * n);
+                for (int i = 0; i < n; i++) {
+                    candidates.add(chunk(current, n, i, false));
+                }
+                // With two chunks each complement is the other chunk.
+                if (n > 2) {
+                    for (int i = 0; i < n; i++) {
+                        candidates.add(chunk(current, n, i, true));
+                    }
+                }
+
+                int found = runRound(candidates);
+                if (found < 0) {
+                    if (n == current.length) {
+                        break;
+                    }
+                    n = Math.min(n * 2, current.length);
+                } else {
+                    current = candidates.get(found);
+                    // Reduce to a chunk: start over at 2. Reduce to a complement: n - 1.
+                    n = found < n ? 2 : Math.max(n - 1, 2);
+                }
+                progress(String.format(Locale.US, "%d units, granularity %d, %d trials",
+                        current.length, n, mTrials));
+            }
+            return expand(current);
+        } finally {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Minimize and write out the result.
+     *
+     * @return the number of events written, or -1 if the log doesn't fail
+     */
+    public int minimizeTo(File outFile) throws IOException, InterruptedException {
+        int[] result = minimize();
+        if (result == null) {
+            return -1;
+        }
+        MonkeyEventLog.writeRecords(outFile, select(result));
+        return result.length;
+    }
+
+    /**
+     * Chunk i of n, or everything but chunk i if complement is true.
+     */
+    static int[] chunk(int[] current, int n, int i, boolean complement) {
+        int start = (int) ((long) current.length * i / n);
+        int end = (int) ((long) current.length * (i + 1) / n);
+        if (!complement) {
+            int[] result = new int[end - start];
+            System.arraycopy(current, start, result, 0, result.length);
+            return result;
+        }
+        int[] result = new int[current.length - (end - start)];
+        System.arraycopy(current, 0, result, 0, start);
+        System.arraycopy(current, end, result, start, current.length - end);
+        return result;
+    }
+
+    /**
+     * Try the candidates, in parallel across the runners.
+     *
+     * @return the index of the first candidate that reproduces, or -1
+     */
+    private int runRound(List<int[]> candidates) throws IOException, InterruptedException {
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(candidates.size());
+        for (int[] candidate : candidates) {
+            final BitSet key = toKey(candidate);
+            Boolean cached;
+            synchronized (mCache) {
+                cached = mCache.get(key);
+            }
+            if (cached != null) {
+                mCacheHits++;
+                futures.add(null);
+                continue;
+            }
+            final List<byte[]> records = select(expand(candidate));
+            futures.add(mExecutor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return trial(key, records);
+                }
+            }));
+        }
+
+        // Taking the results in order picks the same candidate whatever order
+        // the trials finish in. Later ones are cancelled once one reproduces.
+        int found = -1;
+        try {
+            for (int i = 0; i < candidates.size() && found < 0; i++) {
+                Future<Boolean> future = futures.get(i);
+                boolean failed;
+                if (future == null) {
+                    synchronized (mCache) {
+                        failed = mCache.get(toKey(candidates.get(i)));
+                    }
+                } else {
+                    failed = future.get();
+                }
+                if (failed) {
+                    found = i;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("trial failed: " + cause, cause);
+        } finally {
+            for (Future<Boolean> future : futures) {
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Replay one subset on the next free runner, up to mAttempts times.
+     */
+    private boolean trial(BitSet key, List<byte[]> records)
+            throws IOException, InterruptedException {
+        TargetRunner runner = mRunners.take();
+        boolean failed = false;
+        try {
+            for (int i = 0; i < mAttempts && !failed; i++) {
+                failed = runner.reproduces(records);
+            }
+        } finally {
+            mRunners.add(runner);
+        }
+        synchronized (mCache) {
+            mCache.put(key, failed);
+            mTrials++;
+        }
+        progress(String.format(Locale.US, "  %s: %d events %s", runner.getName(),
+                records.size(), failed ? "FAIL" : "pass"));
+        return failed;
+    }
+
+    /**
+     * @return the indices of the records of the given units, in order
+     */
+    private int[] expand(int[] units) {
+        int count = 0;
+        for (int unit : units) {
+            count += mUnits.get(unit).length;
+        }
+        int[] indices = new int[count];
+        int i = 0;
+        for (int unit : units) {
+            int[] records = mUnits.get(unit);
+            System.arraycopy(records, 0, indices, i, records.length);
+            i += records.length;
+        }
+        return indices;
+    }
+
+    private List<byte[]> select(int[] indices) {
+        List<byte[]> records = new ArrayList<byte[]>(indices.length);
+        for (int index : indices) {
+            records.add(mRecords.get(index));
+        }
+        return records;
+    }
+
+    private static BitSet toKey(int[] indices) {
+        BitSet key = new BitSet();
+        for (int index : indices) {
+            key.set(index);
+        }
+        return key;
+    }
+
+    private void progress(String message) {
+        if (mOut != null) {
+            synchronized (mOut) {
+                mOut.println(message);
+            }
+        }
+    }
+
+    private static void showUsage() {
+        System.err.println("usage: MonkeyReproMinimizer [-s SERIAL]... [-p PACKAGE]"
+                + " [--signature REGEX]\n"
+                + "              [--attempts N] [--timeout SEC] IN_LOG OUT_LOG\n"
+                + "\n"
+                + "Replays subsets of an event log recorded with --record-events until\n"
+                + "the shortest one that still crashes is found. Give -s once per device\n"
+                + "to run trials in parallel. Without --signature, any CRASH or NOT\n"
+                + "RESPONDING reported by the monkey counts; with it, only output or\n"
+                + "logcat lines matching REGEX do. PACKAGE is force-stopped before each\n"
+                + "trial and passed to the monkey with -p.");
+    }
+
+    public static void main(String[] args) {
+        List<String> serials = new ArrayList<String>();
+        String pkg = null;
+        Pattern signature = null;
+        int attempts = 1;
+        long timeoutMs = MonkeyAdbTarget.DEFAULT_TIMEOUT_MS;
+        List<String> files = new ArrayList<String>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("-s")) {
+                    serials.add(args[++i]);
+                } else if (arg.equals("-p")) {
+                    pkg = args[++i];
+                } else if (arg.equals("--signature")) {
+                    signature = Pattern.compile(args[++i]);
+                } else if (arg.equals("--attempts")) {
+                    attempts = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--timeout")) {
+                    timeoutMs = Long.parseLong(args[++i]) * 1000;
+                } else if (arg.startsWith("-")) {
+                    System.err.println("** Error: Unknown option: " + arg);
+                    showUsage();
+                    System.exit(1);
+                } else {
+                    files.add(arg);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("** Error: " + e);
+            showUsage();
+            System.exit(1);
+        }
+        if (files.size() != 2) {
+            showUsage();
+            System.exit(1);
+        }
+
+        List<TargetRunner> runners = new ArrayList<TargetRunner>();
+        if (serials.isEmpty()) {
+            // Whatever single device adb picks.
+            serials.add(null);
+        }
+        for (String serial : serials) {
+            runners.add(new MonkeyAdbTarget(serial, pkg, signature, timeoutMs));
+        }
+
+        try {
+            List<byte[]> records = MonkeyEventLog.readRecords(new File(files.get(0)));
+            System.out.println("// Minimizing " + records.size() + " events on "
+                    + runners.size() + " target(s)");
+            MonkeyReproMinimizer minimizer = new MonkeyReproMinimizer(records, runners,
+                    attempts, System.out);
+            int[] result = minimizer.minimize();
+            if (result == null) {
+                System.err.println("** The whole log doesn't reproduce the failure");
+                System.exit(2);
+            }
+            List<byte[]> minimal = minimizer.select(result);
+            MonkeyEventLog.writeRecords(new File(files.get(1)), minimal);
+            System.out.println("// Minimized to " + result.length + " events in "
+                    + minimizer.getTrials() + " trials (" + minimizer.getCacheHits()
+                    + " cached), written to " + files.get(1));
+            for (int i = 0; i < result.length; i++) {
+                System.out.println("//   #" + result[i] + " "
+                        + MonkeyEventLog.describe(minimal.get(i)));
+            }
+        } catch (IOException e) {
+            System.err.println("** Error: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.exit(1);
+        }
+    }
+}
@@ -43,6 +43,14 @@ public class MonkeyRotationEvent extends MonkeyEvent {
         mPersist = persist; //记录是否锁定
     }
 
+    int getRotation() {
+        return mRotationDegree;
+    }
+
+    boolean getPersist() {
+        return mPersist;
+    }
+
     /**
      * 改变屏幕角度的事件
      * @param iwm wires to current window manager WMS服务对象
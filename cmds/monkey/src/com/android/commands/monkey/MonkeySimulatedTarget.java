@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A MonkeyReproMinimizer.TargetRunner that stands in for a device, for
+ * working on the minimizer without one.
+ *
+ * The simulated app crashes when the replayed events contain the trigger
+ * records in order, with anything in between, which is how a real crash that
+ * needs a few steps (open a screen, rotate, press a button) behaves. It can
+ * also be made flaky, missing the crash some of the time, and slow, to see
+ * how trials spread across several targets.
+ */
+public class MonkeySimulatedTarget implements MonkeyReproMinimizer.TargetRunner {
+    private final String mName;
+    private final List<byte[]> mTriggers;
+    private final double mMissRate;
+    private final long mDelayMs;
+    private final Random mRandom;
+
+    private int mRuns;
+
+    /**
+     * @param name the name to show in the progress output
+     * @param triggers the records that make it crash when replayed in this order
+     * @param missRate the chance of not crashing when it should, from 0 to 1
+     * @param delayMs how long each trial takes
+     * @param seed seeds the misses, so a run can be repeated
+     */
+    public MonkeySimulatedTarget(String name, List<byte[]> triggers, double missRate,
+            long delayMs, long seed) {
+        mName = name;
+        mTriggers = new ArrayList<byte[]>(triggers);
+        mMissRate = missRate;
+        mDelayMs = delayMs;
+        mRandom = new Random(seed);
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return how many trials have been run on this target
+     */
+    public synchronized int getRuns() {
+        return mRuns;
+    }
+
+    @Override
+    public boolean reproduces(List<byte[]> records) throws InterruptedException {
+        if (mDelayMs > 0) {
+            Thread.sleep(mDelayMs);
+        }
+        int next = 0;
+        for (int i = 0; i < records.size() && next < mTriggers.size(); i++) {
+            if (Arrays.equals(records.get(i), mTriggers.get(next))) {
+                next++;
+            }
+        }
+        synchronized (this) {
+            mRuns++;
+            return next == mTriggers.size() && mRandom.nextDouble() >= mMissRate;
+        }
+    }
+}
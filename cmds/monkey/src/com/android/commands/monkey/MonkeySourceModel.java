@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.content.ComponentName;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Event source that walks a MonkeyEventModel trained from real sessions, so
+ * the mix and order of gestures, where they land and the pauses between them
+ * look like the people who were recorded rather than the fixed percentages
+ * of MonkeySourceRandom.
+ *
+ * The timing comes from the model: each event of a gesture waits the drawn
+ * hold time spread over the gesture, and its last event waits the drawn pause.
+ * This replaces --throttle. With --rate the pacer keeps the time instead, and
+ * the model's timing is dropped; only the order and place of the gestures
+ * still come from the model.
+ */
+public class MonkeySourceModel implements MonkeyEventSource {
+    private final String mFileName;
+    private final Random mRandom;
+    private final List<ComponentName> mMainApps;
+    private final MonkeyEventQueue mQ;
+    private final MonkeyEventPool mPool = new MonkeyEventPool();
+    private int mVerbose = 0;
+
+    private MonkeyEventModel mModel;
+    private MonkeyModelGenerator mGenerator;
+    private EventSink mSink;
+
+    /**
+     * @param fileName the model written by MonkeyModelTrainer
+     * @param random the random number source
+     * @param mainApps the main activities that activity events switch to
+     */
+    public MonkeySourceModel(String fileName, Random random, List<ComponentName> mainApps) {
+        mFileName = fileName;
+        mRandom = random;
+        mMainApps = mainApps;
+        mQ = new MonkeyEventQueue(random, 0, false);
+    }
+
+    @Override
+    public void setVerbose(int verbose) {
+        mVerbose = verbose;
+    }
+
+    @Override
+    public boolean validate() {
+        try {
+            mModel = MonkeyEventModel.load(new File(mFileName));
+        } catch (IOException e) {
+            Logger.err.println("** Failed to load event model " + mFileName + ": "
+                    + e.getMessage());
+            return false;
+        }
+        if (mModel.getSymbolCount() == 0) {
+            Logger.err.println("** Event model " + mFileName + " is empty");
+            return false;
+        }
+
+        // Activities of the model that are main activities here.
+        int[] appIndices = new int[mModel.getActivityCount()];
+        int known = 0;
+        for (int i = 0; i < appIndices.length; i++) {
+            appIndices[i] = -1;
+            ComponentName component = ComponentName.unflattenFromString(mModel.getActivity(i));
+            if (component != null) {
+                appIndices[i] = mMainApps.indexOf(component);
+                if (appIndices[i] >= 0) {
+                    known++;
+                }
+            }
+        }
+        if (mVerbose > 0) {
+            Logger.out.println("// Event model: order " + mModel.getOrder() + ", "
+                    + mModel.getSymbolCount() + " symbols, " + mModel.getStateCount()
+                    + " states, " + known + " of " + appIndices.length
+                    + " activities launchable");
+        }
+
+        mGenerator = new MonkeyModelGenerator(mModel, appIndices, mMainApps.size(),
+                MonkeySourceRandom.DEFAULT_DISPLAY, MonkeySourceRandom.UPTIME_CLOCK, mRandom);
+        mSink = new AndroidEventSink(mQ, mMainApps, null, mPool);
+
+        // Start in a random main activity, as the random source does.
+        mGenerator.generateActivity(mSink);
+        return true;
+    }
+
+    @Override
+    public MonkeyEvent getNextEvent() {
+        if (mQ.isEmpty()) {
+            mGenerator.generateEvents(mSink);
+            if (mVerbose > 1) {
+                Logger.out.println("// Model gesture: "
+                        + MonkeyEventModel.getGestureName(mGenerator.getGesture())
+                        + " hold/step " + mGenerator.getStepMillis()
+                        + "ms, then " + mGenerator.getGapMillis() + "ms");
+            }
+        }
+        MonkeyEvent e = mQ.removeFirst();
+        if (e.isThrottlable()) {
+            e.setThrottle(mQ.isEmpty() ? mGenerator.getGapMillis()
+                    : mGenerator.getStepMillis());
+        }
+        return e;
+    }
+}
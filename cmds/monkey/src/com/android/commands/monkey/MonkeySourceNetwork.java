@@ -26,17 +26,20 @@ import android.view.KeyCharacterMap;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.lang.Integer;
 import java.lang.NumberFormatException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.LinkedList;
 import java.util.List;
@@ -46,13 +49,19 @@ import java.util.StringTokenizer;
 /**
  * An Event source for getting Monkey Network Script commands from
  * over the network. 表示从Socket提取事件的事件来源
+ *
+ * The server is a single non-blocking selector loop on the monkey thread, so
+ * several clients can be connected at once and each one can send commands
+ * without waiting for the replies. Commands are still run one at a time, in
+ * the order each client sent them, taking turns between clients, and a
+ * command is only run once the events of the previous one have been taken.
  * 将Socket客户端传递过来的每行命令（约定好的协议）转化为Monkey支持的MonkeyEvent对象，完美的执行
  * 接下来我将先获取View树，然后解析成MonkeyEvent对象
  */
 public class MonkeySourceNetwork implements MonkeyEventSource {
     private static final String TAG = "MonkeyStub";
     /* The version of the monkey network protocol */
-    public static final int MONKEY_NETWORK_VERSION = 2; //标记着网络版本
+    public static final int MONKEY_NETWORK_VERSION = MonkeyNetworkProtocol.VERSION; //标记着网络版本，3增加了多客户端、请求id与batch命令，4增加了二进制协议
     private static DeferredReturn deferredReturn; //MonkeySourceNetwork类持有的DeferredReturn对象
 
     /**
@@ -461,12 +470,59 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
     }
 
 
+    /**
+     * Command to run several commands as one, so that the events of a whole
+     * gesture are queued together and can't be interleaved with the commands
+     * of another client. The commands are separated by ";" on its own. If any
+     * of them fails, none of their events are queued.
+     */
+    private static class BatchCommand implements MonkeyCommand {
+        // batch [command] ; [command] ; ...
+        // batch touch down 10 10 ; touch move 20 20 ; touch up 20 20
+        public MonkeyCommandReturn translateCommand(List<String> command,
+                                                    CommandQueue queue) {
+            CommandQueueImpl batch = new CommandQueueImpl();
+            int start = 1;
+            int index = 0;
+            for (int i = 1; i <= command.size(); i++) {
+                if (i < command.size() && !";".equals(command.get(i))) {
+                    continue;
+                }
+                List<String> parts = command.subList(start, i);
+                start = i + 1;
+                if (parts.isEmpty()) {
+                    continue;
+                }
+                index++;
+                MonkeyCommand subCommand = COMMAND_MAP.get(parts.get(0));
+                if (subCommand == null || subCommand instanceof BatchCommand
+                        || subCommand instanceof DeferReturnCommand) {
+                    return new MonkeyCommandReturn(false,
+                            "command " + index + ": can't batch " + parts.get(0));
+                }
+                MonkeyCommandReturn ret = subCommand.translateCommand(parts, batch);
+                if (!ret.wasSuccessful()) {
+                    return new MonkeyCommandReturn(false, "command " + index + ": "
+                            + (ret.hasMessage() ? ret.getMessage() : parts.get(0) + " failed"));
+                }
+            }
+            if (index == 0) {
+                return EARG;
+            }
+            for (MonkeyEvent e = batch.getNextQueuedEvent(); e != null;
+                    e = batch.getNextQueuedEvent()) {
+                queue.enqueueEvent(e);
+            }
+            return OK;
+        }
+    }
+
     /**
      * Force the device to wake up.
      * 强制手机唤醒^
      * @return true if woken up OK. 返回true，说明唤醒成功
      */
-    private static final boolean wake() {
+    static final boolean wake() {
         IPowerManager pm =
                 IPowerManager.Stub.asInterface(ServiceManager.getService(Context.POWER_SERVICE));//先获取PowerManagerSystem服务
         try {
@@ -503,7 +559,31 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
         COMMAND_MAP.put("getrootview", new MonkeySourceNetworkViews.GetRootViewCommand()); //getrootview事件
         COMMAND_MAP.put("getviewswithtext", //getviewswitchtext是按
                         new MonkeySourceNetworkViews.GetViewsWithTextCommand());
+        COMMAND_MAP.put("dumptree", new MonkeySourceNetworkViews.DumpTreeCommand()); //一次返回整个View树，可以只返回变化的结点
         COMMAND_MAP.put("deferreturn", new DeferReturnCommand()); //这个fefer return事件真他妈的怪……
+        COMMAND_MAP.put("batch", new BatchCommand()); //batch命令，一次排入整个手势的事件
+    }
+
+    /**
+     * Run a text command for a binary session. deferreturn isn't allowed
+     * there, since its second reply would break the one reply per request rule.
+     *
+     * @param commandLine the command line, as it would be sent in a text session
+     * @param queue where the command's events go
+     */
+    static MonkeyCommandReturn runTextCommand(String commandLine, CommandQueue queue) {
+        List<String> parts = commandLineSplit(commandLine);
+        if (parts.isEmpty()) {
+            return EARG;
+        }
+        MonkeyCommand command = COMMAND_MAP.get(parts.get(0));
+        if (command == null) {
+            return new MonkeyCommandReturn(false, "unknown command");
+        }
+        if (command instanceof DeferReturnCommand) {
+            return new MonkeyCommandReturn(false, "deferreturn needs a text session");
+        }
+        return command.translateCommand(parts, queue);
     }
 
     // QUIT command
@@ -559,6 +639,9 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
         private int event; //持有的事件类型
         private MonkeyCommandReturn deferredReturn; //持有的可返回的MonkeyCommandReturn对象
         private long timeout;
+        // Who gets the deferred reply, filled in once the command has been translated.
+        private MonkeyNetworkConnection client;
+        private String requestId;
 
         public DeferredReturn(int event, MonkeyCommandReturn deferredReturn, long timeout) {
             this.event = event;
@@ -587,12 +670,12 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
 
     private final CommandQueueImpl commandQueue = new CommandQueueImpl(); //MonkeySourceNetwork持有的CommandQueueImpl对象，用于在队列中保存作为事件的MonkeyEvent对象
 
-    private BufferedReader input; //MonkeySourceNetwork对象持有的BufferedReader对象，用于从磁盘或者键盘读取二进制字节流
-    private PrintWriter output;
-    private boolean started = false; //表示监听端口是否开始，默认值为没有开始
-
-    private ServerSocket serverSocket; //持有的ServerSocket
-    private Socket clientSocket; //Socket对象，表示客户端进程
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel; //监听端口的通道，非阻塞
+    private final ArrayList<MonkeyNetworkConnection> clients =
+            new ArrayList<MonkeyNetworkConnection>(); //当前连接的所有客户端，不含正在关闭的
+    private int nextClient = 0; //轮询下一个客户端的位置，保证各客户端公平
+    private boolean viewsSetUp = false;
 
     /**
      *
@@ -602,44 +685,161 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
     public MonkeySourceNetwork(int port) throws IOException {
         // Only bind this to local host.  This means that you can only
         // talk to the monkey locally, or though adb port forwarding. //只能绑定本地主机的某个端口，两种使用方法，monkey在本地，或者通过adb的端口转发
-        serverSocket = new ServerSocket(port,
-                                        0, // default backlog
-                                        InetAddress.getLocalHost()); //创建ServerSocket对象，监听在本地主机的某个端口上，作为服务端，正常情况下，监听的线程，会再创建一个新的线程与客户端进程通信，服务端当前主进程则继续监听端口，当然这些都是内核的能力
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(InetAddress.getLocalHost(), port),
+                                    0); // default backlog
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
     }
 
-
     /**
-     * Start a network server listening on the specified port.  The
-     * network protocol is a line oriented protocol, where each line
-     * is a different command that can be run. //开始监听在指定的端口中，这个网络协议是命令行中的规定的协议，每行内容代表不同的命令，然后就可以运行了
-     *
-     * @param port the port to listen on 表示需要进程监听的端口
+     * Accept a client.  The network protocol is a line oriented protocol,
+     * where each line is a different command that can be run.  Any number of
+     * clients can be connected at once, for example one driving the device
+     * and one watching the views. //接受一个客户端的连接，可以同时有多个客户端
      */
-    private void startServer() throws IOException {
-        clientSocket = serverSocket.accept(); //调用ServerSocket的accept（）方法，可以获得一个Socket对象，注意此处为线程会被阻塞，直到获得一个客户端的连接
+    private void acceptClient() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true); //回复很小，不要攒包
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        MonkeyNetworkConnection client = new MonkeyNetworkConnection(channel, key);
+        key.attach(client);
+        clients.add(client);
+        Log.d(TAG, "Client connected, " + clients.size() + " connected");
+
         // At this point, we have a client connected.
         // Attach the accessibility listeners so that we can start receiving
         // view events. Do this before wake so we can catch the wake event
-        // if possible.
-        MonkeySourceNetworkViews.setup(); //初始化AccessibilityManagerService服务，只有在客户端连接成功后，才会去再去做AccessibilityManagerService的连接
+        // if possible. The listeners are shared by all the clients and stay
+        // attached once set up, since their thread can't be started twice.
+        if (!viewsSetUp) {
+            MonkeySourceNetworkViews.setup(); //初始化AccessibilityManagerService服务，第一个客户端连接时才做
+            viewsSetUp = true;
+        }
         // Wake the device up in preparation for doing some commands.
         wake(); //唤醒手机
+    }
 
-        input = new BufferedReader(new InputStreamReader(clientSocket.getInputStream())); //从Socket的客户端获取二进制字节流，再将二进制字节流转化为字符流，在内存中即可读取
-        // auto-flush
-        output = new PrintWriter(clientSocket.getOutputStream(), true); //将clientSocket的输出字节流全部添加到打印输出流
+    /**
+     * Disconnect a client, so that another one can take its place. Its
+     * replies that haven't been written yet still are before it is closed.
+     * 断开一个客户端，其它客户端不受影响
+     */
+    private void closeClient(MonkeyNetworkConnection client) {
+        if (client.isClosing()) {
+            return;
+        }
+        clients.remove(client);
+        try {
+            client.closeWhenWritten(); //回复写完后才真正关闭
+        } catch (IOException e) {
+            Log.e(TAG, "Got IOException writing to client", e);
+        }
+        Log.d(TAG, "Client disconnected, " + clients.size() + " connected");
     }
 
     /**
-     * Stop the server from running so it can reconnect a new client.
-     * 如果需要新的客户端重新链接，则需要停止服务端
+     * Drop a client at once, without writing its pending replies.
      */
-    private void stopServer() throws IOException {
-        clientSocket.close();
-        MonkeySourceNetworkViews.teardown();
-        input.close();
-        output.close();
-        started = false;
+    private void dropClient(MonkeyNetworkConnection client) {
+        boolean connected = clients.remove(client);
+        client.close();
+        if (connected) {
+            Log.d(TAG, "Client dropped, " + clients.size() + " connected");
+        }
+    }
+
+    /**
+     * Wait for something to happen on the sockets, then accept new clients,
+     * read what has arrived and write out pending replies.
+     */
+    private void waitForInput() throws IOException {
+        selector.select();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            if (key.isAcceptable()) {
+                acceptClient();
+                continue;
+            }
+            MonkeyNetworkConnection client = (MonkeyNetworkConnection) key.attachment();
+            if (key.isWritable()) {
+                flush(client);
+            }
+            if (!client.isClosing() && key.isValid() && key.isReadable()) {
+                read(client);
+            }
+        }
+    }
+
+    /**
+     * Read what a client has sent and split off the complete lines.  All of
+     * the lines that arrived are read at once, so a client that sends many
+     * commands without waiting for the replies costs one read for all of them.
+     */
+    private void read(MonkeyNetworkConnection client) {
+        boolean open;
+        try {
+            open = client.read();
+        } catch (IOException e) {
+            Log.e(TAG, "Got IOException reading from client", e);
+            open = false;
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Bad input, dropping client: " + e.getMessage());
+            if (!client.isBinary()) {
+                client.getLines().clear();
+                returnError(client, null, e.getMessage());
+            }
+            closeClient(client);
+            return;
+        }
+
+        if (!open) {
+            // Treat this exactly the same as if the user had
+            // ended the session cleanly with a done command, once the
+            // lines already read have been run.
+            Log.d(TAG, "Connection dropped.");
+            client.getLines().offer(DONE);
+        }
+    }
+
+    /**
+     * @return the next client with a line to run, taking turns so that one
+     *         client sending a lot can't hold up the others, or null if none
+     */
+    private MonkeyNetworkConnection nextClientWithLine() {
+        int count = clients.size();
+        for (int i = 0; i < count; i++) {
+            int index = (nextClient + i) % count;
+            MonkeyNetworkConnection client = clients.get(index);
+            if (!client.getLines().isEmpty() || !client.getFrames().isEmpty()) {
+                nextClient = (index + 1) % count;
+                return client;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write as much of a client's pending replies as the socket takes, and
+     * watch for it becoming writable again if some are left.
+     */
+    private void flush(MonkeyNetworkConnection client) {
+        try {
+            client.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Got IOException writing to client", e);
+            dropClient(client);
+        }
     }
 
     /**
@@ -697,52 +897,58 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
     /**
      * Translate the given command line into a MonkeyEvent.
      * 解析命令，并转化为MonkeyEvent
+     * @param client the client that sent the command.
+     * @param requestId the request id the line started with, or null.
      * @param commandLine the full command line given. 完整的由Socket Client传过来的一整行
      */
-    private void translateCommand(String commandLine) {
+    private void translateCommand(MonkeyNetworkConnection client, String requestId, String commandLine) {
         Log.d(TAG, "translateCommand: " + commandLine); //向控制台打印即将要的解析命令
         List<String> parts = commandLineSplit(commandLine); //调用commandLineSplit（）方法，将一行命令分隔到一个线性表中
         if (parts.size() > 0) { //如果取得的命令行，有多个元素组成
             MonkeyCommand command = COMMAND_MAP.get(parts.get(0)); //取出来命令行中的第一个命令，然后去Map查找到对应的MonkeyCommand对象
             if (command != null) { //找到，说明支持该命令
+                DeferredReturn previous = deferredReturn;
                 MonkeyCommandReturn ret = command.translateCommand(parts, commandQueue); //调用对应命令的translateCommand，并将表示整行命令行参数的list，和一个保存命令的队列对象传入
-                handleReturn(ret); //命令解析结果对象传入到handleReturn（）方法中，主要是在控制台输出，别的没干啥……
+                if (deferredReturn != previous) {
+                    // deferreturn: the second reply goes to the same client
+                    deferredReturn.client = client;
+                    deferredReturn.requestId = requestId;
+                }
+                handleReturn(client, requestId, ret); //命令解析结果对象传入到handleReturn（）方法中，主要是在控制台输出，别的没干啥……
+                return;
             }
         }
+        if (requestId != null) {
+            // A tagged request always gets a reply, so a pipelining client
+            // doesn't wait forever for one.
+            returnError(client, requestId, "unknown command");
+        }
     }
 
     /**
      *
+     * @param client 命令来自的客户端
+     * @param requestId 请求id，可以为null
      * @param ret 命令解析结果对象
      */
-    private void handleReturn(MonkeyCommandReturn ret) {
+    private void handleReturn(MonkeyNetworkConnection client, String requestId, MonkeyCommandReturn ret) {
         if (ret.wasSuccessful()) { //如果是成功
             if (ret.hasMessage()) { //如果有打打印Message
-                returnOk(ret.getMessage()); //将待打印的信息传入进去
+                returnOk(client, requestId, ret.getMessage()); //将待打印的信息传入进去
             } else {
-                returnOk(); //没有需要打印的消息，使用默认的打印功能接口
+                returnOk(client, requestId); //没有需要打印的消息，使用默认的打印功能接口
             }
         } else { //这里是命令解析失败的情况
             if (ret.hasMessage()) {
-                returnError(ret.getMessage());
+                returnError(client, requestId, ret.getMessage());
             } else {
-                returnError();
+                returnError(client, requestId);
             }
         }
     }
 
 
     public MonkeyEvent getNextEvent() {
-        if (!started) { //第一次获取事件时，才会做等待一个客户端的连接
-            try {
-                startServer(); //开始进入等待客户端的连接，注意里面有阻塞方法的调用
-            } catch (IOException e) {
-                Log.e(TAG, "Got IOException from server", e);
-                return null;
-            }
-            started = true; //标志位标注只有第一次会进入等待客户端连接，看来只能连接一个客户端进程
-        }
-
         // Now, get the next command.  This call may block, but that's OK
         try {
             while (true) { //进入循环获取事件（只有在获取到事件、
@@ -763,28 +969,66 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
                 //
                 if (deferredReturn != null) {
                     Log.d(TAG, "Waiting for event");
-                    MonkeyCommandReturn ret = deferredReturn.waitForEvent();
+                    DeferredReturn deferred = deferredReturn;
+                    MonkeyCommandReturn ret = deferred.waitForEvent();
                     deferredReturn = null;
-                    handleReturn(ret);
+                    handleReturn(deferred.client, deferred.requestId, ret);
                 }
 
-                String command = input.readLine(); //从输入字符流中读取一行（这行命令是从Socket 客户端发过来的）
-                if (command == null) { //如果没有从输入字节流中获取到任何的命令，理论上客户端不发送命令的话，这里是不是应该是空的字符串?难道为null的时候真的是客户端断开了吗？
-                    Log.d(TAG, "Connection dropped."); //说明连接断开了
-                    // Treat this exactly the same as if the user had
-                    // ended the session cleanly with a done commant.
-                    command = DONE; //将当前命令直接指定为done
+                // Run the next line that has arrived, from whichever client's
+                // turn it is, or wait for more. 取下一行命令，没有就阻塞等待
+                MonkeyNetworkConnection client = nextClientWithLine();
+                if (client == null) {
+                    waitForInput();
+                    continue;
                 }
 
-                //如果命令中，包含done
-                if (DONE.equals(command)) {
-                    // stop the server so it can accept new connections
+                // Frames before lines: a binary client only has a line queued
+                // once it has gone, and that line is the "done".
+                byte[] frame = client.getFrames().poll();
+                if (frame != null) {
+                    ByteBuffer args = ByteBuffer.wrap(frame);
+                    long requestId;
+                    int opcode;
                     try {
-                        stopServer(); //停止客户端的连接，这样就能和一个新的客户端建立Socket连接了……
-                    } catch (IOException e) {
-                        Log.e(TAG, "Got IOException shutting down!", e);
-                        return null; //针对发生IO异常的情况，这里返回null……整个方法返回null，说明没有获取到事件
+                        requestId = MonkeyNetworkProtocol.readVarint(args);
+                        opcode = args.get() & 0xff;
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Bad frame, dropping client", e);
+                        closeClient(client);
+                        continue;
                     }
+                    if (opcode == MonkeyNetworkProtocol.OP_DONE
+                            || opcode == MonkeyNetworkProtocol.OP_QUIT) {
+                        write(client, new MonkeyNetworkProtocol.FrameWriter(requestId,
+                                MonkeyNetworkProtocol.STATUS_OK).toFrame());
+                        if (opcode == MonkeyNetworkProtocol.OP_QUIT) {
+                            Log.d(TAG, "Quit requested");
+                            return null;
+                        }
+                        closeClient(client);
+                        return new MonkeyNoopEvent();
+                    }
+                    write(client, MonkeySourceNetworkBinary.execute(requestId, opcode, args,
+                            commandQueue));
+                    continue;
+                }
+                String command = client.getLines().poll();
+
+                // A line may start with a request id, "@ID", that is echoed
+                // at the start of its reply, so a client can send many
+                // commands without waiting and still match up the replies.
+                String requestId = null;
+                if (command.startsWith("@")) {
+                    int space = command.indexOf(' ');
+                    requestId = space < 0 ? command : command.substring(0, space);
+                    command = space < 0 ? "" : command.substring(space + 1).trim();
+                }
+
+                //如果命令中，包含done
+                if (DONE.equals(command)) {
+                    // close this session so another client can take its place
+                    closeClient(client); //断开这个客户端，其它客户端不受影响
                     // return a noop event so we keep executing the main
                     // loop
                     return new MonkeyNoopEvent(); //为了确保monkey主线程可以继续执行
@@ -795,22 +1039,47 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
                     // then we're done
                     Log.d(TAG, "Quit requested");
                     // let the host know the command ran OK
-                    returnOk(); //向控制输出一行
+                    returnOk(client, requestId); //向客户端回复OK
                     return null; //返回值为null，说明没有获取到事件
                 }
 
+                // Switch this session to the binary protocol. The client
+                // mustn't send any frames until it has read the OK.
+                if (command.startsWith(MonkeyNetworkProtocol.BINARY_COMMAND)) {
+                    List<String> parts = commandLineSplit(command);
+                    if (parts.get(0).equals(MonkeyNetworkProtocol.BINARY_COMMAND)) {
+                        if (parts.size() == 2 && parts.get(1).equals(
+                                Integer.toString(MonkeyNetworkProtocol.VERSION))) {
+                            returnOk(client, requestId,
+                                    Integer.toString(MONKEY_NETWORK_VERSION));
+                            try {
+                                client.switchToBinary();
+                            } catch (IllegalArgumentException e) {
+                                Log.e(TAG, "Bad frame, dropping client: " + e.getMessage());
+                                closeClient(client);
+                            }
+                        } else {
+                            returnError(client, requestId, "unsupported binary version");
+                        }
+                        continue;
+                    }
+                }
+
                 // Do comment checking here.  Comments aren't a
                 // command, so we don't echo anything back to the
                 // user.
                 // 纯检查，如果命令中是以#开头的，什么也不干，循环中断一次，继续……这个主要是起到注释的作用
                 if (command.startsWith("#")) {
+                    if (requestId != null) {
+                        returnOk(client, requestId);
+                    }
                     // keep going
                     continue;
                 }
 
                 // Translate the command line.  This will handle returning error/ok to the user
                 // 解析socket client传过来的一行指令，除了其他已经处理过的done、quit指令
-                translateCommand(command);
+                translateCommand(client, requestId, command);
             }
         } catch (IOException e) {
             Log.e(TAG, "Exception: ", e);
@@ -818,12 +1087,37 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
         }
     }
 
+    /**
+     * Queue a reply line for a client and write what the socket will take.
+     *
+     * @param requestId the request id to start the line with, or null
+     */
+    private void reply(MonkeyNetworkConnection client, String requestId, String text) {
+        if (client == null || client.isClosed()) {
+            return; //客户端已经断开，回复无人接收
+        }
+        String line = requestId != null ? requestId + " " + text + "\n" : text + "\n";
+        write(client, ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Queue bytes for a client and write what the socket will take.
+     */
+    private void write(MonkeyNetworkConnection client, ByteBuffer bytes) {
+        try {
+            client.write(bytes);
+        } catch (IOException e) {
+            Log.e(TAG, "Got IOException writing to client", e);
+            dropClient(client);
+        }
+    }
+
     /**
      * Returns ERROR to the user.
      * 向用户返回错误（标准输出流）
      */
-    private void returnError() {
-        output.println(ERROR_STR);
+    private void returnError(MonkeyNetworkConnection client, String requestId) {
+        reply(client, requestId, ERROR_STR);
     }
 
     /**
@@ -831,17 +1125,15 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
      *
      * @param msg the error message to include
      */
-    private void returnError(String msg) {
-        output.print(ERROR_STR);
-        output.print(":");
-        output.println(msg);
+    private void returnError(MonkeyNetworkConnection client, String requestId, String msg) {
+        reply(client, requestId, ERROR_STR + ":" + msg);
     }
 
     /**
      * Returns OK to the user.
      */
-    private void returnOk() {
-        output.println(OK_STR);
+    private void returnOk(MonkeyNetworkConnection client, String requestId) {
+        reply(client, requestId, OK_STR);
     }
 
     /**
@@ -849,10 +1141,8 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
      * 在标准输出流中打印信息
      * @param returnValue the value to return from this command.
      */
-    private void returnOk(String returnValue) {
-        output.print(OK_STR); //打印OK_STR
-        output.print(":"); //打印：
-        output.println(returnValue); //打印指定的信息
+    private void returnOk(MonkeyNetworkConnection client, String requestId, String returnValue) {
+        reply(client, requestId, OK_STR + ":" + returnValue); //打印OK_STR，打印：，打印指定的信息
     }
 
     public void setVerbose(int verbose) {
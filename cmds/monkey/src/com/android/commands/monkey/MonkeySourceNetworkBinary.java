@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import static com.android.commands.monkey.MonkeyNetworkProtocol.DUMP_DEFLATE;
+import static com.android.commands.monkey.MonkeyNetworkProtocol.OP_CHILDREN;
+import static com.android.commands.monkey.MonkeyNetworkProtocol.OP_DUMP_TREE;
+import static com.android.commands.monkey.MonkeyNetworkProtocol.OP_FLIP;
+import static com.android.commands.monkey.MonkeyNetworkProtocol.OP_GESTURE;
+import static com.android.commands.monkey.MonkeyNetworkProtocol.OP_KEY;
+import static com.android.commands.monkey.MonkeyNetworkProtocol.OP_PARENT;
+import static com.android.commands.monkey.MonkeyNetworkProtocol.OP_PRESS;
+import static com.android.commands.monkey.MonkeyNetworkProtocol.OP_ROOT_VIEW;
+import static com.android.commands.monkey.MonkeyNetworkProtocol.OP_SLEEP;
+import static com.android.commands.monkey.MonkeyNetworkProtocol.OP_TAP;
+import static com.android.commands.monkey.MonkeyNetworkProtocol.OP_TEXT;
+import static com.android.commands.monkey.MonkeyNetworkProtocol.OP_TOUCH;
+import static com.android.commands.monkey.MonkeyNetworkProtocol.OP_TRACKBALL;
+import static com.android.commands.monkey.MonkeyNetworkProtocol.OP_TYPE;
+import static com.android.commands.monkey.MonkeyNetworkProtocol.OP_VIEWS_WITH_TEXT;
+import static com.android.commands.monkey.MonkeyNetworkProtocol.OP_VIEW_INFO;
+import static com.android.commands.monkey.MonkeyNetworkProtocol.OP_WAKE;
+import static com.android.commands.monkey.MonkeyNetworkProtocol.STATUS_ERROR;
+import static com.android.commands.monkey.MonkeyNetworkProtocol.STATUS_OK;
+import static com.android.commands.monkey.MonkeyNetworkProtocol.readSigned;
+import static com.android.commands.monkey.MonkeyNetworkProtocol.readString;
+import static com.android.commands.monkey.MonkeyNetworkProtocol.readVarint;
+
+import android.graphics.Rect;
+import android.view.KeyCharacterMap;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import com.android.commands.monkey.MonkeyNetworkProtocol.FrameWriter;
+import com.android.commands.monkey.MonkeySourceNetwork.CommandQueue;
+import com.android.commands.monkey.MonkeySourceNetwork.MonkeyCommandReturn;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the requests of a MonkeySourceNetwork session that has switched to
+ * the binary protocol described in MonkeyNetworkProtocol.
+ *
+ * Event requests build their events straight from the varint arguments, with
+ * no splitting, unquoting or number parsing, and view requests answer with
+ * ids and fields rather than space separated text. Anything else can still be
+ * sent as OP_TEXT and runs through the text commands.
+ */
+class MonkeySourceNetworkBinary {
+    private static final String NO_NODE = "Node with given ID does not exist";
+
+    private MonkeySourceNetworkBinary() {
+    }
+
+    /**
+     * Run one request.
+     *
+     * @param requestId the request id, echoed in the reply
+     * @param opcode the request's OP_*
+     * @param args the rest of the request frame
+     * @param queue where the request's events go
+     * @return the reply frame
+     */
+    static ByteBuffer execute(long requestId, int opcode, ByteBuffer args, CommandQueue queue) {
+        try {
+            FrameWriter reply = new FrameWriter(requestId, STATUS_OK);
+            String error;
+            if (opcode == OP_GESTURE) {
+                error = gesture(args, queue);
+            } else if (opcode == OP_TEXT) {
+                MonkeyCommandReturn ret = MonkeySourceNetwork.runTextCommand(readString(args),
+                        queue);
+                if (ret.wasSuccessful()) {
+                    reply.writeString(ret.hasMessage() ? ret.getMessage() : "");
+                    error = null;
+                } else {
+                    error = ret.hasMessage() ? ret.getMessage() : "ERROR";
+                }
+            } else if (opcode == OP_DUMP_TREE) {
+                error = dumpTree(args, reply);
+            } else if (opcode >= OP_ROOT_VIEW && opcode <= OP_VIEW_INFO) {
+                error = view(opcode, args, reply);
+            } else {
+                List<MonkeyEvent> events = new ArrayList<MonkeyEvent>(2);
+                error = event(opcode, args, events);
+                if (error == null) {
+                    for (MonkeyEvent e : events) {
+                        queue.enqueueEvent(e);
+                    }
+                }
+            }
+            if (error != null) {
+                return new FrameWriter(requestId, STATUS_ERROR).writeString(error).toFrame();
+            }
+            return reply.toFrame();
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return new FrameWriter(requestId, STATUS_ERROR)
+                    .writeString("bad arguments for opcode " + opcode).toFrame();
+        }
+    }
+
+    /**
+     * Decode the events of a gesture and queue them all, or none of them if
+     * any is bad.
+     *
+     * @return null, or the error
+     */
+    private static String gesture(ByteBuffer args, CommandQueue queue) {
+        int count = (int) readVarint(args);
+        List<MonkeyEvent> events = new ArrayList<MonkeyEvent>(count);
+        for (int i = 0; i < count; i++) {
+            String error = event(args.get() & 0xff, args, events);
+            if (error != null) {
+                return "event " + (i + 1) + ": " + error;
+            }
+        }
+        for (MonkeyEvent e : events) {
+            queue.enqueueEvent(e);
+        }
+        return null;
+    }
+
+    /**
+     * Decode one event request into events.
+     *
+     * @return null, or the error
+     */
+    private static String event(int opcode, ByteBuffer args, List<MonkeyEvent> events) {
+        switch (opcode) {
+            case OP_KEY: {
+                int action = (int) readVarint(args);
+                int keyCode = (int) readVarint(args);
+                if (action != KeyEvent.ACTION_DOWN && action != KeyEvent.ACTION_UP) {
+                    return "bad key action " + action;
+                }
+                events.add(new MonkeyKeyEvent(action, keyCode));
+                return null;
+            }
+            case OP_TOUCH: {
+                int action = (int) readVarint(args);
+                int x = (int) readSigned(args);
+                int y = (int) readSigned(args);
+                if (action != MotionEvent.ACTION_DOWN && action != MotionEvent.ACTION_UP
+                        && action != MotionEvent.ACTION_MOVE) {
+                    return "bad touch action " + action;
+                }
+                events.add(new MonkeyTouchEvent(action).addPointer(0, x, y));
+                return null;
+            }
+            case OP_TRACKBALL: {
+                int dx = (int) readSigned(args);
+                int dy = (int) readSigned(args);
+                events.add(new MonkeyTrackballEvent(MotionEvent.ACTION_MOVE)
+                        .addPointer(0, dx, dy));
+                return null;
+            }
+            case OP_TAP: {
+                int x = (int) readSigned(args);
+                int y = (int) readSigned(args);
+                events.add(new MonkeyTouchEvent(MotionEvent.ACTION_DOWN).addPointer(0, x, y));
+                events.add(new MonkeyTouchEvent(MotionEvent.ACTION_UP).addPointer(0, x, y));
+                return null;
+            }
+            case OP_PRESS: {
+                int keyCode = (int) readVarint(args);
+                events.add(new MonkeyKeyEvent(KeyEvent.ACTION_DOWN, keyCode));
+                events.add(new MonkeyKeyEvent(KeyEvent.ACTION_UP, keyCode));
+                return null;
+            }
+            case OP_SLEEP:
+                events.add(new MonkeyThrottleEvent(readVarint(args)));
+                return null;
+            case OP_FLIP:
+                events.add(new MonkeyFlipEvent(readVarint(args) != 0));
+                return null;
+            case OP_TYPE: {
+                KeyCharacterMap keyCharacterMap = KeyCharacterMap.load(
+                        KeyCharacterMap.VIRTUAL_KEYBOARD);
+                KeyEvent[] keyEvents = keyCharacterMap.getEvents(
+                        readString(args).toCharArray());
+                if (keyEvents == null) {
+                    return "can't type that text";
+                }
+                for (KeyEvent event : keyEvents) {
+                    events.add(new MonkeyKeyEvent(event));
+                }
+                return null;
+            }
+            case OP_WAKE:
+                return MonkeySourceNetwork.wake() ? null : "wake failed";
+            default:
+                return "unknown opcode " + opcode;
+        }
+    }
+
+    /**
+     * Answer a dump tree request with the MonkeyViewTree payload.
+     *
+     * @return null, or the error
+     */
+    private static String dumpTree(ByteBuffer args, FrameWriter reply) {
+        long since = readVarint(args);
+        int options = (int) readVarint(args);
+        try {
+            byte[] tree = MonkeySourceNetworkViews.dumpTree(since, (options & DUMP_DEFLATE) != 0);
+            if (tree == null) {
+                return "No accessibility event has occured yet";
+            }
+            reply.writeBytes(tree);
+            return null;
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            return NO_NODE;
+        }
+    }
+
+    /**
+     * Answer a view request.
+     *
+     * @return null, or the error
+     */
+    private static String view(int opcode, ByteBuffer args, FrameWriter reply) {
+        try {
+            if (opcode == OP_ROOT_VIEW) {
+                AccessibilityNodeInfo root = MonkeySourceNetworkViews.getRootNode();
+                if (root == null) {
+                    return "No accessibility event has occured yet";
+                }
+                writeIds(reply, root);
+                return null;
+            }
+            if (opcode == OP_VIEWS_WITH_TEXT) {
+                List<AccessibilityNodeInfo> nodes = MonkeySourceNetworkViews.getNodesByText(
+                        readString(args));
+                reply.writeVarint(nodes.size());
+                for (AccessibilityNodeInfo node : nodes) {
+                    writeIds(reply, node);
+                }
+                return null;
+            }
+
+            int windowId = (int) readSigned(args);
+            int viewId = (int) readSigned(args);
+            AccessibilityNodeInfo node = MonkeySourceNetworkViews.getNodeByAccessibilityIds(
+                    windowId, viewId);
+            if (node == null) {
+                return NO_NODE;
+            }
+            switch (opcode) {
+                case OP_PARENT: {
+                    AccessibilityNodeInfo parent = node.getParent();
+                    if (parent == null) {
+                        return "Given node has no parent";
+                    }
+                    writeIds(reply, parent);
+                    return null;
+                }
+                case OP_CHILDREN: {
+                    int count = node.getChildCount();
+                    reply.writeVarint(count);
+                    for (int i = 0; i < count; i++) {
+                        writeIds(reply, node.getChild(i));
+                    }
+                    return null;
+                }
+                case OP_VIEW_INFO:
+                    writeInfo(reply, node);
+                    return null;
+                default:
+                    return "unknown opcode " + opcode;
+            }
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            return NO_NODE;
+        }
+    }
+
+    private static void writeIds(FrameWriter reply, AccessibilityNodeInfo node)
+            throws NoSuchFieldException, IllegalAccessException {
+        reply.writeSigned(node.getWindowId());
+        reply.writeSigned(MonkeySourceNetworkViews.getAccessibilityViewId(node));
+    }
+
+    private static void writeInfo(FrameWriter reply, AccessibilityNodeInfo node) {
+        CharSequence className = node.getClassName();
+        CharSequence text = node.getText();
+        reply.writeString(className != null ? className.toString() : "");
+        reply.writeString(text != null && !node.isPassword() ? text.toString() : "");
+        Rect bounds = new Rect();
+        node.getBoundsInScreen(bounds);
+        reply.writeSigned(bounds.left);
+        reply.writeSigned(bounds.top);
+        reply.writeSigned(bounds.right - bounds.left);
+        reply.writeSigned(bounds.bottom - bounds.top);
+        reply.writeVarint(MonkeySourceNetworkViews.getViewFlags(node));
+        reply.writeVarint(node.getChildCount());
+    }
+}
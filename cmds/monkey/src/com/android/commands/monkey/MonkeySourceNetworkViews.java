@@ -39,6 +39,8 @@ import dalvik.system.DexClassLoader;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -101,6 +103,10 @@ public class MonkeySourceNetworkViews {
         COMMAND_MAP.put("getaccessibilityids", new GetAccessibilityIds());
     }
 
+    private static Field sAccessibilityViewIdField; //缓存的mAccessibilityViewId字段
+
+    private static final MonkeyViewTree.Encoder sTreeEncoder = new MonkeyViewTree.Encoder(); //记住上一次dumptree，用于diff
+
     private static final HandlerThread sHandlerThread = new HandlerThread(HANDLER_THREAD_NAME); //类必须持有一个带有Looper的HandlerThread对象,创建此工作线程
 
     /**
@@ -150,12 +156,149 @@ public class MonkeySourceNetworkViews {
             String windowString, String viewString) {
         int windowId = Integer.parseInt(windowString);
         int viewId = Integer.parseInt(viewString);
+        return getNodeByAccessibilityIds(windowId, viewId);
+    }
+
+    /**
+     * Look up a node by its window id and accessibility view id, as returned
+     * by getAccessibilityViewId().
+     */
+    static AccessibilityNodeInfo getNodeByAccessibilityIds(int windowId, int viewId) {
         int connectionId = sUiTestAutomationBridge.getConnectionId();
         AccessibilityInteractionClient client = AccessibilityInteractionClient.getInstance();
         return client.findAccessibilityNodeInfoByAccessibilityId(connectionId, windowId, viewId,
                 false, 0, null);
     }
 
+    /**
+     * @return the root node of the active window, or null if there isn't one yet
+     */
+    static AccessibilityNodeInfo getRootNode() {
+        return sUiTestAutomationBridge.getRootInActiveWindow();
+    }
+
+    /**
+     * @return the nodes of the active window that contain the given text
+     */
+    static List<AccessibilityNodeInfo> getNodesByText(String text) {
+        int connectionId = sUiTestAutomationBridge.getConnectionId();
+        return AccessibilityInteractionClient.getInstance()
+            .findAccessibilityNodeInfosByText(connectionId,
+                    AccessibilityWindowInfo.ACTIVE_WINDOW_ID,
+                    AccessibilityNodeInfo.ROOT_NODE_ID, text);
+    }
+
+    /**
+     * Get the accessibility view id of a node, which AccessibilityNodeInfo
+     * keeps private.
+     */
+    static int getAccessibilityViewId(AccessibilityNodeInfo node)
+            throws NoSuchFieldException, IllegalAccessException {
+        Field field = sAccessibilityViewIdField; //dumptree每个结点都要取一次，所以把反射得到的字段缓存起来
+        if (field == null) {
+            Class<?> klass = node.getClass(); //获取控件的类型
+            field = klass.getDeclaredField("mAccessibilityViewId"); //获取控件的id字段,看来AccessibilityNodeInfo对象是对View对象的封装呀，为啥要封装啊，mAccessibilityViewId只有View对象里面才有呀
+            field.setAccessible(true); //设置可访问私有字段
+            sAccessibilityViewIdField = field;
+        }
+        return ((Integer) field.get(node)).intValue(); //获取整型的View id
+    }
+
+    /**
+     * @return the MonkeyNetworkProtocol.VIEW_* flags of a node
+     */
+    static int getViewFlags(AccessibilityNodeInfo node) {
+        int flags = 0;
+        if (node.isChecked()) {
+            flags |= MonkeyNetworkProtocol.VIEW_CHECKED;
+        }
+        if (node.isEnabled()) {
+            flags |= MonkeyNetworkProtocol.VIEW_ENABLED;
+        }
+        if (node.isSelected()) {
+            flags |= MonkeyNetworkProtocol.VIEW_SELECTED;
+        }
+        if (node.isFocused()) {
+            flags |= MonkeyNetworkProtocol.VIEW_FOCUSED;
+        }
+        if (node.isClickable()) {
+            flags |= MonkeyNetworkProtocol.VIEW_CLICKABLE;
+        }
+        if (node.isScrollable()) {
+            flags |= MonkeyNetworkProtocol.VIEW_SCROLLABLE;
+        }
+        if (node.isPassword()) {
+            flags |= MonkeyNetworkProtocol.VIEW_PASSWORD;
+        }
+        return flags;
+    }
+
+    /**
+     * Dump the whole active window in one walk, as a MonkeyViewTree payload.
+     * The walk keeps its own stack rather than recursing, and recycles each
+     * node as soon as it is written, so only the nodes waiting on the stack
+     * are alive at once.
+     *
+     * @param sinceGeneration the generation of a dump the caller has, to get
+     *        only what changed since, or 0 for everything
+     * @return the payload, or null if there is no active window yet
+     */
+    static byte[] dumpTree(long sinceGeneration, boolean deflate)
+            throws NoSuchFieldException, IllegalAccessException {
+        AccessibilityNodeInfo root = getRootNode();
+        if (root == null) {
+            return null;
+        }
+        ArrayList<AccessibilityNodeInfo> stack = new ArrayList<AccessibilityNodeInfo>();
+        int[] parents = new int[16];
+        stack.add(root);
+        try {
+            int rootViewId = getAccessibilityViewId(root);
+            sTreeEncoder.begin(root.getWindowId(), rootViewId, sinceGeneration);
+            MonkeyViewTree.Node out = new MonkeyViewTree.Node();
+            Rect bounds = new Rect();
+            while (!stack.isEmpty()) {
+                int top = stack.size() - 1;
+                AccessibilityNodeInfo node = stack.remove(top);
+                try {
+                    out.viewId = getAccessibilityViewId(node);
+                    out.parentId = parents[top];
+                    out.flags = getViewFlags(node);
+                    CharSequence className = node.getClassName();
+                    out.className = className != null ? className.toString() : "";
+                    CharSequence text = node.getText();
+                    out.text = text != null && !node.isPassword() ? text.toString() : "";
+                    node.getBoundsInScreen(bounds);
+                    out.left = bounds.left;
+                    out.top = bounds.top;
+                    out.width = bounds.right - bounds.left;
+                    out.height = bounds.bottom - bounds.top;
+                    out.childCount = node.getChildCount();
+                    sTreeEncoder.add(out);
+
+                    // Push the children last first, so they come off in order.
+                    for (int i = out.childCount - 1; i >= 0; i--) {
+                        AccessibilityNodeInfo child = node.getChild(i);
+                        if (child != null) {
+                            if (stack.size() == parents.length) {
+                                parents = Arrays.copyOf(parents, parents.length * 2);
+                            }
+                            parents[stack.size()] = out.viewId;
+                            stack.add(child);
+                        }
+                    }
+                } finally {
+                    node.recycle();
+                }
+            }
+            return sTreeEncoder.finish(deflate);
+        } finally {
+            for (AccessibilityNodeInfo node : stack) {
+                node.recycle();
+            }
+        }
+    }
+
     /**
      *
      * @param viewId 表示控件的id
@@ -282,11 +425,7 @@ public class MonkeySourceNetworkViews {
                                                     CommandQueue queue) {
             if (command.size() == 2) {
                 String text = command.get(1);
-                int connectionId = sUiTestAutomationBridge.getConnectionId();
-                List<AccessibilityNodeInfo> nodes = AccessibilityInteractionClient.getInstance()
-                    .findAccessibilityNodeInfosByText(connectionId,
-                            AccessibilityWindowInfo.ACTIVE_WINDOW_ID,
-                            AccessibilityNodeInfo.ROOT_NODE_ID, text);
+                List<AccessibilityNodeInfo> nodes = getNodesByText(text);
                 ViewIntrospectionCommand idGetter = new GetAccessibilityIds();
                 List<String> emptyArgs = new ArrayList<String>();
                 StringBuilder ids = new StringBuilder();
@@ -303,6 +442,47 @@ public class MonkeySourceNetworkViews {
         }
     }
 
+    /**
+     * A command that dumps every view of the active window in one reply,
+     * rather than one queryview per view. The reply is a MonkeyViewTree
+     * payload in base64. With "since" and the generation of an earlier dump,
+     * only the views that changed since are sent, if that dump is still the
+     * last one; otherwise the whole tree is. "deflate" compresses it.
+     */
+    public static class DumpTreeCommand implements MonkeyCommand {
+        // dumptree [deflate] [since <generation>]
+        public MonkeyCommandReturn translateCommand(List<String> command,
+                                                    CommandQueue queue) {
+            boolean deflate = false;
+            long since = 0;
+            for (int i = 1; i < command.size(); i++) {
+                String arg = command.get(i);
+                if ("deflate".equals(arg)) {
+                    deflate = true;
+                } else if ("since".equals(arg) && i + 1 < command.size()) {
+                    try {
+                        since = Long.parseLong(command.get(++i));
+                    } catch (NumberFormatException e) {
+                        return EARG;
+                    }
+                } else {
+                    return EARG;
+                }
+            }
+            try {
+                byte[] tree = dumpTree(since, deflate);
+                if (tree == null) {
+                    return new MonkeyCommandReturn(false, NO_ACCESSIBILITY_EVENT);
+                }
+                return new MonkeyCommandReturn(true, Base64.getEncoder().encodeToString(tree));
+            } catch (NoSuchFieldException e) {
+                return new MonkeyCommandReturn(false, NO_NODE);
+            } catch (IllegalAccessException e) {
+                return new MonkeyCommandReturn(false, "Access exception");
+            }
+        }
+    }
+
     /**
      * Command to retrieve the location of the given node.
      * Returns the x, y, width and height of the view, separated by spaces.
@@ -486,10 +666,7 @@ public class MonkeySourceNetworkViews {
             if (args.size() == 0) {
                 int viewId;
                 try {
-                    Class<?> klass = node.getClass(); //获取控件的类型
-                    Field field = klass.getDeclaredField("mAccessibilityViewId"); //获取控件的id字段,看来AccessibilityNodeInfo对象是对View对象的封装呀，为啥要封装啊，mAccessibilityViewId只有View对象里面才有呀
-                    field.setAccessible(true); //设置可访问私有字段
-                    viewId = ((Integer) field.get(node)).intValue(); //获取整型的View id
+                    viewId = getAccessibilityViewId(node);
                 } catch (NoSuchFieldException e) {
                     return new MonkeyCommandReturn(false, NO_NODE); //字段不存在是，走这里，说明肯定不是一个具体的View
                 } catch (IllegalAccessException e) {
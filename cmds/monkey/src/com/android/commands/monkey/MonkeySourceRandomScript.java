@@ -22,7 +22,7 @@ import java.util.Random;
 /**
  * Class for generating MonkeyEvents from multiple scripts.
  */
-public class MonkeySourceRandomScript implements MonkeyEventSource {
+public class MonkeySourceRandomScript implements MonkeyEventSource, MonkeyCheckpoint.Resumable {
     /** The verbose level of the source (currently not used) */
     private int mVerbose = 0;
 
@@ -117,6 +117,37 @@ public class MonkeySourceRandomScript implements MonkeyEventSource {
         return null;
     }
 
+    /**
+     * Saves which script is playing, how many have been picked in turn, and the
+     * position in the one playing.
+     */
+    @Override
+    public void saveState(MonkeyCheckpoint checkpoint, String prefix) {
+        int current = -1;
+        if (mCurrentSource != null) {
+            current = mCurrentSource == mSetupSource ? -2 : mScriptSources.indexOf(mCurrentSource);
+            mCurrentSource.saveState(checkpoint, prefix + "current.");
+        }
+        checkpoint.putLong(prefix + "current", current);
+        checkpoint.putLong(prefix + "count", mScriptCount);
+    }
+
+    @Override
+    public void restoreState(MonkeyCheckpoint checkpoint, String prefix) {
+        mScriptCount = (int) checkpoint.getLong(prefix + "count", 0);
+        int current = (int) checkpoint.getLong(prefix + "current", -1);
+        if (current == -2) {
+            mCurrentSource = mSetupSource;
+        } else if (current >= 0 && current < mScriptSources.size()) {
+            mCurrentSource = mScriptSources.get(current);
+        } else {
+            mCurrentSource = null; // between scripts; the setup script has run
+        }
+        if (mCurrentSource != null) {
+            mCurrentSource.restoreState(checkpoint, prefix + "current.");
+        }
+    }
+
     /**
      * Sets the verbosity for the source as well as all sub event sources.
      *
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.content.ComponentName;
+import android.content.pm.PermissionInfo;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Replays a log written by MonkeyEventRecorder.
+ *
+ * The log is memory mapped and decoded one record at a time, so there is no
+ * parsing beyond reading varints and nothing is read ahead. Events are either
+ * returned as fast as the monkey can inject them, or, with realTime, at the
+ * same spacing as when they were recorded.
+ *
+ * Recorded down and event times are moved to the replay's clock. At full speed
+ * the events of a gesture still share the down time of its first event, since
+ * that is how the input dispatcher tells gestures apart, and the historical
+ * samples of a motion event keep their distance before its event time.
+ */
+public class MonkeySourceReplay implements MonkeyEventSource {
+    // Returned by readTime() for a time that wasn't set when it was recorded.
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    private final String mFileName;
+    private final boolean mRealTime;
+    private final MonkeyEventPool mPool = new MonkeyEventPool();
+
+    private MappedByteBuffer mBuffer;
+    private long mVersion;
+    private int mVerbose = 0;
+
+    // The recorded time of the current record, relative to the first one.
+    private long mRecordTime;
+    // Maps recorded times to replay times when replaying in real time.
+    private long mOffset = -1;
+
+    // The last recorded down time and what it was mapped to, for full speed.
+    private long mLastMotionDown = -1;
+    private long mLastMotionDownMapped;
+    private long mLastKeyDown = -1;
+    private long mLastKeyDownMapped;
+
+    private long mReplayed;
+    private boolean mFinished;
+    // x and y of each pointer of a historical sample, reused across records.
+    private float[] mHistoryXY;
+
+    /**
+     * @param fileName the log to replay
+     * @param realTime true to keep the recorded spacing between events, false
+     *        to replay them as fast as possible
+     */
+    public MonkeySourceReplay(String fileName, boolean realTime) {
+        mFileName = fileName;
+        mRealTime = realTime;
+    }
+
+    @Override
+    public void setVerbose(int verbose) {
+        mVerbose = verbose;
+    }
+
+    @Override
+    public boolean validate() {
+        try {
+            RandomAccessFile file = new RandomAccessFile(mFileName, "r");
+            try {
+                FileChannel channel = file.getChannel();
+                if (channel.size() > Integer.MAX_VALUE) {
+                    Logger.err.println("** Event log is too large to replay: " + mFileName);
+                    return false;
+                }
+                // The mapping stays valid after the file is closed.
+                mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            Logger.err.println("** Failed to open event log " + mFileName + ": " + e);
+            return false;
+        }
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (mBuffer.getInt() != MonkeyEventRecorder.MAGIC) {
+                Logger.err.println("** Not a monkey event log: " + mFileName);
+                return false;
+            }
+            // Version 1 logs are the same without historical samples.
+            mVersion = readVarint();
+            if (mVersion < 1 || mVersion > MonkeyEventRecorder.VERSION) {
+                Logger.err.println("** Unsupported event log version " + mVersion);
+                return false;
+            }
+        } catch (BufferUnderflowException e) {
+            Logger.err.println("** Not a monkey event log: " + mFileName);
+            return false;
+        }
+        mFinished = !mBuffer.hasRemaining();
+        return true;
+    }
+
+    /**
+     * @return how many events have been replayed
+     */
+    public long getReplayed() {
+        return mReplayed;
+    }
+
+    /**
+     * @return true once every event of the log has been replayed; false while
+     *         there are more, or if the log ended with a truncated or corrupt
+     *         record
+     */
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    @Override
+    public MonkeyEvent getNextEvent() {
+        if (!mBuffer.hasRemaining()) {
+            return null;
+        }
+        int start = mBuffer.position();
+        try {
+            int type = mBuffer.get();
+            mRecordTime += readVarint();
+            long now = waitForRecordTime();
+            MonkeyEvent ev = readEvent(type, now);
+            mReplayed++;
+            mFinished = !mBuffer.hasRemaining();
+            return ev;
+        } catch (BufferUnderflowException e) {
+            Logger.err.println("** Event log " + mFileName + " is truncated at offset " + start);
+        } catch (IllegalArgumentException e) {
+            Logger.err.println("** Event log " + mFileName + " is corrupt at offset " + start
+                    + ": " + e.getMessage());
+        }
+        // Stop replaying.
+        mBuffer.position(mBuffer.limit());
+        return null;
+    }
+
+    /**
+     * In real time, sleep until the current record is due.
+     *
+     * @return the current uptime
+     */
+    private long waitForRecordTime() {
+        long now = SystemClock.uptimeMillis();
+        if (!mRealTime) {
+            return now;
+        }
+        if (mOffset < 0) {
+            mOffset = now - mRecordTime;
+        }
+        long due = mRecordTime + mOffset;
+        if (due > now) {
+            MonkeyThrottleEvent.sleep(due - now, mVerbose);
+            now = due;
+        }
+        return now;
+    }
+
+    private MonkeyEvent readEvent(int type, long now) {
+        switch (type) {
+            case MonkeyEvent.EVENT_TYPE_KEY:
+                return readKey(now);
+            case MonkeyEvent.EVENT_TYPE_TOUCH:
+                return readMotion(mPool.obtainTouch(0), now);
+            case MonkeyEvent.EVENT_TYPE_TRACKBALL:
+                return readMotion(mPool.obtainTrackball(0), now);
+            case MonkeyEvent.EVENT_TYPE_ROTATION: {
+                int rotation = (int) readVarint();
+                return new MonkeyRotationEvent(rotation, readVarint() != 0);
+            }
+            case MonkeyEvent.EVENT_TYPE_ACTIVITY: {
+                String pkg = readString();
+                String cls = readString();
+                return new MonkeyActivityEvent(new ComponentName(pkg, cls), readVarint());
+            }
+            case MonkeyEvent.EVENT_TYPE_FLIP:
+                return new MonkeyFlipEvent(readVarint() != 0);
+            case MonkeyEvent.EVENT_TYPE_PERMISSION: {
+                String pkg = readString();
+                PermissionInfo info = new PermissionInfo();
+                info.name = readString();
+                return new MonkeyPermissionEvent(pkg, info);
+            }
+            default:
+                throw new IllegalArgumentException("unknown event type " + type);
+        }
+    }
+
+    private MonkeyEvent readKey(long now) {
+        int action = (int) readVarint();
+        int keyCode = (int) readVarint();
+        long downTime = readTime();
+        long eventTime = readTime();
+        int repeatCount = (int) readVarint();
+        int metaState = (int) readVarint();
+        int deviceId = (int) readSigned();
+        int scanCode = (int) readVarint();
+        if (downTime != NO_TIME) {
+            if (mRealTime) {
+                downTime += mOffset;
+            } else {
+                if (downTime != mLastKeyDown) {
+                    mLastKeyDown = downTime;
+                    mLastKeyDownMapped = now;
+                }
+                downTime = mLastKeyDownMapped;
+            }
+        }
+        if (eventTime != NO_TIME) {
+            eventTime = mRealTime ? eventTime + mOffset : now;
+        }
+        return new MonkeyKeyEvent(downTime != NO_TIME ? downTime : -1,
+                eventTime != NO_TIME ? eventTime : -1, action, keyCode, repeatCount,
+                metaState, deviceId, scanCode);
+    }
+
+    private MonkeyEvent readMotion(MonkeyMotionEvent ev, long now) {
+        ev.init((int) readVarint());
+        long downTime = readTime();
+        long eventTime = readTime();
+        long recordedEventTime = eventTime != NO_TIME ? eventTime : mRecordTime;
+        if (downTime != NO_TIME) {
+            if (mRealTime) {
+                downTime += mOffset;
+            } else {
+                if (downTime != mLastMotionDown) {
+                    mLastMotionDown = downTime;
+                    mLastMotionDownMapped = now;
+                }
+                downTime = mLastMotionDownMapped;
+            }
+            ev.setDownTime(downTime);
+        }
+        if (eventTime != NO_TIME) {
+            ev.setEventTime(mRealTime ? eventTime + mOffset : now);
+        }
+        ev.setMetaState((int) readVarint());
+        ev.setDeviceId((int) readSigned());
+        ev.setEdgeFlags((int) readVarint());
+        float xPrecision = Float.intBitsToFloat(mBuffer.getInt());
+        float yPrecision = Float.intBitsToFloat(mBuffer.getInt());
+        ev.setPrecision(xPrecision, yPrecision);
+        int count = (int) readVarint();
+        for (int i = 0; i < count; i++) {
+            int id = (int) readVarint();
+            int flags = (int) readVarint();
+            float x = Float.intBitsToFloat(mBuffer.getInt());
+            float y = Float.intBitsToFloat(mBuffer.getInt());
+            if ((flags & MonkeyEventRecorder.POINTER_HAS_PRESSURE) != 0) {
+                float pressure = Float.intBitsToFloat(mBuffer.getInt());
+                float size = Float.intBitsToFloat(mBuffer.getInt());
+                ev.addPointer(id, x, y, pressure, size);
+            } else {
+                ev.addPointer(id, x, y);
+            }
+        }
+        if (mVersion >= 2) {
+            int history = (int) readVarint();
+            if (history > 0 && (mHistoryXY == null || mHistoryXY.length < count * 2)) {
+                mHistoryXY = new float[count * 2];
+            }
+            for (int h = 0; h < history; h++) {
+                long sampleTime = readTime();
+                for (int i = 0; i < count * 2; i++) {
+                    mHistoryXY[i] = Float.intBitsToFloat(mBuffer.getInt());
+                }
+                // MonkeyMotionEvent keeps the samples between the down and event times.
+                if (sampleTime == NO_TIME) {
+                    sampleTime = recordedEventTime;
+                }
+                sampleTime = mRealTime ? sampleTime + mOffset
+                        : now - (recordedEventTime - sampleTime);
+                ev.addHistoricalSample(sampleTime, mHistoryXY, count);
+            }
+        }
+        return ev;
+    }
+
+    /**
+     * Read a time written by MonkeyEventRecorder.writeTime().
+     *
+     * @return the recorded time relative to the first record, or NO_TIME if it wasn't set
+     */
+    private long readTime() {
+        long value = readVarint();
+        if (value == 0) {
+            return NO_TIME;
+        }
+        return mRecordTime - MonkeyEventRecorder.unzigzag(value - 1);
+    }
+
+    private String readString() {
+        int length = (int) readVarint();
+        if (length < 0 || length > mBuffer.remaining()) {
+            throw new IllegalArgumentException("bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        mBuffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private long readSigned() {
+        return MonkeyEventRecorder.unzigzag(readVarint());
+    }
+
+    private long readVarint() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = mBuffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+}
@@ -16,17 +16,8 @@
 
 package com.android.commands.monkey;
 
-import android.content.ComponentName;
 import android.os.SystemClock;
-import android.view.KeyEvent;
-import android.view.MotionEvent;
-import android.view.Surface;
-
-import java.io.BufferedReader;
-import java.io.DataInputStream;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
+
 import java.util.NoSuchElementException;
 import java.util.Random;
 
@@ -46,7 +37,7 @@ import java.util.Random;
  * MonkeySourceScript is a MonkeyEventSource
  * 从脚本文件中获取事件，写的很好
  */
-public class MonkeySourceScript implements MonkeyEventSource {
+public class MonkeySourceScript implements MonkeyEventSource, MonkeyCheckpoint.Resumable {
     private int mEventCountInScript = 0; // total number of events in the file //表示脚本数量
 
     private int mVerbose = 0; //用于调试打印信息的选项
@@ -57,10 +48,6 @@ public class MonkeySourceScript implements MonkeyEventSource {
 
     private MonkeyEventQueue mQ; //双向链表对象
 
-    private static final String HEADER_COUNT = "count=";
-
-    private static final String HEADER_SPEED = "speed=";
-
     private long mLastRecordedDownTimeKey = 0;
 
     private long mLastRecordedDownTimeMotion = 0;
@@ -82,87 +69,28 @@ public class MonkeySourceScript implements MonkeyEventSource {
     // time in theory
     private static final long SLEEP_COMPENSATE_DIFF = 16;
 
-    // if this header is present, scripts are read and processed in line-by-line mode
-    private static final String HEADER_LINE_BY_LINE = "linebyline";
-
-    // maximum number of events that we read at one time
+    // maximum number of script lines that we play at one time
     private static final int MAX_ONE_TIME_READS = 100;
 
-    // event key word in the capture log
-    private static final String EVENT_KEYWORD_POINTER = "DispatchPointer"; //规定的事件名
-
-    private static final String EVENT_KEYWORD_TRACKBALL = "DispatchTrackball";
-
-    private static final String EVENT_KEYWORD_ROTATION = "RotateScreen";
-
-    private static final String EVENT_KEYWORD_KEY = "DispatchKey";
-
-    private static final String EVENT_KEYWORD_FLIP = "DispatchFlip";
-
-    private static final String EVENT_KEYWORD_KEYPRESS = "DispatchPress";
-
-    private static final String EVENT_KEYWORD_ACTIVITY = "LaunchActivity";
-
-    private static final String EVENT_KEYWORD_INSTRUMENTATION = "LaunchInstrumentation";
-
-    private static final String EVENT_KEYWORD_WAIT = "UserWait";
-
-    private static final String EVENT_KEYWORD_LONGPRESS = "LongPress";
-
-    private static final String EVENT_KEYWORD_POWERLOG = "PowerLog";
-
-    private static final String EVENT_KEYWORD_WRITEPOWERLOG = "WriteLog";
-
-    private static final String EVENT_KEYWORD_RUNCMD = "RunCmd";
-
-    private static final String EVENT_KEYWORD_TAP = "Tap";
-
-    private static final String EVENT_KEYWORD_PROFILE_WAIT = "ProfileWait";
-
-    private static final String EVENT_KEYWORD_DEVICE_WAKEUP = "DeviceWakeUp";
-
-    private static final String EVENT_KEYWORD_INPUT_STRING = "DispatchString";
-
-    private static final String EVENT_KEYWORD_PRESSANDHOLD = "PressAndHold";
-
-    private static final String EVENT_KEYWORD_DRAG = "Drag";
-
-    private static final String EVENT_KEYWORD_PINCH_ZOOM = "PinchZoom";
-
-    private static final String EVENT_KEYWORD_START_FRAMERATE_CAPTURE = "StartCaptureFramerate";
-
-    private static final String EVENT_KEYWORD_END_FRAMERATE_CAPTURE = "EndCaptureFramerate";
-
-    private static final String EVENT_KEYWORD_START_APP_FRAMERATE_CAPTURE =
-            "StartCaptureAppFramerate";
-
-    private static final String EVENT_KEYWORD_END_APP_FRAMERATE_CAPTURE = "EndCaptureAppFramerate";
-
-    // a line at the end of the header
-    private static final String STARTING_DATA_LINE = "start data >>";
-
-    private boolean mFileOpened = false;
-
-    private static int LONGPRESS_WAIT_TIME = 2000; // wait time for the long
-
     private long mProfileWaitTime = 5000; //Wait time for each user profile
 
     private long mDeviceSleepTime = 30000; //Device sleep time
 
-    FileInputStream mFStream;
-
-    DataInputStream mInputStream;
+    // The script parsed into event templates, compiled the first time it is needed
+    private MonkeyCompiledScript mScript;
 
-    BufferedReader mBufferedReader;
+    // The next script line to play; 0 means a new pass through the script starts
+    private int mNextLine = 0;
 
-    // X and Y coordincates of last touch event. Array Index is the pointerId
-    private float mLastX[] = new float[2];
+    private MonkeyCompiledScript.Playback mPlayback;
 
-    private float mLastY[] = new float[2];
+    // The first line of the batch in the queue, and how many of its events were taken
+    private int mBatchStart = 0;
 
-    private long mScriptStartTime = -1;
+    private int mTakenInBatch = 0;
 
-    private long mMonkeyStartTime = -1;
+    // Events of the next batch to throw away, to carry on from a checkpoint
+    private int mSkipInBatch = 0;
 
     /**
      * Creates a MonkeySourceScript instance.
@@ -175,6 +103,7 @@ public class MonkeySourceScript implements MonkeyEventSource {
                               boolean randomizeThrottle, long profileWaitTime, long deviceSleepTime) {
         mScriptFileName = filename; //由持有的mScriptFileName保存脚本文件名
         mQ = new MonkeyEventQueue(random, throttle, randomizeThrottle); //创建双向链表对象
+        mPlayback = new MonkeyCompiledScript.Playback(mQ, new MonkeyEventPool());
         mProfileWaitTime = profileWaitTime; //加载文件时的等待时间
         mDeviceSleepTime = deviceSleepTime; //设备的休眠时间
     }
@@ -193,655 +122,86 @@ public class MonkeySourceScript implements MonkeyEventSource {
     }
 
     /**
-     * Reads the header of the script file.
-     * 从脚本文件中读取header信息
-     * @return True if the file header could be parsed, and false otherwise. 表示解析文件开头的结果，false表示解析失败
-     * @throws IOException If there was an error reading the file. 该方法出现IOException，不会自己处理，需要调用者来处理IOException
-     */
-    private boolean readHeader() throws IOException {
-        mFileOpened = true; //标记文件已经被打开
-
-        mFStream = new FileInputStream(mScriptFileName); //创建文件输入流对象（读入到内存中操作）
-        mInputStream = new DataInputStream(mFStream); //二进制输入字节流与文件输入流结合！
-        mBufferedReader = new BufferedReader(new InputStreamReader(mInputStream)); //内存缓冲区，需要传入一个二进制字节流转化为字符流（使用编码）
-
-        String line; //存储每一行的内容
-
-        //这里是在每一行去查找需要的内容
-        while ((line = mBufferedReader.readLine()) != null) { //读取一行内容，如果有内容，就继续执行
-            line = line.trim(); //去除掉一行中的首尾的空白字符（空格、换行、还有制表符）
-
-            if (line.indexOf(HEADER_COUNT) >= 0) { // 处理header_count行，如果某行字符串标记有count=，且将HEADER_COUNT在某行首次出现的位置与0进行比较，大于等于0时，说明存在
-                try {
-                    String value = line.substring(HEADER_COUNT.length() + 1).trim(); //提取count=后面的字符串，即事件数量
-                    mEventCountInScript = Integer.parseInt(value); //提取在脚本文件中标记的事件数量，将字符串解析成整型
-                } catch (NumberFormatException e) { //如果提取的字符串无法转化成整型时，会出现NumberFormatException异常
-                    Logger.err.println("" + e); //先在标准错误流中输出日志
-                    return false;  //再返回false，表示解析header时出现错误
-                }
-            } else if (line.indexOf(HEADER_SPEED) >= 0) { //找到speed=首次出现在某行的位置，看来是一行写一个了……
-                try {
-                    String value = line.substring(HEADER_COUNT.length() + 1).trim(); //提取speed=后面的值
-                    mSpeed = Double.parseDouble(value); //将字符串转化为double
-                } catch (NumberFormatException e) { //如果字符串转换double出错
-                    Logger.err.println("" + e); //在标准错误流中提示，输出日志
-                    return false; //返回解析header错误的结果
-                }
-            } else if (line.indexOf(HEADER_LINE_BY_LINE) >= 0) { //找到某行中是否有linebyline，当然也拿到首次出现的位置
-                mReadScriptLineByLine = true; //表示脚本文件中存在linbebyline
-            } else if (line.indexOf(STARTING_DATA_LINE) >= 0) { //找到某行中是否有start data >>
-                return true; //找到了直接返回true，说明解析文件头部成功
-            }
-        }
-
-        return false; //找遍整个脚本文件，都没有匹配的内容，最后返回false，说明文件的头部几行不符合要求
-    }
-
-    /**
-     * Reads a number of lines and passes the lines to be processed.
-     * 一次性将所有行解析完毕，
-     * @return The number of lines read. 一共读取了多少行
-     * @throws IOException If there was an error reading the file.
-     */
-    private int readLines() throws IOException {
-        String line;
-        for (int i = 0; i < MAX_ONE_TIME_READS; i++) {
-            line = mBufferedReader.readLine();
-            if (line == null) {
-                return i;
-            }
-            line.trim();
-            processLine(line);
-        }
-        return MAX_ONE_TIME_READS;
-    }
-
-    /**
-     * Reads one line and processes it.
+     * Compiles the script if that has not been done yet.
      *
-     * @return the number of lines read
-     * @throws IOException If there was an error reading the file.
+     * @return True if the script compiled, false otherwise.
      */
-    private int readOneLine() throws IOException {
-        String line = mBufferedReader.readLine(); //BufferReader对象的readLine（）
-        if (line == null) { //如果没有内容
-            return 0; //直接返回0
+    private boolean compileScript() {
+        if (mScript == null) {
+            mScript = MonkeyCompiledScript.compile(mScriptFileName, mProfileWaitTime,
+                    mDeviceSleepTime);
+            if (mScript == null) {
+                return false;
+            }
+            mEventCountInScript = mScript.getEventCount();
+            mSpeed = mScript.getSpeed();
+            mReadScriptLineByLine = mScript.isLineByLine();
         }
-        line.trim(); //去除空格
-        processLine(line); //解析行内容
-        return 1;
+        return true;
     }
 
-
     /**
-     * Creates an event and adds it to the event queue. If the parameters are
-     * not understood, they are ignored and no events are added.
-     *
-     * @param s    The entire string from the script file. 从脚本文件中读取的一整行字符串
-     * @param args An array of arguments extracted from the script file line. 从括号中提取的内容
+     * Queue the events for the next batch of script lines: one line in
+     * line-by-line mode, otherwise up to MAX_ONE_TIME_READS lines. At the end
+     * of the script nothing is queued, and the next call starts a new pass.
      */
-    private void handleEvent(String s, String[] args) {
-        // Handle key event
-        if (s.indexOf(EVENT_KEYWORD_KEY) >= 0 && args.length == 8) { //如果在一整行中包括DispatchKey，且（）括号中正好是8个字符串
-            try {
-                Logger.out.println(" old key\n");  //打印一行日志， old key
-                long downTime = Long.parseLong(args[0]);  //解析括号中的第一个字符串
-                long eventTime = Long.parseLong(args[1]);
-                int action = Integer.parseInt(args[2]);
-                int code = Integer.parseInt(args[3]);
-                int repeat = Integer.parseInt(args[4]);
-                int metaState = Integer.parseInt(args[5]);
-                int device = Integer.parseInt(args[6]);
-                int scancode = Integer.parseInt(args[7]); //解析括号中的最后一个字符串
-
-                MonkeyKeyEvent e = new MonkeyKeyEvent(downTime, eventTime, action, code, repeat,
-                        metaState, device, scancode); //创建MonkeyKeyEvent对象，牛逼
-                Logger.out.println(" Key code " + code + "\n"); //输出Key code 值
-
-                mQ.addLast(e); //将事件对象，添加到双向队列的尾部
-                Logger.out.println("Added key up \n"); //打印一行日志，告知添加事件完毕
-            } catch (NumberFormatException e) { //如果捕获到解析数字失败，什么也不干……
-            }
-            return; //事件添加完毕，方法结束，真的是一行一个事件
-        }
-
-        // Handle trackball or pointer events 处理轨迹球事件，还有键盘事件，因为它俩需要的参数都是12个
-        if ((s.indexOf(EVENT_KEYWORD_POINTER) >= 0 || s.indexOf(EVENT_KEYWORD_TRACKBALL) >= 0)
-                && args.length == 12) {
-            try {
-                long downTime = Long.parseLong(args[0]);
-                long eventTime = Long.parseLong(args[1]);
-                int action = Integer.parseInt(args[2]);
-                float x = Float.parseFloat(args[3]);
-                float y = Float.parseFloat(args[4]);
-                float pressure = Float.parseFloat(args[5]);
-                float size = Float.parseFloat(args[6]);
-                int metaState = Integer.parseInt(args[7]);
-                float xPrecision = Float.parseFloat(args[8]);
-                float yPrecision = Float.parseFloat(args[9]);
-                int device = Integer.parseInt(args[10]);
-                int edgeFlags = Integer.parseInt(args[11]);
-
-                MonkeyMotionEvent e;
-                if (s.indexOf("Pointer") > 0) {
-                    e = new MonkeyTouchEvent(action); //创建MonkeyTouchEvent对象
-                } else {
-                    e = new MonkeyTrackballEvent(action); //创建MonkeyTrackballEvent对象
-                }
-
-                e.setDownTime(downTime)
-                        .setEventTime(eventTime)
-                        .setMetaState(metaState)
-                        .setPrecision(xPrecision, yPrecision)
-                        .setDeviceId(device)
-                        .setEdgeFlags(edgeFlags)
-                        .addPointer(0, x, y, pressure, size);
-                mQ.addLast(e); //添加到双向链表中
-            } catch (NumberFormatException e) {
-            }
-            return;
-        }
-
-        // Handle trackball or multi-touch  pointer events. pointer ID is the 13th parameter
-        if ((s.indexOf(EVENT_KEYWORD_POINTER) >= 0 || s.indexOf(EVENT_KEYWORD_TRACKBALL) >= 0)
-                && args.length == 13) {
-            try {
-                long downTime = Long.parseLong(args[0]);
-                long eventTime = Long.parseLong(args[1]);
-                int action = Integer.parseInt(args[2]);
-                float x = Float.parseFloat(args[3]);
-                float y = Float.parseFloat(args[4]);
-                float pressure = Float.parseFloat(args[5]);
-                float size = Float.parseFloat(args[6]);
-                int metaState = Integer.parseInt(args[7]);
-                float xPrecision = Float.parseFloat(args[8]);
-                float yPrecision = Float.parseFloat(args[9]);
-                int device = Integer.parseInt(args[10]);
-                int edgeFlags = Integer.parseInt(args[11]);
-                int pointerId = Integer.parseInt(args[12]);
-
-                MonkeyMotionEvent e;
-                if (s.indexOf("Pointer") > 0) {
-                    if (action == MotionEvent.ACTION_POINTER_DOWN) {
-                        e = new MonkeyTouchEvent(MotionEvent.ACTION_POINTER_DOWN
-                                | (pointerId << MotionEvent.ACTION_POINTER_INDEX_SHIFT))
-                                .setIntermediateNote(true);
-                    } else {
-                        e = new MonkeyTouchEvent(action);
-                    }
-                    if (mScriptStartTime < 0) {
-                        mMonkeyStartTime = SystemClock.uptimeMillis();
-                        mScriptStartTime = eventTime;
-                    }
-                } else {
-                    e = new MonkeyTrackballEvent(action);
-                }
-
-                if (pointerId == 1) {
-                    e.setDownTime(downTime)
-                            .setEventTime(eventTime)
-                            .setMetaState(metaState)
-                            .setPrecision(xPrecision, yPrecision)
-                            .setDeviceId(device)
-                            .setEdgeFlags(edgeFlags)
-                            .addPointer(0, mLastX[0], mLastY[0], pressure, size)
-                            .addPointer(1, x, y, pressure, size);
-                    mLastX[1] = x;
-                    mLastY[1] = y;
-                } else if (pointerId == 0) {
-                    e.setDownTime(downTime)
-                            .setEventTime(eventTime)
-                            .setMetaState(metaState)
-                            .setPrecision(xPrecision, yPrecision)
-                            .setDeviceId(device)
-                            .setEdgeFlags(edgeFlags)
-                            .addPointer(0, x, y, pressure, size);
-                    if (action == MotionEvent.ACTION_POINTER_UP) {
-                        e.addPointer(1, mLastX[1], mLastY[1]);
-                    }
-                    mLastX[0] = x;
-                    mLastY[0] = y;
-                }
-
-                // Dynamically adjust waiting time to ensure that simulated evnets follow
-                // the time tap specified in the script
-                if (mReadScriptLineByLine) {
-                    long curUpTime = SystemClock.uptimeMillis();
-                    long realElapsedTime = curUpTime - mMonkeyStartTime;
-                    long scriptElapsedTime = eventTime - mScriptStartTime;
-                    if (realElapsedTime < scriptElapsedTime) {
-                        long waitDuration = scriptElapsedTime - realElapsedTime;
-                        mQ.addLast(new MonkeyWaitEvent(waitDuration));
-                    }
-                }
-                mQ.addLast(e);
-            } catch (NumberFormatException e) {
-            }
-            return;
-        }
-
-        // Handle screen rotation events
-        if ((s.indexOf(EVENT_KEYWORD_ROTATION) >= 0) && args.length == 2) {
-            try {
-                int rotationDegree = Integer.parseInt(args[0]);
-                int persist = Integer.parseInt(args[1]);
-                if ((rotationDegree == Surface.ROTATION_0) ||
-                        (rotationDegree == Surface.ROTATION_90) ||
-                        (rotationDegree == Surface.ROTATION_180) ||
-                        (rotationDegree == Surface.ROTATION_270)) {
-                    mQ.addLast(new MonkeyRotationEvent(rotationDegree,
-                            persist != 0));
-                }
-            } catch (NumberFormatException e) {
-            }
-            return;
-        }
-
-        // Handle tap event
-        if ((s.indexOf(EVENT_KEYWORD_TAP) >= 0) && args.length >= 2) {
-            try {
-                float x = Float.parseFloat(args[0]);
-                float y = Float.parseFloat(args[1]);
-                long tapDuration = 0;
-                if (args.length == 3) {
-                    tapDuration = Long.parseLong(args[2]);
-                }
-
-                // Set the default parameters
-                long downTime = SystemClock.uptimeMillis();
-                MonkeyMotionEvent e1 = new MonkeyTouchEvent(MotionEvent.ACTION_DOWN)
-                        .setDownTime(downTime)
-                        .setEventTime(downTime)
-                        .addPointer(0, x, y, 1, 5);
-                mQ.addLast(e1);
-                if (tapDuration > 0) {
-                    mQ.addLast(new MonkeyWaitEvent(tapDuration));
-                }
-                MonkeyMotionEvent e2 = new MonkeyTouchEvent(MotionEvent.ACTION_UP)
-                        .setDownTime(downTime)
-                        .setEventTime(downTime)
-                        .addPointer(0, x, y, 1, 5);
-                mQ.addLast(e2);
-            } catch (NumberFormatException e) {
-                Logger.err.println("// " + e.toString());
-            }
-            return;
-        }
-
-        //Handle the press and hold
-        if ((s.indexOf(EVENT_KEYWORD_PRESSANDHOLD) >= 0) && args.length == 3) {
-            try {
-                float x = Float.parseFloat(args[0]);
-                float y = Float.parseFloat(args[1]);
-                long pressDuration = Long.parseLong(args[2]);
-
-                // Set the default parameters
-                long downTime = SystemClock.uptimeMillis();
-
-                MonkeyMotionEvent e1 = new MonkeyTouchEvent(MotionEvent.ACTION_DOWN)
-                        .setDownTime(downTime)
-                        .setEventTime(downTime)
-                        .addPointer(0, x, y, 1, 5);
-                MonkeyWaitEvent e2 = new MonkeyWaitEvent(pressDuration);
-                MonkeyMotionEvent e3 = new MonkeyTouchEvent(MotionEvent.ACTION_UP)
-                        .setDownTime(downTime + pressDuration)
-                        .setEventTime(downTime + pressDuration)
-                        .addPointer(0, x, y, 1, 5);
-                mQ.addLast(e1);
-                mQ.addLast(e2);
-                mQ.addLast(e2);
-
-            } catch (NumberFormatException e) {
-                Logger.err.println("// " + e.toString());
-            }
-            return;
-        }
-
-        // Handle drag event
-        if ((s.indexOf(EVENT_KEYWORD_DRAG) >= 0) && args.length == 5) {
-            float xStart = Float.parseFloat(args[0]);
-            float yStart = Float.parseFloat(args[1]);
-            float xEnd = Float.parseFloat(args[2]);
-            float yEnd = Float.parseFloat(args[3]);
-            int stepCount = Integer.parseInt(args[4]);
-
-            float x = xStart;
-            float y = yStart;
-            long downTime = SystemClock.uptimeMillis();
-            long eventTime = SystemClock.uptimeMillis();
-
-            if (stepCount > 0) {
-                float xStep = (xEnd - xStart) / stepCount;
-                float yStep = (yEnd - yStart) / stepCount;
-
-                MonkeyMotionEvent e =
-                        new MonkeyTouchEvent(MotionEvent.ACTION_DOWN).setDownTime(downTime)
-                                .setEventTime(eventTime).addPointer(0, x, y, 1, 5);
-                mQ.addLast(e);
-
-                for (int i = 0; i < stepCount; ++i) {
-                    x += xStep;
-                    y += yStep;
-                    eventTime = SystemClock.uptimeMillis();
-                    e = new MonkeyTouchEvent(MotionEvent.ACTION_MOVE).setDownTime(downTime)
-                            .setEventTime(eventTime).addPointer(0, x, y, 1, 5);
-                    mQ.addLast(e);
-                }
-
-                eventTime = SystemClock.uptimeMillis();
-                e = new MonkeyTouchEvent(MotionEvent.ACTION_UP).setDownTime(downTime)
-                        .setEventTime(eventTime).addPointer(0, x, y, 1, 5);
-                mQ.addLast(e);
-            }
-        }
-
-        // Handle pinch or zoom action
-        if ((s.indexOf(EVENT_KEYWORD_PINCH_ZOOM) >= 0) && args.length == 9) {
-            //Parse the parameters
-            float pt1xStart = Float.parseFloat(args[0]);
-            float pt1yStart = Float.parseFloat(args[1]);
-            float pt1xEnd = Float.parseFloat(args[2]);
-            float pt1yEnd = Float.parseFloat(args[3]);
-
-            float pt2xStart = Float.parseFloat(args[4]);
-            float pt2yStart = Float.parseFloat(args[5]);
-            float pt2xEnd = Float.parseFloat(args[6]);
-            float pt2yEnd = Float.parseFloat(args[7]);
-
-            int stepCount = Integer.parseInt(args[8]);
-
-            float x1 = pt1xStart;
-            float y1 = pt1yStart;
-            float x2 = pt2xStart;
-            float y2 = pt2yStart;
-
-            long downTime = SystemClock.uptimeMillis();
-            long eventTime = SystemClock.uptimeMillis();
-
-            if (stepCount > 0) {
-                float pt1xStep = (pt1xEnd - pt1xStart) / stepCount;
-                float pt1yStep = (pt1yEnd - pt1yStart) / stepCount;
-
-                float pt2xStep = (pt2xEnd - pt2xStart) / stepCount;
-                float pt2yStep = (pt2yEnd - pt2yStart) / stepCount;
-
-                mQ.addLast(new MonkeyTouchEvent(MotionEvent.ACTION_DOWN).setDownTime(downTime)
-                        .setEventTime(eventTime).addPointer(0, x1, y1, 1, 5));
-
-                mQ.addLast(new MonkeyTouchEvent(MotionEvent.ACTION_POINTER_DOWN
-                        | (1 << MotionEvent.ACTION_POINTER_INDEX_SHIFT)).setDownTime(downTime)
-                        .addPointer(0, x1, y1).addPointer(1, x2, y2).setIntermediateNote(true));
-
-                for (int i = 0; i < stepCount; ++i) {
-                    x1 += pt1xStep;
-                    y1 += pt1yStep;
-                    x2 += pt2xStep;
-                    y2 += pt2yStep;
-
-                    eventTime = SystemClock.uptimeMillis();
-                    mQ.addLast(new MonkeyTouchEvent(MotionEvent.ACTION_MOVE).setDownTime(downTime)
-                            .setEventTime(eventTime).addPointer(0, x1, y1, 1, 5).addPointer(1, x2,
-                                    y2, 1, 5));
-                }
-                eventTime = SystemClock.uptimeMillis();
-                mQ.addLast(new MonkeyTouchEvent(MotionEvent.ACTION_POINTER_UP)
-                        .setDownTime(downTime).setEventTime(eventTime).addPointer(0, x1, y1)
-                        .addPointer(1, x2, y2));
-            }
-        }
-
-        // Handle flip events
-        if (s.indexOf(EVENT_KEYWORD_FLIP) >= 0 && args.length == 1) {
-            boolean keyboardOpen = Boolean.parseBoolean(args[0]);
-            MonkeyFlipEvent e = new MonkeyFlipEvent(keyboardOpen);
-            mQ.addLast(e);
-        }
-
-        // Handle launch events
-        if (s.indexOf(EVENT_KEYWORD_ACTIVITY) >= 0 && args.length >= 2) {
-            String pkg_name = args[0];
-            String cl_name = args[1];
-            long alarmTime = 0;
-
-            ComponentName mApp = new ComponentName(pkg_name, cl_name);
-
-            if (args.length > 2) {
-                try {
-                    alarmTime = Long.parseLong(args[2]);
-                } catch (NumberFormatException e) {
-                    Logger.err.println("// " + e.toString());
-                    return;
-                }
-            }
-
-            if (args.length == 2) {
-                MonkeyActivityEvent e = new MonkeyActivityEvent(mApp);
-                mQ.addLast(e);
-            } else {
-                MonkeyActivityEvent e = new MonkeyActivityEvent(mApp, alarmTime);
-                mQ.addLast(e);
-            }
-            return;
-        }
-
-        //Handle the device wake up event
-        if (s.indexOf(EVENT_KEYWORD_DEVICE_WAKEUP) >= 0) {
-            String pkg_name = "com.google.android.powerutil";
-            String cl_name = "com.google.android.powerutil.WakeUpScreen";
-            long deviceSleepTime = mDeviceSleepTime;
-
-            //Start the wakeUpScreen test activity to turn off the screen.
-            ComponentName mApp = new ComponentName(pkg_name, cl_name);
-            mQ.addLast(new MonkeyActivityEvent(mApp, deviceSleepTime));
-
-            //inject the special key for the wakeUpScreen test activity.
-            mQ.addLast(new MonkeyKeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_0));
-            mQ.addLast(new MonkeyKeyEvent(KeyEvent.ACTION_UP, KeyEvent.KEYCODE_0));
-
-            //Add the wait event after the device sleep event so that the monkey
-            //can continue after the device wake up.
-            mQ.addLast(new MonkeyWaitEvent(deviceSleepTime + 3000));
-
-            //Insert the menu key to unlock the screen
-            mQ.addLast(new MonkeyKeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_MENU));
-            mQ.addLast(new MonkeyKeyEvent(KeyEvent.ACTION_UP, KeyEvent.KEYCODE_MENU));
-
-            //Insert the back key to dismiss the test activity
-            mQ.addLast(new MonkeyKeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_BACK));
-            mQ.addLast(new MonkeyKeyEvent(KeyEvent.ACTION_UP, KeyEvent.KEYCODE_BACK));
-
-            return;
-        }
-
-        // Handle launch instrumentation events
-        if (s.indexOf(EVENT_KEYWORD_INSTRUMENTATION) >= 0 && args.length == 2) {
-            String test_name = args[0];
-            String runner_name = args[1];
-            MonkeyInstrumentationEvent e = new MonkeyInstrumentationEvent(test_name, runner_name);
-            mQ.addLast(e);
-            return;
-        }
-
-        // Handle wait events
-        if (s.indexOf(EVENT_KEYWORD_WAIT) >= 0 && args.length == 1) {
-            try {
-                long sleeptime = Integer.parseInt(args[0]);
-                MonkeyWaitEvent e = new MonkeyWaitEvent(sleeptime);
-                mQ.addLast(e);
-            } catch (NumberFormatException e) {
-            }
-            return;
-        }
-
-
-        // Handle the profile wait time
-        if (s.indexOf(EVENT_KEYWORD_PROFILE_WAIT) >= 0) {
-            MonkeyWaitEvent e = new MonkeyWaitEvent(mProfileWaitTime);
-            mQ.addLast(e);
-            return;
-        }
-
-        // Handle keypress events
-        if (s.indexOf(EVENT_KEYWORD_KEYPRESS) >= 0 && args.length == 1) {
-            String key_name = args[0];
-            int keyCode = MonkeySourceRandom.getKeyCode(key_name);
-            if (keyCode == KeyEvent.KEYCODE_UNKNOWN) {
-                return;
-            }
-            MonkeyKeyEvent e = new MonkeyKeyEvent(KeyEvent.ACTION_DOWN, keyCode);
-            mQ.addLast(e);
-            e = new MonkeyKeyEvent(KeyEvent.ACTION_UP, keyCode);
-            mQ.addLast(e);
-            return;
-        }
-
-        // Handle longpress events
-        if (s.indexOf(EVENT_KEYWORD_LONGPRESS) >= 0) {
-            MonkeyKeyEvent e;
-            e = new MonkeyKeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_DPAD_CENTER);
-            mQ.addLast(e);
-            MonkeyWaitEvent we = new MonkeyWaitEvent(LONGPRESS_WAIT_TIME);
-            mQ.addLast(we);
-            e = new MonkeyKeyEvent(KeyEvent.ACTION_UP, KeyEvent.KEYCODE_DPAD_CENTER);
-            mQ.addLast(e);
-        }
-
-        //The power log event is mainly for the automated power framework
-        if (s.indexOf(EVENT_KEYWORD_POWERLOG) >= 0 && args.length > 0) {
-            String power_log_type = args[0];
-            String test_case_status;
-
-            if (args.length == 1) {
-                MonkeyPowerEvent e = new MonkeyPowerEvent(power_log_type);
-                mQ.addLast(e);
-            } else if (args.length == 2) {
-                test_case_status = args[1];
-                MonkeyPowerEvent e = new MonkeyPowerEvent(power_log_type, test_case_status);
-                mQ.addLast(e);
-            }
-        }
-
-        //Write power log to sdcard
-        if (s.indexOf(EVENT_KEYWORD_WRITEPOWERLOG) >= 0) {
-            MonkeyPowerEvent e = new MonkeyPowerEvent();
-            mQ.addLast(e);
-        }
-
-        //Run the shell command
-        if (s.indexOf(EVENT_KEYWORD_RUNCMD) >= 0 && args.length == 1) {
-            String cmd = args[0];
-            MonkeyCommandEvent e = new MonkeyCommandEvent(cmd);
-            mQ.addLast(e);
-        }
-
-        //Input the string through the shell command
-        if (s.indexOf(EVENT_KEYWORD_INPUT_STRING) >= 0 && args.length == 1) {
-            String input = args[0];
-            String cmd = "input text " + input;
-            MonkeyCommandEvent e = new MonkeyCommandEvent(cmd);
-            mQ.addLast(e);
-            return;
-        }
-
-        if (s.indexOf(EVENT_KEYWORD_START_FRAMERATE_CAPTURE) >= 0) {
-            MonkeyGetFrameRateEvent e = new MonkeyGetFrameRateEvent("start");
-            mQ.addLast(e);
-            return;
+    private void readNextBatch() {
+        if (THIS_DEBUG) { //只有debug时，才会输出这个日志
+            Logger.out.println("readNextBatch(): reading next batch of events");
         }
 
-        if (s.indexOf(EVENT_KEYWORD_END_FRAMERATE_CAPTURE) >= 0 && args.length == 1) {
-            String input = args[0];
-            MonkeyGetFrameRateEvent e = new MonkeyGetFrameRateEvent("end", input);
-            mQ.addLast(e);
+        if (!compileScript()) {
             return;
         }
 
-        if (s.indexOf(EVENT_KEYWORD_START_APP_FRAMERATE_CAPTURE) >= 0 && args.length == 1) {
-            String app = args[0];
-            MonkeyGetAppFrameRateEvent e = new MonkeyGetAppFrameRateEvent("start", app);
-            mQ.addLast(e);
+        int lineCount = mScript.getLineCount();
+        if (mNextLine >= lineCount) {
+            mNextLine = 0; //一遍脚本播放完毕，下次从头开始
             return;
         }
-
-        if (s.indexOf(EVENT_KEYWORD_END_APP_FRAMERATE_CAPTURE) >= 0 && args.length == 2) {
-            String app = args[0];
-            String label = args[1];
-            MonkeyGetAppFrameRateEvent e = new MonkeyGetAppFrameRateEvent("end", app, label);
-            mQ.addLast(e);
-            return;
+        if (mNextLine == 0) {
+            resetValue(); //重置所有值为初始值
         }
 
-
-    }
-
-    /**
-     * Extracts an event and a list of arguments from a line. If the line does
-     * not match the format required, it is ignored.
-     * 用于解析一行内容的方法
-     * @param line A string in the form {@code cmd(arg1,arg2,arg3)}.
-     */
-    private void processLine(String line) {
-        int index1 = line.indexOf('('); //先找到第一个出现的（的位置
-        int index2 = line.indexOf(')'); //再找到第一个出现的）的位置
-
-        if (index1 < 0 || index2 < 0) {
-            return;  //容错，一行中没有（，或者没有）
+        mBatchStart = mNextLine;
+        mTakenInBatch = 0;
+        int linesToPlay = mReadScriptLineByLine ? 1 : MAX_ONE_TIME_READS;
+        for (int i = 0; i < linesToPlay && mNextLine < lineCount; i++) {
+            mScript.emitLine(mNextLine++, mPlayback);
         }
-
-        String[] args = line.substring(index1 + 1, index2).split(","); //先把（）中的字符串取出来，然后用，分隔成字符串数组
-
-        for (int i = 0; i < args.length; i++) {
-            args[i] = args[i].trim();// 遍历字符串数组的每个字符串，并且把空白字符都去除掉，再次交给同一个数组对象保存
+        for (; mSkipInBatch > 0 && !mQ.isEmpty(); mSkipInBatch--) {
+            mQ.removeFirst().recycle(); //这些事件在检查点之前已经注入过了
+            mTakenInBatch++;
         }
-
-        handleEvent(line, args); //将整行内容与字符串数组（括号中的字符串）都传入进去，一个handleEvent（）的方法中
+        mSkipInBatch = 0;
     }
 
     /**
-     * Closes the script file.
-     *
-     * @throws IOException If there was an error closing the file.
+     * Saves the position as the first line of the batch being played and the
+     * number of its events already taken, since the queued events can't be
+     * mapped back to their lines.
      */
-    private void closeFile() throws IOException {
-        mFileOpened = false; //表示，文件关闭
-
-        try {
-            mFStream.close(); //关闭文件输入流，释放内存
-            mInputStream.close(); //关闭字节输入流，释放内存
-        } catch (NullPointerException e) { //出现对象没有的情况，啥也不干，这时候往往是文件没有打开过，根本不需要从内存中释放
-            // File was never opened so it can't be closed.
-        }
+    @Override
+    public void saveState(MonkeyCheckpoint checkpoint, String prefix) {
+        checkpoint.putLong(prefix + "line", mBatchStart);
+        checkpoint.putLong(prefix + "taken", mTakenInBatch);
     }
 
     /**
-     * Read next batch of events from the script file into the event queue.
-     * Checks if the script is open and then reads the next MAX_ONE_TIME_READS
-     * events or reads until the end of the file. If no events are read, then
-     * the script is closed.
-     *
-     * @throws IOException If there was an error reading the file.
+     * Plays the saved batch again, throwing away the events that were taken
+     * before the checkpoint.
      */
-    private void readNextBatch() throws IOException {
-        int linesRead = 0; //表示读取了几行的局部变量
-
-        if (THIS_DEBUG) { //只有debug时，才会输出这个日志
-            Logger.out.println("readNextBatch(): reading next batch of events");
-        }
-
-        if (!mFileOpened) { //如果文件没有打开过……
-            resetValue(); //重置所有值为初始值
-            readHeader(); //读取文件的前面几行，跟检查事件源时调用的方法都一样
-        }
-
-        if (mReadScriptLineByLine) { //如果标记了一行一行的读取脚本
-            linesRead = readOneLine();  //每次读取一行
-        } else {
-            linesRead = readLines(); //一下子读取所有行
-        }
-
-        if (linesRead == 0) { //当读取数量为0时
-            closeFile();  //关闭文件
-        }
+    @Override
+    public void restoreState(MonkeyCheckpoint checkpoint, String prefix) {
+        for (MonkeyEvent e = mQ.poll(); e != null; e = mQ.poll()) {
+            e.recycle();
+        }
+        resetValue();
+        int line = (int) checkpoint.getLong(prefix + "line", 0);
+        mNextLine = mScript != null ? Math.max(Math.min(line, mScript.getLineCount()), 0) : 0;
+        mBatchStart = mNextLine;
+        mTakenInBatch = 0;
+        mSkipInBatch = (int) checkpoint.getLong(prefix + "taken", 0);
     }
 
     /**
@@ -861,25 +221,23 @@ public class MonkeySourceScript implements MonkeyEventSource {
     }
 
     /**
-     * Checks if the file can be opened and if the header is valid.
-     * 检查事件源是否有效，主要是检查脚本文件的开头
+     * Checks if the file can be opened, and compiles it. The header and every
+     * event line are checked, and any errors are reported with their position.
+     * 检查事件源是否有效，会把整个脚本编译一遍
      *
-     * @return True if the file exists and the header is valid, false otherwise.
+     * @return True if the file exists and compiles, false otherwise.
      */
     @Override
     public boolean validate() {
-        boolean validHeader; //标记是否事件源有效的方法
-        try {
-            validHeader = readHeader();  //读取文件的开头,保存结果到局部变量中
-            closeFile(); //关闭文件，释放内存
-        } catch (IOException e) {
-            return false; //如果打开文件出现错误，即IOException，直接返回false，表示事件源都错误
+        mScript = null;
+        if (!compileScript()) {
+            return false; //脚本文件无法读取或者有错误，事件源无效
         }
 
         if (mVerbose > 0) {
             Logger.out.println("Replaying " + mEventCountInScript + " events with speed " + mSpeed); //输出Replaying，要回放哪个脚本文件
         }
-        return validHeader; //向Monkey主执行流返回检查结果
+        return true; //向Monkey主执行流返回检查结果
     }
 
     /**
@@ -964,23 +322,18 @@ public class MonkeySourceScript implements MonkeyEventSource {
      */
     @Override
     public MonkeyEvent getNextEvent() {
-        long recordedEventTime = -1; //记录事件的触发时间
         MonkeyEvent ev;
 
         if (mQ.isEmpty()) { //只有双向链表为空时，说明没有事件了，需要构造事件
-            try {
-                readNextBatch();
-            } catch (IOException e) {
-                return null;
-            }
+            readNextBatch();
         }
 
         try {
-            ev = mQ.getFirst();
-            mQ.removeFirst();
+            ev = mQ.removeFirst();
         } catch (NoSuchElementException e) {
             return null;
         }
+        mTakenInBatch++;
 
         if (ev.getEventType() == MonkeyEvent.EVENT_TYPE_KEY) {
             adjustKeyEventTime((MonkeyKeyEvent) ev);
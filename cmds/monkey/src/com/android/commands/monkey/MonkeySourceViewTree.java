@@ -0,0 +1,667 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.app.UiAutomation;
+import android.app.UiAutomationConnection;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.graphics.Rect;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event source that aims its events at the views that can actually do
+ * something, instead of at random points on the screen.
+ *
+ * <p>The accessibility tree of the active window is walked once and the
+ * clickable, long clickable, scrollable and editable nodes are kept in a
+ * snapshot. The snapshot is only taken again after the window reports a
+ * TYPE_WINDOW_STATE_CHANGED or TYPE_WINDOW_CONTENT_CHANGED event, so most
+ * events are picked without going back to the accessibility service.
+ *
+ * <p>Each target is picked with a weight for its kind, and becomes a tap,
+ * a long press, a scroll or a tap followed by text input inside its bounds.
+ *
+ * <p>When exploring, each snapshot is also fingerprinted as a UI state: the
+ * current activity plus a hash of the tree structure, leaving out text and
+ * positions. The states, the actions tried in them and where those led are
+ * kept in a MonkeyStateGraph, the kind weights are scaled by how promising
+ * the graph thinks each action is, and when a state has run dry the monkey
+ * backtracks by launching the activity of a state that still has untried
+ * actions. Where an action led is only put down once the window has reacted
+ * to it, or after a short timeout if it doesn't.
+ */
+public class MonkeySourceViewTree implements MonkeyEventSource {
+    public static final int KIND_CLICK = 0;
+    public static final int KIND_LONG_CLICK = 1;
+    public static final int KIND_SCROLL = 2;
+    public static final int KIND_EDIT = 3;
+    public static final int KIND_COUNT = 4;
+
+    private static final String[] KIND_NAMES = {
+        "click", "longclick", "scroll", "edit",
+    };
+
+    /** Default weight of each kind of target, indexed by KIND_*. */
+    private static final int[] DEFAULT_WEIGHTS = { 6, 1, 2, 2 };
+
+    private static final String HANDLER_THREAD_NAME = "MonkeyViewTreeThread";
+
+    /** Stop walking a tree after this many nodes, so a huge list can't stall the run. */
+    private static final int MAX_NODES = 2000;
+
+    /** How many moves a scroll is made of. */
+    private static final int SCROLL_STEPS = 10;
+
+    /** How long a long press is held, comfortably past the long press timeout. */
+    private static final long LONG_PRESS_TIME = 1000;
+
+    /** How long to let the UI settle when the active window has nothing to act on. */
+    private static final long EMPTY_WAIT_TIME = 100;
+
+    /** Press back after this many snapshots in a row with nothing to act on. */
+    private static final int EMPTY_SNAPSHOTS_BEFORE_BACK = 5;
+
+    /** Switch to another main activity after this many presses of back didn't help. */
+    private static final int BACKS_BEFORE_SWITCH = 3;
+
+    private static final String TEXT_CHARS = "abcdefghijklmnopqrstuvwxyz0123456789";
+
+    /** When exploring, backtrack after this many steps without finding a new state. */
+    private static final int STUCK_STEPS = 40;
+
+    /** How often to look at the tree generation while waiting for an action to land. */
+    private static final long SETTLE_POLL_TIME = 50;
+
+    /** Stop waiting for the window to change after an action after this long. */
+    private static final long SETTLE_TIMEOUT = 1000;
+
+    private final Random mRandom;
+    private final List<ComponentName> mMainApps;
+    private final MonkeyEventQueue mQ;
+    private final EventSink mSink;
+    private final int[] mWeights = DEFAULT_WEIGHTS.clone();
+
+    private HandlerThread mHandlerThread;
+    private UiAutomation mUiAutomation;
+
+    /** Bumped by the accessibility thread every time the window changes. */
+    private final AtomicInteger mTreeGeneration = new AtomicInteger();
+
+    /** The generation the snapshot was taken at, or -1 to take a new one. */
+    private int mSnapshotGeneration = -1;
+
+    private final Snapshot mSnapshot = new Snapshot();
+    private final Rect mBounds = new Rect();
+    private final float[] mXy = new float[2];
+    private final ArrayList<AccessibilityNodeInfo> mStack = new ArrayList<AccessibilityNodeInfo>();
+    private int[] mDepths = new int[64];
+
+    private boolean mNeedActivity = true;
+    private int mEmptySnapshots;
+    private int mBacks;
+
+    private int mVerbose = 0;
+    private long mSnapshotCount;
+    private long mCacheHits;
+    private final long[] mActionCounts = new long[KIND_COUNT];
+
+    // Exploration state, only used once setExplore(true) has been called
+    private MonkeyStateGraph mGraph;
+    private final ArrayList<ComponentName> mActivities = new ArrayList<ComponentName>();
+    private final HashMap<ComponentName, Integer> mActivityIds =
+            new HashMap<ComponentName, Integer>();
+    private int mState = -1;
+    private int mLastAction = -1;
+    private int[] mTargetActions = new int[64];
+    private int[] mTargetWeights = new int[64];
+    private double[] mScratch = new double[64];
+    private int mStepsSinceNew;
+    private long mBacktracks;
+    // When the events of the last action were all injected, or -1 before
+    // then, and the tree generation at the last look since.
+    private long mActionDoneAt = -1;
+    private int mSettleGeneration;
+
+    /**
+     * The actionable targets of one accessibility tree, as parallel arrays.
+     */
+    static class Snapshot {
+        int count;
+        int[] kinds = new int[64];
+        int[] left = new int[64];
+        int[] top = new int[64];
+        int[] right = new int[64];
+        int[] bottom = new int[64];
+        /** Running total of the target weights, for the weighted pick. */
+        int[] cumulative = new int[64];
+        /** Identifies each target within the tree, from its node and its position. */
+        long[] keys = new long[64];
+        String packageName;
+        /** Hash of the shape of the tree: node classes, depths and flags. */
+        long structure;
+
+        void clear() {
+            count = 0;
+            packageName = null;
+            structure = 0;
+        }
+
+        void add(int kind, Rect bounds, int weight, long nodeHash) {
+            if (weight <= 0) {
+                return;
+            }
+            if (count == kinds.length) {
+                int n = count * 2;
+                kinds = Arrays.copyOf(kinds, n);
+                left = Arrays.copyOf(left, n);
+                top = Arrays.copyOf(top, n);
+                right = Arrays.copyOf(right, n);
+                bottom = Arrays.copyOf(bottom, n);
+                cumulative = Arrays.copyOf(cumulative, n);
+                keys = Arrays.copyOf(keys, n);
+            }
+            keys[count] = MonkeyStateGraph.mix(MonkeyStateGraph.mix(nodeHash, kind), count);
+            kinds[count] = kind;
+            left[count] = bounds.left;
+            top[count] = bounds.top;
+            right[count] = bounds.right;
+            bottom[count] = bounds.bottom;
+            cumulative[count] = (count > 0 ? cumulative[count - 1] : 0) + weight;
+            count++;
+        }
+
+        /**
+         * @return the index of a target picked in proportion to its weight, or -1 if empty
+         */
+        int pick(Random random) {
+            if (count == 0) {
+                return -1;
+            }
+            int r = random.nextInt(cumulative[count - 1]);
+            int lo = 0;
+            int hi = count - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cumulative[mid] > r) {
+                    hi = mid;
+                } else {
+                    lo = mid + 1;
+                }
+            }
+            return lo;
+        }
+    }
+
+    /**
+     * @param random the random number generator
+     * @param mainApps the main activities to start in, and to fall back to
+     * @param throttle the amount of time in ms to sleep between events
+     * @param randomizeThrottle whether to randomize the throttle
+     */
+    public MonkeySourceViewTree(Random random, List<ComponentName> mainApps, long throttle,
+            boolean randomizeThrottle) {
+        mRandom = random;
+        mMainApps = mainApps;
+        mQ = new MonkeyEventQueue(random, throttle, randomizeThrottle);
+        mSink = new AndroidEventSink(mQ, mainApps, null, new MonkeyEventPool());
+    }
+
+    /**
+     * Sets the weight of one kind of target. A weight of 0 means that kind is never picked.
+     *
+     * @param kind one of the KIND_* values
+     * @param weight the relative weight
+     */
+    public void setWeight(int kind, int weight) {
+        mWeights[kind] = weight;
+        mSnapshotGeneration = -1;
+    }
+
+    /**
+     * Turns on coverage guided exploration.
+     */
+    public void setExplore(boolean explore) {
+        if (explore && mGraph == null) {
+            mGraph = new MonkeyStateGraph();
+            // Activity ids start out as indexes into the main activities
+            for (ComponentName app : mMainApps) {
+                activityId(app);
+            }
+        } else if (!explore) {
+            mGraph = null;
+        }
+        mSnapshotGeneration = -1;
+    }
+
+    /**
+     * Connects to the accessibility service and starts listening for window changes.
+     *
+     * @return true if the connection was made
+     */
+    @Override
+    public boolean validate() {
+        try {
+            mHandlerThread = new HandlerThread(HANDLER_THREAD_NAME);
+            mHandlerThread.setDaemon(true);
+            mHandlerThread.start();
+            mUiAutomation = new UiAutomation(mHandlerThread.getLooper(),
+                    new UiAutomationConnection());
+            mUiAutomation.connect();
+        } catch (RuntimeException e) {
+            Logger.error("** Failed to connect to the accessibility service:", e);
+            return false;
+        }
+        mUiAutomation.setOnAccessibilityEventListener(
+                new UiAutomation.OnAccessibilityEventListener() {
+                    @Override
+                    public void onAccessibilityEvent(AccessibilityEvent event) {
+                        int type = event.getEventType();
+                        if (type == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED
+                                || type == AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED) {
+                            mTreeGeneration.incrementAndGet();
+                        }
+                    }
+                });
+        return true;
+    }
+
+    @Override
+    public void setVerbose(int verbose) {
+        mVerbose = verbose;
+    }
+
+    @Override
+    public MonkeyEvent getNextEvent() {
+        if (mQ.isEmpty()) {
+            generateEvents();
+        }
+        return mQ.poll();
+    }
+
+    /**
+     * Disconnects from the accessibility service and prints what was done.
+     */
+    public void close() {
+        if (mUiAutomation != null) {
+            mUiAutomation.disconnect();
+            mUiAutomation = null;
+        }
+        if (mHandlerThread != null) {
+            mHandlerThread.quit();
+            mHandlerThread = null;
+        }
+        StringBuilder sb = new StringBuilder("// View tree: ");
+        sb.append(mSnapshotCount).append(" snapshots, ");
+        sb.append(mCacheHits).append(" cached");
+        for (int i = 0; i < KIND_COUNT; i++) {
+            sb.append(", ").append(mActionCounts[i]).append(' ').append(KIND_NAMES[i]);
+        }
+        Logger.out.println(sb.toString());
+        if (mGraph != null) {
+            Logger.out.println("// Explore: " + mGraph.getStateCount() + " states in "
+                    + mActivities.size() + " activities, " + mGraph.getActionCount()
+                    + " actions, " + mGraph.getEdgeCount() + " transitions, "
+                    + mBacktracks + " backtracks");
+        }
+    }
+
+    private void generateEvents() {
+        if (mNeedActivity && !mMainApps.isEmpty()) {
+            mNeedActivity = false;
+            mSink.activity(mRandom.nextInt(mMainApps.size()));
+            return;
+        }
+
+        if (mGraph != null && mLastAction >= 0 && !settled()) {
+            mQ.addLast(new MonkeyWaitEvent(SETTLE_POLL_TIME));
+            return;
+        }
+
+        // Read the generation first, so a change during the walk forces another one
+        int generation = mTreeGeneration.get();
+        if (generation != mSnapshotGeneration) {
+            takeSnapshot();
+            mSnapshotGeneration = generation;
+        } else {
+            mCacheHits++;
+        }
+
+        int target;
+        if (mGraph != null && mState >= 0) {
+            if (mLastAction >= 0) {
+                mGraph.transition(mLastAction, mState);
+                mLastAction = -1;
+            }
+            if (mGraph.visit(mState)) {
+                mStepsSinceNew = 0;
+            } else if (++mStepsSinceNew >= STUCK_STEPS && mGraph.getUntried(mState) == 0) {
+                backtrack();
+                return;
+            }
+            target = mGraph.pick(mTargetActions, mTargetWeights, mSnapshot.count, mScratch,
+                    mRandom);
+            if (target >= 0) {
+                mLastAction = mTargetActions[target];
+            }
+        } else {
+            target = mSnapshot.pick(mRandom);
+        }
+        if (target < 0) {
+            handleEmptySnapshot();
+            return;
+        }
+        mEmptySnapshots = 0;
+        mBacks = 0;
+
+        int kind = mSnapshot.kinds[target];
+        mActionCounts[kind]++;
+        switch (kind) {
+            case KIND_CLICK:
+                tap(target);
+                break;
+            case KIND_LONG_CLICK:
+                longPress(target);
+                break;
+            case KIND_SCROLL:
+                scroll(target);
+                break;
+            case KIND_EDIT:
+                tap(target);
+                mQ.addLast(new MonkeyCommandEvent("input text " + randomText()));
+                break;
+        }
+    }
+
+    /**
+     * Whether the window has had time to react to the last action. Right
+     * after the events are injected the tree generation hasn't moved yet, and
+     * a snapshot then would credit the action with the state it started from.
+     * So wait until the generation has moved past the snapshot the action was
+     * picked in and then held still for a poll, or until SETTLE_TIMEOUT, for
+     * an action that changed nothing.
+     */
+    private boolean settled() {
+        long now = SystemClock.uptimeMillis();
+        int generation = mTreeGeneration.get();
+        if (mActionDoneAt < 0) {
+            mActionDoneAt = now;
+            mSettleGeneration = generation;
+            return false;
+        }
+        boolean still = generation != mSnapshotGeneration && generation == mSettleGeneration;
+        mSettleGeneration = generation;
+        if (still || now - mActionDoneAt >= SETTLE_TIMEOUT) {
+            mActionDoneAt = -1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Nothing to act on, usually because the window is still coming up. Wait
+     * a little, then try backing out, then try another app.
+     */
+    private void handleEmptySnapshot() {
+        mSnapshotGeneration = -1;
+        if (++mEmptySnapshots < EMPTY_SNAPSHOTS_BEFORE_BACK) {
+            mQ.addLast(new MonkeyWaitEvent(EMPTY_WAIT_TIME));
+            return;
+        }
+        mEmptySnapshots = 0;
+        if (++mBacks > BACKS_BEFORE_SWITCH && !mMainApps.isEmpty()) {
+            mBacks = 0;
+            mSink.activity(mRandom.nextInt(mMainApps.size()));
+            return;
+        }
+        mSink.key(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_BACK);
+        mSink.key(KeyEvent.ACTION_UP, KeyEvent.KEYCODE_BACK);
+    }
+
+    /**
+     * Walks the accessibility tree of the active window with an explicit stack
+     * and keeps the visible, enabled nodes that accept an action.
+     */
+    private void takeSnapshot() {
+        mSnapshot.clear();
+        mSnapshotCount++;
+        mState = -1;
+        AccessibilityNodeInfo root = mUiAutomation.getRootInActiveWindow();
+        if (root == null) {
+            return;
+        }
+        CharSequence pkg = root.getPackageName();
+        mSnapshot.packageName = pkg != null ? pkg.toString() : null;
+
+        int visited = 0;
+        long structure = 0;
+        mStack.add(root);
+        mDepths[0] = 0;
+        while (!mStack.isEmpty()) {
+            int depth = mDepths[mStack.size() - 1];
+            AccessibilityNodeInfo node = mStack.remove(mStack.size() - 1);
+            if (visited++ >= MAX_NODES || !node.isVisibleToUser()) {
+                node.recycle();
+                continue;
+            }
+            node.getBoundsInScreen(mBounds);
+            boolean enabled = node.isEnabled() && !mBounds.isEmpty();
+            boolean editable = enabled && node.isEditable();
+            boolean scrollable = enabled && node.isScrollable();
+            boolean clickable = enabled && (node.isClickable() || node.isCheckable());
+            boolean longClickable = enabled && node.isLongClickable();
+
+            // Text and positions are left out, so typing or scrolling doesn't make a new state
+            CharSequence className = node.getClassName();
+            long nodeHash = MonkeyStateGraph.mix(className != null ? className.hashCode() : 0,
+                    (depth << 4) | (editable ? 8 : 0) | (scrollable ? 4 : 0)
+                            | (clickable ? 2 : 0) | (longClickable ? 1 : 0));
+            structure = MonkeyStateGraph.mix(structure, nodeHash);
+
+            if (editable) {
+                mSnapshot.add(KIND_EDIT, mBounds, mWeights[KIND_EDIT], nodeHash);
+            } else if (scrollable) {
+                mSnapshot.add(KIND_SCROLL, mBounds, mWeights[KIND_SCROLL], nodeHash);
+            } else if (clickable) {
+                mSnapshot.add(KIND_CLICK, mBounds, mWeights[KIND_CLICK], nodeHash);
+            }
+            if (longClickable) {
+                mSnapshot.add(KIND_LONG_CLICK, mBounds, mWeights[KIND_LONG_CLICK], nodeHash);
+            }
+            for (int i = node.getChildCount() - 1; i >= 0; i--) {
+                AccessibilityNodeInfo child = node.getChild(i);
+                if (child != null) {
+                    if (mStack.size() == mDepths.length) {
+                        mDepths = Arrays.copyOf(mDepths, mDepths.length * 2);
+                    }
+                    mDepths[mStack.size()] = depth + 1;
+                    mStack.add(child);
+                }
+            }
+            node.recycle();
+        }
+        mSnapshot.structure = structure;
+
+        if (mGraph != null) {
+            identifyState();
+        }
+
+        if (mVerbose > 1) {
+            Logger.out.println(":ViewTree: " + mSnapshot.packageName + " " + mSnapshot.count
+                    + " targets in " + Math.min(visited, MAX_NODES) + " nodes");
+        }
+    }
+
+    /**
+     * Finds the graph state for the snapshot just taken and the graph action
+     * for each of its targets.
+     */
+    private void identifyState() {
+        // The activity controller keeps track of the activity being started
+        Intent intent = Monkey.currentIntent;
+        ComponentName activity = intent != null ? intent.getComponent() : null;
+        int activityId = -1;
+        long fingerprint = mSnapshot.structure;
+        if (activity != null && activity.getPackageName().equals(mSnapshot.packageName)) {
+            activityId = activityId(activity);
+            fingerprint = MonkeyStateGraph.mix(fingerprint, activity.getClassName().hashCode());
+        } else if (mSnapshot.packageName != null) {
+            fingerprint = MonkeyStateGraph.mix(fingerprint, mSnapshot.packageName.hashCode());
+        }
+        mState = mGraph.state(fingerprint, activityId);
+
+        int count = mSnapshot.count;
+        if (count > mTargetActions.length) {
+            int n = Math.max(count, mTargetActions.length * 2);
+            mTargetActions = new int[n];
+            mTargetWeights = new int[n];
+            mScratch = new double[n];
+        }
+        for (int i = 0; i < count; i++) {
+            mTargetActions[i] = mGraph.action(mState, mSnapshot.keys[i]);
+            mTargetWeights[i] = mWeights[mSnapshot.kinds[i]];
+        }
+    }
+
+    private int activityId(ComponentName activity) {
+        Integer id = mActivityIds.get(activity);
+        if (id == null) {
+            id = mActivities.size();
+            mActivities.add(activity);
+            mActivityIds.put(activity, id);
+        }
+        return id;
+    }
+
+    /**
+     * Exploring here has stopped finding anything new. Launch the activity of
+     * the state with the most untried actions, or failing that the main
+     * activity of its package, or any main activity.
+     */
+    private void backtrack() {
+        mBacktracks++;
+        mLastAction = -1;
+        mStepsSinceNew = 0;
+        mSnapshotGeneration = -1;
+
+        int frontier = mGraph.findFrontier(mState);
+        int activityId = frontier >= 0 ? mGraph.getTag(frontier) : -1;
+        if (activityId >= 0) {
+            ComponentName activity = mActivities.get(activityId);
+            if (mVerbose > 0) {
+                Logger.out.println(":Explore: backtracking to " + activity.flattenToShortString()
+                        + " (" + mGraph.getUntried(frontier) + " untried)");
+            }
+            if (activityId < mMainApps.size()) {
+                mSink.activity(activityId);
+                return;
+            }
+            // Only the main activities are sure to be launchable from outside
+            for (int i = 0; i < mMainApps.size(); i++) {
+                if (mMainApps.get(i).getPackageName().equals(activity.getPackageName())) {
+                    mSink.activity(i);
+                    return;
+                }
+            }
+        }
+        if (!mMainApps.isEmpty()) {
+            mSink.activity(mRandom.nextInt(mMainApps.size()));
+        } else {
+            mSink.key(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_BACK);
+            mSink.key(KeyEvent.ACTION_UP, KeyEvent.KEYCODE_BACK);
+        }
+    }
+
+    /**
+     * Puts a point somewhere in the middle 80% of a target into mXy.
+     */
+    private void randomPoint(int target) {
+        int w = mSnapshot.right[target] - mSnapshot.left[target];
+        int h = mSnapshot.bottom[target] - mSnapshot.top[target];
+        mXy[0] = mSnapshot.left[target] + w * (0.1f + 0.8f * mRandom.nextFloat());
+        mXy[1] = mSnapshot.top[target] + h * (0.1f + 0.8f * mRandom.nextFloat());
+    }
+
+    private void tap(int target) {
+        randomPoint(target);
+        long downTime = SystemClock.uptimeMillis();
+        mSink.touch(MotionEvent.ACTION_DOWN, downTime, 1, mXy, false);
+        mSink.touch(MotionEvent.ACTION_UP, downTime, 1, mXy, false);
+    }
+
+    private void longPress(int target) {
+        randomPoint(target);
+        long downTime = SystemClock.uptimeMillis();
+        mSink.touch(MotionEvent.ACTION_DOWN, downTime, 1, mXy, false);
+        mQ.addLast(new MonkeyWaitEvent(LONG_PRESS_TIME));
+        mSink.touch(MotionEvent.ACTION_UP, downTime, 1, mXy, false);
+    }
+
+    /**
+     * Flings along the longer side of the target, in a random direction,
+     * covering most of its length.
+     */
+    private void scroll(int target) {
+        int w = mSnapshot.right[target] - mSnapshot.left[target];
+        int h = mSnapshot.bottom[target] - mSnapshot.top[target];
+        float cx = mSnapshot.left[target] + w / 2f;
+        float cy = mSnapshot.top[target] + h / 2f;
+        float sign = mRandom.nextBoolean() ? 1f : -1f;
+        float dx = 0;
+        float dy = 0;
+        if (h >= w) {
+            dy = sign * h * 0.6f;
+        } else {
+            dx = sign * w * 0.6f;
+        }
+
+        long downTime = SystemClock.uptimeMillis();
+        mXy[0] = cx - dx / 2;
+        mXy[1] = cy - dy / 2;
+        mSink.touch(MotionEvent.ACTION_DOWN, downTime, 1, mXy, false);
+        for (int i = 1; i <= SCROLL_STEPS; i++) {
+            mXy[0] = cx - dx / 2 + dx * i / SCROLL_STEPS;
+            mXy[1] = cy - dy / 2 + dy * i / SCROLL_STEPS;
+            mSink.touch(MotionEvent.ACTION_MOVE, downTime, 1, mXy, true);
+        }
+        mSink.touch(MotionEvent.ACTION_UP, downTime, 1, mXy, false);
+    }
+
+    /**
+     * @return a short run of letters and digits, which needs no quoting for the shell
+     */
+    private String randomText() {
+        int length = 3 + mRandom.nextInt(8);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(TEXT_CHARS.charAt(mRandom.nextInt(TEXT_CHARS.length())));
+        }
+        return sb.toString();
+    }
+}
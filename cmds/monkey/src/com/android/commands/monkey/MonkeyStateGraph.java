@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * The UI states an exploring monkey has seen, the actions it has tried in
+ * each one and where they led.
+ *
+ * <p>States and actions are identified by 64 bit fingerprints supplied by the
+ * caller and interned to small integer ids. Everything else is kept in
+ * primitive arrays indexed by those ids; the edges leaving an action are a
+ * linked list threaded through the edge arrays.
+ *
+ * <p>An action scores highly if it has never been tried, if it has led to
+ * states that were new when it reached them, or if it leads to states that
+ * have been visited little. This class has no Android dependencies.
+ */
+public class MonkeyStateGraph {
+    /** Score of an action that has never been tried. */
+    public static final double UNTRIED_SCORE = 8.0;
+
+    /** Extra score for each time an action reached a state nobody had seen before. */
+    private static final double NEW_STATE_BONUS = 4.0;
+
+    private final HashMap<Long, Integer> mStateIds = new HashMap<Long, Integer>();
+    private final HashMap<Long, Integer> mActionIds = new HashMap<Long, Integer>();
+
+    // Per state
+    private int mStateCount;
+    private long[] mStateKeys = new long[64];
+    private int[] mStateVisits = new int[64];
+    private int[] mStateTags = new int[64];
+    private int[] mStateUntried = new int[64];
+
+    // Per action
+    private int mActionCount;
+    private int[] mActionState = new int[256];
+    private int[] mActionTries = new int[256];
+    private int[] mActionNewStates = new int[256];
+    private int[] mActionFirstEdge = new int[256];
+
+    // Per edge
+    private int mEdgeCount;
+    private int[] mEdgeTo = new int[256];
+    private int[] mEdgeCounts = new int[256];
+    private int[] mEdgeNext = new int[256];
+
+    /**
+     * Finds or adds a state.
+     *
+     * @param fingerprint identifies the state
+     * @param tag a caller defined value to keep with a new state, such as the activity
+     * @return the state id
+     */
+    public int state(long fingerprint, int tag) {
+        Integer id = mStateIds.get(fingerprint);
+        if (id != null) {
+            return id;
+        }
+        if (mStateCount == mStateKeys.length) {
+            int n = mStateCount * 2;
+            mStateKeys = Arrays.copyOf(mStateKeys, n);
+            mStateVisits = Arrays.copyOf(mStateVisits, n);
+            mStateTags = Arrays.copyOf(mStateTags, n);
+            mStateUntried = Arrays.copyOf(mStateUntried, n);
+        }
+        int state = mStateCount++;
+        mStateKeys[state] = fingerprint;
+        mStateTags[state] = tag;
+        mStateIds.put(fingerprint, state);
+        return state;
+    }
+
+    /**
+     * Finds or adds an action available in a state.
+     *
+     * @param state the state id
+     * @param fingerprint identifies the action within the state
+     * @return the action id
+     */
+    public int action(int state, long fingerprint) {
+        long key = mix(mStateKeys[state], fingerprint);
+        Integer id = mActionIds.get(key);
+        if (id != null) {
+            return id;
+        }
+        if (mActionCount == mActionState.length) {
+            int n = mActionCount * 2;
+            mActionState = Arrays.copyOf(mActionState, n);
+            mActionTries = Arrays.copyOf(mActionTries, n);
+            mActionNewStates = Arrays.copyOf(mActionNewStates, n);
+            mActionFirstEdge = Arrays.copyOf(mActionFirstEdge, n);
+        }
+        int action = mActionCount++;
+        mActionState[action] = state;
+        mActionFirstEdge[action] = -1;
+        mStateUntried[state]++;
+        mActionIds.put(key, action);
+        return action;
+    }
+
+    /**
+     * Counts a visit to a state.
+     *
+     * @return true if this was the first visit
+     */
+    public boolean visit(int state) {
+        return mStateVisits[state]++ == 0;
+    }
+
+    /**
+     * Records that an action was taken and the UI ended up in a state. Call
+     * this before visit() for the new state, so a first visit is credited to
+     * the action.
+     */
+    public void transition(int action, int to) {
+        if (mActionTries[action]++ == 0) {
+            mStateUntried[mActionState[action]]--;
+        }
+        if (mStateVisits[to] == 0) {
+            mActionNewStates[action]++;
+        }
+        for (int e = mActionFirstEdge[action]; e >= 0; e = mEdgeNext[e]) {
+            if (mEdgeTo[e] == to) {
+                mEdgeCounts[e]++;
+                return;
+            }
+        }
+        if (mEdgeCount == mEdgeTo.length) {
+            int n = mEdgeCount * 2;
+            mEdgeTo = Arrays.copyOf(mEdgeTo, n);
+            mEdgeCounts = Arrays.copyOf(mEdgeCounts, n);
+            mEdgeNext = Arrays.copyOf(mEdgeNext, n);
+        }
+        int edge = mEdgeCount++;
+        mEdgeTo[edge] = to;
+        mEdgeCounts[edge] = 1;
+        mEdgeNext[edge] = mActionFirstEdge[action];
+        mActionFirstEdge[action] = edge;
+    }
+
+    /**
+     * How promising an action looks. Untried actions get UNTRIED_SCORE. Tried
+     * ones decay with the number of tries, are boosted for every new state
+     * they found, and for leading to states that have been visited little.
+     */
+    public double score(int action) {
+        int tries = mActionTries[action];
+        if (tries == 0) {
+            return UNTRIED_SCORE;
+        }
+        double score = (1.0 + NEW_STATE_BONUS * mActionNewStates[action]) / (1 + tries);
+        for (int e = mActionFirstEdge[action]; e >= 0; e = mEdgeNext[e]) {
+            int to = mEdgeTo[e];
+            double p = (double) mEdgeCounts[e] / tries;
+            score += p * (mStateUntried[to] > 0 ? 1.0 : 1.0 / (1 + mStateVisits[to]));
+        }
+        return score;
+    }
+
+    /**
+     * Picks one of a set of actions in proportion to weight * score.
+     *
+     * @param actions the candidate action ids
+     * @param weights a weight for each action, such as the weight of its kind
+     * @param count how many entries of actions and weights to use
+     * @param scratch at least count doubles to use as working space
+     * @return an index into actions, or -1 if count is 0
+     */
+    public int pick(int[] actions, int[] weights, int count, double[] scratch, Random random) {
+        double total = 0;
+        for (int i = 0; i < count; i++) {
+            total += weights[i] * score(actions[i]);
+            scratch[i] = total;
+        }
+        if (count == 0 || total <= 0) {
+            return count == 0 ? -1 : random.nextInt(count);
+        }
+        double r = random.nextDouble() * total;
+        int lo = 0;
+        int hi = count - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (scratch[mid] > r) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Finds the state to go back to when exploring the current one has stopped
+     * paying off: the one with the most untried actions, least visited first.
+     *
+     * @param exclude a state not to return, such as the current one
+     * @return a state id, or -1 if every action everywhere has been tried
+     */
+    public int findFrontier(int exclude) {
+        int best = -1;
+        for (int s = 0; s < mStateCount; s++) {
+            if (s == exclude || mStateUntried[s] == 0) {
+                continue;
+            }
+            if (best < 0 || mStateUntried[s] > mStateUntried[best]
+                    || (mStateUntried[s] == mStateUntried[best]
+                            && mStateVisits[s] < mStateVisits[best])) {
+                best = s;
+            }
+        }
+        return best;
+    }
+
+    public int getUntried(int state) {
+        return mStateUntried[state];
+    }
+
+    public int getTag(int state) {
+        return mStateTags[state];
+    }
+
+    public int getStateCount() {
+        return mStateCount;
+    }
+
+    public int getActionCount() {
+        return mActionCount;
+    }
+
+    public int getEdgeCount() {
+        return mEdgeCount;
+    }
+
+    /**
+     * Folds a value into a 64 bit hash.
+     */
+    public static long mix(long hash, long value) {
+        long h = (hash ^ value) * 0x9e3779b97f4a7c15L;
+        return h ^ (h >>> 29);
+    }
+}
@@ -47,17 +47,28 @@ public class MonkeyThrottleEvent extends MonkeyEvent {
      */
     @Override
     public int injectEvent(IWindowManager iwm, IActivityManager iam, int verbose) {
+        return sleep(mThrottle, verbose);
+    }
 
+    /**
+     * Sleep between events. Also used for the throttle that MonkeyEventQueue
+     * attaches to an event with MonkeyEvent.setThrottle().
+     *
+     * @param throttle how long to sleep in ms
+     * @param verbose a log switch log等级
+     * @return INJECT_SUCCESS, or INJECT_FAIL if the sleep was interrupted
+     */
+    public static int sleep(long throttle, int verbose) {
         if (verbose > 1) {
-            Logger.out.println("Sleeping for " + mThrottle + " milliseconds");
+            Logger.out.println("Sleeping for " + throttle + " milliseconds");
         }
         try {
-            Thread.sleep(mThrottle); //线程休眠指定的毫秒数……
+            Thread.sleep(throttle); //线程休眠指定的毫秒数……
         } catch (InterruptedException e1) { //如果发送线程中断
             Logger.out.println("** Monkey interrupted in sleep.");
             return MonkeyEvent.INJECT_FAIL;  //也算注入事件失败
         }
-        
+
         return MonkeyEvent.INJECT_SUCCESS;//返回成功
     }
 }
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Watches the tombstone directory for native crashes on a background thread,
+ * so the main loop doesn't have to list the directory on every event.
+ *
+ * The directory is registered with a WatchService, which is backed by inotify
+ * on Linux. A tombstone that is created or written to is only reported once no
+ * more writes have been seen for the debounce interval and it isn't empty, so
+ * crash_dump has finished with it by then. Tombstones are reused round-robin,
+ * so a name that was seen before is reported again if its modification time
+ * changes.
+ *
+ * Crashes are handed to the main loop through a counter: hasNewTombstones() is
+ * a single volatile read that the main loop can do on every event.
+ *
+ * The tombstones seen can be saved in a checkpoint with getKnown(), and handed
+ * to setKnown() when the run is resumed, so crashes that happened while the
+ * monkey wasn't running are still reported.
+ */
+public class MonkeyTombstoneWatcher {
+    private final File mDir;
+    private final String mPrefix;
+    private final long mDebounceMs;
+
+    private final AtomicInteger mNewTombstones = new AtomicInteger();
+
+    // Only changed by the watcher thread after start() has filled it in, and
+    // guarded by itself so getKnown() can copy it.
+    private final HashMap<String, Long> mKnown = new HashMap<String, Long>();
+    // Only touched by the watcher thread after start().
+    private final HashMap<String, Long> mDeadlines = new HashMap<String, Long>();
+    private Map<String, Long> mPreviouslyKnown;
+
+    private WatchService mWatchService;
+    private Thread mThread;
+
+    /**
+     * @param dir the tombstone directory
+     * @param prefix the prefix of the tombstone file names
+     * @param debounceMs how long a tombstone must go without being written to
+     *        before it is reported
+     */
+    public MonkeyTombstoneWatcher(File dir, String prefix, long debounceMs) {
+        mDir = dir;
+        mPrefix = prefix;
+        mDebounceMs = debounceMs;
+    }
+
+    /**
+     * Use the tombstones known from a checkpoint instead of the ones in the
+     * directory when start() is called. Must be called before start().
+     */
+    public void setKnown(Map<String, Long> known) {
+        mPreviouslyKnown = known;
+    }
+
+    /**
+     * @return a copy of the tombstones seen so far, by name, with their
+     *         modification times
+     */
+    public Map<String, Long> getKnown() {
+        synchronized (mKnown) {
+            return new HashMap<String, Long>(mKnown);
+        }
+    }
+
+    /**
+     * Start watching. The tombstones that already exist are not reported,
+     * unless setKnown() was called, in which case the ones it didn't know
+     * about or that have changed since are.
+     *
+     * @throws IOException if the directory can't be watched, in which case the
+     *         caller has to fall back to listing it
+     */
+    public void start() throws IOException {
+        String[] names = mDir.list();
+        if (names != null) {
+            long now = System.currentTimeMillis();
+            for (String name : names) {
+                if (!name.startsWith(mPrefix)) {
+                    continue;
+                }
+                long modified = new File(mDir, name).lastModified();
+                if (mPreviouslyKnown == null) {
+                    mKnown.put(name, modified);
+                    continue;
+                }
+                Long known = mPreviouslyKnown.get(name);
+                if (known != null) {
+                    mKnown.put(name, known);
+                }
+                if (known == null || known != modified) {
+                    mDeadlines.put(name, now); // report it as soon as the thread runs
+                }
+            }
+        }
+
+        mWatchService = FileSystems.getDefault().newWatchService();
+        try {
+            mDir.toPath().register(mWatchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            mWatchService.close();
+            throw e;
+        }
+
+        mThread = new Thread("MonkeyTombstoneWatcher") {
+            @Override
+            public void run() {
+                watch();
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stop watching.
+     */
+    public void stop() {
+        if (mWatchService != null) {
+            try {
+                mWatchService.close(); // wakes the watcher thread up
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * @return true if tombstones were reported since the last takeNewTombstones()
+     */
+    public boolean hasNewTombstones() {
+        return mNewTombstones.get() > 0;
+    }
+
+    /**
+     * @return how many tombstones were reported since the last call
+     */
+    public int takeNewTombstones() {
+        return mNewTombstones.getAndSet(0);
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key;
+                if (mDeadlines.isEmpty()) {
+                    key = mWatchService.take();
+                } else {
+                    long wait = nextDeadline() - System.currentTimeMillis();
+                    key = wait > 0 ? mWatchService.poll(wait, TimeUnit.MILLISECONDS) : null;
+                }
+                if (key != null) {
+                    handleEvents(key);
+                }
+                reportSettled();
+            }
+        } catch (ClosedWatchServiceException e) {
+            // stop() was called
+        } catch (InterruptedException e) {
+            // same
+        }
+    }
+
+    private void handleEvents(WatchKey key) {
+        long deadline = System.currentTimeMillis() + mDebounceMs;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Some events were lost, so look at every tombstone again.
+                String[] names = mDir.list();
+                if (names != null) {
+                    for (String name : names) {
+                        if (name.startsWith(mPrefix)) {
+                            mDeadlines.put(name, deadline);
+                        }
+                    }
+                }
+                continue;
+            }
+            String name = ((Path) event.context()).toString();
+            if (name.startsWith(mPrefix)) {
+                mDeadlines.put(name, deadline);
+            }
+        }
+        key.reset();
+    }
+
+    private long nextDeadline() {
+        long next = Long.MAX_VALUE;
+        for (long deadline : mDeadlines.values()) {
+            next = Math.min(next, deadline);
+        }
+        return next;
+    }
+
+    private void reportSettled() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Long>> it = mDeadlines.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (entry.getValue() > now) {
+                continue;
+            }
+            it.remove();
+            String name = entry.getKey();
+            File f = new File(mDir, name);
+            long modified = f.lastModified();
+            Long known = mKnown.get(name);
+            if (modified == 0 || (known != null && known == modified)) {
+                continue; // deleted, or not actually changed
+            }
+            long size = f.length();
+            if (size == 0) {
+                Logger.err.println("Incomplete tombstone file.");
+                continue; // wait for it to be written to
+            }
+            synchronized (mKnown) {
+                mKnown.put(name, modified);
+            }
+            Logger.out.println("** New tombstone found: " + f.getAbsolutePath()
+                    + ", size: " + size);
+            mNewTombstones.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import com.android.commands.monkey.MonkeyNetworkProtocol.FrameWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The payload of the dumptree network command: every node of the active
+ * window in one reply, or only the nodes that changed since an earlier
+ * dump. The device side (MonkeySourceNetworkViews) feeds nodes to an
+ * Encoder, and the host side decodes them into a Snapshot. It has no
+ * dependencies on the Android framework.
+ *
+ * The payload is a format byte, then, deflated if the format says so:
+ * <pre>
+ *   generation       varint, names this dump for a later diff
+ *   base generation  varint, the dump this one is a diff against, or 0
+ *   window id        signed
+ *   root view id     signed
+ *   node count       varint, then the nodes
+ *   removed count    varint, then the signed view ids of removed nodes
+ * </pre>
+ * and each node is:
+ * <pre>
+ *   view id, parent view id (0 for the root)   signed
+ *   flags                                      varint, MonkeyNetworkProtocol.VIEW_*
+ *   class                                      varint index into the classes seen so
+ *                                              far in this payload; if it is the
+ *                                              next index, the name follows as a string
+ *   text                                       string, empty for passwords
+ *   left, top, width, height                   signed
+ *   child count                                varint
+ * </pre>
+ * A full dump lists the nodes in depth first order, the root first.
+ */
+public class MonkeyViewTree {
+    /** The payload after the format byte is deflated. */
+    public static final int FORMAT_DEFLATE = 1;
+
+    /**
+     * One view.
+     */
+    public static class Node {
+        public int viewId;
+        public int parentId;
+        public int flags;
+        public String className;
+        public String text;
+        public int left;
+        public int top;
+        public int width;
+        public int height;
+        public int childCount;
+
+        @Override
+        public String toString() {
+            return viewId + " parent=" + parentId + " " + className + " \"" + text + "\" ["
+                    + left + "," + top + " " + width + "x" + height + "] flags=0x"
+                    + Integer.toHexString(flags) + " children=" + childCount;
+        }
+    }
+
+    /**
+     * A decoded dump.
+     */
+    public static class Snapshot {
+        public long generation;
+        /** 0 for a full dump, otherwise the generation this is a diff against. */
+        public long baseGeneration;
+        public int windowId;
+        public int rootViewId;
+        /** Every node for a full dump, only the new and changed ones for a diff. */
+        public final List<Node> nodes = new ArrayList<Node>();
+        /** The view ids of the nodes a diff removed. */
+        public int[] removed = new int[0];
+
+        public boolean isDiff() {
+            return baseGeneration != 0;
+        }
+
+        /**
+         * Bring an earlier dump up to date with this one.
+         *
+         * @param previous the dump this one is a diff against; not needed if
+         *        this is a full dump
+         * @return a full dump with this generation. Nodes added by a diff come
+         *         after the ones they were added to, not in depth first order.
+         * @throws IllegalArgumentException if this is a diff against another dump
+         */
+        public Snapshot applyTo(Snapshot previous) {
+            if (!isDiff()) {
+                return this;
+            }
+            if (previous == null || previous.generation != baseGeneration) {
+                throw new IllegalArgumentException("diff against generation " + baseGeneration
+                        + " applied to " + (previous != null ? previous.generation : "nothing"));
+            }
+            Map<Integer, Node> nodes = new LinkedHashMap<Integer, Node>();
+            for (Node node : previous.nodes) {
+                nodes.put(node.viewId, node);
+            }
+            for (Node node : this.nodes) {
+                nodes.put(node.viewId, node);
+            }
+            for (int viewId : removed) {
+                nodes.remove(viewId);
+            }
+            Snapshot result = new Snapshot();
+            result.generation = generation;
+            result.windowId = windowId;
+            result.rootViewId = rootViewId;
+            result.nodes.addAll(nodes.values());
+            return result;
+        }
+    }
+
+    /**
+     * Writes dumps, and remembers the last one so the next can be a diff
+     * against it. Reuse one encoder for every dump. Not thread safe.
+     */
+    public static class Encoder {
+        // The last dump, as a hash of every node by view id.
+        private long mGeneration;
+        private int mWindowId;
+        private int mRootViewId;
+        private HashMap<Integer, Long> mHashes = new HashMap<Integer, Long>();
+
+        // The dump being written.
+        private HashMap<Integer, Long> mNewHashes = new HashMap<Integer, Long>();
+        private final HashMap<String, Integer> mClassNames = new HashMap<String, Integer>();
+        private FrameWriter mNodes;
+        private int mNodeCount;
+        private long mBaseGeneration;
+        private int mNewWindowId;
+        private int mNewRootViewId;
+
+        /**
+         * Start a dump.
+         *
+         * @param sinceGeneration the generation the caller already has, or 0.
+         *        Only if it is the last dump, and of the same window, is this
+         *        dump a diff against it.
+         */
+        public void begin(int windowId, int rootViewId, long sinceGeneration) {
+            boolean diff = sinceGeneration != 0 && sinceGeneration == mGeneration
+                    && windowId == mWindowId && rootViewId == mRootViewId;
+            mBaseGeneration = diff ? sinceGeneration : 0;
+            mNewWindowId = windowId;
+            mNewRootViewId = rootViewId;
+            mNewHashes.clear();
+            mClassNames.clear();
+            mNodes = new FrameWriter();
+            mNodeCount = 0;
+        }
+
+        /**
+         * Add the next node. The node is not kept, so the caller can reuse it.
+         */
+        public void add(Node node) {
+            long hash = hash(node);
+            mNewHashes.put(node.viewId, hash);
+            if (mBaseGeneration != 0) {
+                Long previous = mHashes.get(node.viewId);
+                if (previous != null && previous == hash) {
+                    return;
+                }
+            }
+
+            mNodes.writeSigned(node.viewId);
+            mNodes.writeSigned(node.parentId);
+            mNodes.writeVarint(node.flags);
+            String className = node.className != null ? node.className : "";
+            Integer index = mClassNames.get(className);
+            if (index != null) {
+                mNodes.writeVarint(index);
+            } else {
+                mNodes.writeVarint(mClassNames.size());
+                mNodes.writeString(className);
+                mClassNames.put(className, mClassNames.size());
+            }
+            mNodes.writeString(node.text);
+            mNodes.writeSigned(node.left);
+            mNodes.writeSigned(node.top);
+            mNodes.writeSigned(node.width);
+            mNodes.writeSigned(node.height);
+            mNodes.writeVarint(node.childCount);
+            mNodeCount++;
+        }
+
+        /**
+         * Finish the dump, and remember it for the next one.
+         *
+         * @return the payload
+         */
+        public byte[] finish(boolean deflate) {
+            mGeneration++;
+            FrameWriter payload = new FrameWriter();
+            payload.writeVarint(mGeneration);
+            payload.writeVarint(mBaseGeneration);
+            payload.writeSigned(mNewWindowId);
+            payload.writeSigned(mNewRootViewId);
+            payload.writeVarint(mNodeCount);
+            payload.write(mNodes);
+            if (mBaseGeneration != 0) {
+                List<Integer> removed = new ArrayList<Integer>();
+                for (Integer viewId : mHashes.keySet()) {
+                    if (!mNewHashes.containsKey(viewId)) {
+                        removed.add(viewId);
+                    }
+                }
+                payload.writeVarint(removed.size());
+                for (int viewId : removed) {
+                    payload.writeSigned(viewId);
+                }
+            } else {
+                payload.writeVarint(0);
+            }
+            mNodes = null;
+
+            HashMap<Integer, Long> hashes = mHashes;
+            mHashes = mNewHashes;
+            mNewHashes = hashes;
+            mWindowId = mNewWindowId;
+            mRootViewId = mNewRootViewId;
+
+            byte[] body = payload.toByteArray();
+            if (!deflate) {
+                return new FrameWriter().writeByte(0).writeBytes(body).toByteArray();
+            }
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(body);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 16);
+                out.write(FORMAT_DEFLATE);
+                byte[] buffer = new byte[8192];
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        // FNV-1a over every field, the strings a char at a time: String.hashCode()
+        // is only 32 bits and easily collides ("Aa" and "BB"), which would
+        // leave a changed node out of a diff.
+        private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+        private static final long FNV_PRIME = 0x100000001b3L;
+
+        private static long hash(Node node) {
+            long h = FNV_OFFSET;
+            h = mix(h, node.parentId);
+            h = mix(h, node.flags);
+            h = mix(h, node.className);
+            h = mix(h, node.text);
+            h = mix(h, node.left);
+            h = mix(h, node.top);
+            h = mix(h, node.width);
+            h = mix(h, node.height);
+            return mix(h, node.childCount);
+        }
+
+        private static long mix(long h, int value) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                h = (h ^ ((value >>> shift) & 0xff)) * FNV_PRIME;
+            }
+            return h;
+        }
+
+        private static long mix(long h, String value) {
+            if (value == null) {
+                return mix(h, -1);
+            }
+            h = mix(h, value.length());
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                h = (h ^ (c & 0xff)) * FNV_PRIME;
+                h = (h ^ (c >>> 8)) * FNV_PRIME;
+            }
+            return h;
+        }
+    }
+
+    private MonkeyViewTree() {
+    }
+
+    /**
+     * Decode a payload written by Encoder.finish().
+     *
+     * @throws IllegalArgumentException if it is corrupt
+     */
+    public static Snapshot decode(byte[] payload) {
+        if (payload.length == 0) {
+            throw new IllegalArgumentException("empty view tree");
+        }
+        ByteBuffer in;
+        if ((payload[0] & FORMAT_DEFLATE) != 0) {
+            in = ByteBuffer.wrap(inflate(payload));
+        } else {
+            in = ByteBuffer.wrap(payload, 1, payload.length - 1);
+        }
+        try {
+            Snapshot snapshot = new Snapshot();
+            snapshot.generation = MonkeyNetworkProtocol.readVarint(in);
+            snapshot.baseGeneration = MonkeyNetworkProtocol.readVarint(in);
+            snapshot.windowId = (int) MonkeyNetworkProtocol.readSigned(in);
+            snapshot.rootViewId = (int) MonkeyNetworkProtocol.readSigned(in);
+            List<String> classNames = new ArrayList<String>();
+            for (long i = MonkeyNetworkProtocol.readVarint(in); i > 0; i--) {
+                Node node = new Node();
+                node.viewId = (int) MonkeyNetworkProtocol.readSigned(in);
+                node.parentId = (int) MonkeyNetworkProtocol.readSigned(in);
+                node.flags = (int) MonkeyNetworkProtocol.readVarint(in);
+                int index = (int) MonkeyNetworkProtocol.readVarint(in);
+                if (index == classNames.size()) {
+                    classNames.add(MonkeyNetworkProtocol.readString(in));
+                }
+                node.className = classNames.get(index);
+                node.text = MonkeyNetworkProtocol.readString(in);
+                node.left = (int) MonkeyNetworkProtocol.readSigned(in);
+                node.top = (int) MonkeyNetworkProtocol.readSigned(in);
+                node.width = (int) MonkeyNetworkProtocol.readSigned(in);
+                node.height = (int) MonkeyNetworkProtocol.readSigned(in);
+                node.childCount = (int) MonkeyNetworkProtocol.readVarint(in);
+                snapshot.nodes.add(node);
+            }
+            snapshot.removed = new int[(int) MonkeyNetworkProtocol.readVarint(in)];
+            for (int i = 0; i < snapshot.removed.length; i++) {
+                snapshot.removed[i] = (int) MonkeyNetworkProtocol.readSigned(in);
+            }
+            return snapshot;
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("corrupt view tree", e);
+        }
+    }
+
+    private static byte[] inflate(byte[] payload) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(payload, 1, payload.length - 1);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("truncated view tree");
+                }
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("corrupt view tree", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
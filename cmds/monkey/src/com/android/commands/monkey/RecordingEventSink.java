@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * EventSink that keeps generated events in memory instead of injecting them,
+ * for running a MonkeyEventGenerator off the device. It counts every kind of
+ * event, keeps a running hash of everything it has seen so two runs can be
+ * compared cheaply, and optionally keeps the events themselves.
+ */
+public class RecordingEventSink implements EventSink {
+    public static final int KIND_TOUCH = 0;
+    public static final int KIND_TRACKBALL = 1;
+    public static final int KIND_KEY = 2;
+    public static final int KIND_ROTATION = 3;
+    public static final int KIND_ACTIVITY = 4;
+    public static final int KIND_FLIP = 5;
+    public static final int KIND_PERMISSION = 6;
+    public static final int KIND_COUNT = 7;
+
+    private static final String[] KIND_NAMES = {
+        "touch", "trackball", "key", "rotation", "activity", "flip", "permission",
+    };
+
+    /**
+     * One recorded event. Only the fields that make sense for the kind are set.
+     */
+    public static class Event {
+        public int kind;
+        public int action;
+        public long downTime;
+        /** x and y of each pointer for motion events. */
+        public float[] xy;
+        /** The key code, rotation or app index. */
+        public int value;
+        /** The intermediate note, rotation persist flag or keyboard state. */
+        public boolean flag;
+
+        @Override
+        public String toString() {
+            return KIND_NAMES[kind] + " action=" + action + " downTime=" + downTime
+                    + " xy=" + Arrays.toString(xy) + " value=" + value + " flag=" + flag;
+        }
+    }
+
+    private final boolean mKeepEvents;
+    private final ArrayList<Event> mEvents = new ArrayList<Event>();
+    private final long[] mCounts = new long[KIND_COUNT];
+    private long mTotal;
+    private long mHash = 0xcbf29ce484222325L;
+
+    /**
+     * @param keepEvents true to keep every event, false to only count and hash them
+     */
+    public RecordingEventSink(boolean keepEvents) {
+        mKeepEvents = keepEvents;
+    }
+
+    public void touch(int action, long downTime, int pointerCount, float[] xy,
+            boolean intermediateNote) {
+        record(KIND_TOUCH, action, downTime, Arrays.copyOf(xy, pointerCount * 2), 0,
+                intermediateNote);
+    }
+
+    public void trackball(int action, long downTime, float x, float y,
+            boolean intermediateNote) {
+        record(KIND_TRACKBALL, action, downTime, new float[] { x, y }, 0, intermediateNote);
+    }
+
+    public void key(int action, int keyCode) {
+        record(KIND_KEY, action, 0, null, keyCode, false);
+    }
+
+    public void rotation(int rotation, boolean persist) {
+        record(KIND_ROTATION, 0, 0, null, rotation, persist);
+    }
+
+    public void activity(int appIndex) {
+        record(KIND_ACTIVITY, 0, 0, null, appIndex, false);
+    }
+
+    public void flip(boolean keyboardOpen) {
+        record(KIND_FLIP, 0, 0, null, 0, keyboardOpen);
+    }
+
+    public void permission(Random random) {
+        // Which permission gets picked depends on the device, so this doesn't
+        // draw from the random source the way the real sink does.
+        record(KIND_PERMISSION, 0, 0, null, 0, false);
+    }
+
+    private void record(int kind, int action, long downTime, float[] xy, int value,
+            boolean flag) {
+        mCounts[kind]++;
+        mTotal++;
+
+        long h = mix(mHash, kind);
+        h = mix(h, action);
+        h = mix(h, downTime);
+        if (xy != null) {
+            for (int i = 0; i < xy.length; i++) {
+                h = mix(h, Float.floatToIntBits(xy[i]));
+            }
+        }
+        h = mix(h, value);
+        mHash = mix(h, flag ? 1 : 0);
+
+        if (mKeepEvents) {
+            Event e = new Event();
+            e.kind = kind;
+            e.action = action;
+            e.downTime = downTime;
+            e.xy = xy;
+            e.value = value;
+            e.flag = flag;
+            mEvents.add(e);
+        }
+    }
+
+    private static long mix(long h, long v) {
+        // FNV-1a over the 8 bytes of v
+        for (int i = 0; i < 8; i++) {
+            h ^= (v >>> (i * 8)) & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * @return the events recorded so far, or an empty list if they aren't being kept
+     */
+    public List<Event> getEvents() {
+        return mEvents;
+    }
+
+    /**
+     * @param kind one of the KIND_* values
+     * @return how many events of that kind were recorded
+     */
+    public long getCount(int kind) {
+        return mCounts[kind];
+    }
+
+    /**
+     * @return how many events were recorded in total
+     */
+    public long getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * @return a hash of every event recorded so far, in order. Two runs with the same
+     *         seed and inputs end up with the same hash.
+     */
+    public long getHash() {
+        return mHash;
+    }
+
+    /**
+     * Forget everything recorded so far.
+     */
+    public void clear() {
+        mEvents.clear();
+        Arrays.fill(mCounts, 0);
+        mTotal = 0;
+        mHash = 0xcbf29ce484222325L;
+    }
+
+    /**
+     * @return a one line summary of the event mix
+     */
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("events=").append(mTotal);
+        for (int i = 0; i < KIND_COUNT; i++) {
+            sb.append(' ').append(KIND_NAMES[i]).append('=').append(mCounts[i]);
+            if (mTotal > 0) {
+                sb.append(String.format(" (%.1f%%)", 100.0 * mCounts[i] / mTotal));
+            }
+        }
+        sb.append(String.format(" hash=%016x", mHash));
+        return sb.toString();
+    }
+}
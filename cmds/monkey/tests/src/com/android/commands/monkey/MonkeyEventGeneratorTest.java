@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class MonkeyEventGeneratorTest {
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final int APP_COUNT = 5;
+
+    // The default percentages of MonkeySourceRandom, by FACTOR_* index.
+    private static final float[] DEFAULT_PERCENTAGES = {
+        15, 10, 2, 15, 0, 0, 25, 15, 2, 2, 1, 13,
+    };
+
+    private static final MonkeyDisplaySize DISPLAY = new MonkeyDisplaySize() {
+        public int getWidth() {
+            return WIDTH;
+        }
+
+        public int getHeight() {
+            return HEIGHT;
+        }
+    };
+
+    /** A clock that moves forward a millisecond every time it is read. */
+    private static class FakeClock implements MonkeyClock {
+        private long mNow = 1000;
+
+        public long uptimeMillis() {
+            return mNow++;
+        }
+    }
+
+    /** The running sum of the percentages scaled to 0..1, as MonkeySourceRandom passes them. */
+    private static float[] runningSum(float[] percentages) {
+        float[] factors = new float[percentages.length];
+        float sum = 0;
+        for (int i = 0; i < percentages.length; i++) {
+            sum += percentages[i] / 100.0f;
+            factors[i] = sum;
+        }
+        return factors;
+    }
+
+    private static MonkeyEventGenerator newGenerator(long seed) {
+        boolean[] keys = new boolean[300];
+        Arrays.fill(keys, true);
+        return new MonkeyEventGenerator(runningSum(DEFAULT_PERCENTAGES), keys, APP_COUNT,
+                DISPLAY, new FakeClock(), new Random(seed));
+    }
+
+    private static RecordingEventSink generate(long seed, int count, boolean keepEvents) {
+        MonkeyEventGenerator generator = newGenerator(seed);
+        RecordingEventSink sink = new RecordingEventSink(keepEvents);
+        for (int i = 0; i < count; i++) {
+            generator.generateEvents(sink);
+        }
+        return sink;
+    }
+
+    @Test
+    public void testSameSeedSameEvents() {
+        RecordingEventSink a = generate(42, 10000, true);
+        RecordingEventSink b = generate(42, 10000, true);
+        assertEquals(a.getHash(), b.getHash());
+        assertEquals(a.getTotal(), b.getTotal());
+        List<RecordingEventSink.Event> ea = a.getEvents();
+        List<RecordingEventSink.Event> eb = b.getEvents();
+        for (int i = 0; i < ea.size(); i++) {
+            assertEquals("event " + i, ea.get(i).toString(), eb.get(i).toString());
+        }
+
+        assertNotEquals(a.getHash(), generate(43, 10000, false).getHash());
+    }
+
+    @Test
+    public void testFirstEventsForSeed() {
+        // Guards the order of the draws from the random source: changing it
+        // changes what every existing --seed does.
+        List<RecordingEventSink.Event> events = generate(1, 2, true).getEvents();
+        String[] expected = {
+            "key action=0 downTime=0 xy=null value=82 flag=false",
+            "key action=1 downTime=0 xy=null value=82 flag=false",
+            "trackball action=2 downTime=-1 xy=[-2.0, -1.0] value=0 flag=false",
+            "trackball action=2 downTime=-1 xy=[-1.0, -1.0] value=0 flag=true",
+        };
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("event " + i, expected[i], events.get(i).toString());
+        }
+    }
+
+    @Test
+    public void testGesturesAreWellFormed() {
+        List<RecordingEventSink.Event> events = generate(7, 20000, true).getEvents();
+        long downTime = -1;
+        int lastKey = -1;
+        for (RecordingEventSink.Event e : events) {
+            if (e.kind == RecordingEventSink.KIND_TOUCH) {
+                int action = e.action & 0xff;
+                if (action == MonkeyEventGenerator.ACTION_DOWN) {
+                    assertEquals("down inside a gesture", -1, downTime);
+                    downTime = e.downTime;
+                } else {
+                    assertEquals("gesture steps share the down time", downTime, e.downTime);
+                    if (action == MonkeyEventGenerator.ACTION_UP) {
+                        downTime = -1;
+                    }
+                }
+                for (int i = 0; i < e.xy.length; i += 2) {
+                    assertTrue(e.xy[i] >= 0 && e.xy[i] <= WIDTH);
+                    assertTrue(e.xy[i + 1] >= 0 && e.xy[i + 1] <= HEIGHT);
+                }
+            } else {
+                assertEquals("gesture left open", -1, downTime);
+            }
+
+            if (e.kind == RecordingEventSink.KIND_KEY) {
+                assertTrue(e.value != MonkeyEventGenerator.KEYCODE_POWER
+                        && e.value != MonkeyEventGenerator.KEYCODE_ENDCALL
+                        && e.value != MonkeyEventGenerator.KEYCODE_SLEEP
+                        && e.value != MonkeyEventGenerator.KEYCODE_SOFT_SLEEP);
+                if (e.action == MonkeyEventGenerator.ACTION_DOWN) {
+                    assertEquals(-1, lastKey);
+                    lastKey = e.value;
+                } else {
+                    assertEquals("up for the key that went down", lastKey, e.value);
+                    lastKey = -1;
+                }
+            } else if (e.kind == RecordingEventSink.KIND_ACTIVITY) {
+                assertTrue(e.value >= 0 && e.value < APP_COUNT);
+            }
+        }
+        assertEquals(-1, downTime);
+        assertEquals(-1, lastKey);
+    }
+
+    @Test
+    public void testEventMixFollowsFactors() {
+        final int count = 100000;
+        RecordingEventSink sink = generate(3, count, false);
+        // Activities, flips, rotations and permissions are one event per draw.
+        assertFraction(0.02, sink.getCount(RecordingEventSink.KIND_ACTIVITY), count);
+        assertFraction(0.01, sink.getCount(RecordingEventSink.KIND_FLIP), count);
+        assertEquals(0, sink.getCount(RecordingEventSink.KIND_ROTATION));
+        assertEquals(0, sink.getCount(RecordingEventSink.KIND_PERMISSION));
+        // Key draws give a down and an up.
+        assertFraction(0.55, sink.getCount(RecordingEventSink.KIND_KEY) / 2, count);
+    }
+
+    private static void assertFraction(double expected, long actual, int total) {
+        double fraction = (double) actual / total;
+        assertTrue("expected about " + expected + ", got " + fraction,
+                Math.abs(fraction - expected) < 0.01);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds event log records the way MonkeyEventRecorder writes them, for tests
+ * that can't use the recorder since it needs the framework.
+ */
+class MonkeyEventLogBuilder {
+    private final List<byte[]> mRecords = new ArrayList<byte[]>();
+    private ByteArrayOutputStream mOut;
+    private long mNow = 1000;
+
+    /**
+     * @return the records built so far
+     */
+    List<byte[]> getRecords() {
+        return mRecords;
+    }
+
+    /**
+     * @return the time of the last record
+     */
+    long getNow() {
+        return mNow;
+    }
+
+    MonkeyEventLogBuilder key(long delta, int action, int keyCode, long downTime) {
+        start(MonkeyEventLog.TYPE_KEY, delta);
+        varint(action);
+        varint(keyCode);
+        time(downTime);
+        time(mNow);
+        varint(0); // repeat count
+        varint(0); // meta state
+        varint(zigzag(-1)); // device id
+        varint(0); // scan code
+        return end();
+    }
+
+    /**
+     * A touch record.
+     *
+     * @param xy x and y of each pointer, in pointer id order
+     */
+    MonkeyEventLogBuilder touch(long delta, int action, long downTime, float... xy) {
+        motion(MonkeyEventLog.TYPE_TOUCH, delta, action, downTime, xy, true);
+        return end();
+    }
+
+    /**
+     * A one pointer touch move that carries earlier samples, as coalesced
+     * moves are recorded.
+     *
+     * @param sampleTimes the time of each earlier sample, oldest first
+     * @param xy x and y of each earlier sample, then of the current one
+     */
+    MonkeyEventLogBuilder coalescedMove(long delta, long downTime, long[] sampleTimes,
+            float[] xy) {
+        float[] current = { xy[xy.length - 2], xy[xy.length - 1] };
+        motion(MonkeyEventLog.TYPE_TOUCH, delta, MonkeyEventGenerator.ACTION_MOVE, downTime,
+                current, false);
+        varint(sampleTimes.length);
+        for (int h = 0; h < sampleTimes.length; h++) {
+            time(sampleTimes[h]);
+            fixed32(Float.floatToIntBits(xy[h * 2]));
+            fixed32(Float.floatToIntBits(xy[h * 2 + 1]));
+        }
+        return end();
+    }
+
+    MonkeyEventLogBuilder trackball(long delta, int action, long downTime, float x, float y) {
+        motion(MonkeyEventLog.TYPE_TRACKBALL, delta, action, downTime, new float[] { x, y },
+                true);
+        return end();
+    }
+
+    MonkeyEventLogBuilder rotation(long delta, int rotation, boolean persist) {
+        start(MonkeyEventLog.TYPE_ROTATION, delta);
+        varint(rotation);
+        varint(persist ? 1 : 0);
+        return end();
+    }
+
+    MonkeyEventLogBuilder activity(long delta, String pkg, String cls) {
+        start(MonkeyEventLog.TYPE_ACTIVITY, delta);
+        string(pkg);
+        string(cls);
+        varint(0); // alarm time
+        return end();
+    }
+
+    MonkeyEventLogBuilder flip(long delta, boolean open) {
+        start(MonkeyEventLog.TYPE_FLIP, delta);
+        varint(open ? 1 : 0);
+        return end();
+    }
+
+    MonkeyEventLogBuilder permission(long delta, String pkg, String permission) {
+        start(MonkeyEventLog.TYPE_PERMISSION, delta);
+        string(pkg);
+        string(permission);
+        return end();
+    }
+
+    /**
+     * Start a motion record, with no historical samples if noHistory is set.
+     */
+    private void motion(int type, long delta, int action, long downTime, float[] xy,
+            boolean noHistory) {
+        start(type, delta);
+        varint(action);
+        time(downTime);
+        time(mNow);
+        varint(0); // meta state
+        varint(0); // device id
+        varint(0); // edge flags
+        fixed32(Float.floatToIntBits(1.0f));
+        fixed32(Float.floatToIntBits(1.0f));
+        varint(xy.length / 2);
+        for (int i = 0; i < xy.length / 2; i++) {
+            varint(i); // id
+            varint(0); // flags
+            fixed32(Float.floatToIntBits(xy[i * 2]));
+            fixed32(Float.floatToIntBits(xy[i * 2 + 1]));
+        }
+        if (noHistory) {
+            varint(0);
+        }
+    }
+
+    private void start(int type, long delta) {
+        mOut = new ByteArrayOutputStream();
+        mOut.write(type);
+        varint(delta);
+        mNow += delta;
+    }
+
+    private MonkeyEventLogBuilder end() {
+        mRecords.add(mOut.toByteArray());
+        mOut = null;
+        return this;
+    }
+
+    private void time(long time) {
+        varint(time <= 0 ? 0 : zigzag(mNow - time) + 1);
+    }
+
+    private void string(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        varint(bytes.length);
+        mOut.write(bytes, 0, bytes.length);
+    }
+
+    private void varint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            mOut.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        mOut.write((int) value);
+    }
+
+    private void fixed32(int value) {
+        mOut.write(value);
+        mOut.write(value >> 8);
+        mOut.write(value >> 16);
+        mOut.write(value >> 24);
+    }
+
+    /** MonkeyEventRecorder.zigzag(), which can't be used off the device. */
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+}
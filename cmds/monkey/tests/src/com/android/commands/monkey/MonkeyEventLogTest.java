@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Random;
+
+public class MonkeyEventLogTest {
+    private static final int EVENT_COUNT = 200000;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("monkey", ".mkev");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        // A long run of every record type, as a --record-events run would write.
+        Random random = new Random(1);
+        MonkeyEventLogBuilder builder = new MonkeyEventLogBuilder();
+        while (builder.getRecords().size() < EVENT_COUNT) {
+            switch (random.nextInt(6)) {
+                case 0: {
+                    long down = builder.getNow() + 1;
+                    float x = random.nextInt(1080);
+                    float y = random.nextInt(1920);
+                    builder.touch(1, MonkeyEventGenerator.ACTION_DOWN, down, x, y);
+                    for (int i = random.nextInt(10); i > 0; i--) {
+                        x += random.nextFloat() * 10;
+                        builder.touch(random.nextInt(20), MonkeyEventGenerator.ACTION_MOVE,
+                                down, x, y, x + 100, y + 0.5f);
+                    }
+                    builder.touch(2, MonkeyEventGenerator.ACTION_UP, down, x, y);
+                    break;
+                }
+                case 1: {
+                    int code = 1 + random.nextInt(200);
+                    long down = builder.getNow() + 3;
+                    builder.key(3, MonkeyEventGenerator.ACTION_DOWN, code, down);
+                    builder.key(random.nextInt(100000), MonkeyEventGenerator.ACTION_UP, code,
+                            down);
+                    break;
+                }
+                case 2:
+                    builder.trackball(0, MonkeyEventGenerator.ACTION_MOVE, -1,
+                            random.nextInt(10) - 5, random.nextInt(10) - 5);
+                    break;
+                case 3:
+                    builder.rotation(5, random.nextInt(4), random.nextBoolean());
+                    break;
+                case 4:
+                    builder.activity(7, "com.example.app" + random.nextInt(3), ".Main\u00e9");
+                    break;
+                default:
+                    if (random.nextBoolean()) {
+                        builder.flip(1, random.nextBoolean());
+                    } else {
+                        builder.permission(1, "com.example.app", "android.permission.CAMERA");
+                    }
+                    break;
+            }
+        }
+        List<byte[]> written = builder.getRecords();
+        MonkeyEventLog.writeRecords(mFile, written);
+
+        List<byte[]> read = MonkeyEventLog.readRecords(mFile);
+        assertEquals(written.size(), read.size());
+        for (int i = 0; i < written.size(); i++) {
+            assertArrayEquals("record " + i, written.get(i), read.get(i));
+        }
+
+        // And a second pass through the file changes nothing.
+        File copy = File.createTempFile("monkey", ".mkev");
+        try {
+            MonkeyEventLog.writeRecords(copy, read);
+            assertEquals(mFile.length(), copy.length());
+            assertEquals(read.size(), MonkeyEventLog.readRecords(copy).size());
+        } finally {
+            copy.delete();
+        }
+    }
+
+    @Test
+    public void testParse() throws IOException {
+        MonkeyEventLogBuilder builder = new MonkeyEventLogBuilder();
+        builder.touch(0, MonkeyEventGenerator.ACTION_DOWN, 1000, 12.5f, 700f)
+                .touch(16, MonkeyEventGenerator.ACTION_POINTER_DOWN | (1 << 8), 1000,
+                        13f, 701f, 300f, 400f)
+                .key(300, MonkeyEventGenerator.ACTION_UP, MonkeyEventGenerator.KEYCODE_BACK, 1200)
+                .rotation(1, 3, true)
+                .activity(2, "com.example", "com.example.Main")
+                .flip(1, true);
+        MonkeyEventLog.writeRecords(mFile, builder.getRecords());
+        List<byte[]> records = MonkeyEventLog.readRecords(mFile);
+
+        MonkeyEventLog.Record r = MonkeyEventLog.parse(records.get(0));
+        assertEquals(MonkeyEventLog.TYPE_TOUCH, r.type);
+        assertEquals(MonkeyEventGenerator.ACTION_DOWN, r.action);
+        assertEquals(1, r.pointerCount);
+        assertEquals(12.5f, r.x, 0);
+        assertEquals(700f, r.y, 0);
+
+        r = MonkeyEventLog.parse(records.get(1));
+        assertEquals(16, r.delta);
+        assertEquals(MonkeyEventGenerator.ACTION_POINTER_DOWN | (1 << 8), r.action);
+        assertEquals(2, r.pointerCount);
+
+        r = MonkeyEventLog.parse(records.get(2));
+        assertEquals(MonkeyEventLog.TYPE_KEY, r.type);
+        assertEquals(300, r.delta);
+        assertEquals(MonkeyEventGenerator.KEYCODE_BACK, r.value);
+
+        assertEquals(3, MonkeyEventLog.parse(records.get(3)).value);
+        assertEquals("com.example/com.example.Main",
+                MonkeyEventLog.parse(records.get(4)).component);
+        assertEquals("flip open", MonkeyEventLog.describe(records.get(5)));
+    }
+
+    @Test
+    public void testHistoricalSamples() throws IOException {
+        MonkeyEventLogBuilder builder = new MonkeyEventLogBuilder();
+        builder.touch(0, MonkeyEventGenerator.ACTION_DOWN, 1000, 10f, 20f)
+                .coalescedMove(30, 1000, new long[] { 1008, 1016, 1024 },
+                        new float[] { 11f, 21f, 13f, 23f, 16f, 26f, 20f, 30f })
+                .touch(2, MonkeyEventGenerator.ACTION_UP, 1000, 20f, 30f);
+        MonkeyEventLog.writeRecords(mFile, builder.getRecords());
+        List<byte[]> records = MonkeyEventLog.readRecords(mFile);
+        assertEquals(3, records.size());
+
+        MonkeyEventLog.Record r = MonkeyEventLog.parse(records.get(1));
+        assertEquals(MonkeyEventGenerator.ACTION_MOVE, r.action);
+        assertEquals(1, r.pointerCount);
+        assertEquals(3, r.historySize);
+        assertEquals(20f, r.x, 0);
+        assertEquals(0, MonkeyEventLog.parse(records.get(2)).historySize);
+        assertEquals("touch action=2 x=20.0 y=30.0 +3 historical",
+                MonkeyEventLog.describe(records.get(1)));
+        // The samples belong to the gesture.
+        assertEquals(1, MonkeyEventLog.groupGestures(records).size());
+    }
+
+    @Test
+    public void testVersion1LogIsUpgraded() throws IOException {
+        MonkeyEventLogBuilder builder = new MonkeyEventLogBuilder();
+        builder.touch(0, MonkeyEventGenerator.ACTION_DOWN, 1000, 10f, 20f)
+                .rotation(5, 1, false)
+                .trackball(5, MonkeyEventGenerator.ACTION_MOVE, -1, 1f, -1f);
+        List<byte[]> current = builder.getRecords();
+
+        // Version 1 motion records end with the pointers.
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        log.write(new byte[] { 0x56, 0x45, 0x4b, 0x4d, 1 });
+        log.write(current.get(0), 0, current.get(0).length - 1);
+        log.write(current.get(1));
+        log.write(current.get(2), 0, current.get(2).length - 1);
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            log.writeTo(out);
+        } finally {
+            out.close();
+        }
+
+        List<byte[]> read = MonkeyEventLog.readRecords(mFile);
+        assertEquals(current.size(), read.size());
+        for (int i = 0; i < current.size(); i++) {
+            assertArrayEquals("record " + i, current.get(i), read.get(i));
+        }
+    }
+
+    @Test
+    public void testTruncatedLogIsRejected() throws IOException {
+        MonkeyEventLogBuilder builder = new MonkeyEventLogBuilder();
+        builder.touch(0, MonkeyEventGenerator.ACTION_DOWN, 1000, 1f, 2f)
+                .touch(5, MonkeyEventGenerator.ACTION_UP, 1000, 1f, 2f);
+        MonkeyEventLog.writeRecords(mFile, builder.getRecords());
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(file.length() - 3);
+        } finally {
+            file.close();
+        }
+        try {
+            MonkeyEventLog.readRecords(mFile);
+            fail("read a truncated log");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+public class MonkeyEventModelTest {
+    private static final int SIZE = 300;
+    private static final int GESTURES = 4000;
+    private static final int DRAWS = 20000;
+    private static final double TOLERANCE = 0.02;
+
+    // The gestures of the session: three keys and a drag out of the top left
+    // region of a 3x3 grid.
+    private static final int[] KEYS = { 4, 82, 19 };
+    private static final int DRAG = 3;
+    private static final int KINDS = 4;
+
+    /** The chance of each gesture after each gesture. */
+    private static final double[][] TRANSITIONS = {
+        { 0.1, 0.6, 0.2, 0.1 },
+        { 0.5, 0.1, 0.1, 0.3 },
+        { 0.3, 0.3, 0.3, 0.1 },
+        { 0.2, 0.2, 0.5, 0.1 },
+    };
+    /** The chance a drag ends in the middle region rather than the bottom right one. */
+    private static final double DRAG_TO_MIDDLE = 0.7;
+
+    private static final MonkeyDisplaySize DISPLAY = new MonkeyDisplaySize() {
+        public int getWidth() {
+            return SIZE;
+        }
+
+        public int getHeight() {
+            return SIZE;
+        }
+    };
+
+    private static final MonkeyClock CLOCK = new MonkeyClock() {
+        private long mNow = 1000;
+
+        public long uptimeMillis() {
+            return mNow++;
+        }
+    };
+
+    private File mLog;
+    private File mModel;
+
+    // What the session held: gesture transitions and where the drags ended.
+    private final long[][] mTransitions = new long[KINDS][KINDS];
+    private long mDragsToMiddle;
+    private long mDrags;
+
+    @Before
+    public void setUp() throws IOException {
+        mLog = File.createTempFile("monkey", ".mkev");
+        mModel = File.createTempFile("monkey", ".mkmm");
+        writeSession(new Random(1));
+    }
+
+    @After
+    public void tearDown() {
+        mLog.delete();
+        mModel.delete();
+    }
+
+    private static int draw(double[] chances, Random random) {
+        double r = random.nextDouble();
+        for (int i = 0; i < chances.length - 1; i++) {
+            r -= chances[i];
+            if (r < 0) {
+                return i;
+            }
+        }
+        return chances.length - 1;
+    }
+
+    /**
+     * Write an event log of one session walking TRANSITIONS, counting what it holds.
+     */
+    private void writeSession(Random random) throws IOException {
+        MonkeyEventLogBuilder builder = new MonkeyEventLogBuilder();
+        int gesture = random.nextInt(KINDS);
+        for (int i = 0; i < GESTURES; i++) {
+            long down = builder.getNow() + 200;
+            if (gesture == DRAG) {
+                float x = 20 + random.nextInt(60);
+                float y = 20 + random.nextInt(60);
+                boolean middle = random.nextDouble() < DRAG_TO_MIDDLE;
+                float endX = (middle ? 120 : 220) + random.nextInt(60);
+                float endY = (middle ? 120 : 220) + random.nextInt(60);
+                builder.touch(200, MonkeyEventGenerator.ACTION_DOWN, down, x, y);
+                builder.touch(50, MonkeyEventGenerator.ACTION_MOVE, down, endX, endY);
+                builder.touch(50, MonkeyEventGenerator.ACTION_UP, down, endX, endY);
+                mDrags++;
+                if (middle) {
+                    mDragsToMiddle++;
+                }
+            } else {
+                builder.key(200, MonkeyEventGenerator.ACTION_DOWN, KEYS[gesture], down);
+                builder.key(50, MonkeyEventGenerator.ACTION_UP, KEYS[gesture], down);
+            }
+            if (i < GESTURES - 1) {
+                int next = draw(TRANSITIONS[gesture], random);
+                mTransitions[gesture][next]++;
+                gesture = next;
+            }
+        }
+        MonkeyEventLog.writeRecords(mLog, builder.getRecords());
+    }
+
+    private MonkeyEventModel trainAndLoad() throws IOException {
+        MonkeyModelTrainer trainer = new MonkeyModelTrainer(1, 3, 3, 10000);
+        trainer.addFile(mLog, SIZE, SIZE);
+        assertEquals(1, trainer.getSessions());
+        assertEquals(GESTURES, trainer.getGestures());
+        assertEquals(mDrags, trainer.getGestureCount(MonkeyEventModel.GESTURE_DRAG));
+        trainer.build(1).save(mModel);
+        return MonkeyEventModel.load(mModel);
+    }
+
+    /**
+     * @return which of the session's gestures a symbol of the model is
+     */
+    private static int kindOf(MonkeyEventModel model, int index) {
+        int symbol = model.getSymbol(index);
+        if (MonkeyEventModel.getGesture(symbol) == MonkeyEventModel.GESTURE_DRAG) {
+            assertEquals(0, MonkeyEventModel.getDetail(symbol));
+            return DRAG;
+        }
+        assertEquals(MonkeyEventModel.GESTURE_KEY, MonkeyEventModel.getGesture(symbol));
+        for (int i = 0; i < KEYS.length; i++) {
+            if (KEYS[i] == MonkeyEventModel.getDetail(symbol)) {
+                return i;
+            }
+        }
+        throw new AssertionError("unexpected symbol " + model.describeSymbol(index));
+    }
+
+    /**
+     * Check that the drawn counts of each gesture after each gesture are
+     * within TOLERANCE of the trained frequencies.
+     */
+    private void assertMatchesTraining(long[][] drawn) {
+        for (int from = 0; from < KINDS; from++) {
+            long trained = 0;
+            long total = 0;
+            for (int to = 0; to < KINDS; to++) {
+                trained += mTransitions[from][to];
+                total += drawn[from][to];
+            }
+            assertTrue("no draws after " + from, total > 0);
+            for (int to = 0; to < KINDS; to++) {
+                assertEquals(from + " -> " + to, (double) mTransitions[from][to] / trained,
+                        (double) drawn[from][to] / total, TOLERANCE);
+            }
+        }
+    }
+
+    @Test
+    public void testSavedModelLoadsTheSame() throws IOException {
+        MonkeyEventModel model = trainAndLoad();
+        assertEquals(1, model.getOrder());
+        assertEquals(3, model.getColumns());
+        assertEquals(3, model.getRows());
+        assertEquals(KINDS, model.getSymbolCount());
+        assertEquals(0, model.getActivityCount());
+        // The plain frequencies, the start of the session and one state per gesture.
+        assertEquals(1 + 1 + KINDS, model.getStateCount());
+
+        // Writing the loaded model out again gives the same file.
+        byte[] saved = readFile(mModel);
+        File copy = File.createTempFile("monkey", ".mkmm");
+        try {
+            model.save(copy);
+            assertArrayEquals(saved, readFile(copy));
+        } finally {
+            copy.delete();
+        }
+    }
+
+    @Test
+    public void testSamplingMatchesTraining() throws IOException {
+        MonkeyEventModel model = trainAndLoad();
+        Random random = new Random(2);
+        long[][] drawn = new long[KINDS][KINDS];
+        int[] history = new int[MonkeyEventModel.MAX_ORDER];
+        for (int index = 0; index < model.getSymbolCount(); index++) {
+            int from = kindOf(model, index);
+            history[0] = index + 2;
+            for (int i = 0; i < DRAWS; i++) {
+                drawn[from][kindOf(model, model.nextSymbol(0, history, random))]++;
+            }
+        }
+        assertMatchesTraining(drawn);
+
+        // The drag's end region, and the hold times, come from their own tables.
+        int drag = -1;
+        for (int index = 0; index < model.getSymbolCount(); index++) {
+            if (kindOf(model, index) == DRAG) {
+                drag = index;
+            } else {
+                assertEquals(-1, model.endRegion(index, random));
+            }
+        }
+        long toMiddle = 0;
+        for (int i = 0; i < DRAWS; i++) {
+            int end = model.endRegion(drag, random);
+            assertTrue("end region " + end, end == 4 || end == 8);
+            if (end == 4) {
+                toMiddle++;
+            }
+        }
+        assertEquals((double) mDragsToMiddle / mDrags, (double) toMiddle / DRAWS, TOLERANCE);
+        for (int i = 0; i < 100; i++) {
+            // Every key was held 50ms, which is in the 32-63ms bucket.
+            long hold = model.holdMillis(MonkeyEventModel.GESTURE_KEY, random);
+            assertTrue("hold " + hold, hold >= 32 && hold < 64);
+        }
+    }
+
+    @Test
+    public void testGeneratorFollowsTheModel() throws IOException {
+        MonkeyEventModel model = trainAndLoad();
+        MonkeyModelGenerator generator = new MonkeyModelGenerator(model, new int[0], 1,
+                DISPLAY, CLOCK, new Random(3));
+        RecordingEventSink sink = new RecordingEventSink(true);
+        for (int i = 0; i < DRAWS; i++) {
+            generator.generateEvents(sink);
+        }
+
+        // Turn the events back into gestures.
+        long[][] drawn = new long[KINDS][KINDS];
+        int last = -1;
+        for (RecordingEventSink.Event e : sink.getEvents()) {
+            int kind = -1;
+            if (e.kind == RecordingEventSink.KIND_TOUCH
+                    && e.action == MonkeyEventGenerator.ACTION_DOWN) {
+                assertTrue(Arrays.toString(e.xy), e.xy[0] < SIZE / 3 && e.xy[1] < SIZE / 3);
+                kind = DRAG;
+            } else if (e.kind == RecordingEventSink.KIND_KEY
+                    && e.action == MonkeyEventGenerator.ACTION_DOWN) {
+                for (int i = 0; i < KEYS.length; i++) {
+                    if (KEYS[i] == e.value) {
+                        kind = i;
+                    }
+                }
+                assertTrue("key " + e.value, kind >= 0);
+            } else {
+                continue;
+            }
+            if (last >= 0) {
+                drawn[last][kind]++;
+            }
+            last = kind;
+        }
+        assertMatchesTraining(drawn);
+    }
+
+    @Test
+    public void testNotAModel() throws IOException {
+        FileOutputStream out = new FileOutputStream(mModel);
+        try {
+            out.write("this is not a model".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        assertLoadFails();
+    }
+
+    @Test
+    public void testUnsupportedVersion() throws IOException {
+        trainAndLoad();
+        RandomAccessFile file = new RandomAccessFile(mModel, "rw");
+        try {
+            // The version follows the four byte magic.
+            file.seek(4);
+            file.write(MonkeyEventModel.VERSION + 1);
+        } finally {
+            file.close();
+        }
+        assertLoadFails();
+    }
+
+    @Test
+    public void testTruncatedModel() throws IOException {
+        trainAndLoad();
+        byte[] saved = readFile(mModel);
+        for (int length = 0; length < saved.length; length++) {
+            FileOutputStream out = new FileOutputStream(mModel);
+            try {
+                out.write(saved, 0, length);
+            } finally {
+                out.close();
+            }
+            assertLoadFails();
+        }
+    }
+
+    private void assertLoadFails() {
+        try {
+            MonkeyEventModel.load(mModel);
+            fail("loaded a malformed model of " + mModel.length() + " bytes");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class MonkeyFarmTest {
+    private static final Pattern EVENT = Pattern.compile("\"event\":\"([a-z_]+)\"");
+    private static final Pattern DEVICE = Pattern.compile("\"device\":\"([^\"]+)\"");
+    private static final Pattern SHARD = Pattern.compile("\"shard\":(\\d+)");
+    private static final Pattern SEED = Pattern.compile("\"seed\":(\\d+)");
+    private static final Pattern DETAIL = Pattern.compile("\"detail\":\"([^\"]*)\"");
+
+    private static final List<String> PACKAGES = Arrays.asList("com.example.a", "com.example.b");
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    @Test
+    public void testLostDeviceWorkMovesToTheOthers() throws Exception {
+        MonkeyFakeDevice lost = new MonkeyFakeDevice("lost", 0, 0, 2, 5);
+        List<MonkeyFakeDevice> devices = Arrays.asList(
+                new MonkeyFakeDevice("dev0", 0, 0, -1, 5), lost,
+                new MonkeyFakeDevice("dev2", 0, 0, -1, 5));
+        File out = mTemp.newFolder();
+        MonkeyFarm farm = new MonkeyFarm(devices, Collections.<String>emptyList(), 100, 3,
+                out, null);
+        List<MonkeyFarm.Shard> shards = MonkeyFarm.makeShards(1, 30, PACKAGES, false);
+
+        assertEquals(0, farm.run(shards));
+        assertEquals(2, lost.getSessions());
+        int sessions = 0;
+        for (MonkeyFakeDevice device : devices) {
+            sessions += device.getSessions();
+        }
+        assertEquals(30, sessions);
+
+        List<String> index = readIndex(out);
+        assertEquals("farm_start", field(EVENT, index.get(0)));
+        assertEquals("farm_end", field(EVENT, index.get(index.size() - 1)));
+        assertEquals("30 completed, 0 not", field(DETAIL, index.get(index.size() - 1)));
+
+        // Every shard ends once; the one that was on the lost device ends elsewhere.
+        Map<String, String> endedOn = new HashMap<String, String>();
+        String movedShard = null;
+        for (String line : index) {
+            String event = field(EVENT, line);
+            if (event.equals("shard_end")) {
+                String previous = endedOn.put(field(SHARD, line), field(DEVICE, line));
+                assertEquals(null, previous);
+            } else if (event.equals("device_lost")) {
+                assertEquals("lost", field(DEVICE, line));
+                movedShard = field(SHARD, line);
+            }
+        }
+        assertEquals(30, endedOn.size());
+        assertTrue(movedShard != null);
+        assertTrue(!endedOn.get(movedShard).equals("lost"));
+        assertTrue(farm.toJson(), farm.toJson().contains("\"lostDevices\":[\"lost\"]"));
+    }
+
+    @Test
+    public void testIndexHasCrashesAndReports() throws Exception {
+        List<MonkeyFakeDevice> devices = Arrays.asList(
+                new MonkeyFakeDevice("dev0", 0.2, 0.1, -1, 0),
+                new MonkeyFakeDevice("dev1", 0.2, 0.1, -1, 0));
+        File out = mTemp.newFolder();
+        MonkeyFarm farm = new MonkeyFarm(devices, Arrays.asList("--throttle", "10"), 500, 1,
+                out, null);
+        assertEquals(0, farm.run(MonkeyFarm.makeShards(100, 139, PACKAGES, true)));
+
+        int crashes = 0;
+        int anrs = 0;
+        int pulled = 0;
+        for (String line : readIndex(out)) {
+            String event = field(EVENT, line);
+            if (event.equals("crash")) {
+                crashes++;
+            } else if (event.equals("anr")) {
+                anrs++;
+            } else if (event.equals("report_pulled")) {
+                pulled++;
+                File dir = new File(new File(out, field(DEVICE, line)), String.format("%05d_seed%s",
+                        Integer.parseInt(field(SHARD, line)), field(SEED, line)));
+                assertTrue(line, new File(dir, field(DETAIL, line)).isFile());
+            } else if (event.equals("shard_start")) {
+                assertTrue(line, field(DETAIL, line).contains("--throttle 10"));
+            }
+        }
+        assertTrue(crashes > 0);
+        assertTrue(anrs > 0);
+        assertEquals(crashes + anrs, pulled);
+        String json = farm.toJson();
+        assertTrue(json, json.contains("\"completed\":80,"));
+        assertTrue(json, json.contains("\"crashes\":" + crashes + ","));
+        assertTrue(json, json.contains("\"anrs\":" + anrs + ","));
+        assertTrue(json, json.contains("\"reports\":" + pulled + ","));
+    }
+
+    @Test
+    public void testShardsFailWhenNoDevicesAreLeft() throws Exception {
+        List<MonkeyFakeDevice> devices = Arrays.asList(
+                new MonkeyFakeDevice("dev0", 0, 0, 1, 0),
+                new MonkeyFakeDevice("dev1", 0, 0, 1, 0));
+        File out = mTemp.newFolder();
+        MonkeyFarm farm = new MonkeyFarm(devices, Collections.<String>emptyList(), 100, 3,
+                out, null);
+        assertEquals(8, farm.run(MonkeyFarm.makeShards(0, 9, PACKAGES, false)));
+        List<String> index = readIndex(out);
+        assertEquals("2 completed, 8 not", field(DETAIL, index.get(index.size() - 1)));
+    }
+
+    private static List<String> readIndex(File out) throws IOException {
+        return Files.readAllLines(new File(out, "index.jsonl").toPath(), StandardCharsets.UTF_8);
+    }
+
+    private static String field(Pattern pattern, String line) {
+        Matcher m = pattern.matcher(line);
+        return m.find() ? m.group(1) : null;
+    }
+}
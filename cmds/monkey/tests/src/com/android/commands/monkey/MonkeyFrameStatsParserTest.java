@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+
+public class MonkeyFrameStatsParserTest {
+    private static final String HEADER = "Flags,IntendedVsync,Vsync,OldestInputEvent,"
+            + "NewestInputEvent,HandleInputStart,AnimationStart,PerformTraversalsStart,"
+            + "DrawStart,SyncQueued,SyncStart,IssueDrawCommandsStart,SwapBuffers,"
+            + "FrameCompleted,DequeueBufferDuration,QueueBufferDuration,GpuCompleted,";
+
+    /** The tail of "dumpsys gfxinfo com.example.app framestats", in the layout gfxinfo prints. */
+    private static final String DUMP = ""
+            + "Applications Graphics Acceleration Info:\n"
+            + "Uptime: 2416012 Realtime: 2416012\n"
+            + "\n"
+            + "** Graphics info for pid 4242 [com.example.app] **\n"
+            + "\n"
+            + "Stats since: 2415800000000ns\n"
+            + "Total frames rendered: 7\n"
+            + "Janky frames: 3 (42.86%)\n"
+            + "\n"
+            + "Profile data in ms:\n"
+            + "\n"
+            + "\tcom.example.app/com.example.app.MainActivity/android.view.ViewRootImpl@5f2b3c1"
+            + " (visibility=0)\n"
+            + "---PROFILEDATA---\n"
+            + HEADER + "\n"
+            // The first frame of the window is flagged and left out.
+            + "1,2415816437000,2415816447000,2415813437000,2415814437000,2415816837000,"
+            + "2415816937000,2415817337000,2415817937000,2415818437000,2415818537000,"
+            + "2415818737000,2415855937000,2415856437000,120000,60000,2415856337000,\n"
+            + "0,2415833103667,2415833113667,2415830103667,2415831103667,2415833503667,"
+            + "2415833603667,2415834003667,2415834603667,2415835103667,2415835203667,"
+            + "2415835403667,2415840603667,2415841103667,120000,60000,2415841003667,\n"
+            + "0,2415849770334,2415849780334,2415846770334,2415847770334,2415850170334,"
+            + "2415850270334,2415850670334,2415851270334,2415851770334,2415851870334,"
+            + "2415852070334,2415861770334,2415862270334,120000,60000,2415862170334,\n"
+            + "0,2415866437001,2415866447001,2415863437001,2415864437001,2415866837001,"
+            + "2415866937001,2415867337001,2415867937001,2415868437001,2415868537001,"
+            + "2415868737001,2415882603668,2415883103668,120000,60000,2415883003668,\n"
+            + "0,2415883103668,2415883113668,2415880103668,2415881103668,2415883503668,"
+            + "2415883603668,2415884003668,2415884603668,2415885103668,2415885203668,"
+            + "2415885403668,2415899270336,2415899770336,120000,60000,2415899670336,\n"
+            + "0,2415899770335,2415899780335,2415896770335,2415897770335,2415900170335,"
+            + "2415900270335,2415900670335,2415901270335,2415901770335,2415901870335,"
+            + "2415902070335,2415932670335,2415933170335,120000,60000,2415933070335,\n"
+            + "0,2415916437002,2415916447002,2415913437002,2415914437002,2415916837002,"
+            + "2415916937002,2415917337002,2415917937002,2415918437002,2415918537002,"
+            + "2415918737002,2415925037002,2415925537002,120000,60000,2415925437002,\n"
+            + "---PROFILEDATA---\n"
+            + "\n"
+            + "\tcom.example.app/android.view.ViewRootImpl@91d0e7a (visibility=8)\n"
+            + "---PROFILEDATA---\n"
+            + HEADER + "\n"
+            + "---PROFILEDATA---\n"
+            + "\n"
+            + "View hierarchy:\n"
+            + "\n"
+            + "  com.example.app/com.example.app.MainActivity/android.view.ViewRootImpl@5f2b3c1\n"
+            + "  57 views, 62.13 kB of display lists\n"
+            + "\n"
+            + "Total ViewRootImpl: 2\n";
+
+    @Test
+    public void testParseDump() throws IOException {
+        List<MonkeyFrameStatsParser.Window> windows =
+                MonkeyFrameStatsParser.parse(new BufferedReader(new StringReader(DUMP)));
+        // The second window has no frames.
+        assertEquals(1, windows.size());
+        MonkeyFrameStatsParser.Window window = windows.get(0);
+        assertEquals("com.example.app/com.example.app.MainActivity", window.name);
+        assertEquals(6, window.count);
+        assertEquals(2415833103667L, window.vsyncs[0]);
+        assertEquals(2415916437002L, window.vsyncs[5]);
+        assertArrayEquals(new long[] { 8000000, 12500000, 16666667, 16666668, 33400000, 9100000 },
+                Arrays.copyOf(window.durations, window.count));
+
+        int janky = 0;
+        for (int i = 0; i < window.count; i++) {
+            if (MonkeyFrameStatsParser.isJanky(window.durations[i])) {
+                janky++;
+            }
+        }
+        assertEquals(2, janky);
+    }
+
+    @Test
+    public void testJankThreshold() {
+        // One 60 Hz vsync is 16.67 ms; a frame is janky once it takes longer.
+        assertEquals(1000000000L / 60, MonkeyFrameStatsParser.JANK_NANOS, 1);
+        assertFalse(MonkeyFrameStatsParser.isJanky(16000000));
+        assertFalse(MonkeyFrameStatsParser.isJanky(MonkeyFrameStatsParser.JANK_NANOS));
+        assertTrue(MonkeyFrameStatsParser.isJanky(MonkeyFrameStatsParser.JANK_NANOS + 1));
+        assertTrue(MonkeyFrameStatsParser.isJanky(33333333));
+    }
+
+    @Test
+    public void testColumnsByNameAndBadRows() throws IOException {
+        String dump = "com.example.app/com.example.app.Other/android.view.ViewRootImpl@1"
+                + " (visibility=0)\n"
+                + "---PROFILEDATA---\n"
+                + "FrameCompleted,Flags,NewColumn,IntendedVsync\n"
+                + "3000,0,7,1000\n"
+                + "not,a,row,at all\n"
+                + "1500,0,7,2000\n"       // completed before the vsync
+                + "9000,0,7\n"            // too short
+                + "12000,0,7,5000\n"
+                + "---PROFILEDATA---\n";
+        List<MonkeyFrameStatsParser.Window> windows =
+                MonkeyFrameStatsParser.parse(new BufferedReader(new StringReader(dump)));
+        assertEquals(1, windows.size());
+        MonkeyFrameStatsParser.Window window = windows.get(0);
+        assertEquals("com.example.app/com.example.app.Other", window.name);
+        assertEquals(2, window.count);
+        assertEquals(2000, window.durations[0]);
+        assertEquals(7000, window.durations[1]);
+    }
+
+    @Test
+    public void testParseRow() {
+        long[] values = new long[3];
+        assertEquals(3, MonkeyFrameStatsParser.parseRow("1, 22,333,", values));
+        assertArrayEquals(new long[] { 1, 22, 333 }, values);
+        assertEquals(2, MonkeyFrameStatsParser.parseRow("4,5", values));
+        assertEquals(-1, MonkeyFrameStatsParser.parseRow("4,,5", values));
+        assertEquals(-1, MonkeyFrameStatsParser.parseRow("4,x", values));
+    }
+}
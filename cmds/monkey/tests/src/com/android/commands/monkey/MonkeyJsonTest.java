@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class MonkeyJsonTest {
+    @Test
+    public void testEscape() {
+        assertEquals("com.example.app", MonkeyJson.escape("com.example.app"));
+        assertEquals("a \\\"quoted\\\" C:\\\\path", MonkeyJson.escape("a \"quoted\" C:\\path"));
+        assertEquals("line\\u000aend\\u0009tab\\u0000", MonkeyJson.escape("line\nend\ttab\0"));
+        // Anything from space up goes through as it is.
+        assertEquals("\u00e9\u4e2d/", MonkeyJson.escape("\u00e9\u4e2d/"));
+    }
+}
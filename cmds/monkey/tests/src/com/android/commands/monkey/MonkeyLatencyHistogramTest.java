@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class MonkeyLatencyHistogramTest {
+    private static String buckets(MonkeyLatencyHistogram histogram) {
+        StringBuilder sb = new StringBuilder();
+        histogram.appendBuckets(sb);
+        return sb.toString();
+    }
+
+    @Test
+    public void testEmpty() {
+        MonkeyLatencyHistogram histogram = new MonkeyLatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMeanMicros());
+        assertEquals(0, histogram.percentile(0.99));
+        assertEquals("[0]", buckets(histogram));
+    }
+
+    @Test
+    public void testBuckets() {
+        MonkeyLatencyHistogram histogram = new MonkeyLatencyHistogram();
+        // Bucket 0 holds 0, bucket i holds 2^(i-1) to 2^i - 1.
+        for (long micros : new long[] {0, 1, 2, 3, 4, 7, 8, 1000}) {
+            histogram.record(micros);
+        }
+        assertEquals("[1,1,2,2,1,0,0,0,0,0,1]", buckets(histogram));
+        assertEquals(8, histogram.getCount());
+        assertEquals(1025 / 8, histogram.getMeanMicros());
+        assertEquals(1000, histogram.getMaxMicros());
+
+        // Everything past the last bucket lands in it.
+        histogram.record(Long.MAX_VALUE / 2);
+        assertEquals(MonkeyLatencyHistogram.BUCKET_COUNT,
+                buckets(histogram).split(",").length);
+    }
+
+    @Test
+    public void testPercentile() {
+        MonkeyLatencyHistogram histogram = new MonkeyLatencyHistogram();
+        for (int i = 0; i < 90; i++) {
+            histogram.record(100);
+        }
+        for (int i = 0; i < 9; i++) {
+            histogram.record(5000);
+        }
+        histogram.record(20000);
+        // The upper bound of the bucket holding the fraction...
+        assertEquals(128, histogram.percentile(0.50));
+        assertEquals(128, histogram.percentile(0.90));
+        assertEquals(8192, histogram.percentile(0.99));
+        // ...capped at the largest value seen.
+        assertEquals(20000, histogram.percentile(1.0));
+
+        MonkeyLatencyHistogram small = new MonkeyLatencyHistogram();
+        small.record(5);
+        assertEquals(5, small.percentile(0.50));
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+
+public class MonkeyLeakDetectorTest {
+    private static final double THRESHOLD_KB_PER_MIN = 50;
+    private static final long SAMPLE_MS = 30 * 1000;
+    private static final long TWELVE_HOURS_MS = 12 * 60 * 60 * 1000;
+    private static final String[] ACTIVITIES = {
+        "com.example.app.MainActivity", "com.example.app.ListActivity",
+        "com.example.app.DetailActivity", "com.example.app.SettingsActivity",
+    };
+
+    /** "dumpsys meminfo com.example.app" with an App Summary section. */
+    private static final String MEMINFO = ""
+            + "Applications Memory Usage (in Kilobytes):\n"
+            + "Uptime: 2416012 Realtime: 2416012\n"
+            + "\n"
+            + "** MEMINFO in pid 4242 [com.example.app] **\n"
+            + "                   Pss  Private  Private  SwapPss     Heap     Heap     Heap\n"
+            + "                 Total    Dirty    Clean    Dirty     Size    Alloc     Free\n"
+            + "                ------   ------   ------   ------   ------   ------   ------\n"
+            + "  Native Heap    10468    10408        0        0    20480    14462     6017\n"
+            + "  Dalvik Heap     2343     2284        0        0     9000     4500     4500\n"
+            + "        TOTAL    35210    28024     4184        0    29480    18962    10517\n"
+            + "\n"
+            + " App Summary\n"
+            + "                       Pss(KB)\n"
+            + "                        ------\n"
+            + "           Java Heap:     4840\n"
+            + "         Native Heap:    10408\n"
+            + "                Code:     7520\n"
+            + "               Stack:      112\n"
+            + "            Graphics:     5184\n"
+            + "       Private Other:     1976\n"
+            + "              System:     5170\n"
+            + "\n"
+            + "               TOTAL:    35210       TOTAL SWAP PSS:        0\n";
+
+    private static boolean parse(String meminfo, int[] values) throws IOException {
+        return MonkeyLeakDetector.parseMeminfo(
+                new BufferedReader(new StringReader(meminfo)), values);
+    }
+
+    @Test
+    public void testParseMeminfo() throws Exception {
+        int[] values = new int[MonkeyLeakDetector.VALUE_COUNT];
+        assertTrue(parse(MEMINFO, values));
+        assertArrayEquals(new int[] {35210, 4840, 10408}, values);
+
+        // Newer releases label the total "TOTAL PSS:".
+        assertTrue(parse(MEMINFO.replace("TOTAL:    35210", "TOTAL PSS:    36000"), values));
+        assertEquals(36000, values[MonkeyLeakDetector.PSS]);
+
+        // Releases without an App Summary only have the TOTAL row.
+        String old = MEMINFO.substring(0, MEMINFO.indexOf(" App Summary"));
+        assertTrue(parse(old, values));
+        assertArrayEquals(new int[] {35210, 0, 0}, values);
+
+        // A package that isn't running.
+        assertFalse(parse("No process found for: com.example.app\n", values));
+        assertArrayEquals(new int[] {0, 0, 0}, values);
+    }
+
+    /**
+     * Twelve hours of samples of an app whose monkey moves between its
+     * activities every few samples. Within a visit the PSS rises with garbage
+     * and falls back when it is collected; the baseline of each activity grows
+     * by its leak rate.
+     *
+     * @param leakKbPerMin how fast the baseline of each activity grows
+     * @return the detector the samples were added to
+     */
+    private static MonkeyLeakDetector runTwelveHours(long seed, double[] leakKbPerMin,
+            long[] leakFoundAtMs) {
+        MonkeyLeakDetector detector = new MonkeyLeakDetector(THRESHOLD_KB_PER_MIN);
+        Random random = new Random(seed);
+        int[] sample = new int[MonkeyLeakDetector.VALUE_COUNT];
+        int activity = 0;
+        int visitLeft = 0;
+        for (long t = 0; t < TWELVE_HOURS_MS; t += SAMPLE_MS) {
+            if (visitLeft == 0) {
+                activity = random.nextInt(ACTIVITIES.length);
+                visitLeft = 2 + random.nextInt(5);
+            }
+            visitLeft--;
+            double minutes = t / 60000.0;
+            int baseline = 40000 + activity * 3000 + (int) (leakKbPerMin[activity] * minutes);
+            sample[MonkeyLeakDetector.PSS] = baseline + random.nextInt(6000);
+            sample[MonkeyLeakDetector.JAVA_HEAP] = sample[MonkeyLeakDetector.PSS] / 4;
+            sample[MonkeyLeakDetector.NATIVE_HEAP] = sample[MonkeyLeakDetector.PSS] / 3;
+            // Now and then the app is in the background between visits.
+            String foreground = random.nextInt(20) == 0 ? null : ACTIVITIES[activity];
+            if (detector.addSample("com.example.app", foreground, t, sample)) {
+                leakFoundAtMs[0] = t;
+            }
+        }
+        return detector;
+    }
+
+    @Test
+    public void testLeakingActivityIsFound() {
+        for (long seed = 1; seed <= 5; seed++) {
+            long[] foundAt = {-1};
+            MonkeyLeakDetector detector = runTwelveHours(seed, new double[] {0, 0, 100, 0},
+                    foundAt);
+            assertTrue("seed " + seed, detector.isLeaking("com.example.app"));
+            assertEquals(ACTIVITIES[2], detector.getLeakActivity("com.example.app"));
+            assertEquals(100, detector.getLeakSlope("com.example.app"), 25);
+            // Found well before the end of the run.
+            assertTrue("seed " + seed + " found at " + foundAt[0],
+                    foundAt[0] >= 0 && foundAt[0] < 3 * 60 * 60 * 1000);
+        }
+    }
+
+    @Test
+    public void testSteadyAppIsNotLeaking() {
+        for (long seed = 1; seed <= 5; seed++) {
+            long[] foundAt = {-1};
+            MonkeyLeakDetector detector = runTwelveHours(seed, new double[] {0, 0, 0, 0},
+                    foundAt);
+            assertFalse("seed " + seed, detector.isLeaking("com.example.app"));
+            assertNull(detector.getLeakActivity("com.example.app"));
+            assertEquals(0, detector.getTrend("com.example.app"), 2);
+        }
+    }
+
+    @Test
+    public void testGrowthBelowTheThresholdIsNotALeak() {
+        for (long seed = 1; seed <= 5; seed++) {
+            long[] foundAt = {-1};
+            MonkeyLeakDetector detector = runTwelveHours(seed, new double[] {20, 20, 20, 20},
+                    foundAt);
+            assertFalse("seed " + seed, detector.isLeaking("com.example.app"));
+            // Over twelve hours the overall trend still shows the growth.
+            assertEquals(20, detector.getTrend("com.example.app"), 2);
+        }
+    }
+
+    @Test
+    public void testLeakIsReportedOnce() {
+        MonkeyLeakDetector detector = new MonkeyLeakDetector(THRESHOLD_KB_PER_MIN);
+        int[] sample = new int[MonkeyLeakDetector.VALUE_COUNT];
+        int reports = 0;
+        // Two activities taking turns, one sample per visit, the first
+        // growing 1MB a visit.
+        for (int i = 0; i < 100; i++) {
+            long t = i * 60000L;
+            int activity = i % 2;
+            sample[MonkeyLeakDetector.PSS] = 50000 + (activity == 0 ? i * 512 : 0);
+            if (detector.addSample("com.example.app", ACTIVITIES[activity], t, sample)) {
+                reports++;
+            }
+        }
+        assertEquals(1, reports);
+        assertEquals(ACTIVITIES[0], detector.getLeakActivity("com.example.app"));
+        assertEquals(512, detector.getLeakSlope("com.example.app"), 1);
+    }
+
+    @Test
+    public void testJson() {
+        MonkeyLeakDetector detector = new MonkeyLeakDetector(THRESHOLD_KB_PER_MIN);
+        detector.addSample("com.example.b", null, 0, new int[] {2000, 200, 300});
+        detector.addSample("com.example.a", ACTIVITIES[0], 1000, new int[] {1000, 100, 150});
+        detector.addSample("com.example.a", ACTIVITIES[0], 61000, new int[] {1100, 110, 160});
+        StringBuilder sb = new StringBuilder();
+        detector.appendJson(sb);
+        assertEquals("[{\"name\":\"com.example.a\",\"trendKbPerMin\":100.0,\"leak\":false,"
+                + "\"seconds\":[1,61],\"pssKb\":[1000,1100],\"javaHeapKb\":[100,110],"
+                + "\"nativeHeapKb\":[150,160]},"
+                + "{\"name\":\"com.example.b\",\"trendKbPerMin\":0.0,\"leak\":false,"
+                + "\"seconds\":[0],\"pssKb\":[2000],\"javaHeapKb\":[200],"
+                + "\"nativeHeapKb\":[300]}]", sb.toString());
+        assertArrayEquals(new String[] {
+            "com.example.a samples=2 pss first=1000KB last=1100KB max=1100KB"
+                    + " trend=100.0KB/min",
+            "com.example.b samples=1 pss first=2000KB last=2000KB max=2000KB trend=0.0KB/min",
+        }, detector.summarize());
+    }
+}
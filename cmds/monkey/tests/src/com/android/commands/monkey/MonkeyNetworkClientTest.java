@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.commands.monkey.MonkeyNetworkProtocol.FrameWriter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class MonkeyNetworkClientTest {
+    /**
+     * Stands in for a binary-capable network monkey: it answers the version
+     * check and the switch to binary, keeps every request frame, and replies
+     * with the canned replies queued, or an empty OK once they run out.
+     */
+    private static class FakeMonkey extends Thread {
+        final ServerSocket mServer;
+        final int mVersion;
+        final List<byte[]> mRequests = new ArrayList<byte[]>();
+        final LinkedBlockingQueue<byte[]> mReplies = new LinkedBlockingQueue<byte[]>();
+        // Close the connection once the canned replies have been sent.
+        volatile boolean mCloseAfterReplies;
+
+        FakeMonkey(int version) throws IOException {
+            super("FakeMonkey");
+            mServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            mVersion = version;
+            setDaemon(true);
+            start();
+        }
+
+        int getPort() {
+            return mServer.getLocalPort();
+        }
+
+        /** Queue the bytes to send in reply to the next request. */
+        void reply(byte[] bytes) {
+            mReplies.offer(bytes);
+        }
+
+        synchronized List<byte[]> getRequests() {
+            return new ArrayList<byte[]>(mRequests);
+        }
+
+        @Override
+        public void run() {
+            try (Socket socket = mServer.accept()) {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                if (!readLine(in).equals("getvar monkey.version")) {
+                    return;
+                }
+                out.write(("OK:" + mVersion + "\n").getBytes(StandardCharsets.UTF_8));
+                if (mVersion < MonkeyNetworkProtocol.VERSION) {
+                    return;
+                }
+                readLine(in);
+                out.write("OK\n".getBytes(StandardCharsets.UTF_8));
+
+                DataInputStream frames = new DataInputStream(in);
+                while (true) {
+                    int length = 0;
+                    for (int shift = 0; ; shift += 7) {
+                        int b = frames.readUnsignedByte();
+                        length |= (b & 0x7f) << shift;
+                        if (b < 0x80) {
+                            break;
+                        }
+                    }
+                    byte[] frame = new byte[length];
+                    frames.readFully(frame);
+                    synchronized (this) {
+                        mRequests.add(frame);
+                    }
+                    byte[] reply = mReplies.poll();
+                    if (reply != null) {
+                        out.write(reply);
+                        if (mReplies.isEmpty() && mCloseAfterReplies) {
+                            return;
+                        }
+                    } else {
+                        long requestId = MonkeyNetworkProtocol.readVarint(ByteBuffer.wrap(frame));
+                        ByteBuffer ok = new FrameWriter(requestId, MonkeyNetworkProtocol.STATUS_OK)
+                                .toFrame();
+                        out.write(ok.array(), ok.position(), ok.remaining());
+                    }
+                }
+            } catch (IOException e) {
+                // The client went away.
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            for (int c = in.read(); c != '\n'; c = in.read()) {
+                if (c < 0) {
+                    throw new EOFException();
+                }
+                sb.append((char) c);
+            }
+            return sb.toString();
+        }
+
+        void close() throws IOException {
+            mServer.close();
+        }
+    }
+
+    private FakeMonkey mMonkey;
+
+    @After
+    public void tearDown() throws IOException {
+        if (mMonkey != null) {
+            mMonkey.close();
+        }
+    }
+
+    private MonkeyNetworkClient connect() throws IOException {
+        mMonkey = new FakeMonkey(MonkeyNetworkProtocol.VERSION);
+        return MonkeyNetworkClient.connect("localhost", mMonkey.getPort());
+    }
+
+    private static byte[] frame(FrameWriter writer) {
+        ByteBuffer bytes = writer.toFrame();
+        byte[] frame = new byte[bytes.remaining()];
+        bytes.get(frame);
+        return frame;
+    }
+
+    /** The body of a frame, as nextFrame() returns it. */
+    private static byte[] body(FrameWriter writer) {
+        return writer.toByteArray();
+    }
+
+    @Test
+    public void testEveryRequestIsEncoded() throws IOException {
+        MonkeyNetworkClient monkey = connect();
+        assertEquals(MonkeyNetworkProtocol.VERSION, monkey.getServerVersion());
+        List<byte[]> expected = new ArrayList<byte[]>();
+        int id;
+
+        id = monkey.key(MonkeyNetworkClient.ACTION_DOWN, 82);
+        expected.add(body(new FrameWriter(id, MonkeyNetworkProtocol.OP_KEY)
+                .writeVarint(MonkeyNetworkClient.ACTION_DOWN).writeVarint(82)));
+        id = monkey.touch(MonkeyNetworkClient.ACTION_MOVE, -5, 2000);
+        expected.add(body(new FrameWriter(id, MonkeyNetworkProtocol.OP_TOUCH)
+                .writeVarint(MonkeyNetworkClient.ACTION_MOVE).writeSigned(-5).writeSigned(2000)));
+        id = monkey.trackball(-3, 4);
+        expected.add(body(new FrameWriter(id, MonkeyNetworkProtocol.OP_TRACKBALL)
+                .writeSigned(-3).writeSigned(4)));
+        id = monkey.tap(100, 200);
+        expected.add(body(new FrameWriter(id, MonkeyNetworkProtocol.OP_TAP)
+                .writeSigned(100).writeSigned(200)));
+        id = monkey.press(4);
+        expected.add(body(new FrameWriter(id, MonkeyNetworkProtocol.OP_PRESS).writeVarint(4)));
+        id = monkey.sleep(250);
+        expected.add(body(new FrameWriter(id, MonkeyNetworkProtocol.OP_SLEEP).writeVarint(250)));
+        id = monkey.flip(true);
+        expected.add(body(new FrameWriter(id, MonkeyNetworkProtocol.OP_FLIP).writeVarint(1)));
+        id = monkey.type("h\u00e9llo");
+        expected.add(body(new FrameWriter(id, MonkeyNetworkProtocol.OP_TYPE)
+                .writeString("h\u00e9llo")));
+        id = monkey.wake();
+        expected.add(body(new FrameWriter(id, MonkeyNetworkProtocol.OP_WAKE)));
+        id = monkey.gesture()
+                .touch(MonkeyNetworkClient.ACTION_DOWN, 10, 20)
+                .sleep(16)
+                .key(MonkeyNetworkClient.ACTION_UP, 66)
+                .send();
+        expected.add(body(new FrameWriter(id, MonkeyNetworkProtocol.OP_GESTURE).writeVarint(3)
+                .writeByte(MonkeyNetworkProtocol.OP_TOUCH)
+                .writeVarint(MonkeyNetworkClient.ACTION_DOWN).writeSigned(10).writeSigned(20)
+                .writeByte(MonkeyNetworkProtocol.OP_SLEEP).writeVarint(16)
+                .writeByte(MonkeyNetworkProtocol.OP_KEY)
+                .writeVarint(MonkeyNetworkClient.ACTION_UP).writeVarint(66)));
+        id = monkey.text("getvar build.display");
+        expected.add(body(new FrameWriter(id, MonkeyNetworkProtocol.OP_TEXT)
+                .writeString("getvar build.display")));
+        id = monkey.rootView();
+        expected.add(body(new FrameWriter(id, MonkeyNetworkProtocol.OP_ROOT_VIEW)));
+        id = monkey.parent(1, -2);
+        expected.add(body(new FrameWriter(id, MonkeyNetworkProtocol.OP_PARENT)
+                .writeSigned(1).writeSigned(-2)));
+        id = monkey.children(3, 4);
+        expected.add(body(new FrameWriter(id, MonkeyNetworkProtocol.OP_CHILDREN)
+                .writeSigned(3).writeSigned(4)));
+        id = monkey.viewsWithText("OK");
+        expected.add(body(new FrameWriter(id, MonkeyNetworkProtocol.OP_VIEWS_WITH_TEXT)
+                .writeString("OK")));
+        id = monkey.viewInfo(5, 6);
+        expected.add(body(new FrameWriter(id, MonkeyNetworkProtocol.OP_VIEW_INFO)
+                .writeSigned(5).writeSigned(6)));
+        id = monkey.dumpTree(42, true);
+        expected.add(body(new FrameWriter(id, MonkeyNetworkProtocol.OP_DUMP_TREE)
+                .writeVarint(42).writeVarint(MonkeyNetworkProtocol.DUMP_DEFLATE)));
+
+        // Waiting for the last reply reads all the ones before it, in order.
+        monkey.waitFor(id).check();
+        for (int i = 1; i < id; i++) {
+            MonkeyNetworkClient.Reply reply = monkey.waitFor(i);
+            assertEquals(i, reply.requestId);
+            assertTrue(reply.ok);
+        }
+        monkey.close();
+        expected.add(body(new FrameWriter(id + 1, MonkeyNetworkProtocol.OP_DONE)));
+
+        List<byte[]> requests = mMonkey.getRequests();
+        assertEquals(expected.size(), requests.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals("request " + (i + 1), expected.get(i), requests.get(i));
+        }
+    }
+
+    @Test
+    public void testRepliesAreDecoded() throws IOException {
+        MonkeyNetworkClient monkey = connect();
+        mMonkey.reply(frame(new FrameWriter(1, MonkeyNetworkProtocol.STATUS_OK)
+                .writeSigned(-1).writeSigned(77)));
+        mMonkey.reply(frame(new FrameWriter(2, MonkeyNetworkProtocol.STATUS_OK)
+                .writeVarint(2).writeSigned(-1).writeSigned(78).writeSigned(-1).writeSigned(79)));
+        mMonkey.reply(frame(new FrameWriter(3, MonkeyNetworkProtocol.STATUS_OK)
+                .writeString("android.widget.Button").writeString("OK")
+                .writeSigned(-10).writeSigned(20).writeSigned(300).writeSigned(40)
+                .writeVarint(MonkeyNetworkProtocol.VIEW_ENABLED
+                        | MonkeyNetworkProtocol.VIEW_CLICKABLE)
+                .writeVarint(0)));
+        mMonkey.reply(frame(new FrameWriter(4, MonkeyNetworkProtocol.STATUS_ERROR)
+                .writeString("unknown command")));
+
+        int root = monkey.rootView();
+        int children = monkey.children(-1, 77);
+        int info = monkey.viewInfo(-1, 78);
+        int text = monkey.text("bogus");
+
+        assertArrayEquals(new int[] {-1, 77}, monkey.waitFor(root).check().getId());
+        assertArrayEquals(new int[] {-1, 78, -1, 79},
+                monkey.waitFor(children).check().getIds());
+        MonkeyNetworkClient.ViewInfo view = monkey.waitFor(info).check().getViewInfo();
+        assertEquals("android.widget.Button", view.className);
+        assertEquals("OK", view.text);
+        assertEquals(-10, view.left);
+        assertEquals(20, view.top);
+        assertEquals(300, view.width);
+        assertEquals(40, view.height);
+        assertEquals(MonkeyNetworkProtocol.VIEW_ENABLED | MonkeyNetworkProtocol.VIEW_CLICKABLE,
+                view.flags);
+        assertEquals(0, view.childCount);
+        MonkeyNetworkClient.Reply error = monkey.waitFor(text);
+        assertFalse(error.ok);
+        assertEquals("unknown command", error.getMessage());
+        monkey.close();
+    }
+
+    @Test
+    public void testTruncatedReply() throws IOException {
+        MonkeyNetworkClient monkey = connect();
+        byte[] whole = frame(new FrameWriter(1, MonkeyNetworkProtocol.STATUS_OK)
+                .writeString("android.widget.Button"));
+        byte[] cut = new byte[whole.length - 3];
+        System.arraycopy(whole, 0, cut, 0, cut.length);
+        mMonkey.reply(cut);
+        mMonkey.mCloseAfterReplies = true;
+        int id = monkey.viewInfo(1, 2);
+        try {
+            monkey.waitFor(id);
+            fail("read a reply that was cut short");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testOversizedReplyLength() throws IOException {
+        MonkeyNetworkClient monkey = connect();
+        mMonkey.reply(body(new FrameWriter()
+                .writeVarint(MonkeyNetworkClient.MAX_REPLY_LENGTH + 1)));
+        int id = monkey.dumpTree(0, false);
+        try {
+            monkey.waitFor(id);
+            fail("read a reply of more than " + MonkeyNetworkClient.MAX_REPLY_LENGTH + " bytes");
+        } catch (IOException e) {
+            assertEquals("reply of " + (MonkeyNetworkClient.MAX_REPLY_LENGTH + 1)
+                    + " bytes is too long", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testBadReplyLength() throws IOException {
+        MonkeyNetworkClient monkey = connect();
+        // A length that never ends.
+        byte[] endless = new byte[16];
+        Arrays.fill(endless, (byte) 0xff);
+        mMonkey.reply(endless);
+        int id = monkey.wake();
+        try {
+            monkey.waitFor(id);
+            fail("read a reply with a bad length");
+        } catch (IOException e) {
+            assertEquals("bad reply length", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testEmptyReply() throws IOException {
+        MonkeyNetworkClient monkey = connect();
+        // A frame too short to hold a request id and status.
+        mMonkey.reply(new byte[] {0});
+        int id = monkey.wake();
+        try {
+            monkey.waitFor(id);
+            fail("read a reply with no request id");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("bad reply"));
+        }
+    }
+
+    @Test
+    public void testOldMonkeyIsRefused() throws IOException {
+        mMonkey = new FakeMonkey(MonkeyNetworkProtocol.VERSION - 1);
+        try {
+            MonkeyNetworkClient.connect("localhost", mMonkey.getPort());
+            fail("connected to a monkey without the binary protocol");
+        } catch (IOException e) {
+            assertEquals("monkey speaks protocol version " + (MonkeyNetworkProtocol.VERSION - 1)
+                    + ", the binary protocol needs " + MonkeyNetworkProtocol.VERSION,
+                    e.getMessage());
+        }
+    }
+}
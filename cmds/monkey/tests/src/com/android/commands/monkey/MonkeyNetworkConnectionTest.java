@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+
+public class MonkeyNetworkConnectionTest {
+    private static final long TIMEOUT_MS = 10000;
+
+    private Selector mSelector;
+    private ServerSocketChannel mServer;
+    private Socket mClient;
+    private MonkeyNetworkConnection mConnection;
+
+    @Before
+    public void setUp() throws IOException {
+        mSelector = Selector.open();
+        mServer = ServerSocketChannel.open();
+        mServer.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mClient = new Socket(InetAddress.getLoopbackAddress(), mServer.socket().getLocalPort());
+        SocketChannel channel = mServer.accept();
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+        mConnection = new MonkeyNetworkConnection(channel, key);
+        key.attach(mConnection);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mConnection.close();
+        mClient.close();
+        mServer.close();
+        mSelector.close();
+    }
+
+    /**
+     * Run the connection the way MonkeySourceNetwork does until it is closed:
+     * a big reply to "dumptree", OK to anything else, and "done" closes it.
+     */
+    private void serve(String bigReply) throws IOException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!mConnection.isClosed()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("connection still open with " + mConnection.getPendingBytes()
+                        + " bytes to write");
+            }
+            mSelector.select(100);
+            Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid() && key.isWritable()) {
+                    mConnection.flush();
+                }
+                if (key.isValid() && key.isReadable() && !mConnection.read()) {
+                    mConnection.getLines().offer("done");
+                }
+            }
+            for (String line = mConnection.getLines().poll(); line != null;
+                    line = mConnection.getLines().poll()) {
+                int space = line.indexOf(' ');
+                String requestId = line.startsWith("@") ? line.substring(0, space) : null;
+                String command = requestId != null ? line.substring(space + 1) : line;
+                if (command.equals("done")) {
+                    mConnection.closeWhenWritten();
+                    break;
+                }
+                String text = command.equals("dumptree") ? "OK:" + bigReply : "OK";
+                mConnection.write(ByteBuffer.wrap(((requestId != null ? requestId + " " : "")
+                        + text + "\n").getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+    }
+
+    private static String bigReply(int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reads everything the server sends until it closes the connection, once
+     * the server has had time to fill the socket buffers.
+     */
+    private static class SlowReader extends Thread {
+        private final InputStream mIn;
+        private final ByteArrayOutputStream mReceived = new ByteArrayOutputStream();
+        private IOException mFailure;
+
+        SlowReader(InputStream in) {
+            mIn = in;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Thread.sleep(200);
+                byte[] buffer = new byte[1024];
+                for (int n = mIn.read(buffer); n >= 0; n = mIn.read(buffer)) {
+                    mReceived.write(buffer, 0, n);
+                }
+            } catch (IOException e) {
+                mFailure = e;
+            } catch (InterruptedException e) {
+            }
+        }
+
+        String received() throws IOException {
+            if (mFailure != null) {
+                throw mFailure;
+            }
+            return new String(mReceived.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void testLargeReplyBeforeDoneIsWrittenInFull() throws Exception {
+        // Far more than the socket buffers hold, so most of it is still
+        // queued when "done" is read.
+        String big = bigReply(8 * 1024 * 1024);
+        SlowReader reader = new SlowReader(mClient.getInputStream());
+        reader.start();
+        OutputStream out = mClient.getOutputStream();
+        out.write("@1 tap 10 10\n@2 dumptree\n@3 tap 20 20\ndone\n"
+                .getBytes(StandardCharsets.UTF_8));
+        out.flush();
+
+        serve(big);
+        reader.join(TIMEOUT_MS);
+        assertFalse(reader.isAlive());
+        assertEquals("@1 OK\n@2 OK:" + big + "\n@3 OK\n", reader.received());
+    }
+
+    @Test
+    public void testDroppedConnectionRunsTheLinesAlreadyRead() throws Exception {
+        SlowReader reader = new SlowReader(mClient.getInputStream());
+        reader.start();
+        OutputStream out = mClient.getOutputStream();
+        out.write("@1 dumptree\n@2 tap 1 1\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        mClient.shutdownOutput();
+
+        serve("tree");
+        reader.join(TIMEOUT_MS);
+        assertEquals("@1 OK:tree\n@2 OK\n", reader.received());
+    }
+
+    @Test
+    public void testCloseDropsPendingReplies() throws Exception {
+        mConnection.write(ByteBuffer.wrap(bigReply(8 * 1024 * 1024)
+                .getBytes(StandardCharsets.UTF_8)));
+        assertTrue(mConnection.getPendingBytes() > 0);
+        mConnection.close();
+        assertTrue(mConnection.isClosed());
+        // Writes after the close go nowhere.
+        mConnection.write(ByteBuffer.wrap(new byte[] {'x'}));
+    }
+
+    @Test
+    public void testLinesAndFrames() throws Exception {
+        OutputStream out = mClient.getOutputStream();
+        MonkeyNetworkProtocol.FrameWriter frame =
+                new MonkeyNetworkProtocol.FrameWriter(7, MonkeyNetworkProtocol.OP_TAP);
+        frame.writeSigned(-3).writeSigned(4);
+        ByteBuffer frameBytes = frame.toFrame();
+        byte[] bytes = new byte[frameBytes.remaining()];
+        frameBytes.get(bytes);
+        out.write("first\r\nbinary 4\n".getBytes(StandardCharsets.UTF_8));
+        out.write(bytes);
+        out.flush();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mConnection.getLines().size() < 2 && System.currentTimeMillis() < deadline) {
+            assertTrue(mConnection.read());
+        }
+        assertEquals("first", mConnection.getLines().poll());
+        assertEquals("binary 4", mConnection.getLines().poll());
+        // The frame arrived with the lines, and is split off on the switch.
+        while (mConnection.getFrames().isEmpty() && System.currentTimeMillis() < deadline) {
+            if (!mConnection.isBinary()) {
+                mConnection.switchToBinary();
+            } else {
+                assertTrue(mConnection.read());
+            }
+        }
+        byte[] received = mConnection.getFrames().poll();
+        assertArrayEquals(Arrays.copyOfRange(bytes, 1, bytes.length), received);
+        assertTrue(mConnection.getLines().isEmpty());
+    }
+
+    @Test
+    public void testLineTooLongIsRefused() throws Exception {
+        OutputStream out = mClient.getOutputStream();
+        out.write(new byte[MonkeyNetworkConnection.MAX_LINE_LENGTH]);
+        out.flush();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        try {
+            while (System.currentTimeMillis() < deadline) {
+                mConnection.read();
+            }
+            fail("line was not refused");
+        } catch (IllegalArgumentException e) {
+            assertEquals("line too long", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class MonkeyNetworkLoadTestTest {
+    // About the round trip of an adb forward over USB.
+    private static final long REPLY_DELAY_MICROS = 1000;
+    private static final int COUNT = 300;
+
+    @Test
+    public void testEveryCommandIsAnswered() throws Exception {
+        try (MonkeyNetworkStubServer server = new MonkeyNetworkStubServer(0)) {
+            MonkeyNetworkLoadTest.Result result = MonkeyNetworkLoadTest.run("localhost",
+                    server.getPort(), 3, COUNT, 8, "sleep 0");
+            assertEquals(3 * COUNT, result.commands);
+            assertEquals(0, result.errors);
+            assertEquals(0, result.outOfOrder);
+        }
+    }
+
+    @Test
+    public void testPipelinedRepliesArriveInOrder() throws Exception {
+        // With 64 in flight the replies are still on their way while more
+        // commands go out; each must still carry the id of the next one due.
+        try (MonkeyNetworkStubServer server = new MonkeyNetworkStubServer(REPLY_DELAY_MICROS)) {
+            for (int window : new int[] {1, 64}) {
+                MonkeyNetworkLoadTest.Result result = MonkeyNetworkLoadTest.run("localhost",
+                        server.getPort(), 2, COUNT, window, "sleep 0");
+                assertEquals(2 * COUNT, result.commands);
+                assertEquals(0, result.errors);
+                assertEquals("window " + window, 0, result.outOfOrder);
+            }
+        }
+    }
+
+    @Test
+    public void testRepliesOutOfOrderAreCounted() throws Exception {
+        // Every pair of replies comes back the wrong way round.
+        try (MonkeyNetworkStubServer server = new MonkeyNetworkStubServer(0, true)) {
+            MonkeyNetworkLoadTest.Result result = MonkeyNetworkLoadTest.run("localhost",
+                    server.getPort(), 1, COUNT, 8, "sleep 0");
+            assertEquals(COUNT, result.commands);
+            assertEquals(COUNT, result.outOfOrder);
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import com.android.commands.monkey.MonkeyNetworkProtocol.FrameWriter;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class MonkeyNetworkProtocolTest {
+    private static final int[] OPCODES = {
+        MonkeyNetworkProtocol.OP_KEY, MonkeyNetworkProtocol.OP_TOUCH,
+        MonkeyNetworkProtocol.OP_TRACKBALL, MonkeyNetworkProtocol.OP_TAP,
+        MonkeyNetworkProtocol.OP_PRESS, MonkeyNetworkProtocol.OP_SLEEP,
+        MonkeyNetworkProtocol.OP_FLIP, MonkeyNetworkProtocol.OP_TYPE,
+        MonkeyNetworkProtocol.OP_WAKE, MonkeyNetworkProtocol.OP_GESTURE,
+        MonkeyNetworkProtocol.OP_TEXT, MonkeyNetworkProtocol.OP_ROOT_VIEW,
+        MonkeyNetworkProtocol.OP_PARENT, MonkeyNetworkProtocol.OP_CHILDREN,
+        MonkeyNetworkProtocol.OP_VIEWS_WITH_TEXT, MonkeyNetworkProtocol.OP_VIEW_INFO,
+        MonkeyNetworkProtocol.OP_DUMP_TREE, MonkeyNetworkProtocol.OP_DONE,
+        MonkeyNetworkProtocol.OP_QUIT,
+    };
+
+    // Values at the edges of each encoding.
+    private static final long[] VARINTS = {
+        0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, 1L << 35, Long.MAX_VALUE, -1,
+    };
+    private static final long[] SIGNED = {
+        0, 1, -1, 63, -64, 64, -65, Integer.MIN_VALUE, Integer.MAX_VALUE, Long.MIN_VALUE,
+        Long.MAX_VALUE,
+    };
+    private static final String[] STRINGS = {
+        "", "a", "getvar build.display", "\u00e9\u4e2d\ud83d\ude00", "line\nbreak",
+    };
+
+    /**
+     * Write the arguments of an opcode, as its comment in
+     * MonkeyNetworkProtocol describes them, with values picked by i.
+     */
+    private static void writeArguments(FrameWriter frame, int opcode, int i) {
+        switch (opcode) {
+            case MonkeyNetworkProtocol.OP_KEY:
+                frame.writeVarint(VARINTS[i % VARINTS.length]).writeVarint(i);
+                break;
+            case MonkeyNetworkProtocol.OP_TOUCH:
+                frame.writeVarint(i % 3).writeSigned(SIGNED[i % SIGNED.length])
+                        .writeSigned(-SIGNED[i % SIGNED.length]);
+                break;
+            case MonkeyNetworkProtocol.OP_TRACKBALL:
+            case MonkeyNetworkProtocol.OP_TAP:
+            case MonkeyNetworkProtocol.OP_PARENT:
+            case MonkeyNetworkProtocol.OP_CHILDREN:
+            case MonkeyNetworkProtocol.OP_VIEW_INFO:
+                frame.writeSigned(SIGNED[i % SIGNED.length])
+                        .writeSigned(SIGNED[(i + 1) % SIGNED.length]);
+                break;
+            case MonkeyNetworkProtocol.OP_PRESS:
+            case MonkeyNetworkProtocol.OP_SLEEP:
+            case MonkeyNetworkProtocol.OP_FLIP:
+                frame.writeVarint(VARINTS[i % VARINTS.length]);
+                break;
+            case MonkeyNetworkProtocol.OP_TYPE:
+            case MonkeyNetworkProtocol.OP_TEXT:
+            case MonkeyNetworkProtocol.OP_VIEWS_WITH_TEXT:
+                frame.writeString(STRINGS[i % STRINGS.length]);
+                break;
+            case MonkeyNetworkProtocol.OP_GESTURE: {
+                FrameWriter events = new FrameWriter();
+                events.writeByte(MonkeyNetworkProtocol.OP_TOUCH);
+                writeArguments(events, MonkeyNetworkProtocol.OP_TOUCH, i);
+                events.writeByte(MonkeyNetworkProtocol.OP_SLEEP);
+                writeArguments(events, MonkeyNetworkProtocol.OP_SLEEP, i);
+                events.writeByte(MonkeyNetworkProtocol.OP_KEY);
+                writeArguments(events, MonkeyNetworkProtocol.OP_KEY, i);
+                frame.writeVarint(3).write(events);
+                break;
+            }
+            case MonkeyNetworkProtocol.OP_DUMP_TREE:
+                frame.writeVarint(VARINTS[i % VARINTS.length])
+                        .writeVarint(MonkeyNetworkProtocol.DUMP_DEFLATE);
+                break;
+            default:
+                // OP_WAKE, OP_ROOT_VIEW, OP_DONE and OP_QUIT take nothing.
+                break;
+        }
+    }
+
+    /**
+     * Read back what writeArguments() wrote.
+     */
+    private static void checkArguments(ByteBuffer in, int opcode, int i) {
+        switch (opcode) {
+            case MonkeyNetworkProtocol.OP_KEY:
+                assertEquals(VARINTS[i % VARINTS.length], MonkeyNetworkProtocol.readVarint(in));
+                assertEquals(i, MonkeyNetworkProtocol.readVarint(in));
+                break;
+            case MonkeyNetworkProtocol.OP_TOUCH:
+                assertEquals(i % 3, MonkeyNetworkProtocol.readVarint(in));
+                assertEquals(SIGNED[i % SIGNED.length], MonkeyNetworkProtocol.readSigned(in));
+                assertEquals(-SIGNED[i % SIGNED.length], MonkeyNetworkProtocol.readSigned(in));
+                break;
+            case MonkeyNetworkProtocol.OP_TRACKBALL:
+            case MonkeyNetworkProtocol.OP_TAP:
+            case MonkeyNetworkProtocol.OP_PARENT:
+            case MonkeyNetworkProtocol.OP_CHILDREN:
+            case MonkeyNetworkProtocol.OP_VIEW_INFO:
+                assertEquals(SIGNED[i % SIGNED.length], MonkeyNetworkProtocol.readSigned(in));
+                assertEquals(SIGNED[(i + 1) % SIGNED.length],
+                        MonkeyNetworkProtocol.readSigned(in));
+                break;
+            case MonkeyNetworkProtocol.OP_PRESS:
+            case MonkeyNetworkProtocol.OP_SLEEP:
+            case MonkeyNetworkProtocol.OP_FLIP:
+                assertEquals(VARINTS[i % VARINTS.length], MonkeyNetworkProtocol.readVarint(in));
+                break;
+            case MonkeyNetworkProtocol.OP_TYPE:
+            case MonkeyNetworkProtocol.OP_TEXT:
+            case MonkeyNetworkProtocol.OP_VIEWS_WITH_TEXT:
+                assertEquals(STRINGS[i % STRINGS.length], MonkeyNetworkProtocol.readString(in));
+                break;
+            case MonkeyNetworkProtocol.OP_GESTURE:
+                assertEquals(3, MonkeyNetworkProtocol.readVarint(in));
+                assertEquals(MonkeyNetworkProtocol.OP_TOUCH, in.get());
+                checkArguments(in, MonkeyNetworkProtocol.OP_TOUCH, i);
+                assertEquals(MonkeyNetworkProtocol.OP_SLEEP, in.get());
+                checkArguments(in, MonkeyNetworkProtocol.OP_SLEEP, i);
+                assertEquals(MonkeyNetworkProtocol.OP_KEY, in.get());
+                checkArguments(in, MonkeyNetworkProtocol.OP_KEY, i);
+                break;
+            case MonkeyNetworkProtocol.OP_DUMP_TREE:
+                assertEquals(VARINTS[i % VARINTS.length], MonkeyNetworkProtocol.readVarint(in));
+                assertEquals(MonkeyNetworkProtocol.DUMP_DEFLATE,
+                        MonkeyNetworkProtocol.readVarint(in));
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @return every frame of a stream holding a request for each opcode with
+     *         each set of argument values, request ids counting up from 1
+     */
+    private static ByteBuffer requestStream(int rounds) {
+        FrameWriter stream = new FrameWriter();
+        long requestId = 1;
+        for (int i = 0; i < rounds; i++) {
+            for (int opcode : OPCODES) {
+                FrameWriter frame = new FrameWriter(requestId++, opcode);
+                writeArguments(frame, opcode, i);
+                ByteBuffer bytes = frame.toFrame();
+                byte[] copy = new byte[bytes.remaining()];
+                bytes.get(copy);
+                stream.writeBytes(copy);
+            }
+        }
+        return ByteBuffer.wrap(stream.toByteArray());
+    }
+
+    private static void checkRequest(byte[] frame, long requestId, int opcode, int i) {
+        ByteBuffer in = ByteBuffer.wrap(frame);
+        assertEquals(requestId, MonkeyNetworkProtocol.readVarint(in));
+        assertEquals(opcode, in.get() & 0xff);
+        checkArguments(in, opcode, i);
+        assertFalse("bytes left over in opcode " + opcode, in.hasRemaining());
+    }
+
+    @Test
+    public void testEveryOpcodeRoundTrips() {
+        int rounds = Math.max(VARINTS.length, SIGNED.length);
+        ByteBuffer in = requestStream(rounds);
+        long requestId = 1;
+        for (int i = 0; i < rounds; i++) {
+            for (int opcode : OPCODES) {
+                byte[] frame = MonkeyNetworkProtocol.nextFrame(in);
+                assertNotNull(frame);
+                checkRequest(frame, requestId++, opcode, i);
+            }
+        }
+        assertNull(MonkeyNetworkProtocol.nextFrame(in));
+        assertFalse(in.hasRemaining());
+    }
+
+    @Test
+    public void testReplies() {
+        FrameWriter ok = new FrameWriter(300, MonkeyNetworkProtocol.STATUS_OK)
+                .writeVarint(2).writeSigned(-1).writeSigned(7).writeSigned(3).writeSigned(-9);
+        ByteBuffer in = ByteBuffer.wrap(MonkeyNetworkProtocol.nextFrame(ok.toFrame()));
+        assertEquals(300, MonkeyNetworkProtocol.readVarint(in));
+        assertEquals(MonkeyNetworkProtocol.STATUS_OK, in.get());
+        MonkeyNetworkClient.Reply reply = new MonkeyNetworkClient.Reply(300, true, in.slice());
+        assertArrayEquals(new int[] {-1, 7, 3, -9}, reply.getIds());
+
+        FrameWriter error = new FrameWriter(301, MonkeyNetworkProtocol.STATUS_ERROR)
+                .writeString("no such view");
+        in = ByteBuffer.wrap(MonkeyNetworkProtocol.nextFrame(error.toFrame()));
+        assertEquals(301, MonkeyNetworkProtocol.readVarint(in));
+        assertEquals(MonkeyNetworkProtocol.STATUS_ERROR, in.get());
+        reply = new MonkeyNetworkClient.Reply(301, false, in.slice());
+        assertEquals("no such view", reply.getMessage());
+        try {
+            reply.check();
+            fail("an error reply passed check()");
+        } catch (IOException e) {
+            assertEquals("request 301 failed: no such view", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testTruncatedFrameWaitsForTheRest() {
+        ByteBuffer whole = requestStream(1);
+        byte[] bytes = new byte[whole.remaining()];
+        whole.get(bytes);
+        // Every prefix of the stream gives the frames it holds in full, and
+        // leaves the position at the start of the one cut short.
+        for (int length = 0; length <= bytes.length; length++) {
+            ByteBuffer in = ByteBuffer.wrap(bytes, 0, length);
+            int frames = 0;
+            int end = 0;
+            for (byte[] frame = MonkeyNetworkProtocol.nextFrame(in); frame != null;
+                    frame = MonkeyNetworkProtocol.nextFrame(in)) {
+                checkRequest(frame, frames + 1, OPCODES[frames], 0);
+                frames++;
+                end = in.position();
+            }
+            assertEquals(end, in.position());
+            if (length == bytes.length) {
+                assertEquals(OPCODES.length, frames);
+            }
+        }
+    }
+
+    @Test
+    public void testFrameOfTheLongestLength() {
+        byte[] body = new byte[MonkeyNetworkProtocol.MAX_FRAME_LENGTH];
+        Arrays.fill(body, (byte) 'x');
+        ByteBuffer frame = new FrameWriter().writeBytes(body).toFrame();
+        ByteBuffer in = ByteBuffer.allocate(frame.remaining());
+        in.put(frame);
+        in.flip();
+        assertArrayEquals(body, MonkeyNetworkProtocol.nextFrame(in));
+
+        // One byte short, it waits for the rest.
+        in.position(0).limit(in.capacity() - 1);
+        assertNull(MonkeyNetworkProtocol.nextFrame(in));
+        assertEquals(0, in.position());
+    }
+
+    @Test
+    public void testOversizedLengthIsRefused() {
+        // The length alone is enough to refuse it; the body needn't have arrived.
+        ByteBuffer in = ByteBuffer.wrap(new FrameWriter()
+                .writeVarint(MonkeyNetworkProtocol.MAX_FRAME_LENGTH + 1).toByteArray());
+        try {
+            MonkeyNetworkProtocol.nextFrame(in);
+            fail("oversized frame accepted");
+        } catch (IllegalArgumentException e) {
+            assertEquals("frame of " + (MonkeyNetworkProtocol.MAX_FRAME_LENGTH + 1)
+                    + " bytes is too long", e.getMessage());
+        }
+
+        in = ByteBuffer.wrap(new FrameWriter().writeVarint(Long.MAX_VALUE).toByteArray());
+        try {
+            MonkeyNetworkProtocol.nextFrame(in);
+            fail("length of " + Long.MAX_VALUE + " accepted");
+        } catch (IllegalArgumentException e) {
+            assertEquals("bad frame length", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testBadArguments() {
+        // A string longer than the frame it is in.
+        ByteBuffer in = ByteBuffer.wrap(new FrameWriter().writeVarint(10).writeByte('a')
+                .toByteArray());
+        try {
+            MonkeyNetworkProtocol.readString(in);
+            fail("string past the end of the frame");
+        } catch (BufferUnderflowException e) {
+            // expected
+        }
+
+        // A varint that runs off the end of the frame.
+        in = ByteBuffer.wrap(new byte[] {(byte) 0x80, (byte) 0x80});
+        try {
+            MonkeyNetworkProtocol.readVarint(in);
+            fail("varint past the end of the frame");
+        } catch (BufferUnderflowException e) {
+            // expected
+        }
+
+        // A varint with more than 64 bits.
+        byte[] tooLong = new byte[11];
+        Arrays.fill(tooLong, (byte) 0xff);
+        try {
+            MonkeyNetworkProtocol.readVarint(ByteBuffer.wrap(tooLong));
+            fail("varint of 11 bytes accepted");
+        } catch (IllegalArgumentException e) {
+            assertEquals("varint too long", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stands in for the network monkey (MonkeySourceNetwork) on the host, for
+ * MonkeyNetworkLoadTest. It speaks the text protocol: every line gets an OK,
+ * echoing its "@ID" request id if it has one, and "done" closes the
+ * connection. Each reply goes out a fixed delay after its line is read, as
+ * over an adb forward to a device, without holding up the lines behind it.
+ * It can also be made to answer every pair of lines the wrong way round, to
+ * check that a client notices.
+ */
+class MonkeyNetworkStubServer implements AutoCloseable {
+    private final ServerSocket mServer;
+    private final long mReplyDelayMicros;
+    private final boolean mSwapPairs;
+    private final Thread mAcceptThread;
+
+    /**
+     * @param replyDelayMicros how long after a line is read its reply is sent
+     */
+    MonkeyNetworkStubServer(long replyDelayMicros) throws IOException {
+        this(replyDelayMicros, false);
+    }
+
+    /**
+     * @param replyDelayMicros how long after a line is read its reply is sent
+     * @param swapPairs whether to send the reply to each second line before
+     *        the reply to the line before it
+     */
+    MonkeyNetworkStubServer(long replyDelayMicros, boolean swapPairs) throws IOException {
+        mServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        mReplyDelayMicros = replyDelayMicros;
+        mSwapPairs = swapPairs;
+        mAcceptThread = new Thread("MonkeyNetworkStubServer") {
+            @Override
+            public void run() {
+                acceptClients();
+            }
+        };
+        mAcceptThread.setDaemon(true);
+        mAcceptThread.start();
+    }
+
+    int getPort() {
+        return mServer.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mServer.close();
+    }
+
+    private void acceptClients() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = mServer.accept();
+            } catch (IOException e) {
+                return; // closed
+            }
+            Thread t = new Thread("MonkeyNetworkStubServer client") {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        // One thread, so replies due at the same time keep the order of their lines.
+        ScheduledThreadPoolExecutor replies = new ScheduledThreadPoolExecutor(1);
+        try {
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.UTF_8));
+            final OutputStream out = socket.getOutputStream();
+            byte[] held = null;
+            String line;
+            while ((line = in.readLine()) != null) {
+                String requestId = null;
+                String command = line;
+                if (line.startsWith("@")) {
+                    int space = line.indexOf(' ');
+                    requestId = space < 0 ? line : line.substring(0, space);
+                    command = space < 0 ? "" : line.substring(space + 1).trim();
+                }
+                if (command.equals("done")) {
+                    break;
+                }
+                byte[] reply = ((requestId != null ? requestId + " " : "") + "OK\n")
+                        .getBytes(StandardCharsets.UTF_8);
+                if (mSwapPairs && held == null) {
+                    held = reply;
+                    continue;
+                }
+                scheduleReply(replies, out, reply);
+                if (held != null) {
+                    scheduleReply(replies, out, held);
+                    held = null;
+                }
+            }
+            if (held != null) {
+                scheduleReply(replies, out, held);
+            }
+            replies.shutdown();
+            replies.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (IOException | InterruptedException e) {
+            // the client went away
+        } finally {
+            replies.shutdownNow();
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void scheduleReply(ScheduledThreadPoolExecutor replies, final OutputStream out,
+            final byte[] reply) {
+        replies.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    out.write(reply);
+                    out.flush();
+                } catch (IOException e) {
+                    // the client went away
+                }
+            }
+        }, mReplyDelayMicros, TimeUnit.MICROSECONDS);
+    }
+}
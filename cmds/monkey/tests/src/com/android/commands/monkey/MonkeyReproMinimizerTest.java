@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class MonkeyReproMinimizerTest {
+    private static final int NOISE = 400;
+
+    /** The records of a log with a crash buried in it, and the records that trigger it. */
+    private List<byte[]> mRecords;
+    private List<byte[]> mTriggers;
+    // Where the crash records are in mRecords.
+    private int[] mExpected;
+
+    private void buildLog(long seed) {
+        Random random = new Random(seed);
+        MonkeyEventLogBuilder builder = new MonkeyEventLogBuilder();
+        int crashAt = NOISE / 3 + random.nextInt(NOISE / 3);
+        mExpected = new int[5];
+        int found = 0;
+        for (int i = 0; i < NOISE; i++) {
+            if (i == crashAt || i == crashAt + NOISE / 4) {
+                // Open the screen and swipe on it, then rotate further on. A
+                // second swipe somewhere else doesn't matter.
+                if (i == crashAt) {
+                    mExpected[found++] = builder.getRecords().size();
+                    builder.activity(10, "com.example", "com.example.Crashy");
+                }
+                long down = builder.getNow() + 20;
+                for (int action : new int[] { MonkeyEventGenerator.ACTION_DOWN,
+                        MonkeyEventGenerator.ACTION_MOVE, MonkeyEventGenerator.ACTION_UP }) {
+                    if (i == crashAt) {
+                        mExpected[found++] = builder.getRecords().size();
+                        builder.touch(20, action, down, 500, 900 - 300 * found);
+                    } else {
+                        builder.touch(20, action, down, 10, 10);
+                    }
+                }
+                continue;
+            }
+            if (i == crashAt + NOISE / 2) {
+                mExpected[found++] = builder.getRecords().size();
+                builder.rotation(50, 1, false);
+                continue;
+            }
+            addNoise(builder, random);
+        }
+        mRecords = builder.getRecords();
+        // The app only crashes on the move, but the move belongs to a gesture.
+        mTriggers = Arrays.asList(mRecords.get(mExpected[0]), mRecords.get(mExpected[2]),
+                mRecords.get(mExpected[4]));
+    }
+
+    private static void addNoise(MonkeyEventLogBuilder builder, Random random) {
+        switch (random.nextInt(4)) {
+            case 0: {
+                long down = builder.getNow() + 5;
+                builder.touch(5, MonkeyEventGenerator.ACTION_DOWN, down,
+                        random.nextInt(1080), random.nextInt(1920));
+                for (int i = random.nextInt(3); i > 0; i--) {
+                    builder.touch(8, MonkeyEventGenerator.ACTION_MOVE, down,
+                            random.nextInt(1080), random.nextInt(1920));
+                }
+                builder.touch(8, MonkeyEventGenerator.ACTION_UP, down,
+                        random.nextInt(1080), random.nextInt(1920));
+                break;
+            }
+            case 1: {
+                long down = builder.getNow() + 5;
+                int code = MonkeyEventGenerator.KEYCODE_DPAD_UP + random.nextInt(4);
+                builder.key(5, MonkeyEventGenerator.ACTION_DOWN, code, down)
+                        .key(5, MonkeyEventGenerator.ACTION_UP, code, down);
+                break;
+            }
+            case 2:
+                builder.trackball(0, MonkeyEventGenerator.ACTION_MOVE, -1,
+                        random.nextInt(5) - 2, random.nextInt(5) - 2);
+                break;
+            default:
+                builder.activity(100, "com.example", "com.example.Screen" + random.nextInt(5));
+                break;
+        }
+    }
+
+    @Test
+    public void testFindsTheCrash() throws Exception {
+        buildLog(1);
+        MonkeySimulatedTarget target = new MonkeySimulatedTarget("sim", mTriggers, 0, 0, 1);
+        MonkeyReproMinimizer minimizer = new MonkeyReproMinimizer(mRecords,
+                Collections.singletonList(target), 1, null);
+        // The whole swipe comes along with the move that triggers the crash.
+        assertArrayEquals(mExpected, minimizer.minimize());
+        assertEquals(target.getRuns(), minimizer.getTrials());
+    }
+
+    @Test
+    public void testParallelRunnersAgree() throws Exception {
+        buildLog(2);
+        MonkeyReproMinimizer serial = new MonkeyReproMinimizer(mRecords,
+                Collections.singletonList(
+                        new MonkeySimulatedTarget("sim", mTriggers, 0, 0, 1)), 1, null);
+        List<MonkeySimulatedTarget> targets = new ArrayList<MonkeySimulatedTarget>();
+        for (int i = 0; i < 4; i++) {
+            targets.add(new MonkeySimulatedTarget("sim" + i, mTriggers, 0, 1, i));
+        }
+        MonkeyReproMinimizer parallel = new MonkeyReproMinimizer(mRecords, targets, 1, null);
+        assertArrayEquals(serial.minimize(), parallel.minimize());
+    }
+
+    @Test
+    public void testFlakyCrashWithAttempts() throws Exception {
+        buildLog(3);
+        MonkeySimulatedTarget target = new MonkeySimulatedTarget("sim", mTriggers, 0.3, 0, 7);
+        MonkeyReproMinimizer minimizer = new MonkeyReproMinimizer(mRecords,
+                Collections.singletonList(target), 20, null);
+        assertArrayEquals(mExpected, minimizer.minimize());
+    }
+
+    @Test
+    public void testNoCrash() throws Exception {
+        buildLog(4);
+        List<byte[]> never = new ArrayList<byte[]>(mTriggers);
+        Collections.reverse(never);
+        MonkeySimulatedTarget target = new MonkeySimulatedTarget("sim", never, 0, 0, 1);
+        MonkeyReproMinimizer minimizer = new MonkeyReproMinimizer(mRecords,
+                Collections.singletonList(target), 1, null);
+        assertNull(minimizer.minimize());
+        assertEquals(1, target.getRuns());
+    }
+
+    @Test
+    public void testGroupGestures() {
+        MonkeyEventLogBuilder builder = new MonkeyEventLogBuilder();
+        builder.rotation(0, 1, false)
+                // A key press that overlaps a tap: one unit.
+                .key(5, MonkeyEventGenerator.ACTION_DOWN, MonkeyEventGenerator.KEYCODE_MENU, 1005)
+                .touch(5, MonkeyEventGenerator.ACTION_DOWN, 1010, 1, 1)
+                .key(5, MonkeyEventGenerator.ACTION_UP, MonkeyEventGenerator.KEYCODE_MENU, 1005)
+                .flip(5, true)
+                .touch(5, MonkeyEventGenerator.ACTION_UP, 1010, 1, 1)
+                .trackball(5, MonkeyEventGenerator.ACTION_MOVE, -1, 1, 0)
+                // A gesture that never ends.
+                .touch(5, MonkeyEventGenerator.ACTION_DOWN, 1035, 1, 1)
+                .touch(5, MonkeyEventGenerator.ACTION_MOVE, 1035, 2, 2);
+        List<int[]> units = MonkeyEventLog.groupGestures(builder.getRecords());
+        assertEquals(4, units.size());
+        assertArrayEquals(new int[] { 0 }, units.get(0));
+        assertArrayEquals(new int[] { 1, 2, 3, 4, 5 }, units.get(1));
+        assertArrayEquals(new int[] { 6 }, units.get(2));
+        assertArrayEquals(new int[] { 7, 8 }, units.get(3));
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.util.Arrays;
+
+/**
+ * A made up app for exploration tests: packages of activities, each a tree of
+ * screens, where every screen has a few actions that lead somewhere.
+ *
+ * Each package has ACTIVITIES_PER_PACKAGE activities in a binary tree, the
+ * first one being its main activity, and each activity has
+ * SCREENS_PER_ACTIVITY screens in a ternary tree. A screen can go to its
+ * children and back to its parent, has a couple of actions that do nothing,
+ * and two of the leaves open the child activities, which back out to them. So the deep screens are
+ * only reached through a chain of the right actions, as in a real app.
+ */
+class MonkeySimulatedApp {
+    static final int PACKAGES = 4;
+    static final int ACTIVITIES_PER_PACKAGE = 7;
+    static final int SCREENS_PER_ACTIVITY = 13;
+    static final int ACTIVITIES = PACKAGES * ACTIVITIES_PER_PACKAGE;
+    static final int SCREENS = ACTIVITIES * SCREENS_PER_ACTIVITY;
+
+    // Leaves of the screen tree that open the first and second child activity.
+    private static final int FIRST_LINK = 4;
+    private static final int SECOND_LINK = 12;
+    private static final int NOOP_ACTIONS = 2;
+
+    private final int[][] mActions = new int[SCREENS][];
+
+    MonkeySimulatedApp() {
+        for (int s = 0; s < SCREENS; s++) {
+            int activity = getActivity(s);
+            int k = s % SCREENS_PER_ACTIVITY;
+            int base = activity * SCREENS_PER_ACTIVITY;
+            int[] actions = new int[6];
+            int n = 0;
+            for (int c = 3 * k + 1; c <= 3 * k + 3 && c < SCREENS_PER_ACTIVITY; c++) {
+                actions[n++] = base + c;
+            }
+            // Back goes to the parent screen, or from the first one to the
+            // screen that opened the activity.
+            actions[n++] = k > 0 ? base + (k - 1) / 3 : getOpener(activity);
+            for (int i = 0; i < NOOP_ACTIONS; i++) {
+                actions[n++] = s;
+            }
+            int link = k == FIRST_LINK ? 1 : k == SECOND_LINK ? 2 : 0;
+            int child = link > 0 ? childActivity(activity, link) : -1;
+            if (child >= 0) {
+                actions[n++] = getEntry(child);
+            }
+            mActions[s] = Arrays.copyOf(actions, n);
+        }
+    }
+
+    /**
+     * @return the screens each action of a screen leads to, one per action
+     */
+    int[] getActions(int screen) {
+        return mActions[screen];
+    }
+
+    /**
+     * @return the activity a screen is in; activities 0 to PACKAGES - 1 are
+     *         the main activities, and activity a is in package a % PACKAGES
+     */
+    static int getActivity(int screen) {
+        return screen / SCREENS_PER_ACTIVITY;
+    }
+
+    /**
+     * @return the screen an activity starts on
+     */
+    static int getEntry(int activity) {
+        return activity * SCREENS_PER_ACTIVITY;
+    }
+
+    /**
+     * @return what a monkey would fingerprint the screen as
+     */
+    static long getFingerprint(int screen) {
+        return MonkeyStateGraph.mix(0x5eed, screen);
+    }
+
+    /**
+     * @return the screen that opens an activity, or its own first screen for
+     *         a main activity
+     */
+    private static int getOpener(int activity) {
+        int pkg = activity % PACKAGES;
+        int j = activity / PACKAGES;
+        if (j == 0) {
+            return getEntry(activity);
+        }
+        int parent = (j - 1) / 2 * PACKAGES + pkg;
+        return getEntry(parent) + (j % 2 == 1 ? FIRST_LINK : SECOND_LINK);
+    }
+
+    /**
+     * @return the child activity, 1 or 2, of an activity, or -1 if it is a leaf
+     */
+    private static int childActivity(int activity, int which) {
+        int pkg = activity % PACKAGES;
+        int j = activity / PACKAGES;
+        int c = 2 * j + which;
+        return c < ACTIVITIES_PER_PACKAGE ? c * PACKAGES + pkg : -1;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+public class MonkeyStateGraphTest {
+    private static final int EVENTS = 20000;
+
+    /** Same as MonkeySourceViewTree.STUCK_STEPS. */
+    private static final int STUCK_STEPS = 40;
+
+    /** The share of events that switch to a main activity when not exploring, in percent. */
+    private static final int APP_SWITCH_PERCENT = 2;
+
+    @Test
+    public void testTransitionsAndFrontier() {
+        MonkeyStateGraph graph = new MonkeyStateGraph();
+        int a = graph.state(1, 0);
+        int b = graph.state(2, 7);
+        assertEquals(a, graph.state(1, 3));
+        int ab = graph.action(a, 10);
+        int aa = graph.action(a, 11);
+        graph.action(b, 10);
+        assertEquals(ab, graph.action(a, 10));
+        assertEquals(2, graph.getUntried(a));
+        assertEquals(MonkeyStateGraph.UNTRIED_SCORE, graph.score(ab), 0);
+
+        assertTrue(graph.visit(a));
+        graph.transition(ab, b);
+        assertTrue(graph.visit(b));
+        assertFalse(graph.visit(b));
+        assertEquals(1, graph.getUntried(a));
+        assertEquals(7, graph.getTag(b));
+        // A has an untried action left; b has one too, but more visits.
+        assertEquals(a, graph.findFrontier(-1));
+        assertEquals(b, graph.findFrontier(a));
+
+        graph.transition(aa, a);
+        graph.transition(aa, a);
+        // Finding a new state counts for more than staying put.
+        assertTrue(graph.score(ab) > graph.score(aa));
+        assertEquals(2, graph.getEdgeCount());
+        assertEquals(-1, graph.findFrontier(b));
+    }
+
+    @Test
+    public void testExplorationCoversMoreOfTheApp() {
+        MonkeySimulatedApp app = new MonkeySimulatedApp();
+        for (long seed = 1; seed <= 5; seed++) {
+            int explored = explore(app, seed, EVENTS);
+            int random = walk(app, seed, EVENTS);
+            assertTrue("seed " + seed + ": " + explored + " screens",
+                    explored >= MonkeySimulatedApp.SCREENS - 4);
+            assertTrue("seed " + seed + ": " + explored + " explored, " + random + " random",
+                    explored > random + 25);
+        }
+    }
+
+    /**
+     * Picks actions at random, with an occasional switch to a main
+     * activity, as the monkey does without --explore.
+     *
+     * @return the number of screens seen
+     */
+    private static int walk(MonkeySimulatedApp app, long seed, int events) {
+        Random random = new Random(seed);
+        BitSet seen = new BitSet();
+        int screen = MonkeySimulatedApp.getEntry(random.nextInt(MonkeySimulatedApp.PACKAGES));
+        seen.set(screen);
+        for (int i = 0; i < events; i++) {
+            if (random.nextInt(100) < APP_SWITCH_PERCENT) {
+                screen = MonkeySimulatedApp.getEntry(random.nextInt(MonkeySimulatedApp.PACKAGES));
+            } else {
+                int[] actions = app.getActions(screen);
+                screen = actions[random.nextInt(actions.length)];
+            }
+            seen.set(screen);
+        }
+        return seen.cardinality();
+    }
+
+    /**
+     * Explores the way MonkeySourceViewTree.generateEvents() does with
+     * --explore, one event per action or backtrack.
+     *
+     * @return the number of screens seen
+     */
+    private static int explore(MonkeySimulatedApp app, long seed, int events) {
+        Random random = new Random(seed);
+        MonkeyStateGraph graph = new MonkeyStateGraph();
+        BitSet seen = new BitSet();
+        int[] actionIds = new int[8];
+        int[] weights = new int[8];
+        double[] scratch = new double[8];
+        int screen = MonkeySimulatedApp.getEntry(random.nextInt(MonkeySimulatedApp.PACKAGES));
+        int lastAction = -1;
+        int stepsSinceNew = 0;
+        for (int i = 0; i < events; i++) {
+            seen.set(screen);
+            int state = graph.state(MonkeySimulatedApp.getFingerprint(screen),
+                    MonkeySimulatedApp.getActivity(screen));
+            int[] actions = app.getActions(screen);
+            for (int k = 0; k < actions.length; k++) {
+                actionIds[k] = graph.action(state, k);
+                weights[k] = 1;
+            }
+            if (lastAction >= 0) {
+                graph.transition(lastAction, state);
+                lastAction = -1;
+            }
+            if (graph.visit(state)) {
+                stepsSinceNew = 0;
+            } else if (++stepsSinceNew >= STUCK_STEPS && graph.getUntried(state) == 0) {
+                // Backtrack to the activity of the frontier, or the main
+                // activity of its package.
+                stepsSinceNew = 0;
+                int frontier = graph.findFrontier(state);
+                int activity = frontier >= 0 ? graph.getTag(frontier)
+                        : random.nextInt(MonkeySimulatedApp.PACKAGES);
+                screen = MonkeySimulatedApp.getEntry(activity % MonkeySimulatedApp.PACKAGES);
+                continue;
+            }
+            int pick = graph.pick(actionIds, weights, actions.length, scratch, random);
+            lastAction = actionIds[pick];
+            screen = actions[pick];
+        }
+        seen.set(screen);
+        return seen.cardinality();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.commands.monkey.MonkeyViewTree.Encoder;
+import com.android.commands.monkey.MonkeyViewTree.Node;
+import com.android.commands.monkey.MonkeyViewTree.Snapshot;
+
+import org.junit.Test;
+
+public class MonkeyViewTreeTest {
+    private static final int WINDOW = 7;
+    private static final int ROOT = 1;
+
+    private static Node node(int viewId, int parentId, String className, String text,
+            int childCount) {
+        Node node = new Node();
+        node.viewId = viewId;
+        node.parentId = parentId;
+        node.className = className;
+        node.text = text;
+        node.width = 100;
+        node.height = 50;
+        node.childCount = childCount;
+        return node;
+    }
+
+    private static Snapshot dump(Encoder encoder, long since, boolean deflate, Node... nodes) {
+        encoder.begin(WINDOW, ROOT, since);
+        for (Node node : nodes) {
+            encoder.add(node);
+        }
+        return MonkeyViewTree.decode(encoder.finish(deflate));
+    }
+
+    @Test
+    public void testFullDump() {
+        Encoder encoder = new Encoder();
+        Snapshot full = dump(encoder, 0, true,
+                node(ROOT, 0, "android.widget.FrameLayout", "", 2),
+                node(2, ROOT, "android.widget.Button", "OK", 0),
+                node(3, ROOT, "android.widget.Button", "Cancel", 0));
+        assertFalse(full.isDiff());
+        assertEquals(1, full.generation);
+        assertEquals(WINDOW, full.windowId);
+        assertEquals(ROOT, full.rootViewId);
+        assertEquals(3, full.nodes.size());
+        assertEquals("android.widget.Button", full.nodes.get(2).className);
+        assertEquals("Cancel", full.nodes.get(2).text);
+        assertEquals(2, full.nodes.get(0).childCount);
+    }
+
+    @Test
+    public void testDiffHasOnlyTheChanges() {
+        Encoder encoder = new Encoder();
+        Snapshot full = dump(encoder, 0, false,
+                node(ROOT, 0, "android.widget.FrameLayout", "", 2),
+                node(2, ROOT, "android.widget.Button", "OK", 0),
+                node(3, ROOT, "android.widget.TextView", "Hello", 0));
+        Snapshot diff = dump(encoder, full.generation, false,
+                node(ROOT, 0, "android.widget.FrameLayout", "", 2),
+                node(3, ROOT, "android.widget.TextView", "Goodbye", 0),
+                node(4, ROOT, "android.widget.Button", "Cancel", 0));
+        assertTrue(diff.isDiff());
+        assertEquals(full.generation, diff.baseGeneration);
+        assertEquals(2, diff.nodes.size());
+        assertEquals(3, diff.nodes.get(0).viewId);
+        assertEquals(4, diff.nodes.get(1).viewId);
+        assertArrayEquals(new int[] {2}, diff.removed);
+
+        Snapshot applied = diff.applyTo(full);
+        assertEquals(diff.generation, applied.generation);
+        assertEquals(3, applied.nodes.size());
+        assertEquals("Goodbye", applied.nodes.get(1).text);
+    }
+
+    @Test
+    public void testStringsWithTheSameHashCodeAreChanges() {
+        // "Aa" and "BB" have the same String.hashCode().
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        Encoder encoder = new Encoder();
+        Snapshot full = dump(encoder, 0, false, node(ROOT, 0, "Aa", "AaAa", 0));
+        Snapshot diff = dump(encoder, full.generation, false, node(ROOT, 0, "BB", "BBBB", 0));
+        assertEquals(1, diff.nodes.size());
+        assertEquals("BB", diff.nodes.get(0).className);
+        assertEquals("BBBB", diff.nodes.get(0).text);
+        diff = dump(encoder, diff.generation, false, node(ROOT, 0, "BB", "AaBB", 0));
+        assertEquals(1, diff.nodes.size());
+        assertEquals("AaBB", diff.nodes.get(0).text);
+    }
+
+    @Test
+    public void testDiffAgainstAnotherWindowIsFull() {
+        Encoder encoder = new Encoder();
+        Snapshot full = dump(encoder, 0, false, node(ROOT, 0, "android.view.View", "", 0));
+        encoder.begin(WINDOW + 1, ROOT, full.generation);
+        encoder.add(node(ROOT, 0, "android.view.View", "", 0));
+        Snapshot other = MonkeyViewTree.decode(encoder.finish(false));
+        assertFalse(other.isDiff());
+        assertEquals(1, other.nodes.size());
+    }
+}
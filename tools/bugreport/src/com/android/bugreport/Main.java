@@ -20,6 +20,9 @@ import com.android.bugreport.bugreport.Bugreport;
 import com.android.bugreport.bugreport.BugreportParser;
 import com.android.bugreport.html.Renderer;
 import com.android.bugreport.inspector.Inspector;
+import com.android.bugreport.logcat.LogSpam;
+import com.android.bugreport.logcat.LogSpamProfiler;
+import com.android.bugreport.logcat.LogSpamWriter;
 import com.android.bugreport.logcat.LogcatParser;
 import com.android.bugreport.monkey.MonkeyLogParser;
 import com.android.bugreport.util.Lines;
@@ -60,7 +63,7 @@ public class Main {
      */
     private static int usage() {
         System.err.println("usage: bugreport --monkey MONKEYLOG --html HTML --logcat SYSTEMLOG"
-                + " BUGREPORT\n");
+                + " [--logspam JSON [--logspam-top N]] BUGREPORT\n");
         return 1;
     }
 
@@ -112,6 +115,21 @@ public class Main {
         // Fills in the additional fields in the Anr object.
         Inspector.inspect(bugreport);
 
+        // Profile the merged logcat for log spam. This is useful whether
+        // or not there was an anr, so do it before bailing out below.
+        if (options.logspam != null) {
+            final LogSpam spam = LogSpamProfiler.profile(bugreport.logcat);
+            final LogSpamWriter writer = new LogSpamWriter(options.logspamTop);
+            writer.writeTable(System.out, spam);
+            try {
+                writer.writeJson(options.logspam, spam);
+            } catch (IOException ex) {
+                System.err.println("Error writing log spam file: " + options.logspam);
+                System.err.println("Error: " + ex.getMessage());
+                return 1;
+            }
+        }
+
         // For now, since all we do is ANRs, just bail out if there wasn't one.
         if (bugreport.anr == null) {
             System.err.println("No anr!");
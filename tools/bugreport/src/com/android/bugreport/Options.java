@@ -68,6 +68,18 @@ public class Options {
      */
     public File html;
 
+    /**
+     * The json file to write the log rate and spam profile to.
+     *
+     * If set, the top-N tables are also printed to stdout.
+     */
+    public File logspam;
+
+    /**
+     * How many tags, pids and (pid, tag) pairs to include in the log spam profile.
+     */
+    public int logspamTop = 10;
+
     /**
      * Parse the arguments.
      *
@@ -99,6 +111,27 @@ public class Options {
                             "--logcat flag requires an argument");
                 }
                 result.logcat = new File(argParser.nextData());
+            } else if ("--logspam".equals(flag)) {
+                if (result.logspam != null || !argParser.hasData(1)) {
+                    return new Options(args, argParser.pos(),
+                            "--logspam flag requires an argument");
+                }
+                result.logspam = new File(argParser.nextData());
+            } else if ("--logspam-top".equals(flag)) {
+                if (!argParser.hasData(1)) {
+                    return new Options(args, argParser.pos(),
+                            "--logspam-top flag requires an argument");
+                }
+                try {
+                    result.logspamTop = Integer.parseInt(argParser.nextData());
+                } catch (NumberFormatException ex) {
+                    return new Options(args, argParser.pos(),
+                            "--logspam-top flag requires a number");
+                }
+                if (result.logspamTop <= 0) {
+                    return new Options(args, argParser.pos(),
+                            "--logspam-top flag requires a positive number");
+                }
             } else {
                 return new Options(args, argParser.pos(),
                         "Unknown flag: " + flag);
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bugreport.logcat;
+
+import java.util.ArrayList;
+
+/**
+ * The log rate and spam statistics for a logcat, as computed by LogSpamProfiler.
+ */
+public class LogSpam {
+    /**
+     * The statistics for one tag, one pid or one (pid, tag) pair.
+     */
+    public static class Entry {
+        /**
+         * The log tag. Null for the per-pid entries.
+         */
+        public String tag;
+
+        /**
+         * The process that emitted the logs. -1 for the per-tag entries.
+         */
+        public int pid = -1;
+
+        /**
+         * The command line of the process, if it is known.
+         */
+        public String processName;
+
+        /**
+         * The number of lines logged.
+         */
+        public long lines;
+
+        /**
+         * The number of bytes logged, including the header and the newline.
+         */
+        public long bytes;
+
+        /**
+         * The number of lines that logd reported as suppressed by chatty.
+         */
+        public long suppressed;
+
+        /**
+         * The largest number of lines seen in any window of windowMs.
+         */
+        public int burstLines;
+
+        /**
+         * The time of the first line of the busiest window, in ms since the epoch.
+         */
+        public long burstStartMs;
+
+        /**
+         * The average lines per second over the whole log.
+         */
+        public double linesPerSec;
+
+        /**
+         * The average bytes per second over the whole log.
+         */
+        public double bytesPerSec;
+
+        /**
+         * The number of lines in each bucketMs wide bucket, starting at startMs.
+         * Only filled in for the total and the per-tag entries.
+         */
+        public int[] series;
+    }
+
+    /**
+     * The time of the first line, in ms since the epoch.
+     */
+    public long startMs;
+
+    /**
+     * The time of the last line, in ms since the epoch.
+     */
+    public long endMs;
+
+    /**
+     * The size of the sliding window used to find bursts.
+     */
+    public long windowMs;
+
+    /**
+     * The width of the buckets in the per-tag series.
+     */
+    public long bucketMs;
+
+    /**
+     * The totals over all of the lines.  The tag and pid are not set.
+     */
+    public Entry total = new Entry();
+
+    /**
+     * The per-tag statistics, sorted by descending line count.
+     */
+    public ArrayList<Entry> tags = new ArrayList<Entry>();
+
+    /**
+     * The per-pid statistics, sorted by descending line count.
+     */
+    public ArrayList<Entry> pids = new ArrayList<Entry>();
+
+    /**
+     * The per-(pid, tag) statistics, sorted by descending line count.
+     */
+    public ArrayList<Entry> pidTags = new ArrayList<Entry>();
+
+    /**
+     * Returns the duration covered by the log in seconds, or 0 if it is empty.
+     */
+    public double durationSec() {
+        return (endMs - startMs) / 1000.0;
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bugreport.logcat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Computes log rates, bursts and chatty suppression counts per tag, per pid
+ * and per (pid, tag) in a single pass over a time-sorted logcat.
+ *
+ * All of the counting is done with primitive arrays indexed by a small
+ * integer id that is assigned the first time a tag, pid or pair is seen,
+ * so the cost per line is a couple of hash lookups.
+ */
+public class LogSpamProfiler {
+    /**
+     * The default size of the sliding window used to find bursts.
+     */
+    public static final long DEFAULT_WINDOW_MS = 1000;
+
+    /**
+     * The default width of the buckets in the per-tag series.
+     */
+    public static final long DEFAULT_BUCKET_MS = 1000;
+
+    /**
+     * What logd writes in place of the lines it dropped for being repetitive.
+     * Older releases log it under the "chatty" tag, newer ones under the original tag.
+     */
+    private static final Pattern CHATTY_RE = Pattern.compile(
+            "(?:.*\\s)?(?:identical|expire) (\\d+) lines?");
+
+    private final Matcher mChattyRe = CHATTY_RE.matcher("");
+
+    private final long mWindowMs;
+    private final long mBucketMs;
+
+    private final HashMap<String,Integer> mTagIds = new HashMap<String,Integer>();
+    private final HashMap<Integer,Integer> mPidIds = new HashMap<Integer,Integer>();
+    private final HashMap<Long,Integer> mPidTagIds = new HashMap<Long,Integer>();
+
+    private final Counters mTotal = new Counters(true);
+    private final Counters mTags = new Counters(true);
+    private final Counters mPids = new Counters(false);
+    private final Counters mPidTags = new Counters(false);
+
+    private final ArrayList<String> mTagNames = new ArrayList<String>();
+    private final ArrayList<String> mProcessNames = new ArrayList<String>();
+    private int[] mPidValues = new int[16];
+    private long[] mPidTagKeys = new long[16];
+
+    private boolean mStarted;
+    private long mStartMs;
+    private long mLastMs;
+
+    /**
+     * Construct a profiler with the default window and bucket sizes.
+     */
+    public LogSpamProfiler() {
+        this(DEFAULT_WINDOW_MS, DEFAULT_BUCKET_MS);
+    }
+
+    /**
+     * Construct a profiler.
+     *
+     * @param windowMs the size of the sliding window used to find bursts.
+     * @param bucketMs the width of the buckets in the per-tag series.
+     */
+    public LogSpamProfiler(long windowMs, long bucketMs) {
+        mWindowMs = windowMs;
+        mBucketMs = bucketMs;
+        mTotal.add();
+    }
+
+    /**
+     * Profile all of the lines in a logcat.
+     */
+    public static LogSpam profile(Logcat logcat) {
+        final LogSpamProfiler profiler = new LogSpamProfiler();
+        for (LogLine line: logcat.lines) {
+            profiler.add(line);
+        }
+        return profiler.finish();
+    }
+
+    /**
+     * Count one log line.  Lines must be added in time order.  Lines that are
+     * slightly out of order, as happens where the system and event logs were
+     * merged, are counted as if they happened at the latest time seen so far.
+     */
+    public void add(LogLine line) {
+        if (line.bufferBegin != null || line.time == null || line.tag == null) {
+            return;
+        }
+
+        long time = line.time.getTimeInMillis();
+        if (!mStarted) {
+            mStarted = true;
+            mStartMs = time;
+            mLastMs = time;
+        } else if (time < mLastMs) {
+            time = mLastMs;
+        } else {
+            mLastMs = time;
+        }
+
+        final int bytes = (line.rawText != null ? line.rawText.length() : line.text.length()) + 1;
+        final int bucket = (int)((time - mStartMs) / mBucketMs);
+
+        // The threadtime format pads short tags with spaces.
+        final int tagId = tagId(line.tag.trim());
+        final int pidId = pidId(line);
+        final int pidTagId = pidTagId(line.pid, tagId);
+
+        mTotal.count(0, time, bytes, bucket, mWindowMs);
+        mTags.count(tagId, time, bytes, bucket, mWindowMs);
+        mPids.count(pidId, time, bytes, bucket, mWindowMs);
+        mPidTags.count(pidTagId, time, bytes, bucket, mWindowMs);
+
+        if (line.text != null && line.text.indexOf(" lines") >= 0
+                && (line.text.indexOf("identical") >= 0 || line.text.indexOf("expire") >= 0)) {
+            mChattyRe.reset(line.text);
+            if (mChattyRe.matches()) {
+                final long suppressed = Long.parseLong(mChattyRe.group(1));
+                mTotal.suppressed[0] += suppressed;
+                mTags.suppressed[tagId] += suppressed;
+                mPids.suppressed[pidId] += suppressed;
+                mPidTags.suppressed[pidTagId] += suppressed;
+            }
+        }
+    }
+
+    /**
+     * Build the LogSpam from everything that has been added.
+     */
+    public LogSpam finish() {
+        final LogSpam result = new LogSpam();
+        result.startMs = mStartMs;
+        result.endMs = mLastMs;
+        result.windowMs = mWindowMs;
+        result.bucketMs = mBucketMs;
+
+        // Don't let a very short log turn into an enormous rate.
+        final double seconds = Math.max(mLastMs - mStartMs, mWindowMs) / 1000.0;
+        final int bucketCount = mStarted ? (int)((mLastMs - mStartMs) / mBucketMs) + 1 : 0;
+
+        result.total = mTotal.makeEntry(0, seconds, bucketCount);
+
+        for (int i=0; i<mTags.size; i++) {
+            final LogSpam.Entry entry = mTags.makeEntry(i, seconds, bucketCount);
+            entry.tag = mTagNames.get(i);
+            result.tags.add(entry);
+        }
+
+        for (int i=0; i<mPids.size; i++) {
+            final LogSpam.Entry entry = mPids.makeEntry(i, seconds, bucketCount);
+            entry.pid = mPidValues[i];
+            entry.processName = mProcessNames.get(i);
+            result.pids.add(entry);
+        }
+
+        for (int i=0; i<mPidTags.size; i++) {
+            final LogSpam.Entry entry = mPidTags.makeEntry(i, seconds, bucketCount);
+            final long key = mPidTagKeys[i];
+            final int pidId = mPidIds.get((int)(key >> 32));
+            entry.pid = mPidValues[pidId];
+            entry.processName = mProcessNames.get(pidId);
+            entry.tag = mTagNames.get((int)key);
+            result.pidTags.add(entry);
+        }
+
+        final Comparator<LogSpam.Entry> byLines = new Comparator<LogSpam.Entry>() {
+            @Override
+            public int compare(LogSpam.Entry a, LogSpam.Entry b) {
+                if (a.lines != b.lines) {
+                    return a.lines > b.lines ? -1 : 1;
+                }
+                return Long.compare(b.bytes, a.bytes);
+            }
+        };
+        Collections.sort(result.tags, byLines);
+        Collections.sort(result.pids, byLines);
+        Collections.sort(result.pidTags, byLines);
+
+        return result;
+    }
+
+    /**
+     * Get or assign the id for a tag.
+     */
+    private int tagId(String tag) {
+        final Integer id = mTagIds.get(tag);
+        if (id != null) {
+            return id;
+        }
+        final int newId = mTags.add();
+        mTagIds.put(tag, newId);
+        mTagNames.add(tag);
+        return newId;
+    }
+
+    /**
+     * Get or assign the id for the pid of a line.  The process name is taken from
+     * the first line that has one.
+     */
+    private int pidId(LogLine line) {
+        final Integer id = mPidIds.get(line.pid);
+        if (id != null) {
+            if (mProcessNames.get(id) == null && line.process != null) {
+                mProcessNames.set(id, line.process.cmdLine);
+            }
+            return id;
+        }
+        final int newId = mPids.add();
+        mPidIds.put(line.pid, newId);
+        mProcessNames.add(line.process != null ? line.process.cmdLine : null);
+        if (newId >= mPidValues.length) {
+            mPidValues = Arrays.copyOf(mPidValues, newId * 2);
+        }
+        mPidValues[newId] = line.pid;
+        return newId;
+    }
+
+    /**
+     * Get or assign the id for a (pid, tag) pair.
+     */
+    private int pidTagId(int pid, int tagId) {
+        final long key = (((long)pid) << 32) | (tagId & 0xffffffffL);
+        final Integer id = mPidTagIds.get(key);
+        if (id != null) {
+            return id;
+        }
+        final int newId = mPidTags.add();
+        mPidTagIds.put(key, newId);
+        if (newId >= mPidTagKeys.length) {
+            mPidTagKeys = Arrays.copyOf(mPidTagKeys, newId * 2);
+        }
+        mPidTagKeys[newId] = key;
+        return newId;
+    }
+
+    /**
+     * Parallel arrays of counters, one slot per id.
+     */
+    private static class Counters {
+        int size;
+        long[] lines = new long[16];
+        long[] bytes = new long[16];
+        long[] suppressed = new long[16];
+        int[] burstLines = new int[16];
+        long[] burstStartMs = new long[16];
+
+        // The timestamps inside the current window, as a ring buffer per id.
+        long[][] window = new long[16][];
+        int[] windowHead = new int[16];
+        int[] windowCount = new int[16];
+
+        // Lines per bucket, or null if this set of counters doesn't keep a series.
+        int[][] buckets;
+
+        Counters(boolean keepSeries) {
+            if (keepSeries) {
+                buckets = new int[16][];
+            }
+        }
+
+        /**
+         * Allocate a new slot and return its id.
+         */
+        int add() {
+            if (size == lines.length) {
+                final int n = size * 2;
+                lines = Arrays.copyOf(lines, n);
+                bytes = Arrays.copyOf(bytes, n);
+                suppressed = Arrays.copyOf(suppressed, n);
+                burstLines = Arrays.copyOf(burstLines, n);
+                burstStartMs = Arrays.copyOf(burstStartMs, n);
+                window = Arrays.copyOf(window, n);
+                windowHead = Arrays.copyOf(windowHead, n);
+                windowCount = Arrays.copyOf(windowCount, n);
+                if (buckets != null) {
+                    buckets = Arrays.copyOf(buckets, n);
+                }
+            }
+            window[size] = new long[8];
+            if (buckets != null) {
+                buckets[size] = new int[8];
+            }
+            return size++;
+        }
+
+        /**
+         * Count one line against the given id.
+         */
+        void count(int id, long time, int byteCount, int bucket, long windowMs) {
+            lines[id]++;
+            bytes[id] += byteCount;
+
+            // Slide the window forward, dropping anything windowMs or older.
+            long[] ring = window[id];
+            int head = windowHead[id];
+            int n = windowCount[id];
+            while (n > 0 && ring[head] <= time - windowMs) {
+                head = (head + 1) % ring.length;
+                n--;
+            }
+            if (n == ring.length) {
+                final long[] bigger = new long[ring.length * 2];
+                for (int i=0; i<n; i++) {
+                    bigger[i] = ring[(head + i) % ring.length];
+                }
+                ring = window[id] = bigger;
+                head = 0;
+            }
+            ring[(head + n) % ring.length] = time;
+            n++;
+            windowHead[id] = head;
+            windowCount[id] = n;
+            if (n > burstLines[id]) {
+                burstLines[id] = n;
+                burstStartMs[id] = ring[head];
+            }
+
+            if (buckets != null) {
+                int[] series = buckets[id];
+                if (bucket >= series.length) {
+                    series = buckets[id] = Arrays.copyOf(series,
+                            Math.max(series.length * 2, bucket + 1));
+                }
+                series[bucket]++;
+            }
+        }
+
+        /**
+         * Make the LogSpam.Entry for an id, with the series trimmed to bucketCount.
+         * The tag and pid are left for the caller.
+         */
+        LogSpam.Entry makeEntry(int id, double seconds, int bucketCount) {
+            final LogSpam.Entry entry = new LogSpam.Entry();
+            entry.lines = lines[id];
+            entry.bytes = bytes[id];
+            entry.suppressed = suppressed[id];
+            entry.burstLines = burstLines[id];
+            entry.burstStartMs = burstStartMs[id];
+            entry.linesPerSec = lines[id] / seconds;
+            entry.bytesPerSec = bytes[id] / seconds;
+            if (buckets != null) {
+                entry.series = Arrays.copyOf(buckets[id], bucketCount);
+            }
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bugreport.logcat;
+
+import com.android.bugreport.util.Utils;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Writes a LogSpam as a human readable top-N table or as JSON.
+ */
+public class LogSpamWriter {
+    private final int mTopN;
+    private final SimpleDateFormat mDateFormat
+            = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+
+    /**
+     * Constructor.
+     *
+     * @param topN how many entries of each kind to write.
+     */
+    public LogSpamWriter(int topN) {
+        mTopN = topN;
+        // The log times were parsed as UTC, so print them the same way.
+        mDateFormat.setTimeZone(Utils.UTC);
+    }
+
+    /**
+     * Write the top-N tables.
+     */
+    public void writeTable(PrintStream out, LogSpam spam) {
+        final LogSpam.Entry total = spam.total;
+        out.println(String.format(Locale.US,
+                "Log rate: %d lines, %d bytes in %.1fs (%.1f lines/s, %.0f bytes/s),"
+                    + " %d suppressed by chatty",
+                total.lines, total.bytes, spam.durationSec(), total.linesPerSec,
+                total.bytesPerSec, total.suppressed));
+        if (total.lines > 0) {
+            out.println(String.format(Locale.US, "Busiest %dms: %d lines starting at %s",
+                    spam.windowMs, total.burstLines, formatTime(total.burstStartMs)));
+        }
+
+        out.println();
+        out.println("Top " + mTopN + " tags:");
+        writeTableRows(out, spam.tags, spam.windowMs);
+
+        out.println();
+        out.println("Top " + mTopN + " pids:");
+        writeTableRows(out, spam.pids, spam.windowMs);
+
+        out.println();
+        out.println("Top " + mTopN + " (pid, tag):");
+        writeTableRows(out, spam.pidTags, spam.windowMs);
+    }
+
+    /**
+     * Write one table.
+     */
+    private void writeTableRows(PrintStream out, ArrayList<LogSpam.Entry> entries,
+            long windowMs) {
+        out.println(String.format(Locale.US, "  %9s %8s %10s %7s %-18s %10s  %s",
+                "LINES", "LINES/S", "BYTES/S", "PEAK", "PEAK AT", "SUPPRESSED", "SOURCE"));
+        final int N = Math.min(mTopN, entries.size());
+        for (int i=0; i<N; i++) {
+            final LogSpam.Entry entry = entries.get(i);
+            out.println(String.format(Locale.US, "  %9d %8.2f %10.0f %7d %-18s %10d  %s",
+                    entry.lines, entry.linesPerSec, entry.bytesPerSec, entry.burstLines,
+                    formatTime(entry.burstStartMs), entry.suppressed, describe(entry)));
+        }
+    }
+
+    /**
+     * Returns the tag and / or process for an entry.
+     */
+    private static String describe(LogSpam.Entry entry) {
+        final StringBuilder result = new StringBuilder();
+        if (entry.pid >= 0) {
+            result.append(entry.pid);
+            if (entry.processName != null) {
+                result.append(" (").append(entry.processName).append(')');
+            }
+        }
+        if (entry.tag != null) {
+            if (result.length() > 0) {
+                result.append(' ');
+            }
+            result.append(entry.tag);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Write the JSON to a file.
+     */
+    public void writeJson(File outFile, LogSpam spam) throws IOException {
+        final FileWriter writer = new FileWriter(outFile);
+        try {
+            writeJson(writer, spam);
+            writer.close();
+        } catch (IOException ex) {
+            // Delete the file so we don't leave half-written files laying around.
+            try {
+                writer.close();
+            } catch (IOException e) {
+            }
+            outFile.delete();
+            throw ex;
+        }
+    }
+
+    /**
+     * Write the JSON.  The series for the total and for the top-N tags are included
+     * so the lines per bucket can be plotted.
+     */
+    public void writeJson(Writer out, LogSpam spam) throws IOException {
+        out.write("{\n");
+        out.write("  \"startMs\": " + spam.startMs + ",\n");
+        out.write("  \"endMs\": " + spam.endMs + ",\n");
+        out.write("  \"windowMs\": " + spam.windowMs + ",\n");
+        out.write("  \"bucketMs\": " + spam.bucketMs + ",\n");
+        out.write("  \"total\": ");
+        writeJsonEntry(out, spam.total, true);
+        out.write(",\n  \"tags\": ");
+        writeJsonEntries(out, spam.tags, true);
+        out.write(",\n  \"pids\": ");
+        writeJsonEntries(out, spam.pids, false);
+        out.write(",\n  \"pidTags\": ");
+        writeJsonEntries(out, spam.pidTags, false);
+        out.write("\n}\n");
+    }
+
+    /**
+     * Write the top-N entries as a JSON array.
+     */
+    private void writeJsonEntries(Writer out, ArrayList<LogSpam.Entry> entries,
+            boolean withSeries) throws IOException {
+        out.write("[");
+        final int N = Math.min(mTopN, entries.size());
+        for (int i=0; i<N; i++) {
+            out.write(i == 0 ? "\n    " : ",\n    ");
+            writeJsonEntry(out, entries.get(i), withSeries);
+        }
+        out.write(N == 0 ? "]" : "\n  ]");
+    }
+
+    /**
+     * Write one entry as a JSON object on a single line.
+     */
+    private static void writeJsonEntry(Writer out, LogSpam.Entry entry, boolean withSeries)
+            throws IOException {
+        out.write("{");
+        if (entry.tag != null) {
+            out.write("\"tag\": ");
+            writeJsonString(out, entry.tag);
+            out.write(", ");
+        }
+        if (entry.pid >= 0) {
+            out.write("\"pid\": " + entry.pid + ", ");
+            if (entry.processName != null) {
+                out.write("\"process\": ");
+                writeJsonString(out, entry.processName);
+                out.write(", ");
+            }
+        }
+        out.write("\"lines\": " + entry.lines);
+        out.write(", \"bytes\": " + entry.bytes);
+        out.write(String.format(Locale.US, ", \"linesPerSec\": %.3f", entry.linesPerSec));
+        out.write(String.format(Locale.US, ", \"bytesPerSec\": %.1f", entry.bytesPerSec));
+        out.write(", \"suppressed\": " + entry.suppressed);
+        out.write(", \"peakLines\": " + entry.burstLines);
+        out.write(", \"peakStartMs\": " + entry.burstStartMs);
+        if (withSeries && entry.series != null) {
+            out.write(", \"series\": [");
+            for (int i=0; i<entry.series.length; i++) {
+                if (i != 0) {
+                    out.write(",");
+                }
+                out.write(Integer.toString(entry.series[i]));
+            }
+            out.write("]");
+        }
+        out.write("}");
+    }
+
+    /**
+     * Write a quoted and escaped JSON string.
+     */
+    private static void writeJsonString(Writer out, String str) throws IOException {
+        out.write('"');
+        final int N = str.length();
+        for (int i=0; i<N; i++) {
+            final char c = str.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write(String.format("\\u%04x", (int)c));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+
+    /**
+     * Format a time in ms since the epoch like the logcat timestamps.
+     */
+    private String formatTime(long ms) {
+        return mDateFormat.format(new Date(ms));
+    }
+}